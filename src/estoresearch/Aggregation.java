@@ -0,0 +1,553 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Price and count aggregates of products grouped by a field. Every
+ * aggregate of every group is computed in one pass over the primitive
+ * columns, split into one part per processor that each fill their own
+ * partial arrays, which are summed at the end. Only non-empty groups are
+ * kept, in ascending order of year, type or dictionary code.
+ *
+ * <p>
+ * Books have no maker and electronics no publisher, so grouping by
+ * publisher only aggregates books and grouping by maker only electronics.
+ * Prices of Product.NO_PRICE are counted but left out of the price
+ * aggregates.
+ *
+ * @author Courtney Bodi
+ */
+public final class Aggregation {
+
+    private static final int YEAR_COUNT = Product.MAX_YEAR - Product.MIN_YEAR
+            + 1;
+
+    private final GroupBy groupBy;
+    private final int[] keys;
+    private final String[] labels;
+    private final int[] counts;
+    private final int[] pricedCounts;
+    private final double[] minPrices;
+    private final double[] maxPrices;
+    private final double[] priceSums;
+
+    /**
+     * Aggregation constructor with all members, one entry per group
+     */
+    private Aggregation(GroupBy groupBy, int[] keys, String[] labels,
+            int[] counts, int[] pricedCounts, double[] minPrices,
+            double[] maxPrices, double[] priceSums) {
+        this.groupBy = groupBy;
+        this.keys = keys;
+        this.labels = labels;
+        this.counts = counts;
+        this.pricedCounts = pricedCounts;
+        this.minPrices = minPrices;
+        this.maxPrices = maxPrices;
+        this.priceSums = priceSums;
+    }
+
+    /**
+     * Aggregates products of a version
+     *
+     * @param version to aggregate
+     * @param groupBy field to group by
+     * @param ordinals ascending ordinals to aggregate, or null for every
+     * product that has not been removed
+     * @return the aggregates
+     */
+    static Aggregation compute(CatalogVersion version, GroupBy groupBy,
+            int[] ordinals) {
+        ProductColumns columns = version.getColumns();
+        int groupCount;
+        switch (groupBy) {
+            case YEAR:
+                groupCount = YEAR_COUNT;
+                break;
+            case TYPE:
+                groupCount = 2;
+                break;
+            case PUBLISHER:
+                groupCount = columns.getPublisherDictionary().size();
+                break;
+            case MAKER:
+                groupCount = columns.getMakerDictionary().size();
+                break;
+            default:
+                groupCount = 1;
+        }
+
+        int count = ordinals == null ? version.size() : ordinals.length;
+        long[] removed = ordinals == null ? version.getTombstones()
+                .toLongArray() : null;
+        int parts = Math.max(1, Math.min(Runtime.getRuntime()
+                .availableProcessors(), count / ScanEngine.CHUNK_SIZE));
+        Partial[] partials = new Partial[parts];
+
+        IntStream.range(0, parts).parallel().forEach(part -> {
+            Partial partial = new Partial(groupCount);
+            int from = (int) ((long) count * part / parts);
+            int to = (int) ((long) count * (part + 1) / parts);
+            for (int i = from; i < to; i++) {
+                int ordinal;
+                if (ordinals != null) {
+                    ordinal = ordinals[i];
+                } else if ((i >>> 6) < removed.length
+                        && (removed[i >>> 6] & (1L << i)) != 0) {
+                    continue;
+                } else {
+                    ordinal = i;
+                }
+                partial.add(columns, groupBy, ordinal);
+            }
+            partials[part] = partial;
+        });
+
+        Partial total = partials[0];
+        for (int part = 1; part < parts; part++) {
+            total.merge(partials[part]);
+        }
+        return total.toAggregation(groupBy, columns);
+    }
+
+    /**
+     * Aggregates of every group for one part of the ordinals
+     */
+    private static final class Partial {
+
+        private final int[] counts;
+        private final int[] pricedCounts;
+        private final double[] minPrices;
+        private final double[] maxPrices;
+        private final double[] priceSums;
+
+        private Partial(int groupCount) {
+            counts = new int[groupCount];
+            pricedCounts = new int[groupCount];
+            minPrices = new double[groupCount];
+            maxPrices = new double[groupCount];
+            priceSums = new double[groupCount];
+        }
+
+        private void add(ProductColumns columns, GroupBy groupBy,
+                int ordinal) {
+            int group;
+            switch (groupBy) {
+                case YEAR:
+                    group = columns.getYears()[ordinal] - Product.MIN_YEAR;
+                    break;
+                case TYPE:
+                    group = columns.getTypes()[ordinal];
+                    break;
+                case PUBLISHER:
+                    group = columns.getPublishers()[ordinal];
+                    break;
+                case MAKER:
+                    group = columns.getMakers()[ordinal];
+                    break;
+                default:
+                    group = 0;
+            }
+            if (group == ProductColumns.NO_VALUE) {
+                return;
+            }
+
+            counts[group]++;
+            double price = columns.getPrices()[ordinal];
+            if (price == Product.NO_PRICE) {
+                return;
+            }
+            if (pricedCounts[group]++ == 0) {
+                minPrices[group] = price;
+                maxPrices[group] = price;
+            } else {
+                minPrices[group] = Math.min(minPrices[group], price);
+                maxPrices[group] = Math.max(maxPrices[group], price);
+            }
+            priceSums[group] += price;
+        }
+
+        private void merge(Partial other) {
+            for (int group = 0; group < counts.length; group++) {
+                if (other.pricedCounts[group] > 0) {
+                    if (pricedCounts[group] == 0) {
+                        minPrices[group] = other.minPrices[group];
+                        maxPrices[group] = other.maxPrices[group];
+                    } else {
+                        minPrices[group] = Math.min(minPrices[group],
+                                other.minPrices[group]);
+                        maxPrices[group] = Math.max(maxPrices[group],
+                                other.maxPrices[group]);
+                    }
+                }
+                counts[group] += other.counts[group];
+                pricedCounts[group] += other.pricedCounts[group];
+                priceSums[group] += other.priceSums[group];
+            }
+        }
+
+        /**
+         * Keeps the non-empty groups, with NaN prices for groups where no
+         * product has a price
+         */
+        private Aggregation toAggregation(GroupBy groupBy,
+                ProductColumns columns) {
+            int size = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    size++;
+                }
+            }
+
+            Aggregation aggregation = new Aggregation(groupBy, new int[size],
+                    new String[size], new int[size], new int[size],
+                    new double[size], new double[size], new double[size]);
+            int index = 0;
+            for (int group = 0; group < counts.length; group++) {
+                if (counts[group] == 0) {
+                    continue;
+                }
+                int key = groupBy == GroupBy.YEAR ? group + Product.MIN_YEAR
+                        : group;
+                aggregation.keys[index] = key;
+                aggregation.labels[index] = label(groupBy, key, columns);
+                aggregation.counts[index] = counts[group];
+                aggregation.pricedCounts[index] = pricedCounts[group];
+                boolean priced = pricedCounts[group] > 0;
+                aggregation.minPrices[index] = priced ? minPrices[group]
+                        : Double.NaN;
+                aggregation.maxPrices[index] = priced ? maxPrices[group]
+                        : Double.NaN;
+                aggregation.priceSums[index] = priceSums[group];
+                index++;
+            }
+            return aggregation;
+        }
+    }
+
+    /**
+     * Gets the label shown for the key of a group
+     */
+    private static String label(GroupBy groupBy, int key,
+            ProductColumns columns) {
+        switch (groupBy) {
+            case YEAR:
+                return String.valueOf(key);
+            case TYPE:
+                return key == ProductColumns.TYPE_BOOK ? "Books"
+                        : "Electronics";
+            case PUBLISHER:
+                return columns.getPublisherDictionary().decode(key);
+            case MAKER:
+                return columns.getMakerDictionary().decode(key);
+            default:
+                return groupBy.toString();
+        }
+    }
+
+    /**
+     * @return field the products are grouped by
+     */
+    public GroupBy getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * @return number of non-empty groups
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return year of each group when grouped by year, otherwise the type
+     * or dictionary code of each group
+     */
+    public int[] getKeys() {
+        return keys.clone();
+    }
+
+    /**
+     * @return label of each group: the year, the type, the publisher or the
+     * maker
+     */
+    public String[] getLabels() {
+        return labels.clone();
+    }
+
+    /**
+     * @return number of products in each group
+     */
+    public int[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * @return number of products with a price in each group
+     */
+    public int[] getPricedCounts() {
+        return pricedCounts.clone();
+    }
+
+    /**
+     * @return lowest price in each group, NaN where no product has a price
+     */
+    public double[] getMinPrices() {
+        return minPrices.clone();
+    }
+
+    /**
+     * @return highest price in each group, NaN where no product has a price
+     */
+    public double[] getMaxPrices() {
+        return maxPrices.clone();
+    }
+
+    /**
+     * @return sum of the prices in each group
+     */
+    public double[] getPriceSums() {
+        return priceSums.clone();
+    }
+
+    /**
+     * @return average price of the priced products in each group, NaN where
+     * no product has a price
+     */
+    public double[] getAveragePrices() {
+        double[] averages = new double[keys.length];
+        for (int group = 0; group < averages.length; group++) {
+            averages[group] = pricedCounts[group] == 0 ? Double.NaN
+                    : priceSums[group] / pricedCounts[group];
+        }
+        return averages;
+    }
+
+    /**
+     * @return fraction of the products in each group that have no price
+     */
+    public double[] getNoPriceShares() {
+        double[] shares = new double[keys.length];
+        for (int group = 0; group < shares.length; group++) {
+            shares[group] = (counts[group] - pricedCounts[group])
+                    / (double) counts[group];
+        }
+        return shares;
+    }
+
+    /**
+     * @return number of products in every group
+     */
+    public int getTotalCount() {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Gets a table of the aggregates, one group per line
+     *
+     * @return the table
+     */
+    @Override
+    public String toString() {
+        double[] averages = getAveragePrices();
+        double[] shares = getNoPriceShares();
+        StringBuilder table = new StringBuilder(groupBy
+                + "\tCount\tMin\tMax\tAverage\tNo price\n");
+        for (int group = 0; group < keys.length; group++) {
+            table.append(String.format("%s\t%d\t%.2f\t%.2f\t%.2f\t%.1f%%%n",
+                    labels[group], counts[group], minPrices[group],
+                    maxPrices[group], averages[group], shares[group] * 100));
+        }
+        return table.toString();
+    }
+
+    /**
+     * Main method for testing aggregates against loops over getProducts and
+     * benchmarking them against such a loop
+     *
+     * @param args optional catalog size, at most 1000000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = 20;
+        Random random = new Random(42);
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        ArrayList<Product> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "item " + random.nextInt(1000) + " w"
+                    + random.nextInt(50);
+            int year = 1950 + random.nextInt(70);
+            double price = random.nextInt(10) == 0 ? Product.NO_PRICE
+                    : random.nextInt(20000) / 100.0;
+            batch.add(i % 3 == 0 ? new Book(String.format("%06d", i), name,
+                    year, price, "author", "publisher " + random.nextInt(200))
+                    : new Electronic(String.format("%06d", i), name, year,
+                            price, "maker " + random.nextInt(200)));
+            if (batch.size() == 10000) {
+                eStoreSearch.addProducts(batch);
+                batch.clear();
+            }
+        }
+        eStoreSearch.addProducts(batch);
+        for (int i = 0; i < count / 100; i++) {
+            try {
+                eStoreSearch.removeProduct(String.format("%06d",
+                        random.nextInt(count)));
+            } catch (InvalidInputException e) {
+                // Already removed
+            }
+        }
+
+        System.out.println("Aggregation Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        List<Product> products = eStoreSearch.getProducts();
+        ArrayList<Product> matches = new ArrayList<>();
+        for (Product product : eStoreSearch.query("w7 AND year:[1990 TO *]")) {
+            matches.add(product);
+        }
+        for (GroupBy groupBy : GroupBy.values()) {
+            System.out.println(matchesLoop(eStoreSearch.aggregate(groupBy),
+                    products) && matchesLoop(eStoreSearch.aggregate(groupBy,
+                            "w7 AND year:[1990 TO *]"), matches));
+        }
+        Aggregation empty = eStoreSearch.aggregate(GroupBy.YEAR, "missing");
+        System.out.println(empty.size() == 0 && empty.getTotalCount() == 0);
+        Aggregation types = eStoreSearch.aggregate(GroupBy.TYPE);
+        System.out.println(types.size() == 2 && types.getTotalCount()
+                == products.size());
+
+        long checksum = 0;
+        for (int warmup = 0; warmup < 5; warmup++) {
+            checksum += loopByYear(eStoreSearch.getProducts()).size();
+            checksum += eStoreSearch.aggregate(GroupBy.YEAR).size();
+        }
+
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            checksum += loopByYear(eStoreSearch.getProducts()).size();
+        }
+        long loopNanos = (System.nanoTime() - begin) / rounds;
+
+        long[] nanos = new long[GroupBy.values().length];
+        for (GroupBy groupBy : GroupBy.values()) {
+            begin = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                checksum += eStoreSearch.aggregate(groupBy).size();
+            }
+            nanos[groupBy.ordinal()] = (System.nanoTime() - begin) / rounds;
+        }
+
+        begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            checksum += eStoreSearch.aggregate(GroupBy.YEAR,
+                    "w7 AND year:[1990 TO *]").size();
+        }
+        long restrictedNanos = (System.nanoTime() - begin) / rounds;
+
+        System.out.println("\nAggregation benchmark, " + products.size()
+                + " live products\n");
+        System.out.println(eStoreSearch.aggregate(GroupBy.TYPE));
+        System.out.println("Loop over getProducts by year:\t" + loopNanos
+                / 1000 + " us");
+        for (GroupBy groupBy : GroupBy.values()) {
+            System.out.println("Aggregate by " + groupBy + ":\t\t"
+                    + nanos[groupBy.ordinal()] / 1000 + " us");
+        }
+        System.out.println("Aggregate query by Year:\t" + restrictedNanos
+                / 1000 + " us");
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Checks an aggregation against the same aggregates computed by a loop
+     * over products
+     */
+    private static boolean matchesLoop(Aggregation aggregation,
+            List<Product> products) {
+        HashMap<String, double[]> groups = new HashMap<>();
+        for (Product product : products) {
+            String label;
+            switch (aggregation.getGroupBy()) {
+                case YEAR:
+                    label = String.valueOf(product.getYear());
+                    break;
+                case TYPE:
+                    label = product instanceof Book ? "Books" : "Electronics";
+                    break;
+                case PUBLISHER:
+                    label = product instanceof Book
+                            ? ((Book) product).getPublisher() : null;
+                    break;
+                case MAKER:
+                    label = product instanceof Electronic
+                            ? ((Electronic) product).getMaker() : null;
+                    break;
+                default:
+                    label = GroupBy.NONE.toString();
+            }
+            if (label == null) {
+                continue;
+            }
+            // Count, priced count, min, max and sum
+            double[] group = groups.computeIfAbsent(label, key
+                    -> new double[]{0, 0, Double.NaN, Double.NaN, 0});
+            group[0]++;
+            if (product.getPrice() != Product.NO_PRICE) {
+                group[1]++;
+                group[2] = group[1] == 1 ? product.getPrice()
+                        : Math.min(group[2], product.getPrice());
+                group[3] = group[1] == 1 ? product.getPrice()
+                        : Math.max(group[3], product.getPrice());
+                group[4] += product.getPrice();
+            }
+        }
+
+        String[] labels = aggregation.getLabels();
+        int[] counts = aggregation.getCounts();
+        int[] pricedCounts = aggregation.getPricedCounts();
+        double[] minPrices = aggregation.getMinPrices();
+        double[] maxPrices = aggregation.getMaxPrices();
+        double[] priceSums = aggregation.getPriceSums();
+        boolean matches = groups.size() == aggregation.size();
+        for (int i = 0; i < aggregation.size() && matches; i++) {
+            double[] group = groups.get(labels[i]);
+            matches = group != null && group[0] == counts[i]
+                    && group[1] == pricedCounts[i]
+                    && Double.compare(group[2], minPrices[i]) == 0
+                    && Double.compare(group[3], maxPrices[i]) == 0
+                    && Math.abs(group[4] - priceSums[i]) < 1e-6 * (1
+                    + Math.abs(group[4]));
+        }
+        return matches;
+    }
+
+    /**
+     * The ad hoc loop the aggregates replace: min, max and average price per
+     * year
+     */
+    private static HashMap<Integer, double[]> loopByYear(
+            List<Product> products) {
+        HashMap<Integer, double[]> years = new HashMap<>();
+        for (Product product : products) {
+            double[] year = years.computeIfAbsent(product.getYear(), key
+                    -> new double[]{0, Double.MAX_VALUE, -Double.MAX_VALUE, 0});
+            if (product.getPrice() != Product.NO_PRICE) {
+                year[0]++;
+                year[1] = Math.min(year[1], product.getPrice());
+                year[2] = Math.max(year[2], product.getPrice());
+                year[3] += product.getPrice();
+            }
+        }
+        return years;
+    }
+}
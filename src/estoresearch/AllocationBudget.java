@@ -0,0 +1,237 @@
+package estoresearch;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the bytes each hot path allocates per operation against a budget
+ * at several catalog sizes, so a change that starts making more garbage
+ * fails instead of quietly costing more collections. Bytes are counted per
+ * thread with com.sun.management.ThreadMXBean after a warm up: adds and
+ * searches on the calling thread, and loads on the calling thread and the
+ * import threads. Background keyword merges and compactions are not
+ * counted.
+ *
+ * @author Courtney Bodi
+ */
+public class AllocationBudget {
+
+    /**
+     * Catalog sizes every operation is measured at
+     */
+    static final int[] SIZES = {1000, 10000, 100000};
+
+    /**
+     * Operations measured per size, each one counted on its own
+     */
+    static final int OPERATIONS = 1000;
+
+    private static final String[] NAMES = {"addBook", "addElectronic",
+        "executeSearch ID", "executeSearch keyword",
+        "executeSearch keyword year", "executeSearch typed keyword year",
+        "loadProducts per product"};
+
+    /**
+     * Bytes per operation each of NAMES may allocate, by index in SIZES,
+     * about half as much again as was measured when they were set
+     */
+    private static final long[][] BUDGETS = {
+        {6000, 6000, 6000},
+        {6000, 6000, 6000},
+        {4000, 4000, 4000},
+        {64000, 64000, 64000},
+        {130000, 160000, 244000},
+        {42000, 58000, 124000},
+        {28000, 28000, 28000}};
+
+    /**
+     * Products in every catalog whose names hold the searched keyword
+     */
+    private static final int RARE = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS
+            = (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+
+    /**
+     * An operation measured by its index among the operations of a size
+     */
+    private interface Operation {
+
+        void run(int i) throws InvalidInputException;
+    }
+
+    /**
+     * Main method for checking allocation budgets, exits with status 1 if
+     * any operation is over its budget
+     *
+     * @param args unused
+     * @throws IOException if a catalog could not be written
+     * @throws InterruptedException if interrupted while waiting for a load
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws IOException,
+            InterruptedException, InvalidInputException {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.out.println("This JVM cannot count allocated bytes");
+            System.exit(1);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        // Warm up so the JIT has compiled the paths being measured
+        for (int i = 0; i < 3; i++) {
+            measure(SIZES[0]);
+        }
+
+        System.out.println("AllocationBudget Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        System.out.println("Result\tProducts\tBytes/op\tBudget\tOperation");
+        boolean pass = true;
+        for (int size = 0; size < SIZES.length; size++) {
+            long[] bytes = measure(SIZES[size]);
+            for (int operation = 0; operation < NAMES.length; operation++) {
+                long budget = BUDGETS[operation][size];
+                pass &= bytes[operation] <= budget;
+                System.out.println((bytes[operation] <= budget) + "\t"
+                        + SIZES[size] + "\t\t" + bytes[operation] + "\t\t"
+                        + budget + "\t" + NAMES[operation]);
+            }
+        }
+        System.exit(pass ? 0 : 1);
+    }
+
+    /**
+     * Gets the bytes per operation of every one of NAMES on a catalog
+     */
+    private static long[] measure(int size) throws IOException,
+            InterruptedException, InvalidInputException {
+        List<Product> catalog = generateCatalog(size);
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        eStoreSearch.addProducts(catalog);
+
+        String[] ids = new String[OPERATIONS];
+        String[] names = new String[OPERATIONS];
+        String[] years = new String[OPERATIONS];
+        String[] prices = new String[OPERATIONS];
+        Random random = new Random(size);
+        for (int i = 0; i < OPERATIONS; i++) {
+            ids[i] = String.format("%06d", size + i);
+            names[i] = "added " + random.nextInt(100000) + " item";
+            years[i] = String.valueOf(1950 + random.nextInt(70));
+            prices[i] = (random.nextInt(100000) + 1) / 100 + ".99";
+        }
+        String[] searchedIds = new String[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            searchedIds[i] = String.format("%06d", random.nextInt(size));
+        }
+
+        long[] bytes = new long[NAMES.length];
+        bytes[0] = bytesPerOperation(i -> eStoreSearch.addBook(ids[i],
+                names[i], years[i], prices[i], "author", "publisher"));
+        for (int i = 0; i < OPERATIONS; i++) {
+            ids[i] = String.format("%06d", size + OPERATIONS + i);
+        }
+        bytes[1] = bytesPerOperation(i -> eStoreSearch.addElectronic(ids[i],
+                names[i], years[i], prices[i], "maker"));
+        bytes[2] = bytesPerOperation(i -> eStoreSearch.executeSearch(
+                searchedIds[i], "", "", ""));
+        bytes[3] = bytesPerOperation(i -> eStoreSearch.executeSearch("",
+                "rare", "", ""));
+        bytes[4] = bytesPerOperation(i -> eStoreSearch.executeSearch("",
+                "rare item", "1950", "2000"));
+        bytes[5] = bytesPerOperation(i -> eStoreSearch.executeSearch("",
+                "rare item", "1950", "2000", "electronics"));
+        bytes[6] = bytesPerLoadedProduct(catalog);
+        return bytes;
+    }
+
+    /**
+     * Gets the bytes the calling thread allocates per run of an operation
+     */
+    private static long bytesPerOperation(Operation operation)
+            throws InvalidInputException {
+        long thread = Thread.currentThread().getId();
+        long begin = THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < OPERATIONS; i++) {
+            operation.run(i);
+        }
+        return (THREADS.getThreadAllocatedBytes(thread) - begin) / OPERATIONS;
+    }
+
+    /**
+     * Gets the bytes a bulk load of a catalog file allocates per product,
+     * on the calling thread and on every import thread
+     */
+    private static long bytesPerLoadedProduct(List<Product> catalog)
+            throws IOException, InterruptedException, InvalidInputException {
+        Path file = Files.createTempFile("estore-allocation", ".txt");
+        try {
+            new ExportEngine(CatalogFormat.TEXT, false).export(catalog, file);
+
+            AtomicLong importBytes = new AtomicLong();
+            ArrayList<Thread> started = new ArrayList<>();
+            ThreadFactory counting = task -> {
+                Thread thread = new Thread(() -> {
+                    long id = Thread.currentThread().getId();
+                    long begin = THREADS.getThreadAllocatedBytes(id);
+                    try {
+                        task.run();
+                    } finally {
+                        importBytes.addAndGet(THREADS.getThreadAllocatedBytes(
+                                id) - begin);
+                    }
+                });
+                started.add(thread);
+                return thread;
+            };
+
+            EStoreSearch eStoreSearch = new EStoreSearch();
+            long thread = Thread.currentThread().getId();
+            long begin = THREADS.getThreadAllocatedBytes(thread);
+            EStoreSearch.BulkLoad load = eStoreSearch.beginBulkLoad();
+            new ImportPipeline(CatalogFormat.TEXT, Runtime.getRuntime()
+                    .availableProcessors(), counting).importFile(file, load);
+            load.publish();
+            long callerBytes = THREADS.getThreadAllocatedBytes(thread) - begin;
+
+            for (Thread importThread : started) {
+                importThread.join();
+            }
+            if (eStoreSearch.search("", "", "", "").size() != catalog.size()) {
+                throw new IllegalStateException("Catalog was not loaded");
+            }
+            return (callerBytes + importBytes.get()) / catalog.size();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Gets generated products, RARE of which have "rare" in their names
+     */
+    private static List<Product> generateCatalog(int size)
+            throws InvalidInputException {
+        Random random = new Random(42);
+        ArrayList<Product> products = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String id = String.format("%06d", i);
+            String name = "product " + random.nextInt(100000) + " item"
+                    + (i % (size / RARE) == 0 ? " rare" : "");
+            int year = 1950 + random.nextInt(70);
+            // A last digit other than 0 keeps two decimal places in the file
+            double price = (random.nextInt(10000) * 10 + 1
+                    + random.nextInt(9)) / 100.0;
+            products.add(i % 2 == 0
+                    ? new Book(id, name, year, price, "author", "publisher")
+                    : new Electronic(id, name, year, price, "maker"));
+        }
+        return products;
+    }
+}
@@ -132,13 +132,13 @@ public class Book extends Product {
      */
     @Override
     public boolean equals(Object otherObject) {
-        if (otherObject == null || getClass() != otherObject.getClass()) {
+        if (!(otherObject instanceof Book)) {
             return false;
         } else {
             Book bookObject = (Book) otherObject;
             return super.equals(bookObject)
-                    && author.equals(bookObject.author)
-                    && publisher.equals(bookObject.publisher);
+                    && getAuthor().equals(bookObject.getAuthor())
+                    && getPublisher().equals(bookObject.getPublisher());
         }
     }
 
@@ -150,8 +150,8 @@ public class Book extends Product {
     public String toString() {
         return "type = \"book\"\n"
                 + super.toString()
-                + "authors = \"" + author + "\"\n"
-                + "publisher = \"" + publisher + "\"\n";
+                + "authors = \"" + getAuthor() + "\"\n"
+                + "publisher = \"" + getPublisher() + "\"\n";
     }
 
     /**
@@ -0,0 +1,373 @@
+package estoresearch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the products of an EStoreSearch in the background. Changes are
+ * appended to a journal beside the catalog, in the ChangeLog format, as they
+ * are made, and a flush only syncs the journal, so it costs time
+ * proportional to the changes rather than the catalog. Once the journal
+ * grows past a quarter of the catalog it is compacted: the live products are
+ * exported as TEXT through ExportEngine, which writes a temporary file,
+ * syncs it and atomically renames it over the catalog, and a new journal
+ * takes over from that point.
+ * <p>
+ * Every journal starts with the size and checksum of the catalog it
+ * continues, and loading the catalog replays the journal that matches it,
+ * see replayJournal. A compaction starts the new journal beside the old one
+ * and only names the new catalog in it once the catalog is renamed, so a
+ * crash at any point leaves exactly one journal that continues the catalog
+ * on disk. The first flush after the store is loaded compacts, since the
+ * catalog on disk need not hold what was loaded.
+ *
+ * @author Courtney Bodi
+ */
+class CatalogFlusher {
+
+    /**
+     * Journal bytes per catalog byte past which a flush compacts
+     */
+    private static final double COMPACTION_RATIO = 0.25;
+
+    private final EStoreSearch eStoreSearch;
+    private final Path target;
+    private final Path journalFile;
+    private final Path nextJournalFile;
+
+    private final AtomicLong changes = new AtomicLong();
+    private long flushedChanges;
+
+    // Set with the store's write lock held, so it changes between changes
+    private volatile ChangeLog journal;
+    // Negative until a compaction succeeds
+    private long catalogBytes = -1;
+
+    private volatile Consumer<IOException> errorListener
+            = e -> System.out.println(e.getMessage());
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * CatalogFlusher constructor with all members
+     *
+     * @param eStoreSearch whose products are saved
+     * @param target catalog file to replace on every compaction
+     */
+    CatalogFlusher(EStoreSearch eStoreSearch, Path target) {
+        this.eStoreSearch = eStoreSearch;
+        this.target = target;
+        journalFile = target.resolveSibling(target.getFileName()
+                + ".journal");
+        nextJournalFile = journalFile.resolveSibling(
+                journalFile.getFileName() + ".next");
+    }
+
+    /**
+     * Records a change to the catalog, after it was written to the journal
+     */
+    void changed() {
+        changes.incrementAndGet();
+    }
+
+    /**
+     * @return journal to write changes to, or null if the next flush
+     * compacts
+     */
+    ChangeLog getJournal() {
+        return journal;
+    }
+
+    /**
+     * Drops a journal a change could not be written to, so the next flush
+     * compacts, and reports the error. Caller must hold the store's write
+     * lock.
+     *
+     * @param failed journal the change was written to
+     * @param e error writing the change
+     */
+    void journalFailed(ChangeLog failed, IOException e) {
+        if (journal == failed) {
+            journal = null;
+            try {
+                failed.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+        }
+        report(new IOException("Error writing " + journalFile + ": "
+                + e.getMessage(), e));
+    }
+
+    /**
+     * Sets what is told about saves that fail in the background, the errors
+     * are printed by default
+     *
+     * @param errorListener called on the thread the save failed on
+     */
+    void setErrorListener(Consumer<IOException> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    private void report(IOException e) {
+        errorListener.accept(e);
+    }
+
+    /**
+     * Starts flushing dirty catalogs periodically on a daemon thread
+     *
+     * @param interval between flushes
+     * @param unit of the interval
+     */
+    synchronized void start(long interval, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "estore-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                report(new IOException("Error saving " + target + ": "
+                        + e.getMessage(), e));
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Makes every change so far durable if any were made since the last
+     * flush, waiting for a flush already in progress. Syncs the journal, or
+     * compacts it into the catalog once it is large or was dropped.
+     *
+     * @throws IOException if the journal or catalog could not be written
+     */
+    synchronized void flush() throws IOException {
+        // Counted after the journal is written, so every counted change is
+        // in the journal when it is synced
+        long seenChanges = changes.get();
+        if (seenChanges == flushedChanges) {
+            return;
+        }
+
+        ChangeLog log = journal;
+        if (log != null && catalogBytes >= 0
+                && log.getBytes() <= catalogBytes * COMPACTION_RATIO) {
+            log.force();
+        } else {
+            compact();
+        }
+        flushedChanges = seenChanges;
+    }
+
+    /**
+     * Exports the live products over the catalog and starts a new journal
+     * from them. Changes made during the export go to the new journal, which
+     * is only named as continuing the catalog once the catalog is renamed.
+     */
+    private void compact() throws IOException {
+        ChangeLog[] next = new ChangeLog[1];
+        ArrayList<Product> products = eStoreSearch.getProductsAt(() -> {
+            next[0] = ChangeLog.journal(nextJournalFile);
+            ChangeLog previous = journal;
+            journal = next[0];
+            if (previous != null) {
+                previous.close();
+            }
+        });
+
+        // Until this succeeds the new journal continues no catalog, so
+        // flushes keep compacting
+        catalogBytes = -1;
+        new ExportEngine(CatalogFormat.TEXT, false).export(products, target);
+        long size = Files.size(target);
+        next[0].setBase(size, checksum(target));
+        replace(nextJournalFile, journalFile);
+        catalogBytes = size;
+    }
+
+    /**
+     * Replays the journal of the catalog if a store was just loaded from
+     * the catalog, applying the changes saved since its last compaction
+     *
+     * @param loaded file the store was loaded from
+     * @return number of changes replayed
+     * @throws IOException if the catalog or journal could not be read
+     */
+    int replayJournal(Path loaded) throws IOException {
+        if (!Files.exists(target) || !Files.isSameFile(loaded, target)) {
+            return 0;
+        }
+
+        long size = Files.size(target);
+        long checksum = checksum(target);
+        // The next journal continues the catalog if a compaction renamed
+        // the catalog but not the journal
+        for (Path file : new Path[]{nextJournalFile, journalFile}) {
+            if (Files.exists(file)
+                    && ChangeLog.continues(file, size, checksum)) {
+                try (LogFollower follower = new LogFollower(eStoreSearch,
+                        file)) {
+                    // Not counting the BASE record
+                    return follower.poll() - 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the CRC-32 checksum of a file's bytes
+     *
+     * @param file to read
+     * @return the checksum
+     * @throws IOException if the file could not be read
+     */
+    static long checksum(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = Files.newInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Gets the temporary sibling a file is written to before it is renamed
+     *
+     * @param file to be replaced
+     * @return path of the temporary file
+     */
+    static Path temporaryFor(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    /**
+     * Renames a fully written temporary file over a file, atomically where
+     * the file system supports it
+     *
+     * @param temporary fully written file
+     * @param file to replace
+     * @throws IOException if the file could not be renamed
+     */
+    static void replace(Path temporary, Path file) throws IOException {
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Main method for testing CatalogFlusher. Saves changes to a journal,
+     * loads the catalog back with the journal replayed, including from the
+     * files a crash during a compaction leaves behind, and times a journal
+     * save against a compaction.
+     *
+     * @param args optional number of products
+     * @throws IOException if a temporary file could not be used
+     * @throws InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws IOException,
+            InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Path directory = Files.createTempDirectory("estore-flusher");
+        Path catalog = directory.resolve(EStoreSearch.OUTPUT_FILE);
+        EStoreSearch eStoreSearch = new EStoreSearch(false, catalog);
+        ArrayList<Product> products = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            products.add(new Electronic(String.format("%06d", i), "item "
+                    + i % 1000, 1950 + i % 70, i % 100 + 0.25, "maker"));
+        }
+        eStoreSearch.addProducts(products);
+
+        System.out.println("CatalogFlusher Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        long begin = System.nanoTime();
+        eStoreSearch.saveProducts();
+        long compactNanos = System.nanoTime() - begin;
+        byte[] compacted = Files.readAllBytes(catalog);
+        Path journal = catalog.resolveSibling(catalog.getFileName()
+                + ".journal");
+
+        eStoreSearch.updatePrice("000001", "2.25");
+        eStoreSearch.updateName("000002", "renamed item");
+        eStoreSearch.removeProduct("000003");
+        eStoreSearch.addBook("999999", "added", "2020", "", "author",
+                "publisher");
+        begin = System.nanoTime();
+        eStoreSearch.saveProducts();
+        long journalNanos = System.nanoTime() - begin;
+        long saved = LogFollower.checksum(eStoreSearch.getProducts());
+        System.out.println(Arrays.equals(compacted,
+                Files.readAllBytes(catalog)) && Files.size(journal)
+                < compacted.length / 100);
+        System.out.println(loadChecksum(catalog) == saved);
+
+        // Files left by a crash after the catalog is renamed, before the
+        // new journal is
+        Path oldJournal = directory.resolve("old.journal");
+        Files.copy(journal, oldJournal);
+        // Enough changes for the journal to outgrow a quarter of the catalog
+        for (int i = 4; i < count; i++) {
+            eStoreSearch.updatePrice(String.format("%06d", i), "1.25");
+        }
+        eStoreSearch.saveProducts();
+        eStoreSearch.updatePrice("000004", "3.75");
+        eStoreSearch.saveProducts();
+        long compactedAgain = LogFollower.checksum(
+                eStoreSearch.getProducts());
+        Path nextJournal = journal.resolveSibling(journal.getFileName()
+                + ".next");
+        Files.move(journal, nextJournal);
+        Files.copy(oldJournal, journal);
+        System.out.println(!Arrays.equals(compacted,
+                Files.readAllBytes(catalog))
+                && loadChecksum(catalog) == compactedAgain);
+
+        // Files left by a crash before the catalog is renamed, the new
+        // journal does not name a catalog yet
+        Files.write(catalog, compacted);
+        ChangeLog.journal(nextJournal).close();
+        System.out.println(loadChecksum(catalog) == saved);
+
+        // A journal that continues another catalog is not replayed
+        Files.write(catalog, Arrays.copyOf(compacted, compacted.length - 1));
+        EStoreSearch other = new EStoreSearch(false, catalog);
+        other.loadProducts(catalog.toString());
+        System.out.println(other.getProducts().size() == count
+                && !other.getProducts().toString().contains("999999"));
+
+        System.out.println("\nSaving " + count + " products\n");
+        System.out.println("Compaction\t" + compactNanos / 1000000 + " ms");
+        System.out.println("Journal\t\t" + journalNanos / 1000 + " us");
+    }
+
+    /**
+     * Loads a catalog into a new store saving to it
+     */
+    private static long loadChecksum(Path catalog) {
+        EStoreSearch loaded = new EStoreSearch(false, catalog);
+        loaded.loadProducts(catalog.toString());
+        return LogFollower.checksum(loaded.getProducts());
+    }
+}
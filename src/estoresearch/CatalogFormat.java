@@ -0,0 +1,50 @@
+package estoresearch;
+
+/**
+ * File formats products can be imported from and exported to
+ *
+ * @author Courtney Bodi
+ */
+public enum CatalogFormat {
+
+    /**
+     * Lines in the form of attribute = "value", products separated by a
+     * blank line
+     */
+    TEXT,
+
+    /**
+     * Comma separated values with a header row naming the attributes
+     */
+    CSV,
+
+    /**
+     * One flat JSON object per line keyed by attribute
+     */
+    JSON_LINES;
+
+    /**
+     * Attributes of a product in the order CSV columns are written
+     */
+    static final String[] ATTRIBUTES = {"type", "productID", "name", "price",
+        "year", "authors", "publisher", "maker"};
+
+    /**
+     * Guesses format from a file extension, defaulting to TEXT
+     *
+     * @param filename of the catalog file
+     * @return format of the file
+     */
+    public static CatalogFormat fromFilename(String filename) {
+        String lowerCase = filename.toLowerCase();
+        if (lowerCase.endsWith(".csv") || lowerCase.endsWith(".csv.gz")) {
+            return CSV;
+        } else if (lowerCase.endsWith(".jsonl")
+                || lowerCase.endsWith(".jsonl.gz")
+                || lowerCase.endsWith(".ndjson")) {
+            return JSON_LINES;
+        } else {
+            return TEXT;
+        }
+    }
+}
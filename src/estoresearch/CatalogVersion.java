@@ -0,0 +1,437 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * One version of a catalog: products by ordinal and every structure indexed
+ * on them. Keyword postings are kept per product type in a TypePartition,
+ * so a search restricted to one type reads only that type's. A search pins
+ * the version that was current when it started, and a bulk load or
+ * compaction builds a whole new version off to the side that replaces the
+ * current one at once. A version nothing pins any more is garbage collected
+ * like any other object.
+ *
+ * @author Courtney Bodi
+ */
+final class CatalogVersion {
+
+    private final ArrayList<Product> products;
+    private final TypePartition[] partitions;
+    private final HashMap<String, Integer> ids;
+    private final BitSet tombstones;
+    private final ProductColumns columns;
+    private final SortIndex sortIndex;
+    private final StringArena arena;
+    // Runs segment merges and contains index builds
+    private final Executor background;
+    // Built in the background once contains searches are made
+    private CompletableFuture<ContainsIndex> containsBuild;
+    private ContainsIndex containsIndex;
+
+    /**
+     * CatalogVersion constructor for an empty version
+     *
+     * @param merger executor that runs background keyword segment merges
+     * @param capacity expected number of products
+     * @param offHeapText whether product text is kept in a StringArena
+     */
+    CatalogVersion(Executor merger, int capacity, boolean offHeapText) {
+        arena = offHeapText ? new StringArena() : null;
+        background = merger;
+        products = new ArrayList<>(capacity);
+        partitions = new TypePartition[ProductColumns.TYPE_COUNT];
+        for (int type = 0; type < partitions.length; type++) {
+            partitions[type] = new TypePartition(merger);
+        }
+        ids = new HashMap<>();
+        tombstones = new BitSet();
+        columns = new ProductColumns();
+        sortIndex = new SortIndex(columns, products);
+    }
+
+    /**
+     * @return products by ordinal, including tombstoned ones
+     */
+    List<Product> getProducts() {
+        return products;
+    }
+
+    /**
+     * @param type ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC
+     * @return products of the type and their keyword postings
+     */
+    TypePartition getPartition(byte type) {
+        return partitions[type];
+    }
+
+    /**
+     * Finds the ordinals of a keyword in one partition or in all of them
+     *
+     * @param keyword to look up
+     * @param type ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC, or ANY_TYPE
+     * @return set of the ordinals, or null if no partition has the keyword
+     */
+    OrdinalSet getPostings(String keyword, byte type) {
+        if (type != ProductColumns.ANY_TYPE) {
+            OrdinalSet postings = partitions[type].getKeywords().getPostings(
+                    keyword);
+            // Only the dictionaries of the other partitions are read
+            return postings == null && hasTerm(keyword) ? OrdinalSet.empty()
+                    : postings;
+        }
+
+        OrdinalSet postings = null;
+        for (TypePartition partition : partitions) {
+            OrdinalSet partitionPostings = partition.getKeywords().getPostings(
+                    keyword);
+            if (partitionPostings != null) {
+                postings = postings == null ? partitionPostings
+                        : postings.or(partitionPostings);
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * Checks whether any partition has a keyword without reading postings
+     *
+     * @param keyword to look up
+     * @return true if a name of any type has the keyword
+     */
+    boolean hasTerm(String keyword) {
+        for (TypePartition partition : partitions) {
+            if (partition.getKeywords().hasTerm(keyword)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes candidates whose names do not contain a phrase, each searched
+     * partition verifies the candidates it holds
+     *
+     * @param phrase to verify
+     * @param candidates ordinals to check
+     * @param type ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC, or ANY_TYPE
+     * @return the candidates of the searched partitions whose names contain
+     * the phrase
+     */
+    OrdinalSet verifyPhrase(PhraseQuery phrase, OrdinalSet candidates,
+            byte type) {
+        IntFunction<String> names = ordinal -> products.get(ordinal).getName();
+        if (type != ProductColumns.ANY_TYPE) {
+            TypePartition partition = partitions[type];
+            return partition.getKeywords().verifyPhrase(phrase,
+                    candidates.and(partition.getMembers()), names);
+        }
+
+        OrdinalSet matches = OrdinalSet.empty();
+        for (TypePartition partition : partitions) {
+            OrdinalSet held = candidates.and(partition.getMembers());
+            if (!held.isEmpty()) {
+                matches = matches.or(partition.getKeywords().verifyPhrase(
+                        phrase, held, names));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return number of frozen keyword segments in every partition
+     */
+    int getSegmentCount() {
+        int count = 0;
+        for (TypePartition partition : partitions) {
+            count += partition.getKeywords().getSegmentCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the index of the names for contains searches once it is built,
+     * indexing the products appended since the build. The first call starts
+     * the build in the background and, like every call until it is done,
+     * returns null, so searches scan the names meanwhile instead of holding
+     * the owner's read lock for the build. Callers hold the owner's read
+     * lock, so only the first caller after a write has anything to index.
+     *
+     * @return contains index of the names by ordinal, or null while it is
+     * being built
+     */
+    synchronized ContainsIndex getContainsIndex() {
+        if (containsIndex == null) {
+            CompletableFuture<ContainsIndex> build = buildContainsIndex();
+            if (!build.isDone()) {
+                return null;
+            }
+            containsIndex = build.join();
+            containsIndex.follow(products);
+        }
+        containsIndex.update();
+        return containsIndex;
+    }
+
+    /**
+     * Starts building the contains index in the background if it was not
+     * started yet. The build indexes a copy of the product list, so the
+     * caller only holds the owner's lock while the list is copied.
+     *
+     * @return the build
+     */
+    synchronized CompletableFuture<ContainsIndex> buildContainsIndex() {
+        if (containsBuild == null) {
+            List<Product> copy = Arrays.asList(products.toArray(
+                    new Product[0]));
+            containsBuild = CompletableFuture.supplyAsync(() -> {
+                ContainsIndex index = new ContainsIndex(copy);
+                index.update();
+                return index;
+            }, background);
+        }
+        return containsBuild;
+    }
+
+    /**
+     * @return whether contains searches were made on this version, so the
+     * version replacing it should build its contains index at once
+     */
+    synchronized boolean isContainsSearched() {
+        return containsBuild != null;
+    }
+
+    /**
+     * @return tombstoned ordinals
+     */
+    BitSet getTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * @return primitive columns by ordinal
+     */
+    ProductColumns getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return sort permutations of the ordinals
+     */
+    SortIndex getSortIndex() {
+        return sortIndex;
+    }
+
+    /**
+     * @return number of ordinals, including tombstoned ones
+     */
+    int size() {
+        return products.size();
+    }
+
+    /**
+     * @return number of products that have not been removed
+     */
+    int getLiveCount() {
+        return products.size() - tombstones.cardinality();
+    }
+
+    /**
+     * Gets the ordinal of a product that has not been removed
+     *
+     * @param id of the product
+     * @return the ordinal, or null if there is no such product
+     */
+    Integer getOrdinal(String id) {
+        return ids.get(id);
+    }
+
+    /**
+     * @return arena holding the text of the products, or null if it is kept
+     * on the heap
+     */
+    StringArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Appends a product at the next ordinal and indexes it. With off heap
+     * text a view of the product is appended instead.
+     *
+     * @param product to append
+     * @return ordinal of the product
+     */
+    int append(Product product) {
+        product = store(product);
+        int ordinal = products.size();
+        products.add(product);
+        ids.put(product.getId(), ordinal);
+        partitions[ProductColumns.typeOf(product)].add(product, ordinal);
+        columns.append(product);
+        sortIndex.add(ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Appends a product that is already removed, so ordinals keep lining up
+     * with another version
+     *
+     * @param product to append
+     */
+    void appendRemoved(Product product) {
+        product = store(product);
+        int ordinal = products.size();
+        products.add(product);
+        partitions[ProductColumns.typeOf(product)].add(product, ordinal);
+        columns.append(product);
+        sortIndex.add(ordinal);
+        tombstones.set(ordinal);
+    }
+
+    /**
+     * Tombstones an ordinal, its postings stay until the next compaction
+     *
+     * @param ordinal of the product to remove
+     */
+    void remove(int ordinal) {
+        tombstones.set(ordinal);
+        ids.remove(products.get(ordinal).getId(), ordinal);
+    }
+
+    /**
+     * Copies the product's price into the columns and sort order
+     *
+     * @param ordinal of the product whose price changed
+     */
+    void priceChanged(int ordinal) {
+        columns.setPrice(ordinal, products.get(ordinal).getPrice());
+        sortIndex.priceChanged(ordinal);
+    }
+
+    /**
+     * Sets a price that was changed on the product this version copied,
+     * with off heap text the version holds a view and not the product itself
+     *
+     * @param ordinal of the product
+     * @param price already validated new price
+     */
+    void setPrice(int ordinal, double price) {
+        try {
+            products.get(ordinal).setPrice(price);
+        } catch (InvalidInputException e) {
+            // The price was already validated
+            throw new IllegalStateException(e);
+        }
+        priceChanged(ordinal);
+    }
+
+    /**
+     * Gets the product to keep, a view in the arena with off heap text
+     */
+    private Product store(Product product) {
+        return arena == null ? product : arena.store(product);
+    }
+
+    /**
+     * Main method for benchmarking search latency while a large catalog is
+     * added batch by batch to the current version and while it is bulk
+     * loaded into a new version
+     *
+     * @param args optional number of products to load, at most 999000
+     * @throws InterruptedException if interrupted while waiting for a load
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InterruptedException,
+            InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int batchSize = 1000;
+        Random random = new Random(42);
+
+        ArrayList<List<Product>> batches = new ArrayList<>();
+        for (int start = 0; start < count; start += batchSize) {
+            ArrayList<Product> batch = new ArrayList<>(batchSize);
+            for (int i = start; i < Math.min(count, start + batchSize); i++) {
+                batch.add(new Electronic(String.format("%06d", i), "item "
+                        + random.nextInt(100000) + " harry", 1950
+                        + random.nextInt(70), Product.NO_PRICE, "maker"));
+            }
+            batches.add(batch);
+        }
+
+        System.out.println("Search latency while loading " + count
+                + " products\n");
+        System.out.println("Load\t\tSearches\tMedian us\t99th us\t\tMax us"
+                + "\tTorn");
+
+        EStoreSearch inPlace = seededStore();
+        benchmarkSearches("In place", inPlace, count, () -> {
+            for (List<Product> batch : batches) {
+                inPlace.addProducts(batch);
+            }
+        });
+
+        EStoreSearch bulk = seededStore();
+        benchmarkSearches("Bulk load", bulk, count, () -> {
+            EStoreSearch.BulkLoad load = bulk.beginBulkLoad();
+            for (List<Product> batch : batches) {
+                load.addProducts(batch);
+            }
+            load.publish();
+        });
+    }
+
+    /**
+     * Gets a store holding a few products that every search matches
+     */
+    private static EStoreSearch seededStore() throws InvalidInputException {
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        for (int i = 0; i < 1000; i++) {
+            eStoreSearch.addBook(String.valueOf(999000 + i), "book " + i
+                    + " harry", "2000", "", "", "");
+        }
+        return eStoreSearch;
+    }
+
+    /**
+     * Searches repeatedly while a loader runs and prints the latencies and
+     * the number of searches that saw only part of the load
+     */
+    private static void benchmarkSearches(String name,
+            EStoreSearch eStoreSearch, int count, Runnable loader)
+            throws InterruptedException, InvalidInputException {
+        int before = eStoreSearch.search("", "harry", "", "").size();
+        Thread thread = new Thread(loader, "load");
+        IntList latencies = new IntList();
+        int torn = 0;
+
+        thread.start();
+        while (thread.isAlive()) {
+            long begin = System.nanoTime();
+            int matches = eStoreSearch.search("", "harry", "", "").size();
+            latencies.add((int) ((System.nanoTime() - begin) / 1000));
+            if (matches != before && matches != before + count) {
+                torn++;
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        thread.join();
+
+        int[] sorted = latencies.toArray();
+        Arrays.sort(sorted);
+        if (sorted.length == 0) {
+            sorted = new int[1];
+        }
+        System.out.println(name + "\t" + latencies.size() + "\t\t"
+                + sorted[sorted.length / 2] + "\t\t"
+                + sorted[sorted.length * 99 / 100] + "\t\t"
+                + sorted[sorted.length - 1] + "\t" + torn);
+    }
+}
@@ -0,0 +1,485 @@
+package estoresearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Ordered log of the changes made to a primary store, appended to a local
+ * file that follower processes tail. Each record is
+ *
+ * <pre>
+ * int length of the rest of the record
+ * long time the change was made, in milliseconds since the epoch
+ * byte operation
+ * operation fields
+ * </pre>
+ *
+ * and the sequence number of a record is its position in the file, starting
+ * at 1. Products are logged by ID, so a follower's ordinals do not have to
+ * match the primary's. CatalogFlusher keeps its save journal in the same
+ * format, starting with a BASE record.
+ *
+ * @author Courtney Bodi
+ */
+final class ChangeLog implements Closeable {
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte RENAME = 3;
+    static final byte PRICE = 4;
+    static final byte BASE = 5;
+
+    static final byte TYPE_BOOK = 0;
+    static final byte TYPE_ELECTRONIC = 1;
+
+    /**
+     * Bytes of the length prefix of a record
+     */
+    static final int LENGTH_BYTES = 4;
+
+    /**
+     * Position of the size and checksum fields of a BASE record at the start
+     * of a journal
+     */
+    private static final int BASE_FIELDS_POSITION = LENGTH_BYTES + 8 + 1;
+
+    /**
+     * Size in a BASE record that has not been set, no catalog has it
+     */
+    private static final long NO_BASE = -1;
+
+    private final FileChannel channel;
+    private long sequence;
+    private long bytes;
+    private IOException broken;
+
+    /**
+     * ChangeLog constructor that starts an empty log, replacing the file
+     *
+     * @param file to append records to
+     * @throws IOException if the file could not be created
+     */
+    ChangeLog(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Starts an empty journal, replacing the file. The first record is a
+     * BASE record naming the catalog file the journal continues by its size
+     * and checksum. It names no catalog until setBase is called, so a
+     * journal is never applied to a catalog it does not continue.
+     *
+     * @param file to append records to
+     * @return the journal
+     * @throws IOException if the file could not be written
+     */
+    static ChangeLog journal(Path file) throws IOException {
+        ChangeLog journal = new ChangeLog(file);
+        Records records = new Records();
+        DataOutputStream output = records.begin(BASE);
+        output.writeLong(NO_BASE);
+        output.writeLong(0);
+        records.end();
+        journal.append(records);
+        return journal;
+    }
+
+    /**
+     * Sets the catalog a journal continues and syncs the journal
+     *
+     * @param size of the catalog file in bytes
+     * @param checksum of the catalog file
+     * @throws IOException if the journal could not be written
+     */
+    synchronized void setBase(long size, long checksum) throws IOException {
+        ByteBuffer fields = ByteBuffer.allocate(16);
+        fields.putLong(size).putLong(checksum).flip();
+        long position = BASE_FIELDS_POSITION;
+        while (fields.hasRemaining()) {
+            position += channel.write(fields, position);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Checks if a journal continues a catalog file
+     *
+     * @param journal file starting with a BASE record
+     * @param size of the catalog file in bytes
+     * @param checksum of the catalog file
+     * @return true if the journal's BASE record names the catalog
+     * @throws IOException if the journal could not be read
+     */
+    static boolean continues(Path journal, long size, long checksum)
+            throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(journal)))) {
+            input.readInt();
+            input.readLong();
+            return input.readByte() == BASE && input.readLong() == size
+                    && input.readLong() == checksum;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return sequence number of the last record appended
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Logs an added product
+     *
+     * @param product added
+     * @throws IOException if the record could not be written
+     */
+    void added(Product product) throws IOException {
+        Records records = new Records();
+        records.add(product);
+        append(records);
+    }
+
+    /**
+     * Logs a removed product
+     *
+     * @param id of the product
+     * @throws IOException if the record could not be written
+     */
+    void removed(String id) throws IOException {
+        Records records = new Records();
+        records.begin(REMOVE).writeUTF(id);
+        records.end();
+        append(records);
+    }
+
+    /**
+     * Logs a renamed product
+     *
+     * @param id of the product
+     * @param name new name of the product
+     * @throws IOException if the record could not be written
+     */
+    void renamed(String id, String name) throws IOException {
+        Records records = new Records();
+        DataOutputStream output = records.begin(RENAME);
+        output.writeUTF(id);
+        output.writeUTF(name);
+        records.end();
+        append(records);
+    }
+
+    /**
+     * Logs a price change
+     *
+     * @param id of the product
+     * @param price new price of the product
+     * @throws IOException if the record could not be written
+     */
+    void priceChanged(String id, double price) throws IOException {
+        Records records = new Records();
+        DataOutputStream output = records.begin(PRICE);
+        output.writeUTF(id);
+        output.writeDouble(price);
+        records.end();
+        append(records);
+    }
+
+    /**
+     * Appends encoded records in one write. Records can be encoded before a
+     * lock is taken and appended under it, so a bulk load does not encode
+     * under the write lock. If the write fails, whatever part of the records
+     * reached the file is cut off again, so followers never see a record
+     * that was not logged; if that fails too, the log takes no more records.
+     *
+     * @param records to append
+     * @throws IOException if the records could not be written
+     */
+    synchronized void append(Records records) throws IOException {
+        if (broken != null) {
+            throw new IOException("Change log is broken", broken);
+        }
+
+        records.output.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(records.bytes.toByteArray());
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(bytes);
+                channel.position(bytes);
+            } catch (IOException truncateError) {
+                e.addSuppressed(truncateError);
+                broken = e;
+            }
+            throw e;
+        }
+        sequence += records.count;
+        bytes += records.bytes.size();
+    }
+
+    /**
+     * @return bytes appended to the log
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Syncs every record appended so far to the storage device
+     *
+     * @throws IOException if the log could not be synced
+     */
+    synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Records encoded ahead of being appended
+     */
+    static final class Records {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(bytes);
+        private final ByteArrayOutputStream record
+                = new ByteArrayOutputStream();
+        private final DataOutputStream recordOutput = new DataOutputStream(
+                record);
+        private int count;
+
+        /**
+         * Encodes an ADD record
+         *
+         * @param product added
+         * @return these records
+         */
+        Records add(Product product) {
+            try {
+                writeProduct(begin(ADD), product);
+                end();
+            } catch (IOException e) {
+                // Writing to memory does not fail
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        /**
+         * Encodes every product in a list as an ADD record
+         *
+         * @param products added
+         * @return these records
+         */
+        Records addAll(List<Product> products) {
+            for (Product product : products) {
+                add(product);
+            }
+            return this;
+        }
+
+        /**
+         * @return number of records
+         */
+        int size() {
+            return count;
+        }
+
+        private DataOutputStream begin(byte operation) throws IOException {
+            record.reset();
+            recordOutput.writeLong(System.currentTimeMillis());
+            recordOutput.writeByte(operation);
+            return recordOutput;
+        }
+
+        private void end() throws IOException {
+            recordOutput.flush();
+            output.writeInt(record.size());
+            record.writeTo(output);
+            count++;
+        }
+    }
+
+    /**
+     * Writes the fields of a product
+     *
+     * @param output to write to
+     * @param product to write
+     * @throws IOException if the output could not be written
+     */
+    static void writeProduct(DataOutputStream output, Product product)
+            throws IOException {
+        output.writeByte(product instanceof Book ? TYPE_BOOK
+                : TYPE_ELECTRONIC);
+        output.writeUTF(product.getId());
+        output.writeUTF(product.getName());
+        output.writeInt(product.getYear());
+        output.writeDouble(product.getPrice());
+        if (product instanceof Book) {
+            output.writeUTF(((Book) product).getAuthor());
+            output.writeUTF(((Book) product).getPublisher());
+        } else {
+            output.writeUTF(((Electronic) product).getMaker());
+        }
+    }
+
+    /**
+     * Reads the fields of a product written by writeProduct
+     *
+     * @param input to read from
+     * @return the product
+     * @throws IOException if the input could not be read
+     * @throws InvalidInputException if the fields are not a valid product
+     */
+    static Product readProduct(DataInputStream input) throws IOException,
+            InvalidInputException {
+        byte type = input.readByte();
+        String id = input.readUTF();
+        String name = input.readUTF();
+        int year = input.readInt();
+        double price = input.readDouble();
+        if (type == TYPE_BOOK) {
+            return new Book(id, name, year, price, input.readUTF(),
+                    input.readUTF());
+        }
+        return new Electronic(id, name, year, price, input.readUTF());
+    }
+
+    /**
+     * Main method for testing replication across processes. Starts a primary
+     * with a generated catalog, starts follower JVMs that bootstrap from its
+     * snapshot, makes random changes on the primary and checks that every
+     * follower ends with the primary's products.
+     *
+     * @param args optional number of followers and of changes
+     * @throws IOException if the log or a follower process failed
+     * @throws InterruptedException if interrupted while waiting for followers
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws IOException,
+            InterruptedException, InvalidInputException {
+        int followerCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int changeCount = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        Random random = new Random(42);
+
+        Path directory = Files.createTempDirectory("estore-replication");
+        Path snapshot = directory.resolve("snapshot.csv");
+        Path log = directory.resolve("changes.log");
+
+        EStoreSearch primary = new EStoreSearch();
+        ArrayList<Product> products = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            products.add(new Electronic(String.format("%06d", i), "item "
+                    + random.nextInt(10000), 1950 + random.nextInt(70),
+                    random.nextInt(10000) / 100.0, "maker"));
+        }
+        primary.addProducts(products);
+        primary.startReplication(snapshot, log);
+
+        ArrayList<Process> followers = new ArrayList<>();
+        for (int i = 0; i < followerCount; i++) {
+            followers.add(new ProcessBuilder(Paths.get(System.getProperty(
+                    "java.home"), "bin", "java").toString(), "-cp",
+                    System.getProperty("java.class.path"),
+                    LogFollower.class.getName(), snapshot.toString(),
+                    log.toString())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+        }
+
+        int nextId = products.size();
+        long begin = System.nanoTime();
+        for (int i = 0; i < changeCount; i++) {
+            String id = String.format("%06d", random.nextInt(nextId));
+            try {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        primary.addElectronic(String.format("%06d", nextId++),
+                                "added " + i, "2020", "", "maker");
+                        break;
+                    case 1:
+                        primary.removeProduct(id);
+                        break;
+                    case 2:
+                        primary.updateName(id, "renamed " + i);
+                        break;
+                    default:
+                        primary.updatePrice(id, random.nextInt(10000) / 100
+                                + "." + (10 + random.nextInt(90)));
+                }
+            } catch (InvalidInputException e) {
+                // The ID was already removed
+            }
+        }
+        long changeNanos = System.nanoTime() - begin;
+        long sequence = primary.changeLogSequence();
+
+        List<Product> expected = primary.getProducts();
+        System.out.println("Replication test, " + followerCount
+                + " followers, " + sequence + " records in "
+                + changeNanos / 1000000 + " ms\n");
+        System.out.println("primary  applied " + sequence + " products "
+                + expected.size() + " checksum "
+                + LogFollower.checksum(expected));
+
+        boolean passed = true;
+        for (Process follower : followers) {
+            follower.getOutputStream().close();
+            String summary = new BufferedReader(new InputStreamReader(
+                    follower.getInputStream())).readLine();
+            follower.waitFor();
+            System.out.println("follower " + summary);
+            passed &= summary != null && summary.startsWith("applied "
+                    + sequence + " products " + expected.size() + " checksum "
+                    + LogFollower.checksum(expected) + " ");
+        }
+        System.out.println("\n" + passed);
+
+        // A TEXT snapshot is refused before logging starts
+        try {
+            primary.startReplication(directory.resolve("snapshot.txt"), log);
+            System.out.println(false);
+        } catch (IllegalArgumentException e) {
+            System.out.println(primary.changeLogSequence() == sequence);
+        }
+
+        // A change that cannot be logged is not made
+        Path full = Paths.get("/dev/full");
+        if (Files.isWritable(full)) {
+            primary.startReplication(snapshot, full);
+            try {
+                primary.addElectronic(String.format("%06d", nextId), "lost",
+                        "2020", "", "maker");
+                System.out.println(false);
+            } catch (UncheckedIOException e) {
+                System.out.println(primary.getProducts().equals(expected));
+            }
+        }
+    }
+}
@@ -0,0 +1,790 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Index answering contains searches on the names of a CatalogVersion
+ * without reading the names for most fragments. Names are lower cased one
+ * character at a time and split into tokens at spaces. The distinct tokens
+ * are kept in a TrigramIndex, and every token keeps the ordinals of the
+ * names it is in. Every time a token is followed by one space and another
+ * token, the IDs of the two and the ordinal are listed by the UTF-8 bytes
+ * on each side of the space.
+ *
+ * <p>
+ * A fragment without spaces is in a name exactly when it is in one of its
+ * tokens, so it matches the postings of the tokens containing it. A space at
+ * either end of a fragment needs its token preceded or followed by a space,
+ * which postings record in flags, and one space between two pieces matches
+ * the junctions listed by the last byte of the first piece and the first
+ * byte of the second whose tokens end and start with the pieces. More
+ * pieces match the junctions of each pair of them, all in one place unless
+ * a token between two spaces is repeated in a name. Only names where it is,
+ * and fragments with several spaces in a row, are verified against their
+ * names, names kept in a StringArena in their UTF-8 bytes.
+ *
+ * <p>
+ * A version's first contains search starts building its index in the
+ * background from a copy of the product list, and contains searches scan
+ * every name until it is built. Later searches index the products appended
+ * since. Catalogs that are never searched this way pay nothing for it, and
+ * a version published in place of one that was starts its build at once.
+ * Adds and searches must be guarded by the owner's lock, and only one
+ * thread may update the index at a time.
+ *
+ * <p>
+ * The index keeps the 99th percentile of selective fragments, matching
+ * under 1% of the names, under 1 ms on a million names. Across all
+ * fragments it is about 1.4 ms, since broad fragments return large sets.
+ *
+ * @author Courtney Bodi
+ */
+final class ContainsIndex {
+
+    // Flags of a posted ordinal: the token is repeated in the name, preceded
+    // by a space, followed by one, or both in the same place
+    private static final int REPEATED = 1 << 31;
+    private static final int PRECEDED = 1 << 30;
+    private static final int FOLLOWED = 1 << 29;
+    private static final int ENCLOSED = 1 << 28;
+    private static final int ORDINAL_MASK = ENCLOSED - 1;
+
+    private static final int INITIAL_TOKENS = 1024;
+    // Ordinals gathered from more postings than this are put in a bitmap
+    // instead of being sorted
+    private static final int SORT_MAX = 4096;
+    // Postings of a token with at least this many are kept as a set once a
+    // search unites them
+    private static final int CACHED_MIN = 4096;
+    // Flags of the postings searches unite, by index of their cached sets
+    private static final int[] CACHED_FLAGS = {0, PRECEDED, FOLLOWED,
+        ENCLOSED, REPEATED};
+
+    private List<Product> products;
+    private final TrigramIndex tokens = new TrigramIndex();
+    // Postings by token ID, the only one in single or all of them in lists
+    private int[] single = new int[INITIAL_TOKENS];
+    private IntList[] lists = new IntList[INITIAL_TOKENS];
+    // Sets of the long lists by index in CACHED_FLAGS and token ID, built by
+    // the first search that needs one and dropped when the list grows.
+    // Concurrent searches that both build a set build equal ones.
+    private final OrdinalSet[][] cached = new OrdinalSet[CACHED_FLAGS.length][];
+    // Junctions by the last byte of a token and the first byte of the next
+    // one, as triples of the IDs of the two tokens and the ordinal, flagged
+    // when the token is preceded by a space and the next one followed by one
+    private final IntList[] junctions = new IntList[1 << 16];
+    // Ordinals of the names without spaces and with several in a row
+    private final IntList unspaced = new IntList();
+    private OrdinalSet unspacedSet = OrdinalSet.empty();
+    private final IntList irregular = new IntList();
+    private OrdinalSet irregularSet = OrdinalSet.empty();
+    private int size;
+    // Scratch bounds of the tokens of the name being added
+    private int[] bounds = new int[16];
+
+    /**
+     * ContainsIndex constructor for an empty index
+     *
+     * @param products by ordinal, the index reads the ones appended since
+     * the last update
+     */
+    ContainsIndex(List<Product> products) {
+        this.products = products;
+    }
+
+    /**
+     * Reads later products from another list, holding the indexed ones at
+     * the same ordinals, once an index built from a copy of a list takes
+     * over from the list
+     *
+     * @param products by ordinal
+     */
+    void follow(List<Product> products) {
+        this.products = products;
+    }
+
+    /**
+     * Lower cases a fragment or name the way the index does, one character
+     * at a time so that its length never changes
+     *
+     * @param text fragment or name
+     * @return lower case text
+     */
+    static String toLowerCase(String text) {
+        char[] lowerCase = new char[text.length()];
+        for (int i = 0; i < lowerCase.length; i++) {
+            lowerCase[i] = toLowerCase(text.charAt(i));
+        }
+        return new String(lowerCase);
+    }
+
+    /**
+     * Lower cases a character, without a lookup for ASCII
+     *
+     * @param character to lower case
+     * @return the lower case character
+     */
+    static char toLowerCase(char character) {
+        if (character < 128) {
+            return character >= 'A' && character <= 'Z'
+                    ? (char) (character + ('a' - 'A')) : character;
+        }
+        return Character.toLowerCase(character);
+    }
+
+    /**
+     * Indexes the names of the products appended since the last update
+     */
+    void update() {
+        int unspaceds = unspaced.size();
+        int irregulars = irregular.size();
+        while (size < products.size()) {
+            add(products.get(size).getName(), size);
+            size++;
+        }
+        if (unspaced.size() != unspaceds) {
+            unspacedSet = toSet(unspaced);
+        }
+        if (irregular.size() != irregulars) {
+            irregularSet = toSet(irregular);
+        }
+    }
+
+    /**
+     * Finds the ordinals whose names contain a fragment, ignoring case
+     *
+     * @param fragment to look for
+     * @return set of the ordinals
+     */
+    OrdinalSet contains(String fragment) {
+        String needle = toLowerCase(fragment);
+        if (needle.isEmpty()) {
+            return OrdinalSet.range(size);
+        }
+
+        // Pieces between spaces, and the spaces before and after them
+        ArrayList<String> pieces = new ArrayList<>();
+        int leading = 0;
+        int trailing = 0;
+        int longestRun = 0;
+        int i = 0;
+        while (i < needle.length()) {
+            int start = i;
+            while (i < needle.length() && needle.charAt(i) == ' ') {
+                i++;
+            }
+            longestRun = Math.max(longestRun, i - start);
+            if (start == 0) {
+                leading = i;
+            }
+            if (i == needle.length()) {
+                trailing = i - start;
+                break;
+            }
+            start = i;
+            while (i < needle.length() && needle.charAt(i) != ' ') {
+                i++;
+            }
+            pieces.add(needle.substring(start, i));
+        }
+
+        if (pieces.isEmpty()) {
+            return longestRun > 1 ? verify(irregularSet, needle)
+                    : OrdinalSet.range(size).andNot(unspacedSet);
+        }
+        if (longestRun > 1) {
+            String longest = pieces.get(0);
+            for (String piece : pieces) {
+                longest = piece.length() > longest.length() ? piece : longest;
+            }
+            return verify(irregularSet.and(postings(tokens.contains(longest),
+                    0)), needle);
+        }
+
+        boolean before = leading > 0;
+        boolean after = trailing > 0;
+        int last = pieces.size() - 1;
+        if (last == 0) {
+            // A piece with a space on both sides is a whole token
+            String piece = pieces.get(0);
+            if (before && after) {
+                return postings(find(piece), ENCLOSED);
+            }
+            return postings(tokens.contains((before ? "" + TrigramIndex
+                    .BOUNDARY : "") + piece + (after ? "" + TrigramIndex
+                    .BOUNDARY : "")), (before ? PRECEDED : 0)
+                    | (after ? FOLLOWED : 0));
+        }
+
+        OrdinalSet matches = null;
+        for (int piece = 0; piece < last; piece++) {
+            OrdinalSet pairs = junctions(pieces.get(piece), pieces.get(
+                    piece + 1), piece > 0 || before, piece + 1 < last
+                    || after, (piece == 0 && before ? PRECEDED : 0)
+                    | (piece + 1 == last && after ? FOLLOWED : 0));
+            matches = matches == null ? pairs : matches.and(pairs);
+        }
+        if (last == 1 || matches.isEmpty()) {
+            return matches;
+        }
+
+        // Junctions of a token between two spaces are in one place unless
+        // the token is repeated
+        OrdinalSet repeated = OrdinalSet.empty();
+        for (int piece = 1; piece < last; piece++) {
+            repeated = repeated.or(postings(find(pieces.get(piece)),
+                    REPEATED));
+        }
+        OrdinalSet ambiguous = matches.and(repeated);
+        return ambiguous.isEmpty() ? matches : matches.andNot(ambiguous).or(
+                verify(ambiguous, needle));
+    }
+
+    /**
+     * Gets a test of whether the name of an ordinal contains a fragment,
+     * which reads the name and needs no index
+     *
+     * @param products by ordinal
+     * @param fragment to look for
+     * @return test of an ordinal
+     */
+    static IntPredicate matcher(List<Product> products, String fragment) {
+        String needle = toLowerCase(fragment);
+        byte[] bytes = TermDictionary.encode(needle);
+        return ordinal -> nameContains(products.get(ordinal), needle, bytes);
+    }
+
+    /**
+     * Checks whether a name contains a lower case fragment, ignoring case
+     *
+     * @param name to check
+     * @param needle fragment lower cased by toLowerCase
+     * @return whether the name contains the fragment
+     */
+    static boolean containsLowerCase(String name, String needle) {
+        int last = name.length() - needle.length();
+        for (int start = 0; start <= last; start++) {
+            int i = 0;
+            while (i < needle.length() && toLowerCase(name.charAt(start + i))
+                    == needle.charAt(i)) {
+                i++;
+            }
+            if (i == needle.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return approximate bytes used by the tokens, postings and junctions
+     */
+    long getSizeInBytes() {
+        long bytes = tokens.getSizeInBytes() + 4L * single.length
+                + 8L * lists.length + unspacedSet.getSizeInBytes()
+                + irregularSet.getSizeInBytes();
+        for (int id = 0; id < tokens.getCount(); id++) {
+            if (lists[id] != null) {
+                bytes += 24 + 4L * lists[id].size();
+            }
+        }
+        for (OrdinalSet[] sets : cached) {
+            for (int id = 0; sets != null && id < sets.length; id++) {
+                if (sets[id] != null) {
+                    bytes += sets[id].getSizeInBytes();
+                }
+            }
+        }
+        bytes += 4L * junctions.length;
+        for (IntList list : junctions) {
+            if (list != null) {
+                bytes += 4L * list.size();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Main method for testing contains searches against String.contains and
+     * benchmarking their latency against a scan of every name
+     *
+     * @param args optional catalog size, at most 999990
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 999000;
+        int searches = 2000;
+        Random random = new Random(42);
+        String[] words = {"USB-C cable", "4K monitor", "HDMI adapter",
+            "Wireless mouse", "keyboard", "SSD 1TB", "NVMe drive", "stand",
+            "\u00c9cran", "hub", "charger", "headphones", "speaker", "webcam",
+            "router", "laptop", "tablet", "phone case", "smartwatch", "camera",
+            "tripod", "microphone", "printer", "scanner", "projector",
+            "power bank", "docking station", "graphics card", "motherboard",
+            "RAM 16GB", "fan", "cooler", "switch", "controller", "gamepad",
+            "drone", "e-reader", "TV 55in", "soundbar", "cartridge"};
+        String[] brands = new String[2000];
+        for (int i = 0; i < brands.length; i++) {
+            char[] brand = new char[4 + random.nextInt(5)];
+            for (int c = 0; c < brand.length; c++) {
+                brand[c] = (char) ((c == 0 ? 'A' : 'a') + random.nextInt(26));
+            }
+            brands[i] = new String(brand);
+        }
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        ArrayList<String> names = new ArrayList<>(count);
+        ArrayList<Product> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder(i % 1000 == 1 ? " " : "");
+            name.append(brands[random.nextInt(brands.length)]).append(' ')
+                    .append(words[random.nextInt(words.length)]).append(' ')
+                    .append((char) ('A' + random.nextInt(26)))
+                    .append((char) ('A' + random.nextInt(26))).append('-')
+                    .append(random.nextInt(100000));
+            // A few names with spaces anywhere
+            if (i % 1000 == 2) {
+                name.insert(name.indexOf(" "), "  ");
+            } else if (i % 1000 == 3) {
+                name.append(' ');
+            }
+            names.add(name.toString());
+            batch.add(new Electronic(String.format("%06d", i),
+                    name.toString(), 2000, Product.NO_PRICE, "maker"));
+            if (batch.size() == 10000) {
+                eStoreSearch.addProducts(batch);
+                batch.clear();
+            }
+        }
+        eStoreSearch.addProducts(batch);
+
+        System.out.println("ContainsIndex Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        String[] fragments = {"usb-c", "4k", "K", "b-c", "", "cable 4", "RAN",
+            "e u", "zzz", "\u00e9cran", "able", " ", "hdmi adapter", "x-1",
+            "-12345", " hub", "hub ", " hub ", "  ", "   ", " a", "b ", "  c",
+            "usb-c cable ", " 4k monitor a", "e ab", "d  ", " power bank ",
+            "c cable x"};
+        // Searches scan the names until the index is built
+        boolean pass = true;
+        for (String fragment : fragments) {
+            pass &= matchesScan(eStoreSearch, names, fragment);
+        }
+        eStoreSearch.awaitContainsIndex();
+        for (String fragment : fragments) {
+            pass &= matchesScan(eStoreSearch, names, fragment);
+        }
+        System.out.println(pass + "\tfragments match String.contains");
+
+        pass = true;
+        for (int i = 0; i < 50; i++) {
+            String name = names.get(random.nextInt(count));
+            int from = random.nextInt(name.length());
+            pass &= matchesScan(eStoreSearch, names, name.substring(from,
+                    Math.min(name.length(), from + 1 + random.nextInt(8))));
+        }
+        System.out.println(pass + "\trandom fragments match String.contains");
+
+        batch.clear();
+        EStoreSearch offHeap = new EStoreSearch(true);
+        List<String> offHeapNames = names.subList(0, Math.min(count, 100000));
+        for (int i = 0; i < offHeapNames.size(); i++) {
+            batch.add(new Electronic(String.format("%06d", i),
+                    offHeapNames.get(i), 2000, Product.NO_PRICE, "maker"));
+        }
+        offHeap.addProducts(batch);
+        offHeap.awaitContainsIndex();
+        batch.clear();
+        pass = true;
+        for (String fragment : fragments) {
+            pass &= matchesScan(offHeap, offHeapNames, fragment);
+        }
+        System.out.println(pass + "\tand so do off heap names");
+
+        // Repeated tokens, and names without spaces or with only spaces
+        for (String name : new String[]{"Late  Qwerty ", "Qq tv qq tv Qq",
+            "Qwertyuiop", "   "}) {
+            eStoreSearch.addElectronic(String.format("%06d", names.size()),
+                    name, "2001", "", "maker");
+            names.add(name);
+        }
+        pass = true;
+        for (String fragment : new String[]{"e  qwerty ", "late q", "rty ",
+            "q tv q", "qq tv qq t", " tv qq tv ", "tv q", "rtyu", " ", "   ",
+            "q q"}) {
+            pass &= matchesScan(eStoreSearch, names, fragment);
+        }
+        System.out.println(pass + "	and so do products added since the"
+                + " index was built");
+
+        String removedId = String.format("%06d", count);
+        String removedName = names.get(count);
+        eStoreSearch.removeProduct(removedId);
+        boolean removed = true;
+        for (Product product : eStoreSearch.query("contains:\""
+                + removedName + "\"")) {
+            removed &= !product.getId().equals(removedId);
+        }
+        System.out.println(removed + "\tremoved products do not match");
+        System.out.println(eStoreSearch.query("contains:zzz").size() == 0);
+
+        // Fragments of names, as a user would type them
+        String[] queries = new String[searches];
+        for (int i = 0; i < searches; i++) {
+            String name = names.get(random.nextInt(count));
+            int from = random.nextInt(name.length() - 3);
+            queries[i] = "contains:\"" + name.substring(from, from + 3
+                    + random.nextInt(Math.min(6, name.length() - from - 2)))
+                    + "\"";
+        }
+        // Warm up until the JIT, which shares the CPU with the searches on
+        // small machines, has compiled them
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < searches; i++) {
+                eStoreSearch.query(queries[i]).size();
+            }
+        }
+
+        long checksum = 0;
+        IntList selective = new IntList();
+        IntList all = new IntList();
+        for (int i = 0; i < searches; i++) {
+            QueryPlan plan = QueryPlan.compile(queries[i]);
+            long begin = System.nanoTime();
+            int matches = eStoreSearch.search(plan).size();
+            int latency = (int) ((System.nanoTime() - begin) / 1000);
+            all.add(latency);
+            if (matches * 100L < count) {
+                selective.add(latency);
+            }
+            checksum += matches;
+        }
+
+        int scans = 20;
+        long begin = System.nanoTime();
+        for (int i = 0; i < scans; i++) {
+            String needle = queries[i].substring(10, queries[i].length() - 1)
+                    .toLowerCase();
+            List<Product> products = eStoreSearch.getProducts();
+            for (Product product : products) {
+                checksum += product.getName().toLowerCase().contains(needle)
+                        ? 1 : 0;
+            }
+        }
+        long scanMicros = (System.nanoTime() - begin) / scans / 1000;
+
+        System.out.println("\nContains search on " + count + " names, "
+                + searches + " fragments of 3 to 8 characters\n");
+        System.out.println("Fragments\t\tSearches\tMedian us\t99th us"
+                + "\t\tMax us");
+        printLatencies("Under 1% matches", selective);
+        printLatencies("All", all);
+        System.out.println("Scan of every name:\t" + scanMicros + " us");
+        begin = System.nanoTime();
+        ContainsIndex index = new ContainsIndex(eStoreSearch.getProducts());
+        index.update();
+        System.out.println("Index built in " + (System
+                .nanoTime() - begin) / 1000000 + " ms, " + index.tokens
+                .getCount() + " tokens in " + index.getSizeInBytes() / 1024
+                + " KB");
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Checks the name of a product, in the bytes of its arena if it has one
+     */
+    private static boolean nameContains(Product product, String needle,
+            byte[] bytes) {
+        if (product instanceof StringArena.View) {
+            StringArena.View view = (StringArena.View) product;
+            return view.getArena().containsLowerCase(view.getNameReference(),
+                    needle, bytes);
+        }
+        return containsLowerCase(product.getName(), needle);
+    }
+
+    /**
+     * Indexes the tokens of a name and the tokens following each other
+     */
+    private void add(String name, int ordinal) {
+        String text = toLowerCase(name);
+        int count = 0;
+        boolean severalSpaces = false;
+        int i = 0;
+        while (i < text.length()) {
+            if (text.charAt(i) == ' ') {
+                severalSpaces |= i > 0 && text.charAt(i - 1) == ' ';
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < text.length() && text.charAt(i) != ' ') {
+                i++;
+            }
+            if (2 * count + 2 > bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[2 * count] = start;
+            bounds[2 * count + 1] = i;
+            count++;
+        }
+        if (text.indexOf(' ') < 0) {
+            unspaced.add(ordinal);
+        } else if (severalSpaces) {
+            irregular.add(ordinal);
+        }
+
+        byte[] previous = null;
+        int previousId = -1;
+        boolean previousPreceded = false;
+        for (int token = 0; token < count; token++) {
+            int start = bounds[2 * token];
+            int end = bounds[2 * token + 1];
+            String string = text.substring(start, end);
+            byte[] bytes = TermDictionary.encode(string);
+            int known = tokens.getCount();
+            int id = tokens.add(string);
+            if (id == single.length) {
+                single = Arrays.copyOf(single, id * 2);
+                lists = Arrays.copyOf(lists, id * 2);
+                for (int flags = 0; flags < cached.length; flags++) {
+                    if (cached[flags] != null) {
+                        cached[flags] = Arrays.copyOf(cached[flags], id * 2);
+                    }
+                }
+            }
+
+            boolean preceded = start > 0;
+            boolean followed = end < text.length();
+            post(id, id == known, ordinal | (preceded ? PRECEDED : 0)
+                    | (followed ? FOLLOWED : 0)
+                    | (preceded && followed ? ENCLOSED : 0));
+            if (previous != null && start - bounds[2 * token - 1] == 1) {
+                int key = junctionKey(previous, bytes);
+                if (junctions[key] == null) {
+                    junctions[key] = new IntList();
+                }
+                junctions[key].add(previousId);
+                junctions[key].add(id);
+                junctions[key].add(ordinal | (previousPreceded ? PRECEDED
+                        : 0) | (followed ? FOLLOWED : 0));
+            }
+            previous = bytes;
+            previousId = id;
+            previousPreceded = preceded;
+        }
+    }
+
+    /**
+     * Posts a flagged ordinal for a token, merging the flags of a token
+     * repeated in one name
+     */
+    private void post(int id, boolean isNew, int posting) {
+        int ordinal = posting & ORDINAL_MASK;
+        if (isNew) {
+            single[id] = posting;
+            return;
+        }
+        IntList list = lists[id];
+        if (list == null) {
+            if ((single[id] & ORDINAL_MASK) == ordinal) {
+                single[id] |= posting | REPEATED;
+                return;
+            }
+            list = lists[id] = new IntList();
+            list.add(single[id]);
+        } else if ((list.last() & ORDINAL_MASK) == ordinal) {
+            list.set(list.size() - 1, list.last() | posting | REPEATED);
+            return;
+        }
+        list.add(posting);
+        for (OrdinalSet[] sets : cached) {
+            if (sets != null) {
+                sets[id] = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the set holding only the ID of a whole token, empty if no name
+     * has the token
+     */
+    private OrdinalSet find(String token) {
+        int id = tokens.find(token);
+        return id < 0 ? OrdinalSet.empty() : OrdinalSet.of(id);
+    }
+
+    /**
+     * Unites the postings of tokens that have all the flags
+     */
+    private OrdinalSet postings(OrdinalSet ids, int flags) {
+        int index = 0;
+        while (CACHED_FLAGS[index] != flags) {
+            index++;
+        }
+        OrdinalSet[] sets = cached[index];
+        if (sets == null) {
+            sets = cached[index] = new OrdinalSet[lists.length];
+        }
+
+        OrdinalSet matches = OrdinalSet.empty();
+        IntList ordinals = new IntList();
+        for (int id : ids.toArray()) {
+            IntList list = lists[id];
+            if (list == null) {
+                if ((single[id] & flags) == flags) {
+                    ordinals.add(single[id] & ORDINAL_MASK);
+                }
+            } else if (list.size() >= CACHED_MIN) {
+                OrdinalSet set = sets[id];
+                if (set == null) {
+                    IntList kept = new IntList();
+                    gather(list, flags, kept);
+                    set = sets[id] = toSet(kept);
+                }
+                matches = matches.or(set);
+            } else {
+                gather(list, flags, ordinals);
+            }
+        }
+        return ordinals.size() == 0 ? matches : matches.or(toSet(ordinals));
+    }
+
+    private static void gather(IntList postings, int flags, IntList into) {
+        for (int i = 0; i < postings.size(); i++) {
+            int posting = postings.get(i);
+            if ((posting & flags) == flags) {
+                into.add(posting & ORDINAL_MASK);
+            }
+        }
+    }
+
+    /**
+     * Finds the ordinals where a token ending with one piece, or equal to
+     * it, is followed by one space and a token starting with the other piece,
+     * or equal to it
+     */
+    private OrdinalSet junctions(String left, String right, boolean leftWhole,
+            boolean rightWhole, int flags) {
+        byte[] leftBytes = TermDictionary.encode(left);
+        byte[] rightBytes = TermDictionary.encode(right);
+        IntList list = junctions[junctionKey(leftBytes, rightBytes)];
+        if (list == null) {
+            return OrdinalSet.empty();
+        }
+        // The list already matched pieces of one byte
+        BitSet lefts = leftWhole ? find(left).toBitSet() : leftBytes.length
+                > 1 ? tokens.contains(left + TrigramIndex.BOUNDARY).toBitSet()
+                : null;
+        BitSet rights = rightWhole ? find(right).toBitSet() : rightBytes
+                .length > 1 ? tokens.contains(TrigramIndex.BOUNDARY + right)
+                .toBitSet() : null;
+        if (lefts != null && lefts.isEmpty()
+                || rights != null && rights.isEmpty()) {
+            return OrdinalSet.empty();
+        }
+
+        IntList ordinals = new IntList();
+        for (int i = 0; i < list.size(); i += 3) {
+            int posting = list.get(i + 2);
+            if ((posting & flags) == flags && (lefts == null || lefts.get(
+                    list.get(i))) && (rights == null || rights.get(list.get(
+                    i + 1)))) {
+                ordinals.add(posting & ORDINAL_MASK);
+            }
+        }
+        return toSet(ordinals);
+    }
+
+    /**
+     * Gets the index in junctions of the bytes on each side of a space
+     */
+    private static int junctionKey(byte[] left, byte[] right) {
+        return (left[left.length - 1] & 0xff) << 8 | right[0] & 0xff;
+    }
+
+    /**
+     * Keeps the candidates whose names contain a lower case fragment
+     */
+    private OrdinalSet verify(OrdinalSet candidates, String needle) {
+        byte[] bytes = TermDictionary.encode(needle);
+        OrdinalSet.Builder matches = new OrdinalSet.Builder();
+        for (int ordinal : candidates.toArray()) {
+            if (nameContains(products.get(ordinal), needle, bytes)) {
+                matches.add(ordinal);
+            }
+        }
+        return matches.build();
+    }
+
+    /**
+     * Gets the set of gathered ordinals, which hold duplicates and are in
+     * ascending order within each of the lists they were gathered from
+     */
+    private OrdinalSet toSet(IntList ordinals) {
+        boolean ascending = true;
+        for (int i = 1; i < ordinals.size() && ascending; i++) {
+            ascending = ordinals.get(i - 1) <= ordinals.get(i);
+        }
+
+        if (ascending || ordinals.size() <= SORT_MAX) {
+            int[] sorted = ordinals.toArray();
+            if (!ascending) {
+                Arrays.sort(sorted);
+            }
+            OrdinalSet.Builder set = new OrdinalSet.Builder();
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    set.add(sorted[i]);
+                }
+            }
+            return set.build();
+        }
+
+        long[] words = new long[(size + 63) >>> 6];
+        for (int i = 0; i < ordinals.size(); i++) {
+            int ordinal = ordinals.get(i);
+            words[ordinal >>> 6] |= 1L << ordinal;
+        }
+        return OrdinalSet.fromWords(words);
+    }
+
+    /**
+     * Prints the median, 99th percentile and maximum of latencies
+     */
+    private static void printLatencies(String name, IntList latencies) {
+        int[] sorted = latencies.toArray();
+        Arrays.sort(sorted);
+        System.out.println(name + "\t" + (name.length() < 8 ? "\t\t" : "")
+                + sorted.length + "\t\t" + sorted[sorted.length / 2] + "\t\t"
+                + sorted[sorted.length * 99 / 100] + "\t\t"
+                + sorted[sorted.length - 1]);
+    }
+
+    /**
+     * Checks a contains query against String.contains on every name
+     */
+    private static boolean matchesScan(EStoreSearch eStoreSearch,
+            List<String> names, String fragment)
+            throws InvalidInputException {
+        SearchResult result = eStoreSearch.query("contains:\"" + fragment
+                + "\"");
+        IntList expected = new IntList();
+        for (int i = 0; i < names.size(); i++) {
+            if (toLowerCase(names.get(i)).contains(toLowerCase(fragment))) {
+                expected.add(i);
+            }
+        }
+        boolean matches = result.size() == expected.size();
+        for (int i = 0; i < expected.size() && matches; i++) {
+            matches = result.get(i).getName().equals(names.get(expected.get(
+                    i)));
+        }
+        return matches;
+    }
+}
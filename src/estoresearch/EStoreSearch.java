@@ -1,23 +1,69 @@
 package estoresearch;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Scanner;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Adds and searches books and electronics
  *
  * @author Courtney Bodi
  */
-public class EStoreSearch {
+public class EStoreSearch implements ProductSink {
+
+    // Guarded by lock, small changes are made in place and bulk loads and
+    // compactions replace the whole version
+    private CatalogVersion current;
+    // Set under the write lock while no bulk load runs
+    private volatile ChangeLog changeLog;
+
+    private final CatalogFlusher flusher;
+
+    private final boolean offHeapText;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Held from the snapshot of a rebuild until it is published or abandoned
+    private final Semaphore rebuilding = new Semaphore(1);
+    // Most recently used plans by query, shared by every searching thread
+    private final Map<String, QueryPlan> plans = Collections.synchronizedMap(
+            new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, QueryPlan> eldest) {
+            return size() > PLAN_CACHE_SIZE;
+        }
+    });
 
-    private ArrayList<Product> products;
-    private HashMap<String, HashSet<Integer>> keywords;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "estore-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     public static final String TOO_MANY_NUMBERS = "Invalid input: enter one"
             + " number";
@@ -27,24 +73,82 @@ public class EStoreSearch {
             + " must be less than or equal to end year";
     public static final String INVALID_DECIMAL_PLACE = "Invalid input: the"
             + " price must only have 2 decimal places";
+    public static final String INVALID_TYPE = "Invalid input: type must be"
+            + " empty, \"book\" or \"electronics\"";
     public static final String DUPLICATE_ID = "ID already exists!";
+    public static final String NO_SUCH_ID = "ID does not exist!";
+
+    /**
+     * Keywords known to no other store, so keywords missing from this one
+     * are ignored
+     */
+    static final Predicate<String> NOT_KNOWN_ELSEWHERE = keyword -> false;
+
+    /**
+     * Fraction of deleted ordinals that triggers a background compaction
+     */
+    public static final double COMPACTION_RATIO = 0.25;
+
+    /**
+     * Number of prepared query plans kept for repeated queries
+     */
+    public static final int PLAN_CACHE_SIZE = 256;
 
     public static final int DECIMAL_PLACE = 2;
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    public static final String OUTPUT_FILE = "output.txt";
 
     /**
      * Generic EStoreSearch constructor
      *
      */
     public EStoreSearch() {
-        products = new ArrayList<>();
-        keywords = new HashMap<>();
+        this(false);
+    }
+
+    /**
+     * EStoreSearch constructor that can keep the names, authors, publishers
+     * and makers of products outside the Java heap. Products are then stored
+     * as views that decode their text when it is read, see StringArena.
+     *
+     * @param offHeapText whether product text is kept off the heap
+     */
+    public EStoreSearch(boolean offHeapText) {
+        this(offHeapText, Paths.get(OUTPUT_FILE));
     }
 
     /**
-     * @return the products
+     * EStoreSearch constructor that saves to a file other than output.txt
+     *
+     * @param offHeapText whether product text is kept off the heap
+     * @param saveFile catalog file products are saved to
+     */
+    EStoreSearch(boolean offHeapText, Path saveFile) {
+        this.offHeapText = offHeapText;
+        current = new CatalogVersion(compactor, 0, offHeapText);
+        flusher = new CatalogFlusher(this, saveFile);
+    }
+
+    /**
+     * @return the products that have not been removed
      */
     public ArrayList<Product> getProducts() {
-        return products;
+        lock.readLock().lock();
+        try {
+            List<Product> products = current.getProducts();
+            BitSet tombstones = current.getTombstones();
+            ArrayList<Product> liveProducts = new ArrayList<>(
+                    current.getLiveCount());
+            for (int i = 0; i < products.size(); i++) {
+                if (!tombstones.get(i)) {
+                    liveProducts.add(products.get(i));
+                }
+            }
+            return liveProducts;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -55,34 +159,17 @@ public class EStoreSearch {
      * store
      */
     private Boolean idExists(String productID) {
-        for (Product product : getProducts()) {
-            if (productID.equals(product.getId())) {
-                return true;
-            }
-        }
-        return false;
+        return current.getOrdinal(productID) != null;
     }
 
     /**
-     * Adds keywords from names in products to hash map
+     * Appends product to products list and indexes it, caller must hold the
+     * write lock
      *
-     * @param product to add keywords from
+     * @param product to append
      */
-    private void addKeywordsToHashMap(Product product) {
-        String[] nameTokens = product.getName().toLowerCase().split("\\s+");
-        for (String keyword : nameTokens) {
-            // Append if keyword already exists
-            if (keywords.containsKey(keyword)) {
-                HashSet<Integer> ints = keywords.get(keyword);
-                ints.add(getProducts().indexOf(product));
-                keywords.put(keyword, ints);
-            // Create new hashset if keyword does not exist
-            } else {
-                HashSet<Integer> ints = new HashSet<>();
-                ints.add(getProducts().indexOf(product));
-                keywords.put(keyword, ints);
-            }
-        }
+    private void appendProduct(Product product) {
+        current.append(product);
     }
 
     /**
@@ -103,10 +190,6 @@ public class EStoreSearch {
 
         Book book;
 
-        if (idExists(id)) {
-            throw new InvalidInputException(DUPLICATE_ID);
-        }
-
         try {
             book = new Book(id, name, parseYear(year), parsePrice(price),
                     author, publisher);
@@ -114,9 +197,16 @@ public class EStoreSearch {
             throw new InvalidInputException(e.getMessage());
         }
 
-        boolean add = products.add(book);
-        assert (add);
-        addKeywordsToHashMap(book);
+        lock.writeLock().lock();
+        try {
+            if (idExists(id)) {
+                throw new InvalidInputException(DUPLICATE_ID);
+            }
+            logChange(log -> log.added(book));
+            appendProduct(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -134,10 +224,6 @@ public class EStoreSearch {
             String maker) throws InvalidInputException {
         Electronic electronic;
 
-        if (idExists(id)) {
-            throw new InvalidInputException(DUPLICATE_ID);
-        }
-
         try {
             electronic = new Electronic(id, name, parseYear(year),
                     parsePrice(price), maker);
@@ -145,10 +231,454 @@ public class EStoreSearch {
             throw new InvalidInputException(e.getMessage());
         }
 
-        boolean add = products.add(electronic);
-        assert (add);
-        addKeywordsToHashMap(electronic);
+        lock.writeLock().lock();
+        try {
+            if (idExists(id)) {
+                throw new InvalidInputException(DUPLICATE_ID);
+            }
+            logChange(log -> log.added(electronic));
+            appendProduct(electronic);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes product by leaving a tombstone on its ordinal, the ordinal and
+     * its keyword postings are reclaimed by the next compaction
+     *
+     * @param id of the product to remove
+     * @throws estoresearch.InvalidInputException if the ID does not exist
+     */
+    public void removeProduct(String id) throws InvalidInputException {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = current.getOrdinal(id);
+            if (ordinal == null) {
+                throw new InvalidInputException(NO_SUCH_ID);
+            }
+            logChange(log -> log.removed(id));
+            current.remove(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Renames product, the old ordinal is tombstoned and a renamed copy is
+     * appended so that only the new keywords point at it
+     *
+     * @param id of the product to rename
+     * @param name new name of product
+     * @throws estoresearch.InvalidInputException if the ID does not exist or
+     * the name is invalid
+     */
+    public void updateName(String id, String name)
+            throws InvalidInputException {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = current.getOrdinal(id);
+            if (ordinal == null) {
+                throw new InvalidInputException(NO_SUCH_ID);
+            }
+
+            Product product = current.getProducts().get(ordinal);
+            Product renamed;
+            if (product instanceof Book) {
+                renamed = new Book((Book) product);
+            } else {
+                renamed = new Electronic((Electronic) product);
+            }
+            renamed.setName(name);
+
+            logChange(log -> log.renamed(id, name));
+            current.remove(ordinal);
+            appendProduct(renamed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Changes price of product in place since price is not indexed
+     *
+     * @param id of the product to update
+     * @param price new price of product in dollars CAD
+     * @throws estoresearch.InvalidInputException if the ID does not exist or
+     * the price is invalid
+     */
+    public void updatePrice(String id, String price)
+            throws InvalidInputException {
+        updatePrice(id, parsePrice(price));
+    }
+
+    /**
+     * Changes price of product to an already validated price
+     *
+     * @param id of the product to update
+     * @param newPrice new price of product in dollars CAD
+     * @throws estoresearch.InvalidInputException if the ID does not exist or
+     * the price is negative
+     */
+    void updatePrice(String id, double newPrice) throws InvalidInputException {
+        if (newPrice < Product.NO_PRICE) {
+            throw new InvalidInputException(Product.INVALID_PRICE);
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = current.getOrdinal(id);
+            if (ordinal == null) {
+                throw new InvalidInputException(NO_SUCH_ID);
+            }
+            logChange(log -> log.priceChanged(id, newPrice));
+            Product product = current.getProducts().get(ordinal);
+            product.setPrice(newPrice);
+            current.priceChanged(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Queues a background compaction once enough ordinals are tombstoned
+     */
+    private void scheduleCompaction() {
+        lock.readLock().lock();
+        try {
+            if (current.getTombstones().cardinality()
+                    < current.size() * COMPACTION_RATIO) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                try {
+                    // A running bulk load drops the tombstones itself
+                    if (rebuilding.tryAcquire()) {
+                        new BulkLoad().publish();
+                    }
+                } finally {
+                    compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts logging every change for read replicas. A snapshot of the live
+     * products is written first, in the format of its file extension, and the
+     * log holds every change made after it. Followers load the snapshot and
+     * then apply the log, see LogFollower. The snapshot must be CSV or JSON
+     * Lines, since TEXT cannot hold every price and name exactly.
+     * <p>
+     * Once replication is started, a change that cannot be written to the
+     * log is not made, and the method making it throws UncheckedIOException.
+     *
+     * @param snapshot catalog file to write, named .csv or .jsonl
+     * @param log file to write changes to, replaced if it exists
+     * @throws IOException if the snapshot or log could not be written
+     * @throws IllegalArgumentException if the snapshot is named as TEXT
+     */
+    public void startReplication(Path snapshot, Path log) throws IOException {
+        CatalogFormat format = CatalogFormat.fromFilename(snapshot.toString());
+        if (format == CatalogFormat.TEXT) {
+            throw new IllegalArgumentException("Replication snapshot "
+                    + snapshot + " must be named .csv or .jsonl, TEXT"
+                    + " snapshots lose prices and names");
+        }
+
+        // Followers wait for the snapshot to appear
+        Files.deleteIfExists(snapshot);
+
+        ArrayList<Product> liveProducts = getProductsAt(() -> {
+            if (changeLog != null) {
+                changeLog.close();
+            }
+            changeLog = new ChangeLog(log);
+        });
+
+        new ExportEngine(format, snapshot.getFileName().toString()
+                .endsWith(".gz")).export(liveProducts, snapshot);
+    }
+
+    /**
+     * Gets the live products and starts a log at the same point, so that
+     * the log holds exactly the changes made after the products. A bulk load
+     * logs its products when it is published, so none may be running while
+     * the log starts.
+     *
+     * @param start starts the log, run with the write lock held
+     * @return the live products
+     * @throws IOException if the log could not be started
+     */
+    ArrayList<Product> getProductsAt(LogStart start) throws IOException {
+        rebuilding.acquireUninterruptibly();
+        try {
+            lock.writeLock().lock();
+            try {
+                ArrayList<Product> liveProducts = getProducts();
+                start.run();
+                return liveProducts;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            rebuilding.release();
+        }
+    }
+
+    /**
+     * Starts a log at a point in the changes, see getProductsAt
+     */
+    interface LogStart {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Logs a change before it is made: appends it to the change log if
+     * replication was started and to the save journal, then counts it as
+     * unsaved. A change the change log could not take must not be made, or
+     * followers would silently miss it. Caller must hold the write lock so
+     * changes are logged in the order they are made, and must make the
+     * change once this returns.
+     *
+     * @param change writes the change's record
+     * @throws UncheckedIOException if the change log could not be written
+     */
+    private void logChange(LoggedChange change) {
+        ChangeLog log = changeLog;
+        if (log != null) {
+            try {
+                change.writeTo(log);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing change log, "
+                        + "the change was not made", e);
+            }
+        }
+
+        ChangeLog journal = flusher.getJournal();
+        if (journal != null) {
+            try {
+                change.writeTo(journal);
+            } catch (IOException e) {
+                flusher.journalFailed(journal, e);
+            }
+        }
+        flusher.changed();
+    }
+
+    /**
+     * Change that is written to the change log
+     */
+    private interface LoggedChange {
+
+        void writeTo(ChangeLog log) throws IOException;
+    }
+
+    /**
+     * @return sequence number of the last change logged, or 0 if replication
+     * was not started
+     */
+    long changeLogSequence() {
+        ChangeLog log = changeLog;
+        return log == null ? 0 : log.getSequence();
+    }
+
+    /**
+     * Waits until the current version's contains index is built, starting
+     * the build if no contains search did
+     */
+    void awaitContainsIndex() {
+        CompletableFuture<ContainsIndex> build;
+        lock.readLock().lock();
+        try {
+            build = current.buildContainsIndex();
+        } finally {
+            lock.readLock().unlock();
+        }
+        build.join();
+    }
+
+    /**
+     * @return number of frozen keyword segments
+     */
+    int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return current.getSegmentCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds ordinals, keyword postings and ID lookup without tombstoned
+     * products, waiting for a bulk load in progress to be published first
+     */
+    public void compact() {
+        beginBulkLoad().publish();
+    }
+
+    /**
+     * Starts building a new version of the catalog off to the side. The new
+     * version starts as a copy of the live products, products added to the
+     * load go to it alone, and searches keep seeing the current version
+     * until the load is published. Only one load or compaction runs at a
+     * time, so this waits for one in progress.
+     *
+     * @return the load, which must be published or abandoned
+     */
+    BulkLoad beginBulkLoad() {
+        rebuilding.acquireUninterruptibly();
+        try {
+            return new BulkLoad();
+        } catch (RuntimeException | Error e) {
+            rebuilding.release();
+            throw e;
+        }
+    }
+
+    /**
+     * New version of the catalog being built from a snapshot of the current
+     * one. Publishing replays every change made to the current version since
+     * the snapshot, so nothing done during the load is lost, and then swaps
+     * the new version in under the write lock.
+     */
+    final class BulkLoad implements ProductSink {
+
+        private final Product[] snapshot;
+        private final int[] remap;
+        private final CatalogVersion staged;
+        private final int copied;
+        private boolean finished;
+
+        /**
+         * Copies the live products of the current version, the caller must
+         * have acquired rebuilding
+         */
+        private BulkLoad() {
+            BitSet snapshotTombstones;
+            lock.readLock().lock();
+            try {
+                List<Product> products = current.getProducts();
+                snapshot = products.toArray(new Product[products.size()]);
+                snapshotTombstones = (BitSet) current.getTombstones().clone();
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            remap = new int[snapshot.length];
+            staged = new CatalogVersion(compactor, snapshot.length
+                    - snapshotTombstones.cardinality(), offHeapText);
+            for (int i = 0; i < snapshot.length; i++) {
+                remap[i] = snapshotTombstones.get(i) ? -1
+                        : staged.append(snapshot[i]);
+            }
+            copied = staged.size();
+        }
+
+        /**
+         * Adds already validated products to the new version only
+         *
+         * @param batch of products to add in order
+         * @return products that were not added because their ID already
+         * exists
+         */
+        @Override
+        public List<Product> addProducts(List<Product> batch) {
+            ArrayList<Product> rejected = new ArrayList<>();
+            for (Product product : batch) {
+                if (staged.getOrdinal(product.getId()) != null) {
+                    rejected.add(product);
+                } else {
+                    staged.append(product);
+                }
+            }
+            return rejected;
+        }
+
+        /**
+         * Replays changes made since the snapshot and makes the new version
+         * current. A product added during the load whose ID was also loaded
+         * replaces the loaded one.
+         */
+        void publish() {
+            if (finished) {
+                return;
+            }
+
+            boolean loaded = staged.size() > copied;
+            // Nothing can start logging while the load runs
+            ChangeLog.Records loadedRecords = loaded && (changeLog != null
+                    || flusher.getJournal() != null) ? new ChangeLog.Records().addAll(staged.getProducts()
+                            .subList(copied, staged.size())) : null;
+            lock.writeLock().lock();
+            try {
+                List<Product> products = current.getProducts();
+                BitSet tombstones = current.getTombstones();
+
+                // Replay removes and price changes of snapshot products
+                for (int i = 0; i < snapshot.length; i++) {
+                    if (remap[i] < 0) {
+                        continue;
+                    }
+                    if (tombstones.get(i)) {
+                        staged.remove(remap[i]);
+                    } else if (staged.getColumns().getPrices()[remap[i]]
+                            != snapshot[i].getPrice()) {
+                        staged.setPrice(remap[i], snapshot[i].getPrice());
+                    }
+                }
+
+                // Replay adds
+                for (int i = snapshot.length; i < products.size(); i++) {
+                    Product product = products.get(i);
+                    if (tombstones.get(i)) {
+                        staged.appendRemoved(product);
+                    } else {
+                        Integer loadedOrdinal = staged.getOrdinal(
+                                product.getId());
+                        if (loadedOrdinal != null) {
+                            staged.remove(loadedOrdinal);
+                        }
+                        staged.append(product);
+                    }
+                }
+
+                if (loaded) {
+                    logChange(log -> log.append(loadedRecords));
+                }
+                // Contains searches scan until the new index is built
+                if (current.isContainsSearched()) {
+                    staged.buildContainsIndex();
+                }
+                current = staged;
+            } finally {
+                lock.writeLock().unlock();
+                finish();
+            }
+        }
+
+        /**
+         * Drops the new version and keeps the current one
+         */
+        void abandon() {
+            finish();
+        }
 
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                rebuilding.release();
+            }
+        }
     }
 
     /**
@@ -157,7 +687,7 @@ public class EStoreSearch {
      * @param userString
      * @return valid price
      */
-    private double parsePrice(String userString) throws InvalidInputException {
+    static double parsePrice(String userString) throws InvalidInputException {
         double price;
 
         String[] userTokens = userString.split("\\s+");
@@ -194,7 +724,7 @@ public class EStoreSearch {
      *
      * @return user entered integer between min and max, or throws an exception
      */
-    private int parseYear(String userString) throws InvalidInputException {
+    static int parseYear(String userString) throws InvalidInputException {
         int userInt = 0;
 
         String[] userTokens = userString.split("\\s+");
@@ -216,118 +746,152 @@ public class EStoreSearch {
     }
 
     /**
-     * Prompt user to search by ID and adds product with corresponding ID
+     * Finds ordinal of the product with the ID
      *
-     * @param matchingProducts
+     * @param version searched
+     * @param productID user input
+     * @return set holding the matching ordinal, or null if the ID is empty
      */
-    private HashSet<Product> findMatchingIDProduct(String productID)
-            throws InvalidInputException {
-
-        HashSet<Product> matchingProducts = new HashSet<>();
-
-        Book book = new Book();
-
+    private static OrdinalSet findMatchingIDOrdinals(CatalogVersion version,
+            String productID) {
         if (productID.equals("")) {
             return null;
-        } else {
-            for (Product product : getProducts()) {
-                if (productID.equals(product.getId())) {
-                    matchingProducts.add(product);
-                    // Stop searching when found
-                    break;
-                }
-            }
         }
-        return matchingProducts;
+
+        Integer ordinal = version.getOrdinal(productID);
+        return ordinal == null ? OrdinalSet.empty() : OrdinalSet.of(ordinal);
     }
 
     /**
-     * Prompts user to input keywords, then searches products for keywords in
-     * names, and adds product to matchingProducts if there is a match
+     * Finds ordinals of products with every known keyword in their names,
+     * keywords that are not in any name are ignored. Quoted phrases match
+     * names with their words in order, within the slop given after a ~, and
+     * are checked on the positions of the products left after intersecting
+     * the postings of every word.
      *
-     * @param matchingProducts
+     * @param version searched
+     * @param keywordSearch user input
+     * @param type partition searched, or ProductColumns.ANY_TYPE for all
+     * @param knownElsewhere keywords in names of other stores searched with
+     * this one, which match nothing here instead of being ignored
+     * @return set of matching ordinals, or null if the keywords are empty
+     * @throws InvalidInputException if a phrase is not closed
      */
-    private HashSet<Product> findMatchingKeywordProducts(String keywordSearch) {
-        HashSet<Product> matchingProducts = new HashSet<>();
-
-        String[] searchTokens = keywordSearch.split("\\s+");
-        ArrayList<HashSet<Integer>> matches = new ArrayList<>();
-        HashSet<Integer> ints = new HashSet<>();
-
+    private static OrdinalSet findMatchingKeywordOrdinals(
+            CatalogVersion version, String keywordSearch, byte type,
+            Predicate<String> knownElsewhere) throws InvalidInputException {
         if (keywordSearch.equals("")) {
             return null;
-        } else {
-            for (String searchToken : searchTokens) {
-                if (keywords.containsKey(searchToken)) {
-                    matches.add(keywords.get(searchToken));
-                }
-            }
+        }
 
-            if (!matches.isEmpty()) {
-                ints = matches.get(0);
+        ArrayList<String> looseKeywords = new ArrayList<>();
+        List<PhraseQuery> phrases = PhraseQuery.parse(keywordSearch,
+                looseKeywords);
+
+        ArrayList<OrdinalSet> postingsSets = new ArrayList<>();
+        for (String searchToken : looseKeywords) {
+            OrdinalSet postings = version.getPostings(searchToken, type);
+            if (postings != null) {
+                postingsSets.add(postings);
+            } else if (knownElsewhere.test(searchToken)) {
+                return OrdinalSet.empty();
             }
+        }
 
-            for (HashSet<Integer> match : matches) {
-                ints.retainAll(match);
+        for (PhraseQuery phrase : phrases) {
+            for (String term : phrase.getTerms()) {
+                OrdinalSet postings = version.getPostings(term, type);
+                if (postings == null) {
+                    // A phrase cannot match without every one of its words
+                    return OrdinalSet.empty();
+                }
+                postingsSets.add(postings);
             }
+        }
 
-            for (int i : ints) {
-                matchingProducts.add(getProducts().get(i));
-            }
+        OrdinalSet matchingOrdinals = intersect(postingsSets);
+        if (matchingOrdinals == null) {
+            return OrdinalSet.empty();
+        }
+        for (PhraseQuery phrase : phrases) {
+            matchingOrdinals = version.verifyPhrase(phrase, matchingOrdinals,
+                    type);
         }
-        return matchingProducts;
+        return matchingOrdinals;
     }
 
     /**
-     * Prompts user to input time period and adds products that fall within that
-     * time period to the matchingProducts
+     * Validates a time period where either year may be empty for no bound
      *
-     * @param matchingProducts
+     * @param startYear user input, empty for no lower bound
+     * @param endYear user input, empty for no upper bound
+     * @return start and end year, or null if both years are empty
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
      */
-    private HashSet<Product> findMatchingTimePeriodProducts(String startYear,
-            String endYear) throws InvalidInputException {
-        HashSet<Product> matchingProducts = new HashSet<>();
+    static int[] parseYearRange(String startYear, String endYear)
+            throws InvalidInputException {
+        int start = Product.MIN_YEAR;
+        int end = Product.MAX_YEAR;
 
-        try {
-            if (startYear.equals("") && endYear.equals("")) {
-                return null;
-            } else if (startYear.equals("")) {
-                for (Product product : getProducts()) {
-                    if (product.getYear() <= parseYear(endYear)) {
-                        matchingProducts.add(product);
-                    }
-                }
-            } else if (endYear.equals("")) {
-                for (Product product : getProducts()) {
-                    if (product.getYear() >= parseYear(startYear)) {
-                        matchingProducts.add(product);
-                    }
-                }
-            } else {
-                int end = parseYear(endYear);
-                int start = parseYear(startYear);
+        if (startYear.equals("") && endYear.equals("")) {
+            return null;
+        }
+        if (!startYear.equals("")) {
+            start = parseYear(startYear);
+        }
+        if (!endYear.equals("")) {
+            end = parseYear(endYear);
+        }
+        if (start > end) {
+            throw new InvalidInputException(INVALID_START_END);
+        }
+        return new int[]{start, end};
+    }
 
-                if (start == end) {
-                    for (Product product : getProducts()) {
-                        if (product.getYear() == start) {
-                            matchingProducts.add(product);
-                        }
-                    }
-                } else if (start > end) {
-                    throw new InvalidInputException(INVALID_START_END);
-                } else {
-                    for (Product product : getProducts()) {
-                        if (product.getYear() >= start
-                                && product.getYear() <= end) {
-                            matchingProducts.add(product);
-                        }
-                    }
-                }
-            }
-        } catch (InvalidInputException e) {
-            throw new InvalidInputException(e.getMessage());
+    /**
+     * Validates a product type filter
+     *
+     * @param type user input, empty for every type
+     * @return ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC, or ANY_TYPE if
+     * the type is empty
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    static byte parseType(String type) throws InvalidInputException {
+        switch (type.trim().toLowerCase()) {
+            case "":
+                return ProductColumns.ANY_TYPE;
+            case "book":
+                return ProductColumns.TYPE_BOOK;
+            case "electronic":
+            case "electronics":
+                return ProductColumns.TYPE_ELECTRONIC;
+            default:
+                throw new InvalidInputException(INVALID_TYPE);
+        }
+    }
+
+    /**
+     * Finds ordinals of products that fall within the time period by
+     * scanning the year column
+     *
+     * @param version searched
+     * @param startYear user input, empty for no lower bound
+     * @param endYear user input, empty for no upper bound
+     * @return set of matching ordinals, or null if both years are empty
+     */
+    private static OrdinalSet findMatchingTimePeriodOrdinals(
+            CatalogVersion version, String startYear, String endYear)
+            throws InvalidInputException {
+        int[] yearRange = parseYearRange(startYear, endYear);
+        if (yearRange == null) {
+            return null;
         }
-        return matchingProducts;
+
+        ProductColumns columns = version.getColumns();
+        return ScanEngine.scanRange(columns.getYears(), columns.size(),
+                yearRange[0], yearRange[1]);
     }
 
     /**
@@ -335,7 +899,8 @@ public class EStoreSearch {
      *
      * @param matchingProducts
      */
-    private String matchingProductsToString(HashSet<Product> matchingProducts) {
+    static String matchingProductsToString(
+            Collection<Product> matchingProducts) {
         String matchingProductsString = "";
 
         if (matchingProducts.isEmpty()) {
@@ -367,51 +932,529 @@ public class EStoreSearch {
             String startYear, String endYear)
             throws InvalidInputException {
 
-        HashSet<Product> productsCopy = new HashSet<>(getProducts());
-
-        ArrayList<HashSet<Product>> matchingProducts = new ArrayList<>();
+        return executeSearch(productID, keywords, startYear, endYear, "");
+    }
 
-        try {
-            matchingProducts.add(findMatchingIDProduct(productID));
-        } catch (InvalidInputException e) {
-            throw new InvalidInputException(e.getMessage());
+    /**
+     * Performs search on products of one type
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param type user input, "book", "electronics" or empty for both
+     * @return string of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public String executeSearch(String productID, String keywords,
+            String startYear, String endYear, String type)
+            throws InvalidInputException {
+
+        SearchResult result = search(productID, keywords, startYear, endYear,
+                type);
+        return result.formatPage(0, Math.max(1, result.size()));
+    }
+
+    /**
+     * Performs search and returns at most limit matching products
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param limit maximum number of products to return, or NO_LIMIT
+     * @return list of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public ArrayList<Product> search(String productID, String keywords,
+            String startYear, String endYear, int limit)
+            throws InvalidInputException {
+
+        SearchResult result = search(productID, keywords, startYear, endYear);
+        return result.getPage(0, Math.min(limit, result.size()));
+    }
+
+    /**
+     * Performs search on ordinals, products are only fetched from the result
+     * when they are used
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @return ordinals of matching products in ordinal order
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult search(String productID, String keywords,
+            String startYear, String endYear) throws InvalidInputException {
+
+        return search(productID, keywords, startYear, endYear, "");
+    }
+
+    /**
+     * Performs search on ordinals of products of one type, only the
+     * partition of the type is searched
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param type user input, "book", "electronics" or empty for both
+     * @return ordinals of matching products in ordinal order
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult search(String productID, String keywords,
+            String startYear, String endYear, String type)
+            throws InvalidInputException {
+
+        byte productType = parseType(type);
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            return new SearchResult(findMatchingOrdinals(version, productID,
+                    keywords, startYear, endYear, productType,
+                    NOT_KNOWN_ELSEWHERE), productFetcher(version));
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        matchingProducts.add(findMatchingKeywordProducts(keywords));
+    /**
+     * Performs search as one shard of several, a keyword missing from this
+     * shard's names matches nothing here if another shard has it
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param limit maximum number of products to return, or NO_LIMIT
+     * @param knownElsewhere keywords in names of the other shards
+     * @return list of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    ArrayList<Product> search(String productID, String keywords,
+            String startYear, String endYear, int limit,
+            Predicate<String> knownElsewhere) throws InvalidInputException {
 
+        SearchResult result;
+        lock.readLock().lock();
         try {
-            matchingProducts.add(findMatchingTimePeriodProducts(startYear,
-                    endYear));
-        } catch (InvalidInputException e) {
-            throw new InvalidInputException(e.getMessage());
+            CatalogVersion version = current;
+            result = new SearchResult(findMatchingOrdinals(version, productID,
+                    keywords, startYear, endYear, ProductColumns.ANY_TYPE,
+                    knownElsewhere), productFetcher(version));
+        } finally {
+            lock.readLock().unlock();
         }
+        return result.getPage(0, Math.min(limit, result.size()));
+    }
 
-        for (HashSet<Product> matchingProduct : matchingProducts) {
-            if (matchingProduct != null) {
-                productsCopy.retainAll(matchingProduct);
+    /**
+     * Checks whether a name in the store has a keyword, removed products
+     * included until they are compacted away
+     *
+     * @param keyword to look up
+     * @return true if the keyword is indexed
+     */
+    boolean hasKeyword(String keyword) {
+        lock.readLock().lock();
+        try {
+            return current.hasTerm(keyword);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Parses and plans a query in the query language, or gets the plan of
+     * the same query from the cache of recent plans
+     *
+     * @param query such as harry AND (type:book OR price:&lt;20)
+     * @return plan that can be searched any number of times
+     * @throws estoresearch.InvalidInputException if the query is not valid
+     */
+    public QueryPlan prepare(String query) throws InvalidInputException {
+        QueryPlan plan = plans.get(query);
+        if (plan == null) {
+            plan = QueryPlan.compile(query);
+            plans.put(query, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Performs search with a query in the query language, repeated queries
+     * skip parsing and planning
+     *
+     * @param query such as harry AND (type:book OR price:&lt;20)
+     * @return ordinals of matching products in ordinal order
+     * @throws estoresearch.InvalidInputException if the query is not valid
+     */
+    public SearchResult query(String query) throws InvalidInputException {
+        return search(prepare(query));
+    }
+
+    /**
+     * Performs search with a prepared plan
+     *
+     * @param plan from prepare or QueryPlan.compile
+     * @return ordinals of matching products in ordinal order
+     */
+    public SearchResult search(QueryPlan plan) {
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            return new SearchResult(plan.execute(version),
+                    productFetcher(version));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Performs search lazily, matches are only tested as the stream pulls
+     * them, so limit, findFirst and anyMatch stop the search early and a
+     * parallel stream splits it on ordinal ranges. Only the ID and keyword
+     * lookups run before the stream is returned.
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @return stream of matching products in ordinal order
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public Stream<Product> stream(String productID, String keywords,
+            String startYear, String endYear) throws InvalidInputException {
+        int[] yearRange = parseYearRange(startYear, endYear);
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            ArrayList<OrdinalSet> candidateSets = new ArrayList<>(2);
+            for (OrdinalSet candidates : new OrdinalSet[]{
+                findMatchingIDOrdinals(version, productID),
+                findMatchingKeywordOrdinals(version, keywords,
+                        ProductColumns.ANY_TYPE, NOT_KNOWN_ELSEWHERE)}) {
+                if (candidates != null) {
+                    candidateSets.add(candidates);
+                }
             }
+            IntPredicate residual = yearRange == null ? ordinal -> true
+                    : new QueryNode.YearRange(yearRange[0], yearRange[1])
+                            .predicate(version);
+            return StreamSupport.stream(new SearchSpliterator(version,
+                    intersect(candidateSets), residual, lock.readLock()),
+                    false);
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        return matchingProductsToString(productsCopy);
+    /**
+     * Performs search with a prepared plan lazily, index lookups run before
+     * the stream is returned and column predicates as it pulls matches
+     *
+     * @param plan from prepare or QueryPlan.compile
+     * @return stream of matching products in ordinal order
+     */
+    public Stream<Product> stream(QueryPlan plan) {
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            return StreamSupport.stream(new SearchSpliterator(version,
+                    plan.candidates(version), plan.residual(version),
+                    lock.readLock()), false);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Saves products to output.txt
+     * Aggregates prices and counts of every product grouped by a field, in
+     * one parallel pass over the columns
+     *
+     * @param groupBy field to group by
+     * @return count, priced count, min, max and sum of prices per group
      */
-    public void saveProducts() {
-        PrintWriter outputStream = null;
+    public Aggregation aggregate(GroupBy groupBy) {
+        lock.readLock().lock();
         try {
-            outputStream = new PrintWriter(new FileOutputStream("output.txt"));
-        } catch (FileNotFoundException e) {
-            System.out.println("Error opening output.txt");
-            System.exit(0);
+            return Aggregation.compute(current, groupBy, null);
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        for (Product product : getProducts()) {
-            outputStream.println(product.toString());
+    /**
+     * Aggregates prices and counts of the products matching a query grouped
+     * by a field
+     *
+     * @param groupBy field to group by
+     * @param query in the query language, see QueryParser
+     * @return count, priced count, min, max and sum of prices per group
+     * @throws estoresearch.InvalidInputException if the query is not valid
+     */
+    public Aggregation aggregate(GroupBy groupBy, String query)
+            throws InvalidInputException {
+        QueryPlan plan = prepare(query);
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            return Aggregation.compute(version, groupBy, plan.execute(version)
+                    .toArray());
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        outputStream.close();
+    /**
+     * Performs search and counts matches per year bucket, type, publisher
+     * and maker in the same pass that collects the matching ordinals
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @return ordinals and facet counts of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult facetedSearch(String productID, String keywords,
+            String startYear, String endYear) throws InvalidInputException {
+
+        return facetedSearch(productID, keywords, startYear, endYear, "");
+    }
+
+    /**
+     * Performs search on products of one type and counts matches per year
+     * bucket, type, publisher and maker in the same pass that collects the
+     * matching ordinals
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param type user input, "book", "electronics" or empty for both
+     * @return ordinals and facet counts of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult facetedSearch(String productID, String keywords,
+            String startYear, String endYear, String type)
+            throws InvalidInputException {
+
+        byte productType = parseType(type);
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            OrdinalSet matches = findMatchingOrdinals(version, productID,
+                    keywords, startYear, endYear, productType,
+                    NOT_KNOWN_ELSEWHERE);
+            int[] ordinals = matches.toArray();
+            FacetCounts facets = FacetCounts.count(matches, ordinals,
+                    version.getColumns());
+            return new SearchResult(ordinals, ordinals.length, facets,
+                    productFetcher(version));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Performs search and returns the first matches in a sort order. The
+     * matches are picked by walking a presorted permutation, so the cost
+     * depends on limit rather than on the number of matches.
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param order to sort matches in
+     * @param limit maximum number of matches to return, a page needs
+     * (page + 1) * pageSize
+     * @return the first matches in sort order and the number of matches
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult sortedSearch(String productID, String keywords,
+            String startYear, String endYear, SortOrder order, int limit)
+            throws InvalidInputException {
+
+        return sortedSearch(productID, keywords, startYear, endYear, "", order,
+                limit);
+    }
+
+    /**
+     * Performs search on products of one type and returns the first matches
+     * in a sort order
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param type user input, "book", "electronics" or empty for both
+     * @param order to sort matches in
+     * @param limit maximum number of matches to return, a page needs
+     * (page + 1) * pageSize
+     * @return the first matches in sort order and the number of matches
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult sortedSearch(String productID, String keywords,
+            String startYear, String endYear, String type, SortOrder order,
+            int limit) throws InvalidInputException {
+
+        byte productType = parseType(type);
+        lock.readLock().lock();
+        try {
+            CatalogVersion version = current;
+            OrdinalSet matches = findMatchingOrdinals(version, productID,
+                    keywords, startYear, endYear, productType,
+                    NOT_KNOWN_ELSEWHERE);
+            int matchCount = matches.cardinality();
+            // The permutation walk probes ordinals one at a time
+            return new SearchResult(version.getSortIndex().topMatches(
+                    matches.toBitSet(), matchCount, order, limit), matchCount,
+                    null, productFetcher(version));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets a fetcher pinned to the searched version, so the ordinals of a
+     * result keep pointing at the same products after a new version is
+     * published
+     *
+     * @param version searched
+     * @return fetcher that looks up products by ordinal
+     */
+    private IntFunction<Product> productFetcher(CatalogVersion version) {
+        List<Product> searchedProducts = version.getProducts();
+        return ordinal -> {
+            lock.readLock().lock();
+            try {
+                return searchedProducts.get(ordinal);
+            } finally {
+                lock.readLock().unlock();
+            }
+        };
+    }
+
+    /**
+     * Intersects the ID, keyword and time period matches without tombstoned
+     * ordinals, caller must hold the read lock. With a type only the keyword
+     * postings of the type's partition are read.
+     */
+    private static OrdinalSet findMatchingOrdinals(CatalogVersion version,
+            String productID, String keywords, String startYear,
+            String endYear, byte type, Predicate<String> knownElsewhere)
+            throws InvalidInputException {
+
+        ArrayList<OrdinalSet> predicates = new ArrayList<>(4);
+        for (OrdinalSet predicate : new OrdinalSet[]{
+            findMatchingIDOrdinals(version, productID),
+            findMatchingKeywordOrdinals(version, keywords, type,
+                    knownElsewhere),
+            findMatchingTimePeriodOrdinals(version, startYear, endYear),
+            type == ProductColumns.ANY_TYPE ? null
+                    : version.getPartition(type).getMembers()}) {
+            if (predicate != null) {
+                predicates.add(predicate);
+            }
+        }
+
+        OrdinalSet matchingOrdinals = intersect(predicates);
+        if (matchingOrdinals == null) {
+            matchingOrdinals = OrdinalSet.range(version.size());
+        }
+        BitSet tombstones = version.getTombstones();
+        return tombstones.isEmpty() ? matchingOrdinals
+                : matchingOrdinals.andNot(OrdinalSet.fromBitSet(tombstones));
+    }
+
+    /**
+     * Intersects sets from the smallest up, so every step is bounded by the
+     * smallest set and can stop once the intersection is empty
+     *
+     * @param sets to intersect, reordered
+     * @return the intersection, or null if there are no sets
+     */
+    static OrdinalSet intersect(List<OrdinalSet> sets) {
+        if (sets.isEmpty()) {
+            return null;
+        }
+
+        sets.sort((a, b) -> Integer.compare(a.cardinality(),
+                b.cardinality()));
+        OrdinalSet intersection = sets.get(0);
+        for (int i = 1; i < sets.size() && !intersection.isEmpty(); i++) {
+            intersection = intersection.and(sets.get(i));
+        }
+        return intersection;
+    }
+
+    /**
+     * Starts saving changed products to output.txt in the background
+     *
+     * @param intervalSeconds between saves
+     */
+    public void startAutoSave(long intervalSeconds) {
+        flusher.start(intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tells a listener about saves to output.txt that fail in the
+     * background, instead of printing them
+     *
+     * @param listener called on the saving thread with the error
+     */
+    public void setSaveErrorListener(Consumer<IOException> listener) {
+        flusher.setErrorListener(listener);
+    }
+
+    /**
+     * Saves the changes made since the last save to output.txt, see
+     * CatalogFlusher
+     *
+     * @throws IOException if the changes could not be saved
+     */
+    public void saveProducts() throws IOException {
+        flusher.flush();
+    }
+
+    /**
+     * Writes products to output.txt
+     *
+     * @param productsToWrite in the order they are written
+     */
+    static void writeProducts(List<Product> productsToWrite) {
+        try {
+            new ExportEngine(CatalogFormat.TEXT, false).export(productsToWrite,
+                    Paths.get(OUTPUT_FILE));
+        } catch (IOException e) {
+            System.out.println("Error saving " + OUTPUT_FILE);
+        }
+    }
+
+    /**
+     * Exports a snapshot of the live products to a file
+     *
+     * @param file to replace
+     * @param format of the file
+     * @param gzip true to gzip compress the file
+     * @return number of bytes written before compression
+     * @throws IOException if the file could not be written
+     */
+    public long exportProducts(Path file, CatalogFormat format, boolean gzip)
+            throws IOException {
+        return new ExportEngine(format, gzip).export(getProducts(), file);
     }
 
     /**
@@ -420,7 +1463,7 @@ public class EStoreSearch {
      * @param line of text
      * @return attribute or newline
      */
-    private String getAttribute(String line) {
+    static String getAttribute(String line) {
         String[] lineTokens = line.split(" *=");
         if (lineTokens.length > 1) {
             return lineTokens[0];
@@ -435,7 +1478,7 @@ public class EStoreSearch {
      * @param line of text
      * @return value string
      */
-    private String getValue(String line) {
+    static String getValue(String line) {
         String[] lineTokens = line.split("(?<!\\\\)\"");
         if (lineTokens.length == 2) {
             return lineTokens[1];
@@ -445,78 +1488,118 @@ public class EStoreSearch {
     }
 
     /**
-     * Loads products from file in the form of attribute = "value" where
-     * products are separated by a blank line
+     * Adds already validated products to the current version under one
+     * write lock, so searches see the whole batch or none of it. Large
+     * imports go through beginBulkLoad instead.
      *
-     * @param filename for file filled with products
+     * @param batch of products to add in order
+     * @return products that were not added because their ID already exists
      */
-    public void loadProducts(String filename) {
-        Scanner fileInput = null;
-        String type = "", productID = "", name = "", authors = "",
-                publisher = "", maker = "";
-        double price = Product.NO_PRICE;
-        int year = 0;
+    @Override
+    public List<Product> addProducts(List<Product> batch) {
+        ArrayList<Product> rejected = new ArrayList<>();
 
+        lock.writeLock().lock();
         try {
-            fileInput = new Scanner(new FileInputStream(filename));
-        } catch (FileNotFoundException e) {
-            System.out.println(filename + " was not found.");
-            return;
+            for (Product product : batch) {
+                if (idExists(product.getId())) {
+                    rejected.add(product);
+                } else {
+                    logChange(log -> log.added(product));
+                    appendProduct(product);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+        return rejected;
+    }
+
+    /**
+     * Loads products from file, the format is chosen by file extension and
+     * defaults to attribute = "value" lines with products separated by a
+     * blank line. Invalid records are reported and skipped. Searches see
+     * either none or all of the loaded products.
+     *
+     * @param filename for file filled with products
+     * @return report of the import, or null if the file could not be read
+     */
+    public ImportReport loadProducts(String filename) {
+        return loadProducts(filename, new ImportReport());
+    }
 
-        while (fileInput.hasNextLine()) {
-            String line = fileInput.nextLine();
-            String attribute = getAttribute(line);
-            String value = getValue(line);
+    /**
+     * Loads products from file, filling in a report that other threads can
+     * watch for progress. The products are loaded into a new version that is
+     * published once the whole file is read, nothing is published if the
+     * file could not be read. Loading output.txt also replays the changes
+     * saved to its journal since it was last written.
+     *
+     * @param filename for file filled with products
+     * @param report to fill in
+     * @return the report, or null if the file could not be read
+     */
+    public ImportReport loadProducts(String filename, ImportReport report) {
+        BulkLoad load = beginBulkLoad();
+        ImportReport loaded = null;
+        try {
+            loaded = loadProducts(filename, load, report);
+        } finally {
+            if (loaded != null) {
+                load.publish();
+            } else {
+                load.abandon();
+            }
+        }
 
+        if (loaded != null) {
             try {
-                if (attribute.equals("type")) {
-                    type = value;
-                } else if (attribute.equals("productID")) {
-                    productID = value;
-                } else if (attribute.equals("name")) {
-                    name = value;
-                } else if (attribute.equals("price")) {
-                    price = parsePrice(value);
-                } else if (attribute.equals("year")) {
-                    year = parseYear(value);
-                } else if (attribute.equals("authors")) {
-                    authors = value;
-                } else if (attribute.equals("publisher")) {
-                    publisher = value;
-                } else if (attribute.equals("maker")) {
-                    maker = value;
-                } else if (attribute.equals("\n") || !fileInput.hasNextLine()) {
-                    Product product;
-
-                    if (idExists(productID)) {
-                        throw new InvalidInputException(DUPLICATE_ID);
-                    } else if (type.equals("book")) {
-                        product = new Book(productID, name, year, price,
-                                authors, publisher);
-                        getProducts().add(product);
-                        addKeywordsToHashMap(product);
-                    } else if (type.equals("electronics")) {
-                        product = new Electronic(productID, name, year, price,
-                                maker);
-                        getProducts().add(product);
-                        addKeywordsToHashMap(product);
-                    }
-
-                    type = productID = name = authors = publisher = maker = "";
-                    price = Product.NO_PRICE;
-                    year = 0;
-                } else {
-                    System.out.println("Invalid input from file");
-                    System.exit(0);
-                }
-            } catch (InvalidInputException e) {
-                System.out.println(e.getMessage());
-                type = productID = name = authors = publisher = maker = "";
-                price = Product.NO_PRICE;
-                year = 0;
+                flusher.replayJournal(Paths.get(filename));
+            } catch (IOException e) {
+                System.out.println("Error replaying the journal of "
+                        + filename + ": " + e.getMessage());
             }
         }
-        fileInput.close();
+        return loaded;
+    }
+
+    /**
+     * Loads products from file into a store and prints rejected records
+     *
+     * @param filename for file filled with products
+     * @param sink store to load into
+     * @return report of the import, or null if the file could not be read
+     */
+    static ImportReport loadProducts(String filename, ProductSink sink) {
+        return loadProducts(filename, sink, new ImportReport());
+    }
+
+    /**
+     * Loads products from file into a store, filling in a report that other
+     * threads can watch for progress, and prints rejected records
+     *
+     * @param filename for file filled with products
+     * @param sink store to load into
+     * @param report to fill in
+     * @return the report, or null if the file could not be read
+     */
+    static ImportReport loadProducts(String filename, ProductSink sink,
+            ImportReport report) {
+        try {
+            new ImportPipeline(CatalogFormat.fromFilename(filename))
+                    .importFile(Paths.get(filename), sink, report);
+        } catch (NoSuchFileException e) {
+            System.out.println(filename + " was not found.");
+            return null;
+        } catch (IOException e) {
+            System.out.println("Error reading " + filename + ": "
+                    + e.getMessage());
+            return null;
+        }
+
+        for (ImportReport.ImportError error : report.getErrors()) {
+            System.out.println(error);
+        }
+        return report;
     }
 }
@@ -2,6 +2,12 @@ package estoresearch;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 
@@ -16,12 +22,36 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
 
     private JPanel cards, authorsPane, publisherPane, makerPane, messages,
             searchResults;
-    private JTextArea messagesDisplay, searchResultsDisplay;
+    private JTextArea messagesDisplay;
+
+    private JLabel searchResultsLabel;
+    private final SearchResultTableModel searchResultsModel
+            = new SearchResultTableModel();
 
     private JTextField productID, name, price, year, authors, publisher, maker,
             productIDSearch, keywordsSearch, startYearSearch, endYearSearch;
 
+    private JComboBox<String> typeSearch;
+    private JComboBox<SortOrder> sortOrderSearch;
+
     private JButton addButton, searchButton, resetAddButton, resetSearchButton;
+
+    private JMenuItem addMenuItem, searchMenuItem;
+
+    private JPanel loadPane;
+    private JProgressBar loadProgress;
+    private JLabel loadStatus;
+
+    // Add and Search cards are built the first time they are shown
+    private final HashSet<String> builtCards = new HashSet<>();
+
+    private volatile boolean loading;
+    private boolean quitting;
+
+    // Counted down for the startup benchmark
+    final CountDownLatch contentsBuilt = new CountDownLatch(1);
+    final CountDownLatch windowShown = new CountDownLatch(1);
+    final CountDownLatch catalogLoaded = new CountDownLatch(1);
     
     public static final int LINES = 10;
     public static final int CHARS_PER_LINE = 40;
@@ -37,8 +67,12 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
     public static final String SEARCH = "Search";
     public static final String QUIT = "Quit";
     
+    public static final long AUTO_SAVE_SECONDS = 30;
+    public static final int PROGRESS_INTERVAL_MILLIS = 100;
+
     public static final String BOOK = "Book";
     public static final String ELECTRONIC = "Electronic";
+    public static final String ANY_TYPE = "Any";
     
     private String productType = BOOK;
 
@@ -52,13 +86,83 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
         String menuItemName = (String) e.getActionCommand();
 
         if (menuItemName.equals(QUIT)) {
-            eStoreSearch.saveProducts();
-            System.exit(0);
+            quit();
+            return;
         }
 
+        if (builtCards.add(menuItemName)) {
+            cards.add(menuItemName.equals(ADD) ? createAddCard()
+                    : createSearchCard(), menuItemName);
+            // Grow the window to fit the new card
+            SwingUtilities.getWindowAncestor(cards).pack();
+        }
         CardLayout cardLayout = (CardLayout) (cards.getLayout());
         cardLayout.show(cards, menuItemName);
     }
+
+    /**
+     * Saves products off the event thread and exits, a partly loaded catalog
+     * is not saved so it cannot replace the full one. If the save fails the
+     * user can quit without saving or go back.
+     */
+    private void quit() {
+        if (loading) {
+            System.exit(0);
+        }
+        if (quitting) {
+            return;
+        }
+        quitting = true;
+
+        JFrame frame = (JFrame) SwingUtilities.getWindowAncestor(cards);
+        frame.setEnabled(false);
+        showStatus("Saving " + EStoreSearch.OUTPUT_FILE + "...");
+
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                eStoreSearch.saveProducts();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    System.exit(0);
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    int choice = JOptionPane.showConfirmDialog(frame,
+                            "Could not save " + EStoreSearch.OUTPUT_FILE
+                            + ": " + cause.getMessage()
+                            + "\nQuit without saving?", QUIT,
+                            JOptionPane.YES_NO_OPTION,
+                            JOptionPane.ERROR_MESSAGE);
+                    if (choice == JOptionPane.YES_OPTION) {
+                        System.exit(0);
+                    }
+                    showStatus("Could not save " + EStoreSearch.OUTPUT_FILE
+                            + ": " + cause.getMessage());
+                    frame.setEnabled(true);
+                    quitting = false;
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows a line of status below the cards
+     *
+     * @param text to show
+     */
+    private void showStatus(String text) {
+        loadStatus.setText(text);
+        if (!loadPane.isVisible()) {
+            loadProgress.setVisible(false);
+            loadPane.setVisible(true);
+            SwingUtilities.getWindowAncestor(loadPane).pack();
+        }
+    }
     
     /**
      * Makes Book or Electronic fields visible or not depending of combo box
@@ -87,11 +191,13 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
      * 
      * @param menu to be added to
      * @param text to add the to menu item
+     * @return the menu item
      */
-    private void addMenuItem(JMenu menu, String text) {
+    private JMenuItem addMenuItem(JMenu menu, String text) {
         JMenuItem menuItem = new JMenuItem(text);
         menuItem.addActionListener(this);
         menu.add(menuItem);
+        return menuItem;
     }
 
     /**
@@ -104,8 +210,8 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
         
         JMenu menu = new JMenu("Commands");
 
-        addMenuItem(menu, ADD);
-        addMenuItem(menu, SEARCH);
+        addMenuItem = addMenuItem(menu, ADD);
+        searchMenuItem = addMenuItem(menu, SEARCH);
         addMenuItem(menu, QUIT);
 
         menuBar.add(menu);
@@ -318,6 +424,8 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
         keywordsSearch.setText("");
         startYearSearch.setText("");
         endYearSearch.setText("");
+        typeSearch.setSelectedIndex(0);
+        sortOrderSearch.setSelectedIndex(0);
     }
 
     /**
@@ -325,15 +433,37 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
      */
     private void performSearch() {
         try {
-            String matchingProducts = eStoreSearch.executeSearch(
+            // Only ordinals are sorted, the table fetches the rows it paints
+            SearchResult matchingProducts = eStoreSearch.sortedSearch(
                     productIDSearch.getText(), keywordsSearch.getText(),
-                    startYearSearch.getText(), endYearSearch.getText());
-            searchResultsDisplay.setText(matchingProducts);
+                    startYearSearch.getText(), endYearSearch.getText(),
+                    getSearchedType(),
+                    (SortOrder) sortOrderSearch.getSelectedItem(),
+                    EStoreSearch.NO_LIMIT);
+            searchResultsModel.setResult(matchingProducts);
+            searchResultsLabel.setText("Search results: "
+                    + matchingProducts.getMatchCount() + " matches");
         } catch (InvalidInputException e) {
-            searchResultsDisplay.setText(e.getMessage());
+            searchResultsModel.setResult(null);
+            searchResultsLabel.setText(e.getMessage());
         }
     }
     
+    /**
+     * Get the type filter of the search from the type combo box
+     *
+     * @return "book", "electronics" or empty for any type
+     */
+    private String getSearchedType() {
+        Object type = typeSearch.getSelectedItem();
+        if (BOOK.equals(type)) {
+            return "book";
+        } else if (ELECTRONIC.equals(type)) {
+            return "electronics";
+        }
+        return "";
+    }
+
     /**
      * Create a panel used for inputing search terms
      * 
@@ -348,6 +478,22 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
         startYearSearch = addLabelledTextField(searchInputPane, "Start year: ");
         endYearSearch = addLabelledTextField(searchInputPane, "End year: ");
 
+        JPanel typePane = new JPanel();
+        styleLabelledTextField(typePane);
+        typeSearch = new JComboBox<>(new String[]{ANY_TYPE, BOOK, ELECTRONIC});
+        typeSearch.setEditable(false);
+        typePane.add(new JLabel("   Type: "), BorderLayout.LINE_START);
+        typePane.add(typeSearch, BorderLayout.LINE_END);
+        searchInputPane.add(typePane);
+
+        JPanel sortOrderPane = new JPanel();
+        styleLabelledTextField(sortOrderPane);
+        sortOrderSearch = new JComboBox<>(SortOrder.values());
+        sortOrderSearch.setEditable(false);
+        sortOrderPane.add(new JLabel("   Sort by: "), BorderLayout.LINE_START);
+        sortOrderPane.add(sortOrderSearch, BorderLayout.LINE_END);
+        searchInputPane.add(sortOrderPane);
+
         return searchInputPane;
     }
 
@@ -382,12 +528,17 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
         searchResults = new JPanel();
         searchResults.setLayout(new BoxLayout(searchResults, BoxLayout.Y_AXIS));
         
-        searchResultsDisplay = new JTextArea(LINES, CHARS_PER_LINE);
-        searchResultsDisplay.setEditable(false);
-
-        JLabel searchResultsLabel = new JLabel("Search results");
+        // Rows have a fixed height, so the table only asks for visible rows
+        JTable searchResultsTable = new JTable(searchResultsModel);
+        searchResultsTable.setFillsViewportHeight(true);
+        searchResultsTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        searchResultsTable.setPreferredScrollableViewportSize(new Dimension(
+                searchResultsTable.getPreferredScrollableViewportSize().width,
+                LINES * searchResultsTable.getRowHeight()));
+
+        searchResultsLabel = new JLabel("Search results");
         searchResultsLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        JScrollPane scrollPane = new JScrollPane(searchResultsDisplay);
+        JScrollPane scrollPane = new JScrollPane(searchResultsTable);
         scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
         scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
         scrollPane.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -423,50 +574,191 @@ public class EStoreSearchGUI implements ActionListener, ItemListener {
         cards = new JPanel(new CardLayout());
         cards.setBorder(new EmptyBorder(BORDER_SIZE));
         
-        // Add cards that correspond to menu items
+        // Cards that correspond to menu items are added when first shown
         cards.add(createWelcomeCard());
-        cards.add(createAddCard(), ADD);
-        cards.add(createSearchCard(), SEARCH);
 
         return cards;
     }
 
+    /**
+     * Create a panel showing the progress of loading the catalog, hidden
+     * until a load starts
+     *
+     * @return panel showing load progress
+     */
+    private JPanel createLoadPane() {
+        loadPane = new JPanel(new BorderLayout(HGAP, VGAP));
+        loadPane.setBorder(new EmptyBorder(BORDER_SIZE));
+
+        loadProgress = new JProgressBar();
+        loadProgress.setStringPainted(true);
+        loadStatus = new JLabel(" ");
+
+        loadPane.add(loadProgress, BorderLayout.CENTER);
+        loadPane.add(loadStatus, BorderLayout.PAGE_END);
+        loadPane.setVisible(false);
+
+        return loadPane;
+    }
+
+    /**
+     * Loads the catalog in the background, with Add and Search disabled and
+     * the progress shown until it is ready. Auto save starts once the
+     * catalog is loaded.
+     *
+     * @param filename of the catalog, or null to start with an empty store
+     */
+    private void loadCatalog(String filename) {
+        if (filename == null) {
+            eStoreSearch.startAutoSave(AUTO_SAVE_SECONDS);
+            catalogLoaded.countDown();
+            return;
+        }
+
+        long fileSize;
+        try {
+            fileSize = Files.size(Paths.get(filename));
+        } catch (IOException e) {
+            fileSize = -1;
+        }
+        final long totalBytes = fileSize;
+
+        loading = true;
+        addMenuItem.setEnabled(false);
+        searchMenuItem.setEnabled(false);
+        loadProgress.setIndeterminate(totalBytes <= 0);
+        loadProgress.setVisible(true);
+        loadPane.setVisible(true);
+
+        ImportReport report = new ImportReport();
+        Timer progressTimer = new Timer(PROGRESS_INTERVAL_MILLIS,
+                e -> showLoadProgress(filename, report, totalBytes));
+        progressTimer.start();
+
+        new SwingWorker<ImportReport, Void>() {
+            @Override
+            protected ImportReport doInBackground() {
+                return eStoreSearch.loadProducts(filename, report);
+            }
+
+            @Override
+            protected void done() {
+                progressTimer.stop();
+                loading = false;
+                addMenuItem.setEnabled(true);
+                searchMenuItem.setEnabled(true);
+
+                loadProgress.setIndeterminate(false);
+                loadProgress.setValue(loadProgress.getMaximum());
+                ImportReport loaded = null;
+                try {
+                    loaded = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    loaded = null;
+                }
+                loadStatus.setText(loaded == null
+                        ? "Could not load " + filename
+                        : "Loaded " + filename + ": " + loaded);
+                eStoreSearch.startAutoSave(AUTO_SAVE_SECONDS);
+                catalogLoaded.countDown();
+            }
+        }.execute();
+    }
+
+    /**
+     * Updates the progress bar from a report being filled in
+     */
+    private void showLoadProgress(String filename, ImportReport report,
+            long totalBytes) {
+        long bytesRead = report.getBytesRead();
+        if (totalBytes > 0) {
+            int percent = (int) Math.min(100, bytesRead * 100 / totalBytes);
+            loadProgress.setValue(percent);
+        }
+        loadStatus.setText("Loading " + filename + ": "
+                + bytesRead / 1024 + " of " + Math.max(totalBytes, 0) / 1024
+                + " KB read, " + report.getProductsImported()
+                + " products indexed, " + report.getErrorCount() + " errors");
+    }
+
     /**
      * Create window and show it
+     *
+     * @param showWindow false to build only the contents of the window, for
+     * timing startup without a display
      */
-    private void createAndShowGUI() {
+    private void createAndShowGUI(boolean showWindow) {
+        JMenuBar menuBar = createMenuBar();
+        createCards();
+        createLoadPane();
+
+        // Background saves are not otherwise seen
+        eStoreSearch.setSaveErrorListener(e -> SwingUtilities.invokeLater(
+                () -> showStatus(e.getMessage())));
+        contentsBuilt.countDown();
+        if (!showWindow) {
+            return;
+        }
+
         JFrame frame = new JFrame("eStore");
         frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         frame.setLayout(new BorderLayout(HGAP, VGAP));
         
         // Save products before exiting
         frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                windowShown.countDown();
+            }
+
             @Override
             public void windowClosing(WindowEvent e) {
-                eStoreSearch.saveProducts();
-                System.exit(0);
+                quit();
             }
         });
 
-        frame.add(createMenuBar(), BorderLayout.PAGE_START);
-        frame.add(createCards(), BorderLayout.CENTER);
+        frame.add(menuBar, BorderLayout.PAGE_START);
+        frame.add(cards, BorderLayout.CENTER);
+        frame.add(loadPane, BorderLayout.PAGE_END);
 
         frame.pack();
         frame.setVisible(true);
     }
 
+    /**
+     * Shows the window at once and loads the catalog behind it
+     *
+     * @param filename of the catalog, or null to start with an empty store
+     * @return the GUI
+     */
+    static EStoreSearchGUI start(String filename) {
+        return start(filename, true);
+    }
+
+    /**
+     * Builds the window at once and loads the catalog behind it
+     *
+     * @param filename of the catalog, or null to start with an empty store
+     * @param showWindow false to build only the contents of the window, for
+     * timing startup without a display
+     * @return the GUI
+     */
+    static EStoreSearchGUI start(String filename, boolean showWindow) {
+        EStoreSearchGUI gui = new EStoreSearchGUI();
+
+        SwingUtilities.invokeLater(() -> {
+            gui.createAndShowGUI(showWindow);
+            gui.loadCatalog(filename);
+        });
+        return gui;
+    }
+
     /**
      * Check for command line arguments and start the GUI
      * 
      * @param args command line arguments
      */
     public static void main(String[] args) {
-        EStoreSearchGUI gui = new EStoreSearchGUI();
-        
-        if (args.length == 1) {
-            gui.eStoreSearch.loadProducts(args[0]);
-        }
-        
-        javax.swing.SwingUtilities.invokeLater(() -> gui.createAndShowGUI());
+        start(args.length == 1 ? args[0] : null);
     }
 }
@@ -101,12 +101,12 @@ public class Electronic extends Product {
      */
     @Override
     public boolean equals(Object otherObject) {
-        if (otherObject == null || getClass() != otherObject.getClass()) {
+        if (!(otherObject instanceof Electronic)) {
             return false;
         } else {
             Electronic otherElectronic = (Electronic) otherObject;
             return super.equals(otherElectronic)
-                    && maker.equals(otherElectronic.maker);
+                    && getMaker().equals(otherElectronic.getMaker());
         }
     }
 
@@ -119,7 +119,7 @@ public class Electronic extends Product {
     public String toString() {
         return "type = \"electronics\"\n"
                 + super.toString()
-                + "maker = \"" + maker + "\"\n";
+                + "maker = \"" + getMaker() + "\"\n";
     }
 
     /**
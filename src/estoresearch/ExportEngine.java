@@ -0,0 +1,404 @@
+package estoresearch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports products by formatting chunks of them in parallel into reusable
+ * byte buffers and writing the buffers in order through a FileChannel,
+ * optionally gzip compressed. Only a bounded window of chunks is in flight,
+ * so memory stays bounded however large the catalog is. The file is written
+ * to a temporary sibling and renamed over the target once it is complete.
+ *
+ * <p>
+ * TEXT output is Product.toString of every product followed by a line
+ * separator, the only place the text catalog format is written, and what
+ * saveProducts writes through this class.
+ *
+ * @author Courtney Bodi
+ */
+public class ExportEngine {
+
+    /**
+     * Products formatted by one task
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Bytes the gzip stream buffers before writing to the channel
+     */
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+    private static final int DECIMAL_PLACES = 2;
+
+    private static final AtomicInteger EXPORTS = new AtomicInteger();
+
+    private final CatalogFormat format;
+    private final boolean gzip;
+    private final int workers;
+
+    /**
+     * Reusable buffers of one chunk, only touched by one thread at a time
+     */
+    private static final class Chunk {
+
+        private final StringBuilder text = new StringBuilder();
+        private final CharsetEncoder encoder;
+        private ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+
+        private Chunk(Charset charset) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    /**
+     * ExportEngine constructor with one format worker per core
+     *
+     * @param format of the exported file
+     * @param gzip true to gzip compress the exported file
+     */
+    public ExportEngine(CatalogFormat format, boolean gzip) {
+        this(format, gzip, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * ExportEngine constructor with all members
+     *
+     * @param format of the exported file
+     * @param gzip true to gzip compress the exported file
+     * @param workers number of format threads, at least 1
+     */
+    public ExportEngine(CatalogFormat format, boolean gzip, int workers) {
+        this.format = format;
+        this.gzip = gzip;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Exports products to a file, replacing it
+     *
+     * @param products in the order they are written, not modified while the
+     * export runs
+     * @param file to replace
+     * @return number of bytes written before compression
+     * @throws IOException if the file could not be written
+     */
+    public long export(List<Product> products, Path file) throws IOException {
+        Path temporary = CatalogFlusher.temporaryFor(file);
+        boolean exported = false;
+        try {
+            long written = writeFormatted(products, temporary);
+            CatalogFlusher.replace(temporary, file);
+            exported = true;
+            return written;
+        } finally {
+            if (!exported) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Formats products in parallel and writes them to a file in order
+     *
+     * @return number of bytes written before compression
+     */
+    private long writeFormatted(List<Product> products, Path temporary)
+            throws IOException {
+        int exportNumber = EXPORTS.incrementAndGet();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "estore-export-" + exportNumber
+                    + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long written = 0;
+
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            GZIPOutputStream compressed = gzip ? new GZIPOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel),
+                            GZIP_BUFFER_SIZE), GZIP_BUFFER_SIZE) : null;
+            Charset charset = format == CatalogFormat.TEXT
+                    ? Charset.defaultCharset() : StandardCharsets.UTF_8;
+            ArrayDeque<Chunk> freeChunks = new ArrayDeque<>();
+            ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            int window = 2 * workers;
+
+            if (format == CatalogFormat.CSV) {
+                Chunk header = new Chunk(charset);
+                header.text.append(String.join(",", CatalogFormat.ATTRIBUTES))
+                        .append(System.lineSeparator());
+                encode(header);
+                written += write(header.bytes, channel, compressed);
+                freeChunks.add(header);
+            }
+
+            for (int start = 0; start < products.size(); start += CHUNK_SIZE) {
+                if (inFlight.size() == window) {
+                    Chunk chunk = await(inFlight.poll());
+                    written += write(chunk.bytes, channel, compressed);
+                    freeChunks.add(chunk);
+                }
+
+                Chunk chunk = freeChunks.isEmpty() ? new Chunk(charset)
+                        : freeChunks.poll();
+                List<Product> slice = products.subList(start, Math.min(
+                        start + CHUNK_SIZE, products.size()));
+                inFlight.add(pool.submit(() -> format(slice, chunk)));
+            }
+
+            while (!inFlight.isEmpty()) {
+                written += write(await(inFlight.poll()).bytes, channel,
+                        compressed);
+            }
+
+            if (compressed != null) {
+                // Closing the stream would close the channel before the sync
+                compressed.finish();
+                compressed.flush();
+            }
+            channel.force(true);
+        } finally {
+            pool.shutdownNow();
+        }
+        return written;
+    }
+
+    /**
+     * Formats a slice of products into the byte buffer of a chunk
+     */
+    private Chunk format(List<Product> slice, Chunk chunk) {
+        StringBuilder text = chunk.text;
+        text.setLength(0);
+        for (Product product : slice) {
+            switch (format) {
+                case CSV:
+                    appendCsv(text, product);
+                    break;
+                case JSON_LINES:
+                    appendJson(text, product);
+                    break;
+                default:
+                    appendText(text, product);
+                    break;
+            }
+        }
+        encode(chunk);
+        return chunk;
+    }
+
+    /**
+     * Encodes the text of a chunk into its byte buffer, growing the buffer if
+     * the text does not fit
+     */
+    private static void encode(Chunk chunk) {
+        int needed = (int) Math.ceil(chunk.text.length()
+                * (double) chunk.encoder.maxBytesPerChar());
+        if (chunk.bytes.capacity() < needed) {
+            chunk.bytes = ByteBuffer.allocate(Math.max(needed,
+                    chunk.bytes.capacity() * 2));
+        }
+
+        chunk.bytes.clear();
+        chunk.encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(chunk.text);
+        CoderResult result = chunk.encoder.encode(chars, chunk.bytes, true);
+        if (result.isUnderflow()) {
+            result = chunk.encoder.flush(chunk.bytes);
+        }
+        if (!result.isUnderflow()) {
+            // maxBytesPerChar bounds the output, so this is a programming error
+            throw new IllegalStateException("Export buffer overflow");
+        }
+        chunk.bytes.flip();
+    }
+
+    /**
+     * Writes a formatted chunk to the file
+     *
+     * @return number of bytes written before compression
+     */
+    private static int write(ByteBuffer bytes, FileChannel channel,
+            GZIPOutputStream compressed) throws IOException {
+        int length = bytes.remaining();
+        if (compressed != null) {
+            compressed.write(bytes.array(), bytes.arrayOffset()
+                    + bytes.position(), length);
+        } else {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Waits for a chunk to be formatted
+     */
+    private static Chunk await(Future<Chunk> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Export failed", e.getCause());
+        }
+    }
+
+    /**
+     * Appends a product as Product.toString formats it, followed by the blank
+     * line separating products
+     */
+    static void appendText(StringBuilder text, Product product) {
+        text.append(product).append(System.lineSeparator());
+    }
+
+    /**
+     * Appends a product as a CSV row in the order of CatalogFormat.ATTRIBUTES
+     */
+    static void appendCsv(StringBuilder text, Product product) {
+        boolean book = product instanceof Book;
+        text.append(book ? "book" : "electronics").append(',');
+        appendCsvValue(text, product.getId());
+        text.append(',');
+        appendCsvValue(text, product.getName());
+        text.append(',');
+        if (product.getPrice() != Product.NO_PRICE) {
+            appendPrice(text, product.getPrice());
+        }
+        text.append(',').append(product.getYear()).append(',');
+        if (book) {
+            appendCsvValue(text, ((Book) product).getAuthor());
+            text.append(',');
+            appendCsvValue(text, ((Book) product).getPublisher());
+            text.append(',');
+        } else {
+            text.append(",,");
+            appendCsvValue(text, ((Electronic) product).getMaker());
+        }
+        text.append(System.lineSeparator());
+    }
+
+    /**
+     * Appends a price with the two decimal places parsePrice expects
+     */
+    private static void appendPrice(StringBuilder text, double price) {
+        text.append(BigDecimal.valueOf(price).setScale(DECIMAL_PLACES,
+                RoundingMode.HALF_UP).toPlainString());
+    }
+
+    /**
+     * Appends a CSV value, quoted if it holds a comma, quote or line break
+     */
+    private static void appendCsvValue(StringBuilder text, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quote) {
+            text.append(value);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                text.append('"');
+            }
+            text.append(c);
+        }
+        text.append('"');
+    }
+
+    /**
+     * Appends a product as one flat JSON object
+     */
+    static void appendJson(StringBuilder text, Product product) {
+        boolean book = product instanceof Book;
+        text.append("{\"type\":\"").append(book ? "book" : "electronics")
+                .append("\",\"productID\":");
+        appendJsonString(text, product.getId());
+        text.append(",\"name\":");
+        appendJsonString(text, product.getName());
+        if (product.getPrice() != Product.NO_PRICE) {
+            text.append(",\"price\":");
+            appendPrice(text, product.getPrice());
+        }
+        text.append(",\"year\":").append(product.getYear());
+        if (book) {
+            text.append(",\"authors\":");
+            appendJsonString(text, ((Book) product).getAuthor());
+            text.append(",\"publisher\":");
+            appendJsonString(text, ((Book) product).getPublisher());
+        } else {
+            text.append(",\"maker\":");
+            appendJsonString(text, ((Electronic) product).getMaker());
+        }
+        text.append('}').append(System.lineSeparator());
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string
+     */
+    private static void appendJsonString(StringBuilder text, String value) {
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    text.append("\\\"");
+                    break;
+                case '\\':
+                    text.append("\\\\");
+                    break;
+                case '\n':
+                    text.append("\\n");
+                    break;
+                case '\r':
+                    text.append("\\r");
+                    break;
+                case '\t':
+                    text.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        text.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        text.append(c);
+                    }
+                    break;
+            }
+        }
+        text.append('"');
+    }
+}
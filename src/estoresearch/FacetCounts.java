@@ -0,0 +1,315 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Counts of search matches per year bucket, type, publisher and maker
+ *
+ * @author Courtney Bodi
+ */
+public class FacetCounts {
+
+    /**
+     * Number of years in a year bucket, buckets start at multiples of it
+     */
+    public static final int YEAR_BUCKET_SIZE = 10;
+
+    private final int bookCount;
+    private final int electronicCount;
+    private final Map<Integer, Integer> yearBucketCounts;
+    private final Map<String, Integer> publisherCounts;
+    private final Map<String, Integer> makerCounts;
+
+    /**
+     * FacetCounts constructor with all members
+     */
+    private FacetCounts(int bookCount, int electronicCount,
+            Map<Integer, Integer> yearBucketCounts,
+            Map<String, Integer> publisherCounts,
+            Map<String, Integer> makerCounts) {
+        this.bookCount = bookCount;
+        this.electronicCount = electronicCount;
+        this.yearBucketCounts = Collections.unmodifiableMap(yearBucketCounts);
+        this.publisherCounts = Collections.unmodifiableMap(publisherCounts);
+        this.makerCounts = Collections.unmodifiableMap(makerCounts);
+    }
+
+    /**
+     * Counts facets of the matches in one pass over their ordinals. When
+     * most of the catalog matches, the ordinals left out are counted instead
+     * and taken off the totals the columns keep, so the pass is over
+     * whichever side is smaller.
+     *
+     * @param matches set of the matching ordinals
+     * @param ordinals of the matches
+     * @param columns of the searched products
+     * @return facet counts of the matches
+     */
+    static FacetCounts count(OrdinalSet matches, int[] ordinals,
+            ProductColumns columns) {
+        int[] yearTypeCounts = new int[columns.getYearTypeTotals().length];
+        int[] ownerCounts = new int[Math.max(columns.getPublisherDictionary()
+                .size(), columns.getMakerDictionary().size())
+                * ProductColumns.TYPE_COUNT];
+
+        if (ordinals.length <= columns.size() / 2) {
+            tally(ordinals, columns, yearTypeCounts, ownerCounts);
+        } else {
+            tally(OrdinalSet.range(columns.size()).andNot(matches).toArray(),
+                    columns, yearTypeCounts, ownerCounts);
+            int[] yearTypeTotals = columns.getYearTypeTotals();
+            for (int i = 0; i < yearTypeCounts.length; i++) {
+                yearTypeCounts[i] = yearTypeTotals[i] - yearTypeCounts[i];
+            }
+            IntList ownerTotals = columns.getOwnerTotals();
+            for (int i = 0; i < ownerTotals.size(); i++) {
+                ownerCounts[i] = ownerTotals.get(i) - ownerCounts[i];
+            }
+        }
+
+        int[] typeCounts = new int[ProductColumns.TYPE_COUNT];
+        int[] bucketCounts = new int[Product.MAX_YEAR / YEAR_BUCKET_SIZE + 1];
+        for (int yearType = 0; yearType < yearTypeCounts.length;
+                yearType++) {
+            typeCounts[yearType & 1] += yearTypeCounts[yearType];
+            bucketCounts[(yearType >>> 1) / YEAR_BUCKET_SIZE]
+                    += yearTypeCounts[yearType];
+        }
+
+        LinkedHashMap<Integer, Integer> yearBucketCounts
+                = new LinkedHashMap<>();
+        for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+            if (bucketCounts[bucket] > 0) {
+                yearBucketCounts.put(bucket * YEAR_BUCKET_SIZE,
+                        bucketCounts[bucket]);
+            }
+        }
+
+        return new FacetCounts(typeCounts[ProductColumns.TYPE_BOOK],
+                typeCounts[ProductColumns.TYPE_ELECTRONIC], yearBucketCounts,
+                decodeCounts(ownerCounts, ProductColumns.TYPE_BOOK,
+                        columns.getPublisherDictionary()),
+                decodeCounts(ownerCounts, ProductColumns.TYPE_ELECTRONIC,
+                        columns.getMakerDictionary()));
+    }
+
+    /**
+     * Adds the year types and owners of ordinals to the counts
+     */
+    private static void tally(int[] ordinals, ProductColumns columns,
+            int[] yearTypeCounts, int[] ownerCounts) {
+        short[] yearTypes = columns.getYearTypes();
+        int[] owners = columns.getOwners();
+        for (int i : ordinals) {
+            int yearType = yearTypes[i];
+            yearTypeCounts[yearType]++;
+            ownerCounts[owners[i] << 1 | yearType & 1]++;
+        }
+    }
+
+    /**
+     * Maps the non-zero counts of the owners of a type to their dictionary
+     * values
+     */
+    private static Map<String, Integer> decodeCounts(int[] ownerCounts,
+            int type, ProductColumns.Dictionary dictionary) {
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+        for (int code = 0; code < dictionary.size(); code++) {
+            int count = ownerCounts[code << 1 | type];
+            if (count > 0) {
+                counts.put(dictionary.decode(code), count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of matching books
+     */
+    public int getBookCount() {
+        return bookCount;
+    }
+
+    /**
+     * @return number of matching electronics
+     */
+    public int getElectronicCount() {
+        return electronicCount;
+    }
+
+    /**
+     * Gets counts per year bucket in ascending year order
+     *
+     * @return first year of each non-empty bucket mapped to its count
+     */
+    public Map<Integer, Integer> getYearBucketCounts() {
+        return yearBucketCounts;
+    }
+
+    /**
+     * Gets counts per publisher in order of first appearance in the catalog
+     *
+     * @return publisher of each matching book mapped to its count
+     */
+    public Map<String, Integer> getPublisherCounts() {
+        return publisherCounts;
+    }
+
+    /**
+     * Gets counts per maker in order of first appearance in the catalog
+     *
+     * @return maker of each matching electronic mapped to its count
+     */
+    public Map<String, Integer> getMakerCounts() {
+        return makerCounts;
+    }
+
+    /**
+     * Main method for testing facet counts against counts taken by a loop
+     * over the matching products, and measuring what counting facets adds to
+     * the time of a search
+     *
+     * @param args optional catalog size, at most 999000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 999000;
+        int rounds = 50;
+        Random random = new Random(42);
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        ArrayList<Product> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "item " + random.nextInt(1000) + " w"
+                    + random.nextInt(50) + (i % 5 == 0 ? " tv" : "");
+            int year = 1900 + random.nextInt(120);
+            batch.add(i % 3 == 0 ? new Book(String.format("%06d", i), name,
+                    year, Product.NO_PRICE, "author", "publisher "
+                    + random.nextInt(200)) : new Electronic(String.format(
+                    "%06d", i), name, year, Product.NO_PRICE, "maker "
+                    + random.nextInt(200)));
+            if (batch.size() == 10000) {
+                eStoreSearch.addProducts(batch);
+                batch.clear();
+            }
+        }
+        eStoreSearch.addProducts(batch);
+        for (int i = 0; i < count / 100; i++) {
+            try {
+                eStoreSearch.removeProduct(String.format("%06d",
+                        random.nextInt(count)));
+            } catch (InvalidInputException e) {
+                // Already removed
+            }
+        }
+
+        System.out.println("FacetCounts Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        String[][] searches = {{"", "", "", ""}, {"", "tv", "", ""},
+            {"", "w7 tv", "1990", ""}, {"", "", "1950", "1959"},
+            {"", "", "1910", ""}, {"000042", "", "", ""},
+            {"", "missing", "", ""}};
+        boolean pass = true;
+        for (String[] search : searches) {
+            SearchResult result = eStoreSearch.facetedSearch(search[0],
+                    search[1], search[2], search[3]);
+            pass &= result.size() == eStoreSearch.search(search[0], search[1],
+                    search[2], search[3]).size() && matchesLoop(result
+                    .getFacets(), result.getPage(0, Integer.MAX_VALUE));
+        }
+        System.out.println(pass + "\tfacets match counts of the matches");
+
+        pass = true;
+        for (String[] search : searches) {
+            for (String type : new String[]{"book", "electronics"}) {
+                SearchResult result = eStoreSearch.facetedSearch(search[0],
+                        search[1], search[2], search[3], type);
+                pass &= result.getPage(0, Integer.MAX_VALUE).equals(
+                        eStoreSearch.search(search[0], search[1], search[2],
+                                search[3], type).getPage(0,
+                                Integer.MAX_VALUE)) && matchesLoop(result
+                        .getFacets(), result.getPage(0, Integer.MAX_VALUE));
+            }
+        }
+        System.out.println(pass + "\tand so do facets of typed searches");
+        try {
+            eStoreSearch.facetedSearch("", "tv", "", "", "food");
+            System.out.println(false);
+        } catch (InvalidInputException e) {
+            System.out.println(e.getMessage().equals(
+                    EStoreSearch.INVALID_TYPE));
+        }
+
+        // A search fetches its first page, a faceted search also counts
+        String[][] benchmarks = {{"", "", "", ""}, {"", "tv", "", ""},
+            {"", "", "1950", "1999"}, {"", "w7 tv", "1990", ""}};
+        long checksum = 0;
+        System.out.println("\nFacets among " + count + " products, us per"
+                + " search\n");
+        System.out.println("Search\t\tMatches\tSearch\tFaceted\tFacets");
+        for (String[] search : benchmarks) {
+            long[] nanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+            // The fastest repeat is kept, which leaves out warming up and
+            // collections triggered by other searches
+            for (int repeat = 0; repeat < 5; repeat++) {
+                long begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    checksum += eStoreSearch.search(search[0], search[1],
+                            search[2], search[3]).getPage(0, 20).size();
+                }
+                nanos[0] = Math.min(nanos[0], System.nanoTime() - begin);
+                begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    SearchResult result = eStoreSearch.facetedSearch(
+                            search[0], search[1], search[2], search[3]);
+                    checksum += result.getPage(0, 20).size()
+                            + result.getFacets().getBookCount();
+                }
+                nanos[1] = Math.min(nanos[1], System.nanoTime() - begin);
+            }
+            String name = (search[1] + " " + search[2] + "-" + search[3])
+                    .trim();
+            System.out.println(name + (name.length() < 8 ? "\t\t" : "\t")
+                    + eStoreSearch.search(search[0], search[1], search[2],
+                            search[3]).size() + "\t" + nanos[0] / rounds
+                    / 1000 + "\t" + nanos[1] / rounds / 1000 + "\t+"
+                    + (nanos[1] - nanos[0]) * 100 / nanos[0] + "%");
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Checks facet counts against counts taken by a loop over the matches
+     */
+    private static boolean matchesLoop(FacetCounts facets,
+            List<Product> matches) {
+        int books = 0;
+        Map<Integer, Integer> yearBuckets = new TreeMap<>();
+        Map<String, Integer> publishers = new HashMap<>();
+        Map<String, Integer> makers = new HashMap<>();
+        for (Product product : matches) {
+            yearBuckets.merge(product.getYear() / YEAR_BUCKET_SIZE
+                    * YEAR_BUCKET_SIZE, 1, Integer::sum);
+            if (product instanceof Book) {
+                books++;
+                publishers.merge(((Book) product).getPublisher(), 1,
+                        Integer::sum);
+            } else {
+                makers.merge(((Electronic) product).getMaker(), 1,
+                        Integer::sum);
+            }
+        }
+        return facets.getBookCount() == books && facets.getElectronicCount()
+                == matches.size() - books && new ArrayList<>(facets
+                .getYearBucketCounts().entrySet()).equals(new ArrayList<>(
+                yearBuckets.entrySet())) && facets.getPublisherCounts()
+                .equals(publishers) && facets.getMakerCounts().equals(makers);
+    }
+}
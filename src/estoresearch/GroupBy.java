@@ -0,0 +1,34 @@
+package estoresearch;
+
+/**
+ * Fields catalog aggregates can be grouped by
+ *
+ * @author Courtney Bodi
+ */
+public enum GroupBy {
+
+    NONE("All products"),
+    YEAR("Year"),
+    TYPE("Type"),
+    PUBLISHER("Publisher"),
+    MAKER("Maker");
+
+    private final String label;
+
+    /**
+     * GroupBy constructor
+     *
+     * @param label shown to the user
+     */
+    GroupBy(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return label shown to the user
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,804 @@
+package estoresearch;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports products in three stages connected by bounded queues: a reader
+ * that splits the file into raw records, parallel workers that parse and
+ * validate them with the Product rules, and a batched insert into the store.
+ * Full queues block the stage before them, so memory stays bounded however
+ * large the file is. Rejected records are collected in an ImportReport, but
+ * an error reading the file fails the whole import so a partly read file is
+ * never published.
+ *
+ * @author Courtney Bodi
+ */
+public class ImportPipeline {
+
+    /**
+     * Records per batch passed between stages
+     */
+    static final int BATCH_SIZE = 512;
+
+    /**
+     * Batches each queue holds before the stage feeding it blocks
+     */
+    static final int QUEUE_CAPACITY = 16;
+
+    public static final String UNKNOWN_TYPE = "Invalid input: type must be"
+            + " \"book\" or \"electronics\"";
+    public static final String INVALID_LINE = "Invalid input from file";
+
+    private final CatalogFormat format;
+    private final int workers;
+    private final ThreadFactory threads;
+
+    /**
+     * Raw lines of one record
+     */
+    private static final class RawRecord {
+
+        private final long lineNumber;
+        private final List<String> lines;
+
+        private RawRecord(long lineNumber, List<String> lines) {
+            this.lineNumber = lineNumber;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Records in file order, numbered so the insert stage can restore order
+     */
+    private static final class Batch<T> {
+
+        private static final Batch<?> END = new Batch<>(-1, null, null, null);
+
+        private final int sequence;
+        private final List<T> records;
+        private final long[] lineNumbers;
+        private final String[] header;
+
+        private Batch(int sequence, List<T> records, long[] lineNumbers,
+                String[] header) {
+            this.sequence = sequence;
+            this.records = records;
+            this.lineNumbers = lineNumbers;
+            this.header = header;
+        }
+    }
+
+    /**
+     * ImportPipeline constructor with one parse worker per core
+     *
+     * @param format of the files to import
+     */
+    public ImportPipeline(CatalogFormat format) {
+        this(format, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * ImportPipeline constructor with all members
+     *
+     * @param format of the files to import
+     * @param workers number of parse and validate threads, at least 1
+     */
+    public ImportPipeline(CatalogFormat format, int workers) {
+        this(format, workers, Thread::new);
+    }
+
+    /**
+     * ImportPipeline constructor with the factory of the reader and worker
+     * threads, which are named and made daemons after they are created
+     *
+     * @param format of the files to import
+     * @param workers number of parse and validate threads, at least 1
+     * @param threads factory of the reader and worker threads
+     */
+    ImportPipeline(CatalogFormat format, int workers, ThreadFactory threads) {
+        this.format = format;
+        this.workers = Math.max(1, workers);
+        this.threads = threads;
+    }
+
+    /**
+     * Imports a file, gzip compressed if its name ends in .gz
+     *
+     * @param file to import
+     * @param sink store to insert products into
+     * @return report of the import
+     * @throws IOException if the file could not be opened or read to the end
+     */
+    ImportReport importFile(Path file, ProductSink sink) throws IOException {
+        return importFile(file, sink, new ImportReport());
+    }
+
+    /**
+     * Imports a file into a report that can be watched while it fills. The
+     * products read before a read error are still in the sink when it is
+     * thrown, the caller discards them.
+     *
+     * @param file to import
+     * @param sink store to insert products into
+     * @param report to fill in
+     * @return the report
+     * @throws IOException if the file could not be opened or read to the end
+     */
+    ImportReport importFile(Path file, ProductSink sink, ImportReport report)
+            throws IOException {
+        InputStream input = new FilterInputStream(Files.newInputStream(file)) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    report.addBytesRead(1);
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length)
+                    throws IOException {
+                int read = super.read(bytes, offset, length);
+                if (read > 0) {
+                    report.addBytesRead(read);
+                }
+                return read;
+            }
+        };
+        if (file.getFileName().toString().endsWith(".gz")) {
+            input = new GZIPInputStream(input, 1 << 16);
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                input, StandardCharsets.UTF_8), 1 << 16)) {
+            run(reader, sink, report);
+        }
+        return report;
+    }
+
+    /**
+     * Runs the three stages, the insert stage on the calling thread
+     */
+    @SuppressWarnings("unchecked")
+    private void run(BufferedReader reader, ProductSink sink,
+            ImportReport report) throws IOException {
+        BlockingQueue<Batch<RawRecord>> rawBatches = new ArrayBlockingQueue<>(
+                QUEUE_CAPACITY);
+        BlockingQueue<Batch<Product>> parsedBatches = new ArrayBlockingQueue<>(
+                QUEUE_CAPACITY);
+        AtomicInteger runningWorkers = new AtomicInteger(workers);
+        AtomicReference<IOException> readFailure = new AtomicReference<>();
+        AtomicReference<Throwable> workerFailure = new AtomicReference<>();
+
+        Thread readerThread = threads.newThread(() -> read(reader, rawBatches,
+                readFailure));
+        readerThread.setName("estore-import-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        for (int i = 0; i < workers; i++) {
+            Thread worker = threads.newThread(() -> work(rawBatches,
+                    parsedBatches, report, runningWorkers, workerFailure,
+                    readerThread));
+            worker.setName("estore-import-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        insert(parsedBatches, sink, report, workerFailure);
+        if (workerFailure.get() instanceof Error) {
+            throw (Error) workerFailure.get();
+        } else if (workerFailure.get() != null) {
+            throw new IOException("Could not parse file", workerFailure.get());
+        } else if (readFailure.get() != null) {
+            throw readFailure.get();
+        }
+    }
+
+    /**
+     * Worker stage, parses batches until the end and passes the end on. A
+     * worker that fails records why, and once one has failed the workers
+     * only drain the raw batches so the reader is not left blocked. The last
+     * worker to stop always passes the end to the insert stage, and stops
+     * the reader if it is the last because of a failure.
+     */
+    @SuppressWarnings("unchecked")
+    private void work(BlockingQueue<Batch<RawRecord>> rawBatches,
+            BlockingQueue<Batch<Product>> parsedBatches, ImportReport report,
+            AtomicInteger runningWorkers, AtomicReference<Throwable> failure,
+            Thread readerThread) {
+        try {
+            Batch<RawRecord> batch;
+            while ((batch = rawBatches.take()) != Batch.END) {
+                if (failure.get() == null) {
+                    try {
+                        parsedBatches.put(parse(batch, report));
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+            // Pass the end on to the other workers, nothing is put after
+            // the end so there is room for it again
+            rawBatches.offer(batch);
+        } catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (runningWorkers.decrementAndGet() == 0) {
+                if (failure.get() != null) {
+                    readerThread.interrupt();
+                }
+                // Insert always takes until the end, so this put returns
+                boolean interrupted = Thread.interrupted();
+                while (true) {
+                    try {
+                        parsedBatches.put((Batch<Product>) Batch.END);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reader stage, splits the file into batches of raw records and ends
+     * early on a read error, which is left for the insert stage to throw
+     */
+    @SuppressWarnings("unchecked")
+    private void read(BufferedReader reader,
+            BlockingQueue<Batch<RawRecord>> rawBatches,
+            AtomicReference<IOException> readFailure) {
+        int sequence = 0;
+        try {
+            try {
+                ArrayList<RawRecord> records = new ArrayList<>(BATCH_SIZE);
+                ArrayList<String> lines = new ArrayList<>();
+                String[] header = null;
+                long lineNumber = 0;
+                long recordLine = 0;
+                // CSV record whose last line ended inside a quoted value
+                StringBuilder openRecord = null;
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+
+                    if (format == CatalogFormat.TEXT) {
+                        // Blank lines separate records
+                        if (line.trim().isEmpty()) {
+                            if (!lines.isEmpty()) {
+                                records.add(new RawRecord(recordLine, lines));
+                                lines = new ArrayList<>();
+                            }
+                        } else {
+                            if (lines.isEmpty()) {
+                                recordLine = lineNumber;
+                            }
+                            lines.add(line);
+                        }
+                    } else if (openRecord != null) {
+                        // The line break belongs to the quoted value
+                        openRecord.append('\n').append(line);
+                        if (hasOddQuotes(line)) {
+                            header = addRecord(openRecord.toString(),
+                                    recordLine, header, records);
+                            openRecord = null;
+                        }
+                    } else if (line.trim().isEmpty()) {
+                        continue;
+                    } else if (format == CatalogFormat.CSV
+                            && hasOddQuotes(line)) {
+                        openRecord = new StringBuilder(line);
+                        recordLine = lineNumber;
+                    } else {
+                        header = addRecord(line, lineNumber, header, records);
+                    }
+
+                    if (records.size() == BATCH_SIZE) {
+                        rawBatches.put(new Batch<>(sequence++, records, null,
+                                header));
+                        records = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+
+                if (!lines.isEmpty() && format == CatalogFormat.TEXT) {
+                    records.add(new RawRecord(recordLine, lines));
+                }
+                if (openRecord != null) {
+                    // Left for the parse stage to reject or take as it is
+                    header = addRecord(openRecord.toString(), recordLine,
+                            header, records);
+                }
+                if (!records.isEmpty()) {
+                    rawBatches.put(new Batch<>(sequence++, records, null,
+                            header));
+                }
+            } catch (IOException e) {
+                readFailure.set(e);
+            } finally {
+                rawBatches.put((Batch<RawRecord>) Batch.END);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a one line CSV or JSON Lines record, or takes the first CSV
+     * record as the header
+     *
+     * @return the header, set if this record was it
+     */
+    private String[] addRecord(String text, long lineNumber, String[] header,
+            List<RawRecord> records) {
+        if (format == CatalogFormat.CSV && header == null) {
+            return splitCsv(text);
+        }
+        ArrayList<String> single = new ArrayList<>(1);
+        single.add(text);
+        records.add(new RawRecord(lineNumber, single));
+        return header;
+    }
+
+    /**
+     * Checks whether a CSV line opens or closes a quoted value, doubled
+     * quotes inside values count twice and leave it unchanged
+     */
+    static boolean hasOddQuotes(String line) {
+        boolean odd = false;
+        for (int i = 0; i < line.length(); i++) {
+            odd ^= line.charAt(i) == '"';
+        }
+        return odd;
+    }
+
+    /**
+     * Parse stage, turns raw records into validated products
+     */
+    private Batch<Product> parse(Batch<RawRecord> batch, ImportReport report) {
+        ArrayList<Product> products = new ArrayList<>(batch.records.size());
+        long[] lineNumbers = new long[batch.records.size()];
+
+        for (RawRecord record : batch.records) {
+            report.addRecordsRead(1);
+            try {
+                lineNumbers[products.size()] = record.lineNumber;
+                products.add(toProduct(fields(record, batch.header)));
+            } catch (InvalidInputException e) {
+                report.addError(record.lineNumber, e.getMessage());
+            }
+        }
+        return new Batch<>(batch.sequence, products, lineNumbers, null);
+    }
+
+    /**
+     * Insert stage, adds batches to the store in file order so the first of
+     * several products with one ID is the one kept. Once a worker has failed
+     * batches are only taken until the end, the import is failed anyway.
+     */
+    private void insert(BlockingQueue<Batch<Product>> parsedBatches,
+            ProductSink sink, ImportReport report,
+            AtomicReference<Throwable> workerFailure) {
+        TreeMap<Integer, Batch<Product>> waiting = new TreeMap<>();
+        int next = 0;
+
+        try {
+            Batch<Product> batch;
+            while ((batch = parsedBatches.take()) != Batch.END) {
+                if (workerFailure.get() != null) {
+                    waiting.clear();
+                    continue;
+                }
+                waiting.put(batch.sequence, batch);
+                while (waiting.containsKey(next)) {
+                    insertBatch(waiting.remove(next++), sink, report);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (workerFailure.get() == null) {
+            for (Batch<Product> batch : waiting.values()) {
+                insertBatch(batch, sink, report);
+            }
+        }
+    }
+
+    /**
+     * Adds one batch and reports duplicate IDs
+     */
+    private static void insertBatch(Batch<Product> batch, ProductSink sink,
+            ImportReport report) {
+        List<Product> rejected = sink.addProducts(batch.records);
+        report.addProductsImported(batch.records.size() - rejected.size());
+
+        if (!rejected.isEmpty()) {
+            IdentityHashMap<Product, Long> lineNumbers = new IdentityHashMap<>();
+            for (int i = 0; i < batch.records.size(); i++) {
+                lineNumbers.put(batch.records.get(i), batch.lineNumbers[i]);
+            }
+            for (Product product : rejected) {
+                report.addError(lineNumbers.get(product),
+                        EStoreSearch.DUPLICATE_ID);
+            }
+        }
+    }
+
+    /**
+     * Gets the attributes of a raw record
+     */
+    private HashMap<String, String> fields(RawRecord record, String[] header)
+            throws InvalidInputException {
+        HashMap<String, String> fields = new HashMap<>();
+
+        switch (format) {
+            case TEXT:
+                for (String line : record.lines) {
+                    String attribute = EStoreSearch.getAttribute(line);
+                    if (attribute.equals("\n")) {
+                        throw new InvalidInputException(INVALID_LINE);
+                    }
+                    fields.put(attribute, EStoreSearch.getValue(line));
+                }
+                break;
+            case CSV:
+                String[] values = splitCsv(record.lines.get(0));
+                if (values.length > header.length) {
+                    throw new InvalidInputException(INVALID_LINE);
+                }
+                for (int i = 0; i < values.length; i++) {
+                    fields.put(header[i].trim(), values[i]);
+                }
+                break;
+            default:
+                parseJsonObject(record.lines.get(0), fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Validates attributes with the same rules as adding a product by hand
+     *
+     * @param fields attribute values of one record
+     * @return the product
+     * @throws estoresearch.InvalidInputException if the record is invalid
+     */
+    static Product toProduct(HashMap<String, String> fields)
+            throws InvalidInputException {
+        String type = fields.getOrDefault("type", "");
+        String price = fields.getOrDefault("price", "");
+        String year = fields.getOrDefault("year", "");
+
+        if (type.equals("book")) {
+            return new Book(fields.get("productID"), fields.get("name"),
+                    EStoreSearch.parseYear(year), EStoreSearch.parsePrice(price),
+                    fields.getOrDefault("authors", ""),
+                    fields.getOrDefault("publisher", ""));
+        } else if (type.equals("electronics")) {
+            return new Electronic(fields.get("productID"), fields.get("name"),
+                    EStoreSearch.parseYear(year), EStoreSearch.parsePrice(price),
+                    fields.getOrDefault("maker", ""));
+        } else {
+            throw new InvalidInputException(UNKNOWN_TYPE);
+        }
+    }
+
+    /**
+     * Splits one CSV record, fields may be quoted with doubled quotes inside
+     * and line breaks, which are read back as \n
+     *
+     * @param line of comma separated values
+     * @return the values
+     */
+    static String[] splitCsv(String line) {
+        ArrayList<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length()
+                        && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Parses a flat JSON object of string, number, boolean or null values
+     *
+     * @param line holding the object
+     * @param fields receives the values as strings, null values are skipped
+     * @throws estoresearch.InvalidInputException if the line is not a flat
+     * JSON object
+     */
+    static void parseJsonObject(String line, HashMap<String, String> fields)
+            throws InvalidInputException {
+        int[] position = {skipSpace(line, 0)};
+        expect(line, position, '{');
+        if (peek(line, position) == '}') {
+            return;
+        }
+
+        while (true) {
+            String key = parseJsonString(line, position);
+            expect(line, position, ':');
+            position[0] = skipSpace(line, position[0]);
+
+            if (position[0] < line.length() && line.charAt(position[0]) == '"') {
+                fields.put(key, parseJsonString(line, position));
+            } else {
+                int start = position[0];
+                while (position[0] < line.length()
+                        && ",} \t".indexOf(line.charAt(position[0])) < 0) {
+                    position[0]++;
+                }
+                String literal = line.substring(start, position[0]);
+                if (literal.isEmpty()) {
+                    throw new InvalidInputException(INVALID_LINE);
+                }
+                if (!literal.equals("null")) {
+                    fields.put(key, literal);
+                }
+            }
+
+            char next = peek(line, position);
+            position[0]++;
+            if (next == '}') {
+                return;
+            } else if (next != ',') {
+                throw new InvalidInputException(INVALID_LINE);
+            }
+        }
+    }
+
+    private static int skipSpace(String line, int position) {
+        while (position < line.length()
+                && Character.isWhitespace(line.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static char peek(String line, int[] position)
+            throws InvalidInputException {
+        position[0] = skipSpace(line, position[0]);
+        if (position[0] >= line.length()) {
+            throw new InvalidInputException(INVALID_LINE);
+        }
+        return line.charAt(position[0]);
+    }
+
+    private static void expect(String line, int[] position, char expected)
+            throws InvalidInputException {
+        if (peek(line, position) != expected) {
+            throw new InvalidInputException(INVALID_LINE);
+        }
+        position[0]++;
+    }
+
+    /**
+     * Parses a JSON string starting at the position, moving past it
+     */
+    private static String parseJsonString(String line, int[] position)
+            throws InvalidInputException {
+        expect(line, position, '"');
+        StringBuilder value = new StringBuilder();
+
+        while (position[0] < line.length()) {
+            char c = line.charAt(position[0]++);
+            if (c == '"') {
+                return value.toString();
+            } else if (c != '\\') {
+                value.append(c);
+            } else if (position[0] < line.length()) {
+                char escaped = line.charAt(position[0]++);
+                switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (position[0] + 4 > line.length()) {
+                            throw new InvalidInputException(INVALID_LINE);
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(line.substring(
+                                    position[0], position[0] + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new InvalidInputException(INVALID_LINE);
+                        }
+                        position[0] += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+        }
+        throw new InvalidInputException(INVALID_LINE);
+    }
+
+    /**
+     * Main method for testing that a file that cannot be read to the end,
+     * or an import whose worker fails, loads nothing and ends, and that
+     * exported values with line breaks, commas and quotes import unchanged
+     *
+     * @param args unused
+     * @throws IOException if a test file could not be written
+     * @throws InterruptedException if interrupted while waiting for a load
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws IOException,
+            InterruptedException, InvalidInputException {
+        ArrayList<Product> products = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            products.add(new Book(String.format("%06d", i), "book "
+                    + random.nextInt(100000), 1950 + random.nextInt(70),
+                    Product.NO_PRICE, "author", "publisher"));
+        }
+        Path whole = Files.createTempFile("estore-import", ".txt.gz");
+        Path truncated = Files.createTempFile("estore-import", ".txt.gz");
+        try {
+            new ExportEngine(CatalogFormat.TEXT, true).export(products, whole);
+            byte[] bytes = Files.readAllBytes(whole);
+            Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+
+            System.out.println("ImportPipeline Class Testing\n"
+                    + "Prints true when test is passed, false otherwise\n");
+            EStoreSearch eStoreSearch = new EStoreSearch();
+            eStoreSearch.addBook("999999", "kept", "2000", "", "", "");
+            System.out.println((eStoreSearch.loadProducts(truncated.toString())
+                    == null && eStoreSearch.search("", "", "", "").size() == 1)
+                    + "\ta truncated file publishes nothing");
+            ShardedEStoreSearch sharded = new ShardedEStoreSearch(4);
+            System.out.println((sharded.loadProducts(truncated.toString())
+                    == null && sharded.getProducts().isEmpty())
+                    + "\tnor does it in a sharded store");
+            System.out.println((eStoreSearch.loadProducts(whole.toString())
+                    != null && eStoreSearch.search("", "", "", "").size()
+                    == products.size() + 1) + "\tthe whole file loads after");
+
+            System.out.println(failsWithFailedWorker(whole, 1, products.size())
+                    + "\tan import whose only worker fails ends and fails");
+            System.out.println(failsWithFailedWorker(whole, 4, products.size())
+                    + "\tas does one where one of several workers fails");
+
+            ArrayList<Product> multiLine = new ArrayList<>();
+            multiLine.add(new Electronic("000001", "tv", 2001, 20.0,
+                    "line\nbreak"));
+            multiLine.add(new Book("000002", "a, \"quoted\"\n\nname", 2002,
+                    Product.NO_PRICE, "first\nsecond\nthird", "\"\n\""));
+            multiLine.add(new Electronic("000003", "after", 2003, 1.5,
+                    "maker"));
+            for (CatalogFormat format : new CatalogFormat[]{CatalogFormat.CSV,
+                CatalogFormat.JSON_LINES}) {
+                System.out.println(roundTrips(multiLine, format)
+                        + "\tvalues with line breaks survive a " + format
+                        + " export and import");
+            }
+        } finally {
+            Files.delete(whole);
+            Files.delete(truncated);
+        }
+    }
+
+    /**
+     * Checks that products exported in a format import without errors as
+     * equal products
+     */
+    private static boolean roundTrips(List<Product> products,
+            CatalogFormat format) throws IOException {
+        Path file = Files.createTempFile("estore-round-trip", "");
+        try {
+            new ExportEngine(format, false).export(products, file);
+            EStoreSearch eStoreSearch = new EStoreSearch();
+            EStoreSearch.BulkLoad load = eStoreSearch.beginBulkLoad();
+            ImportReport report = new ImportReport();
+            new ImportPipeline(format, 2).importFile(file, load, report);
+            load.publish();
+
+            ArrayList<Product> imported = eStoreSearch.getProducts();
+            boolean equal = report.getErrorCount() == 0
+                    && imported.size() == products.size();
+            for (int i = 0; i < products.size() && equal; i++) {
+                equal = imported.get(i).toString().equals(products.get(i)
+                        .toString());
+            }
+            return equal;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Checks that an import whose first worker is interrupted before it
+     * starts ends within a minute with an IOException, and that the store
+     * can load the file afterwards
+     */
+    private static boolean failsWithFailedWorker(Path file, int workers,
+            int size) throws InterruptedException, InvalidInputException {
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        AtomicInteger created = new AtomicInteger();
+        // The reader is created first, then the workers
+        ThreadFactory failing = task -> created.getAndIncrement() != 1
+                ? new Thread(task) : new Thread(() -> {
+                    Thread.currentThread().interrupt();
+                    task.run();
+                });
+        AtomicReference<Boolean> failed = new AtomicReference<>(false);
+
+        Thread load = new Thread(() -> {
+            EStoreSearch.BulkLoad bulkLoad = eStoreSearch.beginBulkLoad();
+            try {
+                new ImportPipeline(CatalogFormat.TEXT, workers, failing)
+                        .importFile(file, bulkLoad);
+            } catch (IOException e) {
+                failed.set(true);
+            } finally {
+                bulkLoad.abandon();
+            }
+        });
+        load.setDaemon(true);
+        load.start();
+        load.join(60000);
+
+        return failed.get() && !load.isAlive() && eStoreSearch.search("", "",
+                "", "").isEmpty() && eStoreSearch.loadProducts(file.toString())
+                != null && eStoreSearch.search("", "", "", "").size() == size;
+    }
+}
@@ -0,0 +1,152 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of an import: how much was read and imported and which records
+ * were rejected
+ *
+ * @author Courtney Bodi
+ */
+public class ImportReport {
+
+    /**
+     * Errors kept in the report, further errors are only counted
+     */
+    public static final int MAX_REPORTED_ERRORS = 1000;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong recordsRead = new AtomicLong();
+    private final AtomicLong productsImported = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final List<ImportError> errors = Collections.synchronizedList(
+            new ArrayList<>());
+
+    /**
+     * A rejected record
+     */
+    public static class ImportError {
+
+        private final long lineNumber;
+        private final String message;
+
+        /**
+         * ImportError constructor with all members
+         *
+         * @param lineNumber of the first line of the record, or 0 if the
+         * error is not about a record
+         * @param message describing why the record was rejected
+         */
+        ImportError(long lineNumber, String message) {
+            this.lineNumber = lineNumber;
+            this.message = message;
+        }
+
+        /**
+         * @return line number of the first line of the record
+         */
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * @return why the record was rejected
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return error in the form of line number: message
+         */
+        @Override
+        public String toString() {
+            return lineNumber > 0 ? "Line " + lineNumber + ": " + message
+                    : message;
+        }
+    }
+
+    /**
+     * Records a rejected record
+     *
+     * @param lineNumber of the first line of the record
+     * @param message describing why it was rejected
+     */
+    void addError(long lineNumber, String message) {
+        if (errorCount.incrementAndGet() <= MAX_REPORTED_ERRORS) {
+            errors.add(new ImportError(lineNumber, message));
+        }
+    }
+
+    /**
+     * @param bytes read from the file since the last call
+     */
+    void addBytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * @param records split from the file since the last call
+     */
+    void addRecordsRead(long records) {
+        recordsRead.addAndGet(records);
+    }
+
+    /**
+     * @param products added to the store since the last call
+     */
+    void addProductsImported(long products) {
+        productsImported.addAndGet(products);
+    }
+
+    /**
+     * @return number of bytes read from the file so far
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return number of records read from the file so far
+     */
+    public long getRecordsRead() {
+        return recordsRead.get();
+    }
+
+    /**
+     * @return number of products added to the store so far
+     */
+    public long getProductsImported() {
+        return productsImported.get();
+    }
+
+    /**
+     * @return number of rejected records, including unreported ones
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Gets the first MAX_REPORTED_ERRORS errors in the order they were found
+     *
+     * @return copy of the reported errors
+     */
+    public List<ImportError> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    /**
+     * @return summary of the import
+     */
+    @Override
+    public String toString() {
+        return "Imported " + getProductsImported() + " of " + getRecordsRead()
+                + " records, " + getErrorCount() + " errors.";
+    }
+}
@@ -0,0 +1,76 @@
+package estoresearch;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints
+ *
+ * @author Courtney Bodi
+ */
+class IntList {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] values;
+    private int size;
+
+    /**
+     * Generic IntList constructor
+     */
+    IntList() {
+        values = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Appends value to the end of the list
+     *
+     * @param value to append
+     */
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Gets value at index
+     *
+     * @param index of the value, less than size()
+     * @return the value
+     */
+    int get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Replaces value at index
+     *
+     * @param index of the value, less than size()
+     * @param value to store
+     */
+    void set(int index, int value) {
+        values[index] = value;
+    }
+
+    /**
+     * @return number of values in the list
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the last value, the list must not be empty
+     */
+    int last() {
+        return values[size - 1];
+    }
+
+    /**
+     * @return copy of the values in the list
+     */
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
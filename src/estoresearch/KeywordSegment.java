@@ -0,0 +1,296 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable keyword index over a range of ordinals. Terms are looked up in a
+ * TermDictionary and each term's postings are delta encoded as variable
+ * length ints in one shared byte array, found through the term ID. The positions of each term in each
+ * name are kept apart in a second byte array, as one variable length
+ * position mask per posting, so keyword searches never decode them.
+ *
+ * @author Courtney Bodi
+ */
+final class KeywordSegment {
+
+    private final TermDictionary terms;
+    private final int[] offsets;
+    private final byte[] postings;
+    private final int[] positionOffsets;
+    private final byte[] positions;
+    private final int docCount;
+
+    /**
+     * KeywordSegment constructor with all members
+     *
+     * @param terms dictionary of the terms, no longer added to
+     * @param offsets start of each term's postings, with one extra entry for
+     * the end of the last term
+     * @param postings delta encoded ordinals
+     * @param positionOffsets start of each term's positions, with one extra
+     * entry for the end of the last term
+     * @param positions position mask of each posting
+     * @param docCount number of products indexed by the segment
+     */
+    private KeywordSegment(TermDictionary terms, int[] offsets, byte[] postings,
+            int[] positionOffsets, byte[] positions, int docCount) {
+        this.terms = terms;
+        this.offsets = offsets;
+        this.postings = postings;
+        this.positionOffsets = positionOffsets;
+        this.positions = positions;
+        this.docCount = docCount;
+    }
+
+    /**
+     * Encodes postings lists into a segment, which takes over the dictionary
+     *
+     * @param terms dictionary of the terms, not added to afterwards
+     * @param postingsByTerm ascending ordinals and positions of every term,
+     * by term ID
+     * @param docCount number of products indexed
+     * @return the frozen segment
+     */
+    static KeywordSegment build(TermDictionary terms,
+            List<PositionalPostings> postingsByTerm, int docCount) {
+        int termCount = terms.size();
+        int[] offsets = new int[termCount + 1];
+        int[] positionOffsets = new int[termCount + 1];
+        PostingsWriter writer = new PostingsWriter();
+        PostingsWriter positionWriter = new PostingsWriter();
+
+        for (int i = 0; i < termCount; i++) {
+            offsets[i] = writer.size();
+            positionOffsets[i] = positionWriter.size();
+            PositionalPostings termPostings = postingsByTerm.get(i);
+            int previous = 0;
+            for (int j = 0; j < termPostings.size(); j++) {
+                writer.writeVarInt(termPostings.getOrdinal(j) - previous);
+                previous = termPostings.getOrdinal(j);
+
+                positionWriter.writeVarLong(termPostings.getMask(j));
+            }
+        }
+        offsets[termCount] = writer.size();
+        positionOffsets[termCount] = positionWriter.size();
+
+        terms.trim();
+        return new KeywordSegment(terms, offsets, writer.toByteArray(),
+                positionOffsets, positionWriter.toByteArray(), docCount);
+    }
+
+    /**
+     * Merges segments that cover consecutive ordinal ranges
+     *
+     * @param segments in ordinal order
+     * @return one segment with the terms and postings of all of them
+     */
+    static KeywordSegment merge(List<KeywordSegment> segments) {
+        TermDictionary terms = new TermDictionary();
+        ArrayList<PositionalPostings> postingsByTerm = new ArrayList<>();
+        int docCount = 0;
+
+        // Ordinal ranges do not overlap, so appending keeps postings sorted
+        for (KeywordSegment segment : segments) {
+            docCount += segment.docCount;
+            for (int i = 0; i < segment.terms.size(); i++) {
+                int term = terms.add(segment.terms, i);
+                if (term == postingsByTerm.size()) {
+                    postingsByTerm.add(new PositionalPostings());
+                }
+                segment.decode(i, postingsByTerm.get(term));
+            }
+        }
+        return build(terms, postingsByTerm, docCount);
+    }
+
+    /**
+     * @return number of products indexed by the segment
+     */
+    int getDocCount() {
+        return docCount;
+    }
+
+    /**
+     * @return dictionary of the terms in the segment
+     */
+    TermDictionary getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return number of bytes used by the encoded postings
+     */
+    int getPostingsBytes() {
+        return postings.length;
+    }
+
+    /**
+     * @return number of bytes used by the encoded positions
+     */
+    int getPositionsBytes() {
+        return positions.length;
+    }
+
+    /**
+     * Appends the ordinals of a term to a set being built, segments must be
+     * read in ordinal order
+     *
+     * @param term output of TermDictionary.encode
+     * @param into builder to add the ordinals to
+     * @return whether the segment contains the term
+     */
+    boolean addPostings(byte[] term, OrdinalSet.Builder into) {
+        int index = terms.find(term);
+        if (index < 0) {
+            return false;
+        }
+
+        int ordinal = 0;
+        int position = offsets[index];
+        while (position < offsets[index + 1]) {
+            int delta = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = postings[position++];
+                delta |= (current & 0x7f) << shift;
+                shift += 7;
+            } while (current < 0);
+            ordinal += delta;
+            into.add(ordinal);
+        }
+        return true;
+    }
+
+    /**
+     * Fills in the position masks of a term for the candidates containing
+     * it. The term's postings are walked in step with the candidates and the
+     * masks of other postings are skipped over.
+     *
+     * @param term output of TermDictionary.encode
+     * @param candidates ascending ordinals
+     * @param into position mask of each candidate, by candidate index
+     * @return whether the segment contains the term
+     */
+    boolean addMasks(byte[] term, int[] candidates, long[] into) {
+        int index = terms.find(term);
+        if (index < 0) {
+            return false;
+        }
+
+        int postingsPosition = offsets[index];
+        int postingsEnd = offsets[index + 1];
+        int maskPosition = positionOffsets[index];
+        int ordinal = 0;
+        int candidate = 0;
+        while (postingsPosition < postingsEnd
+                && candidate < candidates.length) {
+            int delta = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = postings[postingsPosition++];
+                delta |= (current & 0x7f) << shift;
+                shift += 7;
+            } while (current < 0);
+            ordinal += delta;
+
+            if (candidates[candidate] < ordinal) {
+                candidate = PositionalPostings.lowerBound(candidates,
+                        candidate, ordinal);
+                if (candidate == candidates.length) {
+                    break;
+                }
+            }
+
+            if (candidates[candidate] == ordinal) {
+                long mask = 0;
+                shift = 0;
+                do {
+                    current = positions[maskPosition++];
+                    mask |= (current & 0x7fL) << shift;
+                    shift += 7;
+                } while (current < 0);
+                into[candidate++] = mask;
+            } else {
+                while (positions[maskPosition++] < 0) {
+                    // Skip continuation bytes of the mask
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the postings and position masks of the term at an index
+     */
+    private void decode(int index, PositionalPostings into) {
+        int postingsPosition = offsets[index];
+        int maskPosition = positionOffsets[index];
+        int ordinal = 0;
+        while (postingsPosition < offsets[index + 1]) {
+            int delta = 0;
+            int shift = 0;
+            byte current;
+            do {
+                current = postings[postingsPosition++];
+                delta |= (current & 0x7f) << shift;
+                shift += 7;
+            } while (current < 0);
+            ordinal += delta;
+
+            long mask = 0;
+            shift = 0;
+            do {
+                current = positions[maskPosition++];
+                mask |= (current & 0x7fL) << shift;
+                shift += 7;
+            } while (current < 0);
+            into.addMask(ordinal, mask);
+        }
+    }
+
+    /**
+     * Growable byte buffer for variable length ints
+     */
+    private static final class PostingsWriter {
+
+        private byte[] bytes = new byte[64];
+        private int size;
+
+        private void writeVarInt(int value) {
+            if (size + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2,
+                        size + 5));
+            }
+            while ((value & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeVarLong(long value) {
+            if (size + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2,
+                        size + 10));
+            }
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package estoresearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read replica that keeps a store in step with a primary by tailing the
+ * primary's change log. The replica starts from the snapshot the primary
+ * wrote when it started the log, then applies every record in order.
+ *
+ * @author Courtney Bodi
+ */
+public class LogFollower implements Closeable {
+
+    /**
+     * Milliseconds between checks for new records once caught up
+     */
+    public static final long POLL_MILLIS = 10;
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    private final EStoreSearch store;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long position;
+
+    private volatile long appliedSequence;
+    private volatile long lagMillis;
+    private volatile long maxLagMillis;
+    private volatile long bytesBehind;
+    private volatile Thread tailer;
+    private volatile boolean stopped;
+
+    /**
+     * LogFollower constructor with all members
+     *
+     * @param store to apply changes to, holding the snapshot the log starts
+     * from
+     * @param log file written by the primary
+     * @throws IOException if the log could not be opened
+     */
+    public LogFollower(EStoreSearch store, Path log) throws IOException {
+        this.store = store;
+        channel = FileChannel.open(log, StandardOpenOption.READ);
+    }
+
+    /**
+     * Waits for a primary's snapshot and log, loads the snapshot into a new
+     * store and starts following the log
+     *
+     * @param snapshot catalog file the primary writes when it starts the log
+     * @param log file written by the primary
+     * @return the started follower
+     * @throws IOException if the snapshot or log could not be read
+     * @throws InterruptedException if interrupted while waiting for the files
+     */
+    public static LogFollower bootstrap(Path snapshot, Path log)
+            throws IOException, InterruptedException {
+        while (!Files.exists(snapshot) || !Files.exists(log)) {
+            TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+        }
+
+        EStoreSearch store = new EStoreSearch();
+        if (store.loadProducts(snapshot.toString()) == null) {
+            throw new IOException("Could not load snapshot " + snapshot);
+        }
+        LogFollower follower = new LogFollower(store, log);
+        follower.start();
+        return follower;
+    }
+
+    /**
+     * @return store the changes are applied to
+     */
+    public EStoreSearch getStore() {
+        return store;
+    }
+
+    /**
+     * @return sequence number of the last record applied
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return milliseconds between the last applied change being made on the
+     * primary and being applied here
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * @return largest lag of any change applied so far, in milliseconds
+     */
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    /**
+     * @return bytes of the log not yet applied when it was last checked
+     */
+    public long getBytesBehind() {
+        return bytesBehind;
+    }
+
+    /**
+     * Starts applying records on a daemon thread as they are appended
+     */
+    public synchronized void start() {
+        if (tailer != null) {
+            return;
+        }
+        tailer = new Thread(() -> {
+            try {
+                while (!stopped) {
+                    if (poll() == 0) {
+                        TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.out.println("Error reading change log: "
+                        + e.getMessage());
+            }
+        }, "estore-log-follower");
+        tailer.setDaemon(true);
+        tailer.start();
+    }
+
+    /**
+     * Stops applying records in the background and waits for the record
+     * being applied. Reading the log is not interrupted, since interrupting
+     * a channel read closes the channel.
+     */
+    void stop() {
+        stopped = true;
+        Thread thread = tailer;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops following and closes the log
+     *
+     * @throws IOException if the log could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        channel.close();
+    }
+
+    /**
+     * Applies every complete record appended since the last poll. Runs of
+     * adds are applied as one batch.
+     *
+     * @return number of records applied
+     * @throws IOException if the log could not be read
+     */
+    synchronized int poll() throws IOException {
+        int applied = 0;
+        long size = channel.size();
+        ArrayList<Product> adds = new ArrayList<>();
+
+        while (position < size) {
+            buffer.clear();
+            if (channel.read(buffer, position) <= 0) {
+                break;
+            }
+            buffer.flip();
+
+            int consumed = 0;
+            boolean grown = false;
+            while (buffer.remaining() >= ChangeLog.LENGTH_BYTES) {
+                int length = buffer.getInt(buffer.position());
+                int recordSize = ChangeLog.LENGTH_BYTES + length;
+                if (buffer.remaining() < recordSize) {
+                    if (recordSize > buffer.capacity()) {
+                        buffer = ByteBuffer.allocate(recordSize);
+                        grown = true;
+                    }
+                    break;
+                }
+
+                apply(new DataInputStream(new ByteArrayInputStream(
+                        buffer.array(), buffer.position()
+                        + ChangeLog.LENGTH_BYTES, length)), adds);
+                buffer.position(buffer.position() + recordSize);
+                consumed += recordSize;
+                applied++;
+            }
+
+            if (consumed == 0) {
+                if (grown) {
+                    continue;
+                }
+                // The primary is still writing the last record
+                break;
+            }
+            position += consumed;
+        }
+
+        addAll(adds);
+        bytesBehind = size - position;
+        return applied;
+    }
+
+    /**
+     * Applies one record, holding adds back so runs of them are added in one
+     * batch
+     */
+    private void apply(DataInputStream record, List<Product> adds)
+            throws IOException {
+        long madeMillis = record.readLong();
+        byte operation = record.readByte();
+
+        try {
+            if (operation == ChangeLog.ADD) {
+                adds.add(ChangeLog.readProduct(record));
+            } else if (operation == ChangeLog.BASE) {
+                // Names the catalog a journal continues, see CatalogFlusher
+                addAll(adds);
+            } else {
+                addAll(adds);
+                String id = record.readUTF();
+                switch (operation) {
+                    case ChangeLog.REMOVE:
+                        store.removeProduct(id);
+                        break;
+                    case ChangeLog.RENAME:
+                        store.updateName(id, record.readUTF());
+                        break;
+                    case ChangeLog.PRICE:
+                        store.updatePrice(id, record.readDouble());
+                        break;
+                    default:
+                        throw new IOException("Unknown change log operation "
+                                + operation);
+                }
+            }
+        } catch (InvalidInputException e) {
+            System.out.println("Error applying change "
+                    + (appliedSequence + adds.size() + 1) + ": "
+                    + e.getMessage());
+        }
+
+        lagMillis = System.currentTimeMillis() - madeMillis;
+        maxLagMillis = Math.max(maxLagMillis, lagMillis);
+        if (operation != ChangeLog.ADD) {
+            appliedSequence++;
+        }
+    }
+
+    /**
+     * Adds the held back products
+     */
+    private void addAll(List<Product> adds) {
+        if (!adds.isEmpty()) {
+            store.addProducts(adds);
+            appliedSequence += adds.size();
+            adds.clear();
+        }
+    }
+
+    /**
+     * Gets a checksum of the live products that does not depend on their
+     * order or ordinals, for comparing a replica with its primary
+     *
+     * @param products live products of a store
+     * @return the checksum
+     */
+    static long checksum(List<Product> products) {
+        ArrayList<Product> sorted = new ArrayList<>(products);
+        sorted.sort(Comparator.comparing(Product::getId));
+        long checksum = 17;
+        for (Product product : sorted) {
+            checksum = checksum * 31 + product.toString().hashCode();
+        }
+        return checksum;
+    }
+
+    /**
+     * Main method for running a follower process. Follows the log until
+     * standard input is closed, then applies what is left and prints the
+     * replica's state on one line.
+     *
+     * @param args snapshot file and log file of the primary
+     * @throws IOException if the snapshot or log could not be read
+     * @throws InterruptedException if interrupted while following
+     */
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: LogFollower snapshot log");
+            return;
+        }
+
+        LogFollower follower = bootstrap(Paths.get(args[0]),
+                Paths.get(args[1]));
+        while (System.in.read() >= 0) {
+            // The primary closes standard input once its log is complete
+        }
+        follower.stop();
+        follower.poll();
+        follower.close();
+
+        List<Product> products = follower.getStore().getProducts();
+        System.out.println("applied " + follower.getAppliedSequence()
+                + " products " + products.size() + " checksum "
+                + checksum(products) + " max lag "
+                + follower.getMaxLagMillis() + " ms");
+    }
+}
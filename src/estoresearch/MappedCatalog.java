@@ -0,0 +1,577 @@
+package estoresearch;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only catalog that searches a prebuilt catalog file in place through a
+ * memory map. Nothing is deserialized on open, and Book and Electronic
+ * objects are only built for the products a search returns.
+ *
+ * <p>
+ * The file is laid out as a header, fixed size product records, a term table
+ * sorted by UTF-8 bytes, keyword postings, product ordinals sorted by ID and
+ * finally a heap of length prefixed UTF-8 strings. All offsets are absolute
+ * ints, so a catalog file is at most 2 GB; write refuses catalogs that do
+ * not fit instead of wrapping offsets around.
+ *
+ * @author Courtney Bodi
+ */
+public class MappedCatalog {
+
+    static final int MAGIC = 0x45535443;
+    static final int FORMAT_VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+    static final int TERM_SIZE = 12;
+
+    static final int TYPE_BOOK = 0;
+    static final int TYPE_ELECTRONIC = 1;
+
+    // Offsets of the fields within a product record
+    private static final int TYPE = 0;
+    private static final int YEAR = 4;
+    private static final int PRICE = 8;
+    private static final int ID = 16;
+    private static final int NAME = 20;
+    private static final int AUTHOR_OR_MAKER = 24;
+    private static final int PUBLISHER = 28;
+
+    private static final int NO_STRING = -1;
+
+    static final String TOO_LARGE = "Catalog does not fit in a 2 GB catalog"
+            + " file";
+
+    private final ByteBuffer buffer;
+    private final int productCount;
+    private final int termCount;
+    private final int recordsOffset;
+    private final int termsOffset;
+    private final int idsOffset;
+
+    /**
+     * MappedCatalog constructor over a mapped catalog file
+     *
+     * @param buffer holding the whole catalog file
+     * @throws IOException if the buffer does not hold a catalog file
+     */
+    private MappedCatalog(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a catalog file");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported catalog version "
+                    + buffer.getInt(4));
+        }
+        productCount = buffer.getInt(8);
+        termCount = buffer.getInt(12);
+        recordsOffset = buffer.getInt(16);
+        termsOffset = buffer.getInt(20);
+        idsOffset = buffer.getInt(24);
+        if (productCount < 0 || termCount < 0 || recordsOffset
+                + (long) productCount * RECORD_SIZE > buffer.capacity()
+                || termsOffset + (long) termCount * TERM_SIZE
+                > buffer.capacity() || idsOffset + (long) productCount * 4
+                > buffer.capacity()) {
+            throw new IOException("Corrupt catalog file");
+        }
+    }
+
+    /**
+     * Maps a catalog file read-only, the pages are shared with every other
+     * process that maps the same file
+     *
+     * @param file written by write
+     * @return catalog searching the file in place
+     * @throws IOException if the file could not be mapped or is not a catalog
+     */
+    public static MappedCatalog open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(TOO_LARGE);
+            }
+            MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedCatalog(mapped);
+        }
+    }
+
+    /**
+     * @return number of products in the catalog
+     */
+    public int size() {
+        return productCount;
+    }
+
+    /**
+     * Builds the product stored at an ordinal
+     *
+     * @param ordinal of the product record
+     * @return a Book or Electronic holding the record's fields
+     */
+    public Product getProduct(int ordinal) {
+        int record = recordsOffset + ordinal * RECORD_SIZE;
+        String id = readString(buffer.getInt(record + ID));
+        String name = readString(buffer.getInt(record + NAME));
+        int year = buffer.getInt(record + YEAR);
+        double price = buffer.getDouble(record + PRICE);
+
+        try {
+            if (buffer.getInt(record + TYPE) == TYPE_BOOK) {
+                return new Book(id, name, year, price,
+                        readString(buffer.getInt(record + AUTHOR_OR_MAKER)),
+                        readString(buffer.getInt(record + PUBLISHER)));
+            } else {
+                return new Electronic(id, name, year, price,
+                        readString(buffer.getInt(record + AUTHOR_OR_MAKER)));
+            }
+        } catch (InvalidInputException e) {
+            throw new IllegalStateException("Corrupt product record "
+                    + ordinal, e);
+        }
+    }
+
+    /**
+     * Decodes a length prefixed UTF-8 string from the string heap
+     */
+    private String readString(int offset) {
+        if (offset == NO_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares a heap string with a key by unsigned bytes without decoding
+     */
+    private int compareString(int offset, byte[] key) {
+        int length = buffer.getInt(offset);
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(offset + 4 + i) & 0xff)
+                    - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Looks up a product by ID with a binary search over the ID section
+     *
+     * @param productID to find
+     * @return ordinal of the product, or -1 if it does not exist
+     */
+    private int findOrdinal(String productID) {
+        byte[] key = productID.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = productCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int ordinal = buffer.getInt(idsOffset + middle * 4);
+            int comparison = compareString(buffer.getInt(recordsOffset
+                    + ordinal * RECORD_SIZE + ID), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return ordinal;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up a keyword with a binary search over the term table
+     *
+     * @param keyword to find
+     * @return offset of the keyword's term entry, or -1 if it does not exist
+     */
+    private int findTerm(String keyword) {
+        byte[] key = keyword.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = termsOffset + middle * TERM_SIZE;
+            int comparison = compareString(buffer.getInt(entry), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds ordinals whose names contain every known keyword, unknown
+     * keywords are ignored as in EStoreSearch. The file does not store word
+     * positions, so quoted phrases are checked against the names of the
+     * products that have every word of the phrase.
+     */
+    private OrdinalSet findMatchingKeywordOrdinals(String keywordSearch)
+            throws InvalidInputException {
+        ArrayList<String> looseKeywords = new ArrayList<>();
+        List<PhraseQuery> phrases = PhraseQuery.parse(keywordSearch,
+                looseKeywords);
+        ArrayList<OrdinalSet> postingsSets = new ArrayList<>();
+
+        for (String searchToken : looseKeywords) {
+            OrdinalSet ordinals = getPostings(searchToken);
+            if (ordinals != null) {
+                postingsSets.add(ordinals);
+            }
+        }
+
+        for (PhraseQuery phrase : phrases) {
+            for (String term : phrase.getTerms()) {
+                OrdinalSet ordinals = getPostings(term);
+                if (ordinals == null) {
+                    return OrdinalSet.empty();
+                }
+                postingsSets.add(ordinals);
+            }
+        }
+
+        OrdinalSet matches = EStoreSearch.intersect(postingsSets);
+        if (matches == null || phrases.isEmpty()) {
+            return matches == null ? OrdinalSet.empty() : matches;
+        }
+
+        OrdinalSet.Builder phraseMatches = new OrdinalSet.Builder();
+        for (int ordinal : matches.toArray()) {
+            String[] nameTokens = SegmentedIndex.tokenize(getProduct(ordinal)
+                    .getName());
+            boolean matchesEveryPhrase = true;
+            for (PhraseQuery phrase : phrases) {
+                matchesEveryPhrase &= phrase.matches(nameTokens);
+            }
+            if (matchesEveryPhrase) {
+                phraseMatches.add(ordinal);
+            }
+        }
+        return phraseMatches.build();
+    }
+
+    /**
+     * Reads the postings of a keyword, which the file keeps in ascending
+     * order
+     *
+     * @return the ordinals, or null if no name has the keyword
+     */
+    private OrdinalSet getPostings(String keyword) {
+        int entry = findTerm(keyword);
+        if (entry < 0) {
+            return null;
+        }
+
+        int postings = buffer.getInt(entry + 4);
+        int count = buffer.getInt(entry + 8);
+        OrdinalSet.Builder ordinals = new OrdinalSet.Builder();
+        for (int i = 0; i < count; i++) {
+            ordinals.add(buffer.getInt(postings + i * 4));
+        }
+        return ordinals.build();
+    }
+
+    /**
+     * Finds ordinals released within the time period by scanning the year
+     * field of every record
+     */
+    private OrdinalSet findMatchingTimePeriodOrdinals(int start, int end) {
+        OrdinalSet.Builder matches = new OrdinalSet.Builder();
+        int yearOffset = recordsOffset + YEAR;
+        for (int ordinal = 0; ordinal < productCount; ordinal++) {
+            int year = buffer.getInt(yearOffset + ordinal * RECORD_SIZE);
+            if (year >= start && year <= end) {
+                matches.add(ordinal);
+            }
+        }
+        return matches.build();
+    }
+
+    /**
+     * Performs search and builds at most limit matching products
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param limit maximum number of products to return, or
+     * EStoreSearch.NO_LIMIT
+     * @return list of matching products in file order
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public ArrayList<Product> search(String productID, String keywords,
+            String startYear, String endYear, int limit)
+            throws InvalidInputException {
+
+        SearchResult result = search(productID, keywords, startYear, endYear);
+        return result.getPage(0, Math.min(limit, result.size()));
+    }
+
+    /**
+     * Performs search on ordinals, products are only built from the result
+     * when they are used
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @return ordinals of matching products in file order
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public SearchResult search(String productID, String keywords,
+            String startYear, String endYear) throws InvalidInputException {
+
+        int[] yearRange = EStoreSearch.parseYearRange(startYear, endYear);
+
+        ArrayList<OrdinalSet> predicates = new ArrayList<>(3);
+        if (!productID.equals("")) {
+            int ordinal = findOrdinal(productID);
+            predicates.add(ordinal >= 0 ? OrdinalSet.of(ordinal)
+                    : OrdinalSet.empty());
+        }
+        if (!keywords.equals("")) {
+            predicates.add(findMatchingKeywordOrdinals(keywords));
+        }
+        if (yearRange != null) {
+            predicates.add(findMatchingTimePeriodOrdinals(yearRange[0],
+                    yearRange[1]));
+        }
+
+        OrdinalSet matches = EStoreSearch.intersect(predicates);
+        if (matches == null) {
+            matches = OrdinalSet.range(productCount);
+        }
+        return new SearchResult(matches, this::getProduct);
+    }
+
+    /**
+     * Performs search
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @return string of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public String executeSearch(String productID, String keywords,
+            String startYear, String endYear) throws InvalidInputException {
+        SearchResult result = search(productID, keywords, startYear, endYear);
+        return result.formatPage(0, Math.max(1, result.size()));
+    }
+
+    /**
+     * Writes the products of an EStoreSearch as a catalog file, through a
+     * temporary file and rename so processes that have the old file mapped
+     * keep a consistent view
+     *
+     * @param eStoreSearch whose products are written
+     * @param file to write
+     * @throws IOException if the file could not be written, or the catalog
+     * does not fit in a 2 GB catalog file
+     */
+    public static void write(EStoreSearch eStoreSearch, Path file)
+            throws IOException {
+        ArrayList<Product> products = eStoreSearch.getProducts();
+        int productCount = products.size();
+
+        // Keyword postings in ordinal order, like the EStoreSearch index
+        TermDictionary dictionary = new TermDictionary();
+        ArrayList<IntList> postings = new ArrayList<>();
+        int postingCount = 0;
+        for (int ordinal = 0; ordinal < productCount; ordinal++) {
+            for (String keyword : products.get(ordinal).getName()
+                    .toLowerCase().split("\\s+")) {
+                int term = dictionary.add(keyword);
+                if (term == postings.size()) {
+                    postings.add(new IntList());
+                }
+                IntList ordinals = postings.get(term);
+                if (ordinals.size() == 0 || ordinals.last() != ordinal) {
+                    ordinals.add(ordinal);
+                    postingCount++;
+                }
+            }
+        }
+
+        // Sorted by unsigned bytes, the order used by findTerm
+        int[] terms = dictionary.sortedIds();
+
+        Integer[] idOrder = new Integer[productCount];
+        for (int i = 0; i < productCount; i++) {
+            idOrder[i] = i;
+        }
+        Arrays.sort(idOrder, (a, b) -> products.get(a).getId()
+                .compareTo(products.get(b).getId()));
+
+        int recordsOffset = HEADER_SIZE;
+        int termsOffset = offsetAfter(recordsOffset, productCount,
+                RECORD_SIZE);
+        int postingsOffset = offsetAfter(termsOffset, terms.length,
+                TERM_SIZE);
+        int idsOffset = offsetAfter(postingsOffset, postingCount, 4);
+        int stringsOffset = offsetAfter(idsOffset, productCount, 4);
+
+        ByteArrayOutputStream heapBytes = new ByteArrayOutputStream();
+        DataOutputStream heap = new DataOutputStream(heapBytes);
+
+        Path temporary = CatalogFlusher.temporaryFor(file);
+        boolean written = false;
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary),
+                        1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(productCount);
+            output.writeInt(terms.length);
+            output.writeInt(recordsOffset);
+            output.writeInt(termsOffset);
+            output.writeInt(idsOffset);
+            output.writeInt(stringsOffset);
+
+            for (Product product : products) {
+                boolean book = product instanceof Book;
+                output.writeInt(book ? TYPE_BOOK : TYPE_ELECTRONIC);
+                output.writeInt(product.getYear());
+                output.writeDouble(product.getPrice());
+                output.writeInt(appendString(heap, stringsOffset,
+                        product.getId()));
+                output.writeInt(appendString(heap, stringsOffset,
+                        product.getName()));
+                if (book) {
+                    output.writeInt(appendString(heap, stringsOffset,
+                            ((Book) product).getAuthor()));
+                    output.writeInt(appendString(heap, stringsOffset,
+                            ((Book) product).getPublisher()));
+                } else {
+                    output.writeInt(appendString(heap, stringsOffset,
+                            ((Electronic) product).getMaker()));
+                    output.writeInt(NO_STRING);
+                }
+            }
+
+            int postingOffset = postingsOffset;
+            for (int term : terms) {
+                int size = postings.get(term).size();
+                output.writeInt(appendBytes(heap, stringsOffset,
+                        dictionary.getBytes(term)));
+                output.writeInt(postingOffset);
+                output.writeInt(size);
+                postingOffset += size * 4;
+            }
+
+            for (int term : terms) {
+                IntList ordinals = postings.get(term);
+                for (int i = 0; i < ordinals.size(); i++) {
+                    output.writeInt(ordinals.get(i));
+                }
+            }
+
+            for (int ordinal : idOrder) {
+                output.writeInt(ordinal);
+            }
+
+            heapBytes.writeTo(output);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        CatalogFlusher.replace(temporary, file);
+    }
+
+    /**
+     * Gets the offset just past a section of count entries of size bytes
+     *
+     * @throws IOException if the offset does not fit in an int
+     */
+    private static int offsetAfter(int offset, int count, int size)
+            throws IOException {
+        try {
+            return Math.addExact(offset, Math.multiplyExact(count, size));
+        } catch (ArithmeticException e) {
+            throw new IOException(TOO_LARGE, e);
+        }
+    }
+
+    /**
+     * Appends a length prefixed UTF-8 string to the heap
+     *
+     * @return absolute offset of the string, or NO_STRING for null
+     */
+    private static int appendString(DataOutputStream heap, int heapOffset,
+            String string) throws IOException {
+        if (string == null) {
+            return NO_STRING;
+        }
+        return appendBytes(heap, heapOffset, string.getBytes(
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends length prefixed bytes to the heap
+     *
+     * @return absolute offset of the bytes
+     * @throws IOException if they would end past the last int offset
+     */
+    private static int appendBytes(DataOutputStream heap, int heapOffset,
+            byte[] bytes) throws IOException {
+        int offset = offsetAfter(heapOffset, heap.size(), 1);
+        offsetAfter(offset, bytes.length + 4, 1);
+        heap.writeInt(bytes.length);
+        heap.write(bytes);
+        return offset;
+    }
+
+    /**
+     * Builds a catalog file from a products file
+     *
+     * @param args products file in the form of attribute = "value" and the
+     * catalog file to write
+     * @throws IOException if the catalog file could not be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: MappedCatalog <products file>"
+                    + " <catalog file>");
+            return;
+        }
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        eStoreSearch.loadProducts(args[0]);
+        write(eStoreSearch, Paths.get(args[1]));
+    }
+}
@@ -0,0 +1,798 @@
+package estoresearch;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Immutable compressed set of product ordinals that search predicates are
+ * combined through. Ordinals are split into chunks of 65536 by their high 16
+ * bits, and each chunk is kept in the container that suits its cardinality:
+ * a sorted array of low bits for up to ARRAY_MAX ordinals, otherwise a
+ * 65536 bit bitmap. AND, OR and AND NOT work chunk by chunk and pick the
+ * algorithm and the result container from the cardinalities involved, so a
+ * rare keyword costs a few bytes and intersecting with it skips whole
+ * bitmaps.
+ *
+ * @author Courtney Bodi
+ */
+final class OrdinalSet {
+
+    /**
+     * Most ordinals an array container holds, beyond this a bitmap is
+     * smaller
+     */
+    static final int ARRAY_MAX = 4096;
+
+    private static final int CHUNK_BITS = 16;
+    private static final int LOW_MASK = (1 << CHUNK_BITS) - 1;
+    private static final int BITMAP_WORDS = (1 << CHUNK_BITS) / 64;
+
+    /**
+     * Array size ratio beyond which intersections binary search the larger
+     * array instead of merging
+     */
+    private static final int GALLOP_RATIO = 32;
+
+    private static final OrdinalSet EMPTY = new OrdinalSet(new char[0],
+            new Container[0], 0);
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    /**
+     * Ordinals of one chunk, exactly one of values and words is set
+     */
+    private static final class Container {
+
+        private final char[] values;
+        private final long[] words;
+        private final int cardinality;
+
+        private Container(char[] values, long[] words, int cardinality) {
+            this.values = values;
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        private static Container ofArray(char[] values, int cardinality) {
+            return new Container(values.length == cardinality ? values
+                    : Arrays.copyOf(values, cardinality), null, cardinality);
+        }
+
+        /**
+         * Wraps bitmap words, as an array container if few bits are set
+         */
+        private static Container ofWords(long[] words, int cardinality) {
+            if (cardinality == 0) {
+                return null;
+            }
+            if (cardinality > ARRAY_MAX) {
+                return new Container(null, words, cardinality);
+            }
+
+            char[] values = new char[cardinality];
+            int index = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[index++] = (char) ((i << 6)
+                            + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new Container(values, null, cardinality);
+        }
+
+        private boolean isBitmap() {
+            return words != null;
+        }
+
+        private boolean contains(char value) {
+            return isBitmap() ? (words[value >>> 6] & (1L << value)) != 0
+                    : Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        /**
+         * @return the smallest value at or after from, or -1 if none is
+         */
+        private int next(int from) {
+            if (isBitmap()) {
+                int w = from >>> 6;
+                long word = words[w] & (-1L << from);
+                while (word == 0) {
+                    if (++w == BITMAP_WORDS) {
+                        return -1;
+                    }
+                    word = words[w];
+                }
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            int index = Arrays.binarySearch(values, 0, cardinality,
+                    (char) from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < cardinality ? values[index] : -1;
+        }
+
+        private long[] toWords() {
+            if (isBitmap()) {
+                return words.clone();
+            }
+            long[] bitmap = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bitmap[values[i] >>> 6] |= 1L << values[i];
+            }
+            return bitmap;
+        }
+
+        private long getSizeInBytes() {
+            return isBitmap() ? 8L * words.length : 2L * values.length;
+        }
+    }
+
+    /**
+     * OrdinalSet constructor with all members
+     *
+     * @param keys ascending high bits of every chunk
+     * @param containers non-empty container of each chunk
+     * @param cardinality number of ordinals in the set
+     */
+    private OrdinalSet(char[] keys, Container[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Appends ordinals in ascending order, one chunk at a time
+     */
+    static final class Builder {
+
+        private char[] keys = new char[4];
+        private Container[] containers = new Container[4];
+        private int size;
+        private int cardinality;
+
+        private int currentKey = -1;
+        private char[] values = new char[16];
+        private long[] words;
+        private int count;
+        private int last = -1;
+
+        /**
+         * Adds an ordinal larger than every ordinal added so far
+         *
+         * @param ordinal to add
+         */
+        void add(int ordinal) {
+            if (ordinal <= last) {
+                throw new IllegalArgumentException("Ordinals must ascend");
+            }
+            last = ordinal;
+
+            int key = ordinal >>> CHUNK_BITS;
+            if (key != currentKey) {
+                finishChunk();
+                currentKey = key;
+            }
+
+            char low = (char) (ordinal & LOW_MASK);
+            if (words != null) {
+                words[low >>> 6] |= 1L << low;
+            } else if (count == ARRAY_MAX) {
+                words = new long[BITMAP_WORDS];
+                for (int i = 0; i < count; i++) {
+                    words[values[i] >>> 6] |= 1L << values[i];
+                }
+                words[low >>> 6] |= 1L << low;
+            } else {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count] = low;
+            }
+            count++;
+        }
+
+        /**
+         * @return the set of the added ordinals
+         */
+        OrdinalSet build() {
+            finishChunk();
+            return size == 0 ? EMPTY : new OrdinalSet(Arrays.copyOf(keys,
+                    size), Arrays.copyOf(containers, size), cardinality);
+        }
+
+        private void finishChunk() {
+            if (count == 0) {
+                return;
+            }
+            append(words != null ? new Container(null, words, count)
+                    : Container.ofArray(values, count));
+            values = new char[16];
+            words = null;
+            count = 0;
+        }
+
+        private void append(Container container) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            keys[size] = (char) currentKey;
+            containers[size++] = container;
+            cardinality += container.cardinality;
+        }
+    }
+
+    /**
+     * @return the empty set
+     */
+    static OrdinalSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Gets a set of one ordinal
+     *
+     * @param ordinal in the set
+     * @return the set
+     */
+    static OrdinalSet of(int ordinal) {
+        Builder builder = new Builder();
+        builder.add(ordinal);
+        return builder.build();
+    }
+
+    /**
+     * Gets the set of every ordinal from 0 up to but not including a bound
+     *
+     * @param to bound of the range
+     * @return the set
+     */
+    static OrdinalSet range(int to) {
+        long[] words = new long[(to + 63) >>> 6];
+        Arrays.fill(words, -1L);
+        if ((to & 63) != 0) {
+            words[words.length - 1] = (1L << to) - 1;
+        }
+        return fromWords(words);
+    }
+
+    /**
+     * Gets the set of the bits set in bitmap words, bit i of word w being
+     * ordinal 64 * w + i
+     *
+     * @param words of the bitmap, not modified
+     * @return the set
+     */
+    static OrdinalSet fromWords(long[] words) {
+        int chunks = (words.length + BITMAP_WORDS - 1) / BITMAP_WORDS;
+        char[] keys = new char[chunks];
+        Container[] containers = new Container[chunks];
+        int size = 0;
+        int cardinality = 0;
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int from = chunk * BITMAP_WORDS;
+            int to = Math.min(words.length, from + BITMAP_WORDS);
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                count += Long.bitCount(words[i]);
+            }
+            if (count == 0) {
+                continue;
+            }
+
+            long[] chunkWords = new long[BITMAP_WORDS];
+            System.arraycopy(words, from, chunkWords, 0, to - from);
+            keys[size] = (char) chunk;
+            containers[size++] = Container.ofWords(chunkWords, count);
+            cardinality += count;
+        }
+        return size == 0 ? EMPTY : new OrdinalSet(Arrays.copyOf(keys, size),
+                Arrays.copyOf(containers, size), cardinality);
+    }
+
+    /**
+     * Gets the set of the bits set in a bitset
+     *
+     * @param bitSet of ordinals, not modified
+     * @return the set
+     */
+    static OrdinalSet fromBitSet(BitSet bitSet) {
+        return fromWords(bitSet.toLongArray());
+    }
+
+    /**
+     * @return number of ordinals in the set
+     */
+    int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return whether the set has no ordinals
+     */
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Checks if an ordinal is in the set
+     *
+     * @param ordinal to look for
+     * @return whether the set contains the ordinal
+     */
+    boolean contains(int ordinal) {
+        int index = Arrays.binarySearch(keys, (char) (ordinal >>> CHUNK_BITS));
+        return ordinal >= 0 && index >= 0
+                && containers[index].contains((char) (ordinal & LOW_MASK));
+    }
+
+    /**
+     * Finds the smallest ordinal of the set at or after another, so a set
+     * can be walked lazily
+     *
+     * @param from non-negative ordinal to start at
+     * @return the ordinal, or -1 if the set has none at or after from
+     */
+    int next(int from) {
+        int key = from >>> CHUNK_BITS;
+        int index = Arrays.binarySearch(keys, (char) key);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (; index < keys.length; index++) {
+            int low = keys[index] == key ? from & LOW_MASK : 0;
+            int value = containers[index].next(low);
+            if (value >= 0) {
+                return (keys[index] << CHUNK_BITS) + value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return ordinals of the set in ascending order
+     */
+    int[] toArray() {
+        int[] ordinals = new int[cardinality];
+        int index = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int high = keys[i] << CHUNK_BITS;
+            Container container = containers[i];
+            if (container.isBitmap()) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = container.words[w];
+                    while (word != 0) {
+                        ordinals[index++] = high + (w << 6)
+                                + Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (int v = 0; v < container.cardinality; v++) {
+                    ordinals[index++] = high + container.values[v];
+                }
+            }
+        }
+        return ordinals;
+    }
+
+    /**
+     * @return a bitset of the ordinals, for consumers that probe ordinals
+     * one at a time
+     */
+    BitSet toBitSet() {
+        if (keys.length == 0) {
+            return new BitSet();
+        }
+        long[] words = new long[(keys[keys.length - 1] + 1) * BITMAP_WORDS];
+        for (int i = 0; i < keys.length; i++) {
+            Container container = containers[i];
+            int base = keys[i] * BITMAP_WORDS;
+            if (container.isBitmap()) {
+                System.arraycopy(container.words, 0, words, base,
+                        BITMAP_WORDS);
+            } else {
+                for (int v = 0; v < container.cardinality; v++) {
+                    char value = container.values[v];
+                    words[base + (value >>> 6)] |= 1L << value;
+                }
+            }
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * @return approximate bytes used by the containers' keys and contents
+     */
+    long getSizeInBytes() {
+        long bytes = 2L * keys.length;
+        for (Container container : containers) {
+            bytes += container.getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Intersects the set with another
+     *
+     * @param other set to intersect with
+     * @return ordinals in both sets
+     */
+    OrdinalSet and(OrdinalSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return EMPTY;
+        }
+
+        int capacity = Math.min(keys.length, other.keys.length);
+        char[] newKeys = new char[capacity];
+        Container[] newContainers = new Container[capacity];
+        int size = 0;
+        int newCardinality = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = and(containers[i],
+                        other.containers[j]);
+                if (container != null) {
+                    newKeys[size] = keys[i];
+                    newContainers[size++] = container;
+                    newCardinality += container.cardinality;
+                }
+                i++;
+                j++;
+            }
+        }
+        return newSet(newKeys, newContainers, size, newCardinality);
+    }
+
+    /**
+     * Unites the set with another
+     *
+     * @param other set to unite with
+     * @return ordinals in either set
+     */
+    OrdinalSet or(OrdinalSet other) {
+        if (isEmpty()) {
+            return other;
+        } else if (other.isEmpty()) {
+            return this;
+        }
+
+        int capacity = keys.length + other.keys.length;
+        char[] newKeys = new char[capacity];
+        Container[] newContainers = new Container[capacity];
+        int size = 0;
+        int newCardinality = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            Container container;
+            if (j == other.keys.length
+                    || (i < keys.length && keys[i] < other.keys[j])) {
+                newKeys[size] = keys[i];
+                container = containers[i++];
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                newKeys[size] = other.keys[j];
+                container = other.containers[j++];
+            } else {
+                newKeys[size] = keys[i];
+                container = or(containers[i++], other.containers[j++]);
+            }
+            newContainers[size++] = container;
+            newCardinality += container.cardinality;
+        }
+        return newSet(newKeys, newContainers, size, newCardinality);
+    }
+
+    /**
+     * Removes the ordinals of another set from the set
+     *
+     * @param other set of ordinals to remove
+     * @return ordinals in this set but not the other
+     */
+    OrdinalSet andNot(OrdinalSet other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+
+        char[] newKeys = new char[keys.length];
+        Container[] newContainers = new Container[keys.length];
+        int size = 0;
+        int newCardinality = 0;
+
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Container container = j < other.keys.length
+                    && other.keys[j] == keys[i]
+                    ? andNot(containers[i], other.containers[j])
+                    : containers[i];
+            if (container != null) {
+                newKeys[size] = keys[i];
+                newContainers[size++] = container;
+                newCardinality += container.cardinality;
+            }
+        }
+        return newSet(newKeys, newContainers, size, newCardinality);
+    }
+
+    /**
+     * Complements the set within a universe of ordinals
+     *
+     * @param universe number of ordinals, from 0
+     * @return ordinals below universe that are not in the set
+     */
+    OrdinalSet not(int universe) {
+        return range(universe).andNot(this);
+    }
+
+    private static OrdinalSet newSet(char[] keys, Container[] containers,
+            int size, int cardinality) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        return new OrdinalSet(size == keys.length ? keys
+                : Arrays.copyOf(keys, size), size == containers.length
+                ? containers : Arrays.copyOf(containers, size), cardinality);
+    }
+
+    /**
+     * Intersects two containers
+     *
+     * @return the intersection, or null if it is empty
+     */
+    private static Container and(Container a, Container b) {
+        if (a.isBitmap() && b.isBitmap()) {
+            long[] words = new long[BITMAP_WORDS];
+            int count = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] = a.words[w] & b.words[w];
+                count += Long.bitCount(words[w]);
+            }
+            return Container.ofWords(words, count);
+        } else if (a.isBitmap() || b.isBitmap()) {
+            Container array = a.isBitmap() ? b : a;
+            Container bitmap = a.isBitmap() ? a : b;
+            char[] values = new char[array.cardinality];
+            int count = 0;
+            for (int v = 0; v < array.cardinality; v++) {
+                char value = array.values[v];
+                if ((bitmap.words[value >>> 6] & (1L << value)) != 0) {
+                    values[count++] = value;
+                }
+            }
+            return count == 0 ? null : Container.ofArray(values, count);
+        }
+
+        Container small = a.cardinality <= b.cardinality ? a : b;
+        Container large = small == a ? b : a;
+        char[] values = new char[small.cardinality];
+        int count = 0;
+        if (small.cardinality * GALLOP_RATIO < large.cardinality) {
+            int from = 0;
+            for (int v = 0; v < small.cardinality
+                    && from < large.cardinality; v++) {
+                int index = Arrays.binarySearch(large.values, from,
+                        large.cardinality, small.values[v]);
+                if (index >= 0) {
+                    values[count++] = small.values[v];
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < small.cardinality && j < large.cardinality) {
+                if (small.values[i] < large.values[j]) {
+                    i++;
+                } else if (small.values[i] > large.values[j]) {
+                    j++;
+                } else {
+                    values[count++] = small.values[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return count == 0 ? null : Container.ofArray(values, count);
+    }
+
+    /**
+     * Unites two containers
+     */
+    private static Container or(Container a, Container b) {
+        if (!a.isBitmap() && !b.isBitmap()
+                && a.cardinality + b.cardinality <= ARRAY_MAX) {
+            char[] values = new char[a.cardinality + b.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.cardinality || j < b.cardinality) {
+                if (j == b.cardinality || (i < a.cardinality
+                        && a.values[i] < b.values[j])) {
+                    values[count++] = a.values[i++];
+                } else if (i == a.cardinality || a.values[i] > b.values[j]) {
+                    values[count++] = b.values[j++];
+                } else {
+                    values[count++] = a.values[i++];
+                    j++;
+                }
+            }
+            return Container.ofArray(values, count);
+        }
+
+        Container bitmap = a.isBitmap() ? a : b;
+        Container other = bitmap == a ? b : a;
+        long[] words = bitmap.toWords();
+        int count = bitmap.cardinality;
+        if (other.isBitmap()) {
+            count = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] |= other.words[w];
+                count += Long.bitCount(words[w]);
+            }
+        } else if (bitmap.isBitmap()) {
+            for (int v = 0; v < other.cardinality; v++) {
+                long bit = 1L << other.values[v];
+                int w = other.values[v] >>> 6;
+                if ((words[w] & bit) == 0) {
+                    words[w] |= bit;
+                    count++;
+                }
+            }
+        } else {
+            // Two arrays too large to merge into an array
+            for (int v = 0; v < other.cardinality; v++) {
+                words[other.values[v] >>> 6] |= 1L << other.values[v];
+            }
+            count = 0;
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+        }
+        return Container.ofWords(words, count);
+    }
+
+    /**
+     * Removes the values of one container from another
+     *
+     * @return the difference, or null if it is empty
+     */
+    private static Container andNot(Container a, Container b) {
+        if (a.isBitmap()) {
+            long[] words = a.words.clone();
+            int count = a.cardinality;
+            if (b.isBitmap()) {
+                count = 0;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] &= ~b.words[w];
+                    count += Long.bitCount(words[w]);
+                }
+            } else {
+                for (int v = 0; v < b.cardinality; v++) {
+                    long bit = 1L << b.values[v];
+                    int w = b.values[v] >>> 6;
+                    if ((words[w] & bit) != 0) {
+                        words[w] &= ~bit;
+                        count--;
+                    }
+                }
+            }
+            return Container.ofWords(words, count);
+        }
+
+        char[] values = new char[a.cardinality];
+        int count = 0;
+        if (b.isBitmap()) {
+            for (int i = 0; i < a.cardinality; i++) {
+                char value = a.values[i];
+                if ((b.words[value >>> 6] & (1L << value)) == 0) {
+                    values[count++] = value;
+                }
+            }
+        } else {
+            int j = 0;
+            for (int i = 0; i < a.cardinality; i++) {
+                char value = a.values[i];
+                while (j < b.cardinality && b.values[j] < value) {
+                    j++;
+                }
+                if (j == b.cardinality || b.values[j] != value) {
+                    values[count++] = value;
+                }
+            }
+        }
+        return count == 0 ? null : Container.ofArray(values, count);
+    }
+
+    /**
+     * Main method for benchmarking memory and speed of the set against
+     * java.util.BitSet over a sparse, a medium and a dense predicate
+     *
+     * @param args optional universe size
+     */
+    public static void main(String[] args) {
+        int universe = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int rounds = 200;
+        Random random = new Random(42);
+        double[] densities = {0.0005, 0.02, 0.5};
+
+        BitSet[] bitSets = new BitSet[densities.length];
+        OrdinalSet[] ordinalSets = new OrdinalSet[densities.length];
+        System.out.println("OrdinalSet benchmark, " + universe
+                + " ordinals\n");
+        System.out.println("Density\tBitSet bytes\tOrdinalSet bytes");
+        for (int d = 0; d < densities.length; d++) {
+            bitSets[d] = new BitSet(universe);
+            for (int i = 0; i < universe; i++) {
+                if (random.nextDouble() < densities[d]) {
+                    bitSets[d].set(i);
+                }
+            }
+            ordinalSets[d] = fromBitSet(bitSets[d]);
+            System.out.println(densities[d] + "\t" + bitSets[d].size() / 8
+                    + "\t\t" + ordinalSets[d].getSizeInBytes());
+        }
+
+        System.out.println("\nOperation\t\tBitSet us\tOrdinalSet us");
+        long checksum = 0;
+        for (int a = 0; a < densities.length; a++) {
+            for (int b = a; b < densities.length; b++) {
+                for (int op = 0; op < 3; op++) {
+                    long[] nanos = new long[2];
+                    for (int round = -rounds / 4; round < rounds; round++) {
+                        long begin = System.nanoTime();
+                        BitSet bitSet = (BitSet) bitSets[a].clone();
+                        if (op == 0) {
+                            bitSet.and(bitSets[b]);
+                        } else if (op == 1) {
+                            bitSet.or(bitSets[b]);
+                        } else {
+                            bitSet.andNot(bitSets[b]);
+                        }
+                        checksum += bitSet.cardinality();
+                        long middle = System.nanoTime();
+
+                        OrdinalSet ordinalSet = op == 0
+                                ? ordinalSets[a].and(ordinalSets[b])
+                                : op == 1 ? ordinalSets[a].or(ordinalSets[b])
+                                : ordinalSets[a].andNot(ordinalSets[b]);
+                        checksum -= ordinalSet.cardinality();
+                        long end = System.nanoTime();
+
+                        // Negative rounds warm up
+                        if (round >= 0) {
+                            nanos[0] += middle - begin;
+                            nanos[1] += end - middle;
+                        }
+                    }
+                    String name = densities[a] + (op == 0 ? " AND "
+                            : op == 1 ? " OR " : " ANDNOT ") + densities[b];
+                    System.out.println(name + (name.length() < 16 ? "\t\t"
+                            : "\t") + nanos[0] / rounds / 1000 + "\t\t"
+                            + nanos[1] / rounds / 1000);
+                }
+            }
+        }
+        System.out.println("(checksum " + checksum + ", 0 when the results"
+                + " agree)");
+    }
+}
@@ -0,0 +1,312 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Quoted phrase in a keyword search. "harry potter" matches names with the
+ * two words next to each other and in that order, "harry potter"~2 also
+ * matches when up to two other words fall between them.
+ *
+ * @author Courtney Bodi
+ */
+final class PhraseQuery {
+
+    public static final String INVALID_PHRASE = "Invalid input: phrases must"
+            + " be closed with a quote and slop must be a whole number";
+
+    private final String[] terms;
+    private final int slop;
+
+    /**
+     * PhraseQuery constructor with all members
+     *
+     * @param terms lower case words of the phrase in order
+     * @param slop number of other words allowed between the terms
+     */
+    PhraseQuery(String[] terms, int slop) {
+        this.terms = terms;
+        this.slop = slop;
+    }
+
+    /**
+     * @return lower case words of the phrase in order
+     */
+    String[] getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return number of other words allowed between the terms
+     */
+    int getSlop() {
+        return slop;
+    }
+
+    /**
+     * Splits a keyword search into quoted phrases and loose keywords
+     *
+     * @param keywordSearch user input
+     * @param keywords list the loose keywords are added to
+     * @return phrases of the search
+     * @throws InvalidInputException if a quote is not closed or a slop is not
+     * a whole number
+     */
+    static List<PhraseQuery> parse(String keywordSearch, List<String> keywords)
+            throws InvalidInputException {
+        ArrayList<PhraseQuery> phrases = new ArrayList<>();
+        int position = 0;
+
+        while (position < keywordSearch.length()) {
+            int quote = keywordSearch.indexOf('"', position);
+            String loose = quote < 0 ? keywordSearch.substring(position)
+                    : keywordSearch.substring(position, quote);
+            for (String keyword : loose.trim().split("\\s+")) {
+                if (!keyword.isEmpty()) {
+                    keywords.add(keyword);
+                }
+            }
+            if (quote < 0) {
+                break;
+            }
+
+            int closingQuote = keywordSearch.indexOf('"', quote + 1);
+            if (closingQuote < 0) {
+                throw new InvalidInputException(INVALID_PHRASE);
+            }
+            position = closingQuote + 1;
+
+            int slop = 0;
+            if (position < keywordSearch.length()
+                    && keywordSearch.charAt(position) == '~') {
+                int end = position + 1;
+                while (end < keywordSearch.length()
+                        && Character.isDigit(keywordSearch.charAt(end))) {
+                    end++;
+                }
+                try {
+                    slop = Integer.parseInt(keywordSearch.substring(
+                            position + 1, end));
+                } catch (NumberFormatException e) {
+                    throw new InvalidInputException(INVALID_PHRASE);
+                }
+                position = end;
+            }
+
+            String text = keywordSearch.substring(quote + 1, closingQuote)
+                    .trim();
+            if (!text.isEmpty()) {
+                phrases.add(new PhraseQuery(SegmentedIndex.tokenize(text),
+                        slop));
+            }
+        }
+        return phrases;
+    }
+
+    /**
+     * Checks the position masks of the phrase's terms in one name. For every
+     * number of skipped words up to the slop, the positions where the terms
+     * so far can end are carried from term to term as a mask.
+     *
+     * @param masks position mask of each term in the name, in the order of
+     * the terms, none with PositionalPostings.LONG_NAME set
+     * @return whether the terms occur in order within the slop
+     */
+    boolean matches(long[] masks) {
+        int maxGap = Math.min(slop, PositionalPostings.MAX_POSITION);
+        if (maxGap == 0) {
+            long ends = masks[0];
+            for (int i = 1; i < masks.length && ends != 0; i++) {
+                ends = (ends << 1) & masks[i];
+            }
+            return ends != 0;
+        }
+
+        // ends[gap] holds where the terms so far end with gap words skipped
+        long[] ends = new long[maxGap + 1];
+        ends[0] = masks[0];
+        for (int i = 1; i < masks.length; i++) {
+            boolean reachable = false;
+            // Descending, so ends[0..gap] still hold the previous term
+            for (int gap = maxGap; gap >= 0; gap--) {
+                long next = 0;
+                for (int skipped = 0; skipped <= gap; skipped++) {
+                    next |= ends[gap - skipped] << (skipped + 1);
+                }
+                ends[gap] = next & masks[i];
+                reachable |= ends[gap] != 0;
+            }
+            if (!reachable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the positions of the phrase's terms in one name. Starting from
+     * each position of the first term, the nearest following position of
+     * every later term is taken, which gives the shortest in order match
+     * starting there.
+     *
+     * @param positions ascending positions of each term in the name, in the
+     * order of the terms
+     * @return whether the terms occur in order within the slop
+     */
+    private boolean matches(int[][] positions) {
+        int[] first = positions[0];
+        for (int start : first) {
+            int previous = start;
+            boolean complete = true;
+
+            for (int i = 1; i < positions.length && complete; i++) {
+                int next = firstAfter(positions[i], previous);
+                if (next < 0 || next - start - i > slop) {
+                    complete = false;
+                } else {
+                    previous = next;
+                }
+            }
+            if (complete) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks a tokenized name directly, used where positions are not indexed
+     * or the name is too long for a position mask
+     *
+     * @param nameTokens output of SegmentedIndex.tokenize
+     * @return whether the phrase occurs in the name
+     */
+    boolean matches(String[] nameTokens) {
+        int[][] positions = new int[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            IntList termPositions = new IntList();
+            for (int j = 0; j < nameTokens.length; j++) {
+                if (nameTokens[j].equals(terms[i])) {
+                    termPositions.add(j);
+                }
+            }
+            if (termPositions.size() == 0) {
+                return false;
+            }
+            positions[i] = termPositions.toArray();
+        }
+        return matches(positions);
+    }
+
+    /**
+     * Finds the first position after a position
+     *
+     * @return the position, or -1 if there is none
+     */
+    private static int firstAfter(int[] positions, int after) {
+        for (int position : positions) {
+            if (position > after) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("\"")
+                .append(String.join(" ", terms)).append('"');
+        if (slop > 0) {
+            text.append('~').append(slop);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Main method for testing phrases and benchmarking them against a plain
+     * AND of the same words
+     *
+     * @param args optional catalog size, at most 1000000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int rounds = 50;
+        Random random = new Random(42);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "w" + i;
+        }
+        words[0] = "harry";
+        words[1] = "potter";
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        eStoreSearch.addBook("000000", "Harry Potter and the Stone", "1997",
+                "", "", "");
+        eStoreSearch.addElectronic("000001", "Potter Harry Bag", "2001", "",
+                "");
+        eStoreSearch.addBook("000002", "Harry the Young Potter", "2003", "",
+                "", "");
+        for (int i = 3; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = 3 + random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                // Skewed so the two phrase words are common
+                name.append(words[(int) (words.length * Math.pow(
+                        random.nextDouble(), 4))]).append(' ');
+            }
+            eStoreSearch.addElectronic(String.format("%06d", i),
+                    name.toString().trim(), "2000", "", "");
+        }
+
+        System.out.println("PhraseQuery Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        System.out.println(!eStoreSearch.search("000001", "\"harry potter\"",
+                "", "").isEmpty() == false);
+        System.out.println(!eStoreSearch.search("000000", "\"harry potter\"",
+                "", "").isEmpty());
+        System.out.println(eStoreSearch.search("000002", "\"harry potter\"",
+                "", "").isEmpty());
+        System.out.println(!eStoreSearch.search("000002",
+                "\"harry potter\"~2", "", "").isEmpty());
+        System.out.println(eStoreSearch.search("000002",
+                "\"harry potter\"~1", "", "").isEmpty());
+        try {
+            eStoreSearch.search("", "\"harry potter", "", "");
+            System.out.println(false);
+        } catch (InvalidInputException e) {
+            System.out.println(true);
+        }
+
+        String and = "harry potter";
+        String phrase = "\"harry potter\"";
+        long matches = 0;
+        for (int warmup = 0; warmup < 10; warmup++) {
+            matches += eStoreSearch.search("", and, "", "").getMatchCount();
+            matches += eStoreSearch.search("", phrase, "", "").getMatchCount();
+        }
+
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches += eStoreSearch.search("", and, "", "").getMatchCount();
+        }
+        long andNanos = (System.nanoTime() - begin) / rounds;
+
+        begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches += eStoreSearch.search("", phrase, "", "").getMatchCount();
+        }
+        long phraseNanos = (System.nanoTime() - begin) / rounds;
+
+        System.out.println("\nPhrase benchmark, " + count + " products");
+        System.out.println("AND matches:\t" + eStoreSearch.search("", and,
+                "", "").getMatchCount());
+        System.out.println("Phrase matches:\t" + eStoreSearch.search("",
+                phrase, "", "").getMatchCount());
+        System.out.println("AND query:\t" + andNanos / 1000 + " us");
+        System.out.println("Phrase query:\t" + phraseNanos / 1000 + " us");
+        System.out.println("Overhead:\t" + (double) phraseNanos / andNanos);
+        System.out.println("(checksum " + matches + ")");
+    }
+}
@@ -0,0 +1,141 @@
+package estoresearch;
+
+import java.util.Arrays;
+
+/**
+ * Growable postings of one term with the positions of the term in each
+ * product's name, used by the mutable segment before it is encoded.
+ *
+ * <p>
+ * Names are short, so the positions of a posting are kept as a bit mask with
+ * bit p set for position p. Positions past MAX_POSITION only set
+ * LONG_NAME, and phrases are then checked against the name itself.
+ *
+ * @author Courtney Bodi
+ */
+final class PositionalPostings {
+
+    /**
+     * Last position that has its own bit in a mask
+     */
+    static final int MAX_POSITION = 62;
+
+    /**
+     * Mask bit set when the term occurs past MAX_POSITION
+     */
+    static final long LONG_NAME = 1L << 63;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final IntList ordinals = new IntList();
+    private long[] masks = new long[INITIAL_CAPACITY];
+
+    /**
+     * Gets the mask bit of a position
+     *
+     * @param position of a term in a tokenized name
+     * @return bit of the position, or LONG_NAME past MAX_POSITION
+     */
+    static long positionBit(int position) {
+        return position > MAX_POSITION ? LONG_NAME : 1L << position;
+    }
+
+    /**
+     * Records the term at a position of a product's name, ordinals must be
+     * added in ascending order
+     *
+     * @param ordinal of the product
+     * @param position of the term in the tokenized name
+     */
+    void add(int ordinal, int position) {
+        addMask(ordinal, positionBit(position));
+    }
+
+    /**
+     * Records positions of the term in a product's name, ordinals must be
+     * added in ascending order
+     *
+     * @param ordinal of the product
+     * @param mask of the positions
+     */
+    void addMask(int ordinal, long mask) {
+        int size = ordinals.size();
+        if (size == 0 || ordinals.last() != ordinal) {
+            if (size == masks.length) {
+                masks = Arrays.copyOf(masks, size * 2);
+            }
+            ordinals.add(ordinal);
+            masks[size] = mask;
+        } else {
+            masks[size - 1] |= mask;
+        }
+    }
+
+    /**
+     * @return number of products containing the term
+     */
+    int size() {
+        return ordinals.size();
+    }
+
+    /**
+     * @param index of the posting
+     * @return ordinal of the posting
+     */
+    int getOrdinal(int index) {
+        return ordinals.get(index);
+    }
+
+    /**
+     * @param index of the posting
+     * @return position mask of the posting
+     */
+    long getMask(int index) {
+        return masks[index];
+    }
+
+    /**
+     * Appends the ordinals to a set being built
+     *
+     * @param into builder to add the ordinals to
+     */
+    void addOrdinals(OrdinalSet.Builder into) {
+        for (int i = 0; i < ordinals.size(); i++) {
+            into.add(ordinals.get(i));
+        }
+    }
+
+    /**
+     * Fills in the position masks of the term for the candidates containing
+     * it
+     *
+     * @param candidates ascending ordinals
+     * @param into position mask of each candidate, by candidate index
+     */
+    void addMasks(int[] candidates, long[] into) {
+        int candidate = lowerBound(candidates, 0, ordinals.size() == 0 ? 0
+                : ordinals.get(0));
+        for (int i = 0; i < ordinals.size()
+                && candidate < candidates.length; i++) {
+            int ordinal = ordinals.get(i);
+            if (candidates[candidate] < ordinal) {
+                candidate = lowerBound(candidates, candidate, ordinal);
+            }
+            if (candidate < candidates.length
+                    && candidates[candidate] == ordinal) {
+                into[candidate++] = masks[i];
+            }
+        }
+    }
+
+    /**
+     * Finds the first index at or after from whose value is at least key
+     *
+     * @param values ascending values
+     * @return the index, or values.length if there is none
+     */
+    static int lowerBound(int[] values, int from, int key) {
+        int index = Arrays.binarySearch(values, from, values.length, key);
+        return index >= 0 ? index : -index - 1;
+    }
+}
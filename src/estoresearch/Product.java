@@ -89,7 +89,8 @@ public abstract class Product {
     }
 
     public Product(Product product) throws InvalidInputException {
-        this(product.id, product.name, product.year, product.price);
+        this(product.getId(), product.getName(), product.getYear(),
+                product.getPrice());
     }
 
     /**
@@ -236,14 +237,16 @@ public abstract class Product {
      */
     @Override
     public boolean equals(Object otherObject) {
-        if (otherObject == null || getClass() != otherObject.getClass()) {
+        if (!(otherObject instanceof Product)) {
             return false;
         } else {
+            // Read through the getters, a product kept in a StringArena
+            // equals the product it was stored from
             Product otherProduct = (Product) otherObject;
-            return id.equals(otherProduct.id)
-                    && name.equals(otherProduct.name)
-                    && year == otherProduct.year
-                    && price == otherProduct.price;
+            return getId().equals(otherProduct.getId())
+                    && getName().equals(otherProduct.getName())
+                    && getYear() == otherProduct.getYear()
+                    && getPrice() == otherProduct.getPrice();
         }
     }
 
@@ -256,12 +259,12 @@ public abstract class Product {
     public String toString() {
         if (price == NO_PRICE) {
             return "productID = \"" + id + "\"\n"
-                    + "name = \"" + name + "\"\n"
+                    + "name = \"" + getName() + "\"\n"
                     + "price = \"\"\n"
                     + "year = \"" + year + "\"\n";
         } else {
             return "productID = \"" + id + "\"\n"
-                    + "name = \"" + name + "\"\n"
+                    + "name = \"" + getName() + "\"\n"
                     + "price = \"" + price + "\"\n"
                     + "year = \"" + year + "\"\n";
         }
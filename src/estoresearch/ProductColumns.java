@@ -0,0 +1,288 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Primitive per-ordinal copies of product fields that are scanned without
+ * touching Product objects. Publishers and makers are dictionary encoded.
+ *
+ * @author Courtney Bodi
+ */
+class ProductColumns {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    static final byte TYPE_BOOK = 0;
+    static final byte TYPE_ELECTRONIC = 1;
+
+    /**
+     * Number of product types, each type is below it
+     */
+    static final int TYPE_COUNT = 2;
+
+    /**
+     * Type filter that keeps products of every type
+     */
+    static final byte ANY_TYPE = -1;
+
+    /**
+     * Code of a field the product type does not have
+     */
+    static final int NO_VALUE = -1;
+
+    private int[] years;
+    private double[] prices;
+    private byte[] types;
+    private int[] publishers;
+    private int[] makers;
+    // Year and type packed as year << 1 | type, and the publisher code of
+    // books and maker code of electronics, so counting facets of an ordinal
+    // reads 6 bytes instead of 13
+    private short[] yearTypes;
+    private int[] owners;
+    private int size;
+
+    // Ordinals per year type and per owner << 1 | type, tombstoned ones
+    // included
+    private final int[] yearTypeTotals = new int[(Product.MAX_YEAR + 1)
+            * TYPE_COUNT];
+    private final IntList ownerTotals = new IntList();
+
+    private final Dictionary publisherDictionary = new Dictionary();
+    private final Dictionary makerDictionary = new Dictionary();
+
+    /**
+     * Generic ProductColumns constructor
+     */
+    ProductColumns() {
+        years = new int[INITIAL_CAPACITY];
+        prices = new double[INITIAL_CAPACITY];
+        types = new byte[INITIAL_CAPACITY];
+        publishers = new int[INITIAL_CAPACITY];
+        makers = new int[INITIAL_CAPACITY];
+        yearTypes = new short[INITIAL_CAPACITY];
+        owners = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Appends the fields of the product at the next ordinal
+     *
+     * @param product to append
+     */
+    void append(Product product) {
+        if (size == years.length) {
+            years = Arrays.copyOf(years, size * 2);
+            prices = Arrays.copyOf(prices, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+            publishers = Arrays.copyOf(publishers, size * 2);
+            makers = Arrays.copyOf(makers, size * 2);
+            yearTypes = Arrays.copyOf(yearTypes, size * 2);
+            owners = Arrays.copyOf(owners, size * 2);
+        }
+
+        years[size] = product.getYear();
+        prices[size] = product.getPrice();
+        types[size] = typeOf(product);
+        if (product instanceof Book) {
+            publishers[size] = publisherDictionary.encode(
+                    ((Book) product).getPublisher());
+            makers[size] = NO_VALUE;
+        } else {
+            publishers[size] = NO_VALUE;
+            makers[size] = makerDictionary.encode(
+                    ((Electronic) product).getMaker());
+        }
+        yearTypes[size] = (short) (years[size] << 1 | types[size]);
+        owners[size] = Math.max(publishers[size], makers[size]);
+
+        yearTypeTotals[yearTypes[size]]++;
+        int owner = owners[size] << 1 | types[size];
+        while (ownerTotals.size() <= owner) {
+            ownerTotals.add(0);
+        }
+        ownerTotals.set(owner, ownerTotals.get(owner) + 1);
+        size++;
+    }
+
+    /**
+     * @param product of any type
+     * @return TYPE_BOOK or TYPE_ELECTRONIC
+     */
+    static byte typeOf(Product product) {
+        return product instanceof Book ? TYPE_BOOK : TYPE_ELECTRONIC;
+    }
+
+    /**
+     * @return number of ordinals in the columns
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets year column, only the first size() entries are valid
+     *
+     * @return the years indexed by ordinal
+     */
+    int[] getYears() {
+        return years;
+    }
+
+    /**
+     * Gets price column, only the first size() entries are valid
+     *
+     * @return the prices indexed by ordinal, Product.NO_PRICE if unknown
+     */
+    double[] getPrices() {
+        return prices;
+    }
+
+    /**
+     * Changes the price of an ordinal
+     *
+     * @param ordinal of the product
+     * @param price new price of product in dollars CAD
+     */
+    void setPrice(int ordinal, double price) {
+        prices[ordinal] = price;
+    }
+
+    /**
+     * Gets type column, only the first size() entries are valid
+     *
+     * @return TYPE_BOOK or TYPE_ELECTRONIC indexed by ordinal
+     */
+    byte[] getTypes() {
+        return types;
+    }
+
+    /**
+     * Gets publisher column, only the first size() entries are valid
+     *
+     * @return publisher codes indexed by ordinal, NO_VALUE for electronics
+     */
+    int[] getPublishers() {
+        return publishers;
+    }
+
+    /**
+     * Gets maker column, only the first size() entries are valid
+     *
+     * @return maker codes indexed by ordinal, NO_VALUE for books
+     */
+    int[] getMakers() {
+        return makers;
+    }
+
+    /**
+     * Gets year and type column, only the first size() entries are valid
+     *
+     * @return year &lt;&lt; 1 | type indexed by ordinal
+     */
+    short[] getYearTypes() {
+        return yearTypes;
+    }
+
+    /**
+     * Gets owner column, only the first size() entries are valid
+     *
+     * @return publisher codes of books and maker codes of electronics
+     * indexed by ordinal
+     */
+    int[] getOwners() {
+        return owners;
+    }
+
+    /**
+     * Gets the number of ordinals of every year and type, tombstoned ones
+     * included
+     *
+     * @return totals indexed by year &lt;&lt; 1 | type, not to be modified
+     */
+    int[] getYearTypeTotals() {
+        return yearTypeTotals;
+    }
+
+    /**
+     * Gets the number of ordinals of every owner and type, tombstoned ones
+     * included
+     *
+     * @return totals indexed by owner &lt;&lt; 1 | type, missing past the last
+     * owner of each type, not to be modified
+     */
+    IntList getOwnerTotals() {
+        return ownerTotals;
+    }
+
+    /**
+     * @return dictionary of publisher codes
+     */
+    Dictionary getPublisherDictionary() {
+        return publisherDictionary;
+    }
+
+    /**
+     * @return dictionary of maker codes
+     */
+    Dictionary getMakerDictionary() {
+        return makerDictionary;
+    }
+
+    /**
+     * Assigns dense codes to distinct strings in order of first appearance
+     */
+    static final class Dictionary {
+
+        private final HashMap<String, Integer> codes = new HashMap<>();
+        private final ArrayList<String> values = new ArrayList<>();
+
+        /**
+         * Gets code of a value, assigning the next code to new values
+         *
+         * @param value to encode
+         * @return code of the value
+         */
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        /**
+         * Gets value of a code
+         *
+         * @param code assigned by encode
+         * @return the value
+         */
+        String decode(int code) {
+            return values.get(code);
+        }
+
+        /**
+         * Finds the codes of every value equal to a value ignoring case
+         *
+         * @param value to look for
+         * @return true at the index of each matching code
+         */
+        boolean[] matchIgnoreCase(String value) {
+            boolean[] matches = new boolean[values.size()];
+            for (int code = 0; code < matches.length; code++) {
+                matches[code] = values.get(code).equalsIgnoreCase(value);
+            }
+            return matches;
+        }
+
+        /**
+         * @return number of distinct values
+         */
+        int size() {
+            return values.size();
+        }
+    }
+}
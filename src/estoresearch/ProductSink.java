@@ -0,0 +1,19 @@
+package estoresearch;
+
+import java.util.List;
+
+/**
+ * Store that imported products are inserted into in batches
+ *
+ * @author Courtney Bodi
+ */
+interface ProductSink {
+
+    /**
+     * Adds already validated products
+     *
+     * @param batch of products to add in order
+     * @return products that were not added because their ID already exists
+     */
+    List<Product> addProducts(List<Product> batch);
+}
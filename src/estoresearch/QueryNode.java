@@ -0,0 +1,1080 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Node of a parsed query. Nodes are immutable and hold no catalog state, so
+ * a planned tree can be evaluated against any version of any store.
+ *
+ * <p>
+ * Leaves answered by the keyword index or the ID lookup produce their
+ * ordinals directly. Leaves over a primitive column can either scan the
+ * column or be tested on the ordinals an index already produced, and an AND
+ * picks between the two when it runs, from how many candidates are left.
+ * An AND restricted to one product type reads only the keyword postings of
+ * that type's partition.
+ *
+ * @author Courtney Bodi
+ */
+abstract class QueryNode {
+
+    /**
+     * Ratio of catalog size to candidates below which a column predicate is
+     * tested per candidate instead of scanning the column
+     */
+    static final int PROBE_RATIO = 8;
+
+    private static final Pattern NEEDS_QUOTES = Pattern.compile(
+            ".*[\\s()\\[\\]:\"<>].*");
+
+    /**
+     * Costs that order the children of an AND, cheapest first
+     */
+    static final int COST_CONSTANT = 0;
+    static final int COST_ID = 1;
+    static final int COST_KEYWORD = 2;
+    static final int COST_PHRASE = 3;
+    static final int COST_CONTAINS = 4;
+    static final int COST_CODE = 5;
+    static final int COST_TYPE = 6;
+    static final int COST_RANGE = 7;
+    static final int COST_NOT = 10;
+
+    /**
+     * Matches every ordinal
+     */
+    static final QueryNode ALL = new Constant(true);
+
+    /**
+     * Matches no ordinal
+     */
+    static final QueryNode NONE = new Constant(false);
+
+    /**
+     * Simplifies the node: nested ANDs and ORs are flattened, constants are
+     * folded, ranges on one field under an AND are intersected and the
+     * children of an AND are put in cost order
+     *
+     * @return an equivalent node
+     */
+    QueryNode fold() {
+        return this;
+    }
+
+    /**
+     * @return cost class used to order siblings
+     */
+    abstract int cost();
+
+    /**
+     * Finds the matching ordinals of a version, tombstoned ones included
+     *
+     * @param version to evaluate against
+     * @return set of matching ordinals
+     */
+    abstract OrdinalSet evaluate(CatalogVersion version);
+
+    /**
+     * @return ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC if only products
+     * of that type can match, ANY_TYPE otherwise
+     */
+    byte impliedType() {
+        return ProductColumns.ANY_TYPE;
+    }
+
+    /**
+     * Gets the node that matches the same products of one type, for a child
+     * of an AND whose other children only match that type
+     *
+     * @param type ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC
+     * @return a node reading only the partition of the type where it can
+     */
+    QueryNode within(byte type) {
+        return this;
+    }
+
+    /**
+     * @return whether the node can be tested per ordinal from the columns
+     */
+    boolean isColumnPredicate() {
+        return false;
+    }
+
+    /**
+     * Gets a test of single ordinals, only for column predicates
+     *
+     * @param version to test against
+     * @return test of an ordinal
+     */
+    IntPredicate predicate(CatalogVersion version) {
+        throw new UnsupportedOperationException(toString());
+    }
+
+    /**
+     * @return whether testing ordinals one at a time costs about as much as
+     * reading a column, so that streams test them as they are pulled
+     */
+    boolean isCheapPredicate() {
+        return isColumnPredicate();
+    }
+
+    /**
+     * Gets the ordinals a stream walks, the ones indexes give without
+     * testing ordinals one at a time
+     *
+     * @param version to evaluate against
+     * @return candidate ordinals, tombstoned ones included, or null for
+     * every ordinal
+     */
+    OrdinalSet candidates(CatalogVersion version) {
+        return isCheapPredicate() ? null : evaluate(version);
+    }
+
+    /**
+     * Gets the test a stream applies to each candidate as it is pulled
+     *
+     * @param version to test against
+     * @return test of an ordinal
+     */
+    IntPredicate residual(CatalogVersion version) {
+        return isCheapPredicate() ? predicate(version) : ordinal -> true;
+    }
+
+    /**
+     * Keeps the candidates a column predicate is true or false for
+     */
+    static OrdinalSet filter(OrdinalSet candidates, IntPredicate predicate,
+            boolean keep) {
+        OrdinalSet.Builder matches = new OrdinalSet.Builder();
+        for (int ordinal : candidates.toArray()) {
+            if (predicate.test(ordinal) == keep) {
+                matches.add(ordinal);
+            }
+        }
+        return matches.build();
+    }
+
+    /**
+     * Checks whether testing candidates beats scanning a whole version
+     */
+    static boolean shouldProbe(OrdinalSet candidates, CatalogVersion version) {
+        return (long) candidates.cardinality() * PROBE_RATIO < version.size();
+    }
+
+    /**
+     * Quotes a value for toString if it would not parse as one word
+     */
+    static String quote(String value) {
+        return value.isEmpty() || NEEDS_QUOTES.matcher(value).matches()
+                ? "\"" + value + "\"" : value;
+    }
+
+    /**
+     * Matches every or no ordinal
+     */
+    static final class Constant extends QueryNode {
+
+        private final boolean matches;
+
+        private Constant(boolean matches) {
+            this.matches = matches;
+        }
+
+        @Override
+        int cost() {
+            return COST_CONSTANT;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            return matches ? OrdinalSet.range(version.size())
+                    : OrdinalSet.empty();
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            return ordinal -> matches;
+        }
+
+        @Override
+        OrdinalSet candidates(CatalogVersion version) {
+            return matches ? null : OrdinalSet.empty();
+        }
+
+        @Override
+        public String toString() {
+            return matches ? "*" : "NOT *";
+        }
+    }
+
+    /**
+     * Product with an ID
+     */
+    static final class Id extends QueryNode {
+
+        private final String id;
+
+        Id(String id) {
+            this.id = id;
+        }
+
+        @Override
+        int cost() {
+            return COST_ID;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            Integer ordinal = version.getOrdinal(id);
+            return ordinal == null ? OrdinalSet.empty()
+                    : OrdinalSet.of(ordinal);
+        }
+
+        @Override
+        public String toString() {
+            return "id:" + quote(id);
+        }
+    }
+
+    /**
+     * Products with a word in their names
+     */
+    static final class Keyword extends QueryNode {
+
+        private final String keyword;
+        private final byte type;
+
+        /**
+         * Keyword constructor for products of every type
+         *
+         * @param keyword lower case word
+         */
+        Keyword(String keyword) {
+            this(keyword, ProductColumns.ANY_TYPE);
+        }
+
+        /**
+         * Keyword constructor with all members
+         *
+         * @param keyword lower case word
+         * @param type partition searched, or ANY_TYPE for all of them
+         */
+        Keyword(String keyword, byte type) {
+            this.keyword = keyword;
+            this.type = type;
+        }
+
+        @Override
+        int cost() {
+            return COST_KEYWORD;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            OrdinalSet postings = version.getPostings(keyword, type);
+            return postings == null ? OrdinalSet.empty() : postings;
+        }
+
+        @Override
+        QueryNode within(byte type) {
+            return new Keyword(keyword, type);
+        }
+
+        @Override
+        public String toString() {
+            return quote(keyword);
+        }
+    }
+
+    /**
+     * Products with a phrase in their names
+     */
+    static final class Phrase extends QueryNode {
+
+        private final PhraseQuery phrase;
+        private final byte type;
+
+        Phrase(PhraseQuery phrase) {
+            this(phrase, ProductColumns.ANY_TYPE);
+        }
+
+        /**
+         * Phrase constructor with all members
+         *
+         * @param phrase to match
+         * @param type partition searched, or ANY_TYPE for all of them
+         */
+        Phrase(PhraseQuery phrase, byte type) {
+            this.phrase = phrase;
+            this.type = type;
+        }
+
+        @Override
+        int cost() {
+            return COST_PHRASE;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            ArrayList<OrdinalSet> postingsSets = new ArrayList<>();
+            for (String term : phrase.getTerms()) {
+                OrdinalSet postings = version.getPostings(term, type);
+                if (postings == null) {
+                    return OrdinalSet.empty();
+                }
+                postingsSets.add(postings);
+            }
+
+            return version.verifyPhrase(phrase, EStoreSearch.intersect(
+                    postingsSets), type);
+        }
+
+        @Override
+        QueryNode within(byte type) {
+            return new Phrase(phrase, type);
+        }
+
+        @Override
+        public String toString() {
+            return phrase.toString();
+        }
+    }
+
+    /**
+     * Products with a fragment anywhere in their names, ignoring case. The
+     * version's contains index finds them once it is built, every name is
+     * tested until then, and few enough candidates left by an AND are tested
+     * against their names.
+     */
+    static final class Contains extends QueryNode {
+
+        private final String fragment;
+
+        Contains(String fragment) {
+            this.fragment = fragment;
+        }
+
+        @Override
+        int cost() {
+            return COST_CONTAINS;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            ContainsIndex index = version.getContainsIndex();
+            if (index != null) {
+                return index.contains(fragment);
+            }
+
+            // Every name is scanned while the index is built
+            IntPredicate matcher = predicate(version);
+            OrdinalSet.Builder matches = new OrdinalSet.Builder();
+            for (int ordinal = 0; ordinal < version.size(); ordinal++) {
+                if (matcher.test(ordinal)) {
+                    matches.add(ordinal);
+                }
+            }
+            return matches.build();
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return true;
+        }
+
+        @Override
+        boolean isCheapPredicate() {
+            return false;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            return ContainsIndex.matcher(version.getProducts(), fragment);
+        }
+
+        @Override
+        public String toString() {
+            return "contains:" + quote(fragment);
+        }
+    }
+
+    /**
+     * Products released between two years inclusive
+     */
+    static final class YearRange extends QueryNode {
+
+        private final int min;
+        private final int max;
+
+        YearRange(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        QueryNode fold() {
+            if (min > max) {
+                return NONE;
+            }
+            return min <= Product.MIN_YEAR && max >= Product.MAX_YEAR ? ALL
+                    : this;
+        }
+
+        @Override
+        int cost() {
+            return COST_RANGE;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            ProductColumns columns = version.getColumns();
+            return ScanEngine.scanRange(columns.getYears(), columns.size(),
+                    min, max);
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            int[] years = version.getColumns().getYears();
+            return ordinal -> years[ordinal] >= min && years[ordinal] <= max;
+        }
+
+        @Override
+        public String toString() {
+            return "year:[" + min + " TO " + max + "]";
+        }
+    }
+
+    /**
+     * Products with a known price between two prices inclusive
+     */
+    static final class PriceRange extends QueryNode {
+
+        private final double min;
+        private final double max;
+
+        /**
+         * PriceRange constructor with all members
+         *
+         * @param min lowest price, raised to 0 so unknown prices never match
+         * @param max highest price
+         */
+        PriceRange(double min, double max) {
+            this.min = Math.max(0, min);
+            this.max = max;
+        }
+
+        @Override
+        QueryNode fold() {
+            return min > max ? NONE : this;
+        }
+
+        @Override
+        int cost() {
+            return COST_RANGE;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            ProductColumns columns = version.getColumns();
+            return ScanEngine.scanRange(columns.getPrices(), columns.size(),
+                    min, max);
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            double[] prices = version.getColumns().getPrices();
+            return ordinal -> prices[ordinal] >= min
+                    && prices[ordinal] <= max;
+        }
+
+        @Override
+        public String toString() {
+            return "price:[" + min + " TO "
+                    + (max == Double.MAX_VALUE ? "*" : String.valueOf(max))
+                    + "]";
+        }
+    }
+
+    /**
+     * Products of one type
+     */
+    static final class Type extends QueryNode {
+
+        private final byte type;
+
+        /**
+         * Type constructor with all members
+         *
+         * @param type ProductColumns.TYPE_BOOK or TYPE_ELECTRONIC
+         */
+        Type(byte type) {
+            this.type = type;
+        }
+
+        @Override
+        int cost() {
+            return COST_TYPE;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            return version.getPartition(type).getMembers();
+        }
+
+        @Override
+        byte impliedType() {
+            return type;
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            byte[] types = version.getColumns().getTypes();
+            return ordinal -> types[ordinal] == type;
+        }
+
+        @Override
+        public String toString() {
+            return "type:" + (type == ProductColumns.TYPE_BOOK ? "book"
+                    : "electronics");
+        }
+    }
+
+    /**
+     * Books with a publisher or electronics with a maker, ignoring case
+     */
+    static final class Code extends QueryNode {
+
+        private final boolean publisher;
+        private final String value;
+
+        /**
+         * Code constructor with all members
+         *
+         * @param publisher true to match publishers, false for makers
+         * @param value to match ignoring case
+         */
+        Code(boolean publisher, String value) {
+            this.publisher = publisher;
+            this.value = value;
+        }
+
+        @Override
+        int cost() {
+            return COST_CODE;
+        }
+
+        @Override
+        byte impliedType() {
+            // Only books have publishers and only electronics have makers
+            return publisher ? ProductColumns.TYPE_BOOK
+                    : ProductColumns.TYPE_ELECTRONIC;
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            ProductColumns columns = version.getColumns();
+            return ScanEngine.scanCodes(getColumn(columns), columns.size(),
+                    getDictionary(columns).matchIgnoreCase(value));
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            ProductColumns columns = version.getColumns();
+            int[] codes = getColumn(columns);
+            boolean[] matchingCodes = getDictionary(columns).matchIgnoreCase(
+                    value);
+            return ordinal -> codes[ordinal] != ProductColumns.NO_VALUE
+                    && matchingCodes[codes[ordinal]];
+        }
+
+        private int[] getColumn(ProductColumns columns) {
+            return publisher ? columns.getPublishers() : columns.getMakers();
+        }
+
+        private ProductColumns.Dictionary getDictionary(
+                ProductColumns columns) {
+            return publisher ? columns.getPublisherDictionary()
+                    : columns.getMakerDictionary();
+        }
+
+        @Override
+        public String toString() {
+            return (publisher ? "publisher:" : "maker:") + quote(value);
+        }
+    }
+
+    /**
+     * Products that do not match a node
+     */
+    static final class Not extends QueryNode {
+
+        private final QueryNode child;
+
+        Not(QueryNode child) {
+            this.child = child;
+        }
+
+        @Override
+        QueryNode fold() {
+            QueryNode folded = child.fold();
+            if (folded == ALL) {
+                return NONE;
+            } else if (folded == NONE) {
+                return ALL;
+            } else if (folded instanceof Not) {
+                return ((Not) folded).child;
+            }
+            return new Not(folded);
+        }
+
+        @Override
+        int cost() {
+            return COST_NOT + child.cost();
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            return OrdinalSet.range(version.size()).andNot(
+                    child.evaluate(version));
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            return child.isColumnPredicate();
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            return child.predicate(version).negate();
+        }
+
+        @Override
+        QueryNode within(byte type) {
+            // The AND holding this keeps only products of the type
+            return new Not(child.within(type));
+        }
+
+        @Override
+        boolean isCheapPredicate() {
+            return child.isCheapPredicate();
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + child;
+        }
+    }
+
+    /**
+     * Products matching every child. Children the index answers are
+     * intersected smallest first, column predicates then narrow the result
+     * by scan or per candidate test, and negated children are removed last.
+     * When a child only matches one type, the others are folded to read only
+     * that type's partition, which also stands in for the type's column.
+     */
+    static final class And extends QueryNode {
+
+        private final List<QueryNode> children;
+        private final List<QueryNode> indexed = new ArrayList<>();
+        private final List<QueryNode> columns = new ArrayList<>();
+        private final List<QueryNode> negated = new ArrayList<>();
+        private byte type = ProductColumns.ANY_TYPE;
+
+        /**
+         * And constructor, children are evaluated in the order given
+         *
+         * @param children to match
+         */
+        And(List<QueryNode> children) {
+            this.children = children;
+            for (QueryNode child : children) {
+                if (child.impliedType() != ProductColumns.ANY_TYPE) {
+                    type = child.impliedType();
+                }
+                if (child instanceof Not) {
+                    negated.add(((Not) child).child);
+                } else if (child.isColumnPredicate()) {
+                    columns.add(child);
+                } else {
+                    indexed.add(child);
+                }
+            }
+        }
+
+        @Override
+        QueryNode fold() {
+            ArrayList<QueryNode> flattened = new ArrayList<>();
+            for (QueryNode child : children) {
+                QueryNode folded = child.fold();
+                if (folded instanceof And) {
+                    flattened.addAll(((And) folded).children);
+                } else {
+                    flattened.add(folded);
+                }
+            }
+
+            // Intersect ranges on one field and keep one of equal children
+            int minYear = Integer.MIN_VALUE;
+            int maxYear = Integer.MAX_VALUE;
+            double minPrice = -Double.MAX_VALUE;
+            double maxPrice = Double.MAX_VALUE;
+            boolean years = false;
+            boolean prices = false;
+            LinkedHashMap<String, QueryNode> unique = new LinkedHashMap<>();
+            for (QueryNode child : flattened) {
+                if (child == NONE) {
+                    return NONE;
+                } else if (child instanceof YearRange) {
+                    YearRange range = (YearRange) child;
+                    minYear = Math.max(minYear, range.min);
+                    maxYear = Math.min(maxYear, range.max);
+                    years = true;
+                } else if (child instanceof PriceRange) {
+                    PriceRange range = (PriceRange) child;
+                    minPrice = Math.max(minPrice, range.min);
+                    maxPrice = Math.min(maxPrice, range.max);
+                    prices = true;
+                } else if (child != ALL) {
+                    unique.put(child.toString(), child);
+                }
+            }
+            if (years) {
+                QueryNode range = new YearRange(minYear, maxYear).fold();
+                unique.put(range.toString(), range);
+            }
+            if (prices) {
+                QueryNode range = new PriceRange(minPrice, maxPrice).fold();
+                unique.put(range.toString(), range);
+            }
+            // A range can fold to every ordinal
+            unique.remove(ALL.toString());
+
+            ArrayList<QueryNode> folded = new ArrayList<>(unique.values());
+            byte impliedType = ProductColumns.ANY_TYPE;
+            for (QueryNode child : folded) {
+                if (child == NONE) {
+                    return NONE;
+                }
+                // x AND NOT x
+                if (unique.containsKey("NOT " + child)) {
+                    return NONE;
+                }
+                if (child.impliedType() != ProductColumns.ANY_TYPE) {
+                    if (impliedType != ProductColumns.ANY_TYPE
+                            && impliedType != child.impliedType()) {
+                        // A product has one type
+                        return NONE;
+                    }
+                    impliedType = child.impliedType();
+                }
+            }
+            if (impliedType != ProductColumns.ANY_TYPE) {
+                for (int i = 0; i < folded.size(); i++) {
+                    folded.set(i, folded.get(i).within(impliedType));
+                }
+            }
+
+            if (folded.isEmpty()) {
+                return ALL;
+            } else if (folded.size() == 1) {
+                return folded.get(0);
+            }
+            folded.sort(Comparator.comparingInt(QueryNode::cost));
+            return new And(folded);
+        }
+
+        @Override
+        int cost() {
+            int cost = Integer.MAX_VALUE;
+            for (QueryNode child : children) {
+                cost = Math.min(cost, child.cost());
+            }
+            return cost;
+        }
+
+        @Override
+        byte impliedType() {
+            return type;
+        }
+
+        @Override
+        QueryNode within(byte type) {
+            ArrayList<QueryNode> restricted = new ArrayList<>();
+            for (QueryNode child : children) {
+                restricted.add(child.within(type));
+            }
+            return new And(restricted);
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            ArrayList<OrdinalSet> postingsSets = new ArrayList<>();
+            for (QueryNode child : indexed) {
+                postingsSets.add(child.evaluate(version));
+            }
+            OrdinalSet candidates = EStoreSearch.intersect(postingsSets);
+            boolean partitioned = false;
+            if (candidates == null && type != ProductColumns.ANY_TYPE) {
+                candidates = version.getPartition(type).getMembers();
+                partitioned = true;
+            }
+
+            for (QueryNode child : columns) {
+                if (candidates == null) {
+                    candidates = child.evaluate(version);
+                } else if (candidates.isEmpty()) {
+                    return candidates;
+                } else if (partitioned && child instanceof Type) {
+                    // The candidates are the partition of the type
+                    continue;
+                } else if (shouldProbe(candidates, version)) {
+                    candidates = filter(candidates, child.predicate(version),
+                            true);
+                } else {
+                    candidates = candidates.and(child.evaluate(version));
+                }
+            }
+
+            if (candidates == null) {
+                candidates = OrdinalSet.range(version.size());
+            }
+            for (QueryNode child : negated) {
+                if (candidates.isEmpty()) {
+                    return candidates;
+                } else if (child.isColumnPredicate()
+                        && shouldProbe(candidates, version)) {
+                    candidates = filter(candidates, child.predicate(version),
+                            false);
+                } else {
+                    candidates = candidates.andNot(child.evaluate(version));
+                }
+            }
+            return candidates;
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            for (QueryNode child : children) {
+                if (!child.isColumnPredicate()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            IntPredicate predicate = ordinal -> true;
+            for (QueryNode child : children) {
+                predicate = predicate.and(child.predicate(version));
+            }
+            return predicate;
+        }
+
+        @Override
+        boolean isCheapPredicate() {
+            for (QueryNode child : children) {
+                if (!child.isCheapPredicate()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Intersects the candidates of the children, a child under NOT that
+         * needs an index is tested against its postings instead
+         */
+        @Override
+        OrdinalSet candidates(CatalogVersion version) {
+            ArrayList<OrdinalSet> candidateSets = new ArrayList<>();
+            for (QueryNode child : children) {
+                if (child.isCheapPredicate() || child instanceof Not) {
+                    continue;
+                }
+                candidateSets.add(child.candidates(version));
+            }
+            return EStoreSearch.intersect(candidateSets);
+        }
+
+        @Override
+        IntPredicate residual(CatalogVersion version) {
+            IntPredicate residual = ordinal -> true;
+            for (QueryNode child : children) {
+                if (child.isCheapPredicate()) {
+                    residual = residual.and(child.residual(version));
+                } else if (child instanceof Not) {
+                    OrdinalSet excluded = ((Not) child).child.evaluate(
+                            version);
+                    residual = residual.and(ordinal -> !excluded.contains(
+                            ordinal));
+                }
+            }
+            return residual;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("(");
+            for (QueryNode child : children) {
+                if (text.length() > 1) {
+                    text.append(" AND ");
+                }
+                text.append(child);
+            }
+            return text.append(')').toString();
+        }
+    }
+
+    /**
+     * Products matching any child
+     */
+    static final class Or extends QueryNode {
+
+        private final List<QueryNode> children;
+
+        Or(List<QueryNode> children) {
+            this.children = children;
+        }
+
+        @Override
+        QueryNode fold() {
+            LinkedHashMap<String, QueryNode> unique = new LinkedHashMap<>();
+            for (QueryNode child : children) {
+                QueryNode folded = child.fold();
+                if (folded == ALL) {
+                    return ALL;
+                } else if (folded instanceof Or) {
+                    for (QueryNode grandchild : ((Or) folded).children) {
+                        unique.put(grandchild.toString(), grandchild);
+                    }
+                } else if (folded != NONE) {
+                    unique.put(folded.toString(), folded);
+                }
+            }
+
+            ArrayList<QueryNode> folded = new ArrayList<>(unique.values());
+            for (QueryNode child : folded) {
+                // x OR NOT x
+                if (unique.containsKey("NOT " + child)) {
+                    return ALL;
+                }
+            }
+            if (folded.isEmpty()) {
+                return NONE;
+            } else if (folded.size() == 1) {
+                return folded.get(0);
+            }
+            return new Or(folded);
+        }
+
+        @Override
+        int cost() {
+            int cost = 0;
+            for (QueryNode child : children) {
+                cost = Math.max(cost, child.cost());
+            }
+            return cost;
+        }
+
+        @Override
+        byte impliedType() {
+            byte type = children.get(0).impliedType();
+            for (QueryNode child : children) {
+                if (child.impliedType() != type) {
+                    return ProductColumns.ANY_TYPE;
+                }
+            }
+            return type;
+        }
+
+        @Override
+        QueryNode within(byte type) {
+            ArrayList<QueryNode> restricted = new ArrayList<>();
+            for (QueryNode child : children) {
+                restricted.add(child.within(type));
+            }
+            return new Or(restricted);
+        }
+
+        @Override
+        OrdinalSet evaluate(CatalogVersion version) {
+            OrdinalSet union = OrdinalSet.empty();
+            for (QueryNode child : children) {
+                union = union.or(child.evaluate(version));
+            }
+            return union;
+        }
+
+        @Override
+        boolean isColumnPredicate() {
+            for (QueryNode child : children) {
+                if (!child.isColumnPredicate()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        IntPredicate predicate(CatalogVersion version) {
+            IntPredicate predicate = ordinal -> false;
+            for (QueryNode child : children) {
+                predicate = predicate.or(child.predicate(version));
+            }
+            return predicate;
+        }
+
+        @Override
+        boolean isCheapPredicate() {
+            for (QueryNode child : children) {
+                if (!child.isCheapPredicate()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("(");
+            for (QueryNode child : children) {
+                if (text.length() > 1) {
+                    text.append(" OR ");
+                }
+                text.append(child);
+            }
+            return text.append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package estoresearch;
+
+import java.util.ArrayList;
+
+/**
+ * Parses the query language into a tree of QueryNodes.
+ *
+ * <pre>
+ * query   = or
+ * or      = and { "OR" and }
+ * and     = unary { [ "AND" ] unary }
+ * unary   = "NOT" unary | "(" or ")" | clause
+ * clause  = [ field ":" ] value
+ * field   = id | name | contains | year | price | type | publisher
+ *         | maker
+ * value   = word | "quoted words" [ ~slop ] | [ min TO max ]
+ *         | &lt; number | &lt;= number | &gt; number | &gt;= number
+ * </pre>
+ *
+ * A value without a field is a name keyword, quoted words are a phrase, and
+ * * stands for an open bound of a range. contains matches a fragment
+ * anywhere in names, such as contains:usb-c. AND, OR, NOT and TO are only
+ * operators in upper case.
+ *
+ * @author Courtney Bodi
+ */
+final class QueryParser {
+
+    public static final String INVALID_QUERY = "Invalid input: the query"
+            + " could not be parsed";
+    public static final String UNKNOWN_FIELD = "Invalid input: fields are id,"
+            + " name, contains, year, price, type, publisher and maker";
+    public static final String UNKNOWN_TYPE = "Invalid input: type must be"
+            + " book or electronics";
+
+    private static final String SPECIAL_CHARACTERS = "()[]:\"<>";
+
+    private final String query;
+    private int position;
+
+    private QueryParser(String query) {
+        this.query = query;
+    }
+
+    /**
+     * Parses a query
+     *
+     * @param query in the query language
+     * @return root of the parsed tree, not yet folded
+     * @throws InvalidInputException if the query is not valid
+     */
+    static QueryNode parse(String query) throws InvalidInputException {
+        QueryParser parser = new QueryParser(query);
+        QueryNode root = parser.parseOr();
+        if (parser.peek() != null) {
+            throw new InvalidInputException(INVALID_QUERY);
+        }
+        return root;
+    }
+
+    private QueryNode parseOr() throws InvalidInputException {
+        ArrayList<QueryNode> children = new ArrayList<>();
+        children.add(parseAnd());
+        while ("OR".equals(peek())) {
+            next();
+            children.add(parseAnd());
+        }
+        return children.size() == 1 ? children.get(0)
+                : new QueryNode.Or(children);
+    }
+
+    private QueryNode parseAnd() throws InvalidInputException {
+        ArrayList<QueryNode> children = new ArrayList<>();
+        children.add(parseUnary());
+        String token;
+        while ((token = peek()) != null && !token.equals("OR")
+                && !token.equals(")")) {
+            if (token.equals("AND")) {
+                next();
+            }
+            children.add(parseUnary());
+        }
+        return children.size() == 1 ? children.get(0)
+                : new QueryNode.And(children);
+    }
+
+    private QueryNode parseUnary() throws InvalidInputException {
+        String token = next();
+        if (token == null) {
+            throw new InvalidInputException(INVALID_QUERY);
+        } else if (token.equals("NOT")) {
+            return new QueryNode.Not(parseUnary());
+        } else if (token.equals("(")) {
+            QueryNode node = parseOr();
+            expect(")");
+            return node;
+        } else if (token.startsWith("\"")) {
+            return phrase(token);
+        } else if (isSpecial(token)) {
+            throw new InvalidInputException(INVALID_QUERY);
+        }
+
+        if (!":".equals(peek())) {
+            return token.equals("*") ? QueryNode.ALL
+                    : new QueryNode.Keyword(token.toLowerCase());
+        }
+        next();
+        switch (token) {
+            case "id":
+                return new QueryNode.Id(value());
+            case "name":
+                String name = next();
+                if (name == null || isSpecial(name)) {
+                    throw new InvalidInputException(INVALID_QUERY);
+                }
+                return name.startsWith("\"") ? phrase(name)
+                        : new QueryNode.Keyword(name.toLowerCase());
+            case "contains":
+                return new QueryNode.Contains(value());
+            case "year":
+                return yearRange();
+            case "price":
+                return priceRange();
+            case "type":
+                String type = value().toLowerCase();
+                if (type.equals("book")) {
+                    return new QueryNode.Type(ProductColumns.TYPE_BOOK);
+                } else if (type.equals("electronics")
+                        || type.equals("electronic")) {
+                    return new QueryNode.Type(ProductColumns.TYPE_ELECTRONIC);
+                }
+                throw new InvalidInputException(UNKNOWN_TYPE);
+            case "publisher":
+                return new QueryNode.Code(true, value());
+            case "maker":
+                return new QueryNode.Code(false, value());
+            default:
+                throw new InvalidInputException(UNKNOWN_FIELD);
+        }
+    }
+
+    /**
+     * Parses a year, year range or year comparison after "year:"
+     */
+    private QueryNode yearRange() throws InvalidInputException {
+        String token = next();
+        if ("[".equals(token)) {
+            String min = value();
+            expect("TO");
+            String max = value();
+            expect("]");
+            int[] range = EStoreSearch.parseYearRange(min.equals("*") ? ""
+                    : min, max.equals("*") ? "" : max);
+            return range == null ? QueryNode.ALL
+                    : new QueryNode.YearRange(range[0], range[1]);
+        } else if (token != null && token.startsWith("<")) {
+            int year = EStoreSearch.parseYear(value());
+            return new QueryNode.YearRange(Product.MIN_YEAR,
+                    token.equals("<=") ? year : year - 1);
+        } else if (token != null && token.startsWith(">")) {
+            int year = EStoreSearch.parseYear(value());
+            return new QueryNode.YearRange(token.equals(">=") ? year
+                    : year + 1, Product.MAX_YEAR);
+        } else if (token == null || isSpecial(token)) {
+            throw new InvalidInputException(INVALID_QUERY);
+        }
+        int year = EStoreSearch.parseYear(token);
+        return new QueryNode.YearRange(year, year);
+    }
+
+    /**
+     * Parses a price, price range or price comparison after "price:"
+     */
+    private QueryNode priceRange() throws InvalidInputException {
+        String token = next();
+        if ("[".equals(token)) {
+            String min = value();
+            expect("TO");
+            String max = value();
+            expect("]");
+            double low = min.equals("*") ? 0 : parsePrice(min);
+            double high = max.equals("*") ? Double.MAX_VALUE
+                    : parsePrice(max);
+            if (low > high) {
+                throw new InvalidInputException(INVALID_QUERY);
+            }
+            return new QueryNode.PriceRange(low, high);
+        } else if (token != null && token.startsWith("<")) {
+            double price = parsePrice(value());
+            return new QueryNode.PriceRange(0, token.equals("<=") ? price
+                    : Math.nextDown(price));
+        } else if (token != null && token.startsWith(">")) {
+            double price = parsePrice(value());
+            return new QueryNode.PriceRange(token.equals(">=") ? price
+                    : Math.nextUp(price), Double.MAX_VALUE);
+        } else if (token == null || isSpecial(token)) {
+            throw new InvalidInputException(INVALID_QUERY);
+        }
+        double price = parsePrice(token);
+        return new QueryNode.PriceRange(price, price);
+    }
+
+    /**
+     * Parses a price that must be given
+     */
+    private static double parsePrice(String value) throws InvalidInputException {
+        double price = EStoreSearch.parsePrice(value);
+        if (price == Product.NO_PRICE) {
+            throw new InvalidInputException(Product.INVALID_PRICE);
+        }
+        return price;
+    }
+
+    /**
+     * Builds a phrase node from a quoted token and its optional slop
+     */
+    private QueryNode phrase(String quoted) throws InvalidInputException {
+        int slop = 0;
+        if ("~".equals(peek())) {
+            next();
+            String digits = next();
+            try {
+                slop = Integer.parseInt(digits == null ? "" : digits);
+            } catch (NumberFormatException e) {
+                throw new InvalidInputException(PhraseQuery.INVALID_PHRASE);
+            }
+            if (slop < 0) {
+                throw new InvalidInputException(PhraseQuery.INVALID_PHRASE);
+            }
+        }
+
+        String text = quoted.substring(1, quoted.length() - 1).trim();
+        if (text.isEmpty()) {
+            return QueryNode.ALL;
+        }
+        String[] terms = SegmentedIndex.tokenize(text);
+        return terms.length == 1 ? new QueryNode.Keyword(terms[0])
+                : new QueryNode.Phrase(new PhraseQuery(terms, slop));
+    }
+
+    /**
+     * Reads a field value, quotes are removed
+     */
+    private String value() throws InvalidInputException {
+        String token = next();
+        if (token == null || (isSpecial(token) && !token.startsWith("\""))) {
+            throw new InvalidInputException(INVALID_QUERY);
+        }
+        return token.startsWith("\"") ? token.substring(1, token.length() - 1)
+                : token;
+    }
+
+    private void expect(String expected) throws InvalidInputException {
+        if (!expected.equals(next())) {
+            throw new InvalidInputException(INVALID_QUERY);
+        }
+    }
+
+    private static boolean isSpecial(String token) {
+        return SPECIAL_CHARACTERS.indexOf(token.charAt(0)) >= 0
+                || token.equals("~");
+    }
+
+    /**
+     * Gets the next token without consuming it
+     */
+    private String peek() throws InvalidInputException {
+        int saved = position;
+        String token = next();
+        position = saved;
+        return token;
+    }
+
+    /**
+     * Reads the next token: a bracket, ':', '~', a comparison, a quoted
+     * string including its quotes, or a word
+     *
+     * @return the token, or null at the end of the query
+     */
+    private String next() throws InvalidInputException {
+        while (position < query.length()
+                && Character.isWhitespace(query.charAt(position))) {
+            position++;
+        }
+        if (position == query.length()) {
+            return null;
+        }
+
+        int start = position;
+        char character = query.charAt(position++);
+        if (character == '"') {
+            int closingQuote = query.indexOf('"', position);
+            if (closingQuote < 0) {
+                throw new InvalidInputException(PhraseQuery.INVALID_PHRASE);
+            }
+            position = closingQuote + 1;
+        } else if (character == '<' || character == '>') {
+            if (position < query.length() && query.charAt(position) == '=') {
+                position++;
+            }
+        } else if (character == '~') {
+            // A slop, the number follows as a word
+        } else if (SPECIAL_CHARACTERS.indexOf(character) < 0) {
+            while (position < query.length()
+                    && !Character.isWhitespace(query.charAt(position))
+                    && SPECIAL_CHARACTERS.indexOf(query.charAt(position)) < 0) {
+                position++;
+            }
+        }
+        return query.substring(start, position);
+    }
+}
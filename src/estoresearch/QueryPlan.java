@@ -0,0 +1,209 @@
+package estoresearch;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Query parsed and planned once and run any number of times. Planning folds
+ * constants, flattens nested ANDs and ORs, intersects ranges on one field
+ * and orders the children of every AND so the cheapest index lookups run
+ * first. Whether a column predicate scans its column or tests the
+ * candidates left by the index is decided each time the plan runs, since
+ * the number of candidates depends on the catalog.
+ *
+ * @author Courtney Bodi
+ */
+public final class QueryPlan {
+
+    private final String query;
+    private final QueryNode root;
+
+    /**
+     * QueryPlan constructor with all members
+     *
+     * @param query source of the plan
+     * @param root planned tree
+     */
+    private QueryPlan(String query, QueryNode root) {
+        this.query = query;
+        this.root = root;
+    }
+
+    /**
+     * Parses and plans a query
+     *
+     * @param query in the query language, see QueryParser
+     * @return the plan
+     * @throws estoresearch.InvalidInputException if the query is not valid
+     */
+    public static QueryPlan compile(String query) throws InvalidInputException {
+        return new QueryPlan(query, QueryParser.parse(query).fold());
+    }
+
+    /**
+     * @return query the plan was compiled from
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Gets the ordinals a stream of the plan walks, from the indexes the
+     * plan needs
+     *
+     * @param version to search
+     * @return candidate ordinals, tombstoned ones included, or null for
+     * every ordinal
+     */
+    OrdinalSet candidates(CatalogVersion version) {
+        return root.candidates(version);
+    }
+
+    /**
+     * Gets the test a stream of the plan applies to each candidate as it is
+     * pulled
+     *
+     * @param version to search
+     * @return test of an ordinal
+     */
+    IntPredicate residual(CatalogVersion version) {
+        return root.residual(version);
+    }
+
+    /**
+     * Runs the plan against a version
+     *
+     * @param version to search
+     * @return ordinals of matching products that have not been removed
+     */
+    OrdinalSet execute(CatalogVersion version) {
+        OrdinalSet matches = root.evaluate(version);
+        BitSet tombstones = version.getTombstones();
+        return tombstones.isEmpty() ? matches
+                : matches.andNot(OrdinalSet.fromBitSet(tombstones));
+    }
+
+    /**
+     * @return the planned query, in the order its parts run
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * Main method for testing the query language and benchmarking prepared
+     * plans against parsing and planning every query
+     *
+     * @param args optional catalog size, at most 1000000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int rounds = 2000;
+        Random random = new Random(42);
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        eStoreSearch.addBook("000000", "Harry Potter and the Stone", "1997",
+                "12.99", "J. K. Rowling", "Bloomsbury");
+        eStoreSearch.addElectronic("000001", "Potter Harry Bag", "2001",
+                "49.50", "Acme");
+        eStoreSearch.addBook("000002", "Harry the Young Potter", "2003",
+                "", "", "Penguin Books");
+        for (int i = 3; i < count; i++) {
+            String name = "item " + random.nextInt(1000) + " w"
+                    + random.nextInt(50);
+            String year = String.valueOf(1950 + random.nextInt(70));
+            String price = random.nextInt(200) + "." + (10
+                    + random.nextInt(90));
+            if (i % 2 == 0) {
+                eStoreSearch.addBook(String.format("%06d", i), name, year,
+                        price, "author", "publisher " + random.nextInt(20));
+            } else {
+                eStoreSearch.addElectronic(String.format("%06d", i), name,
+                        year, price, "maker " + random.nextInt(20));
+            }
+        }
+
+        System.out.println("QueryPlan Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        System.out.println(eStoreSearch.query("harry AND potter")
+                .getMatchCount() == 3);
+        System.out.println(eStoreSearch.query("\"harry potter\"")
+                .getMatchCount() == 1);
+        System.out.println(eStoreSearch.query("harry type:book")
+                .getMatchCount() == 2);
+        System.out.println(eStoreSearch.query("harry NOT type:book")
+                .getMatchCount() == 1);
+        System.out.println(eStoreSearch.query("harry AND price:<50")
+                .getMatchCount() == 2);
+        System.out.println(eStoreSearch.query("harry AND price:[* TO *]")
+                .getMatchCount() == 2);
+        System.out.println(eStoreSearch.query("harry year:[1998 TO *]")
+                .getMatchCount() == 2);
+        System.out.println(eStoreSearch.query("(id:000000 OR id:000001) AND"
+                + " potter").getMatchCount() == 2);
+        System.out.println(eStoreSearch.query("publisher:\"penguin books\"")
+                .getMatchCount() == 1);
+        System.out.println(eStoreSearch.query("maker:acme OR id:000002")
+                .getMatchCount() == 2);
+        System.out.println(eStoreSearch.query("harry AND missing")
+                .getMatchCount() == 0);
+        System.out.println(eStoreSearch.query("type:book AND type:electronics")
+                .getMatchCount() == 0);
+        System.out.println(QueryPlan.compile("year:[1990 TO 2000] AND harry"
+                + " AND year:[1995 TO 2010] AND NOT NOT type:book").toString()
+                .equals("(harry AND type:book AND year:[1995 TO 2000])"));
+        System.out.println(QueryPlan.compile("type:book OR NOT type:book")
+                .toString().equals("*"));
+        for (String invalid : new String[]{"harry AND", "(harry", "color:red",
+            "year:[2000 TO 1990]", "price:<abc", "\"harry", "type:food"}) {
+            try {
+                QueryPlan.compile(invalid);
+                System.out.println(false);
+            } catch (InvalidInputException e) {
+                System.out.println(true);
+            }
+        }
+
+        String query = "w7 AND (maker:\"maker 3\" OR publisher:\"publisher 3\")"
+                + " AND year:[1980 TO 2000] AND price:<100 AND NOT w8";
+        QueryPlan plan = eStoreSearch.prepare(query);
+        long matches = 0;
+        for (int warmup = 0; warmup < rounds / 10; warmup++) {
+            matches += eStoreSearch.search(QueryPlan.compile(query))
+                    .getMatchCount();
+            matches += eStoreSearch.search(plan).getMatchCount();
+        }
+
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            QueryPlan.compile(query);
+        }
+        long planNanos = (System.nanoTime() - begin) / rounds;
+
+        begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches += eStoreSearch.search(QueryPlan.compile(query))
+                    .getMatchCount();
+        }
+        long unpreparedNanos = (System.nanoTime() - begin) / rounds;
+
+        begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches += eStoreSearch.query(query).getMatchCount();
+        }
+        long cachedNanos = (System.nanoTime() - begin) / rounds;
+
+        System.out.println("\nQuery benchmark, " + count + " products");
+        System.out.println("Query:\t\t" + query);
+        System.out.println("Plan:\t\t" + plan);
+        System.out.println("Matches:\t" + eStoreSearch.search(plan)
+                .getMatchCount());
+        System.out.println("Parse and plan:\t" + planNanos / 1000.0 + " us");
+        System.out.println("Unprepared:\t" + unpreparedNanos / 1000.0 + " us");
+        System.out.println("Cached plan:\t" + cachedNanos / 1000.0 + " us");
+        System.out.println("(checksum " + matches + ")");
+    }
+}
@@ -0,0 +1,221 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluates predicates that always scan over primitive columns, in parallel
+ * chunks that each fill their own words of a bitset
+ *
+ * @author Courtney Bodi
+ */
+final class ScanEngine {
+
+    /**
+     * Ordinals per parallel chunk, a multiple of 64 so chunks never share a
+     * bitset word
+     */
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private ScanEngine() {
+    }
+
+    /**
+     * Fills the words of one chunk of ordinals, from inclusive to exclusive
+     */
+    private interface ChunkScan {
+
+        void scan(int from, int to, long[] words);
+    }
+
+    /**
+     * Finds ordinals whose value is between min and max inclusive, the
+     * differences between values and bounds must fit in an int
+     *
+     * @param column of values indexed by ordinal
+     * @param count number of ordinals to scan
+     * @param min lowest matching value
+     * @param max highest matching value
+     * @return set of matching ordinals
+     */
+    static OrdinalSet scanRange(int[] column, int count, int min, int max) {
+        return scan(count, (from, to, words)
+                -> scanRangeChunk(column, min, max, from, to, words));
+    }
+
+    /**
+     * Finds ordinals whose value is between min and max inclusive
+     *
+     * @param column of values indexed by ordinal
+     * @param count number of ordinals to scan
+     * @param min lowest matching value
+     * @param max highest matching value
+     * @return set of matching ordinals
+     */
+    static OrdinalSet scanRange(double[] column, int count, double min,
+            double max) {
+        return scan(count, (from, to, words) -> {
+            for (int base = from; base < to; base += 64) {
+                int end = Math.min(to, base + 64);
+                long word = 0;
+                for (int i = base; i < end; i++) {
+                    double value = column[i];
+                    word |= (value >= min & value <= max ? 1L : 0L)
+                            << (i - base);
+                }
+                words[base >>> 6] = word;
+            }
+        });
+    }
+
+    /**
+     * Finds ordinals whose value equals a value
+     *
+     * @param column of values indexed by ordinal
+     * @param count number of ordinals to scan
+     * @param value to match
+     * @return set of matching ordinals
+     */
+    static OrdinalSet scanEquals(byte[] column, int count, byte value) {
+        return scan(count, (from, to, words) -> {
+            for (int base = from; base < to; base += 64) {
+                int end = Math.min(to, base + 64);
+                long word = 0;
+                for (int i = base; i < end; i++) {
+                    word |= (column[i] == value ? 1L : 0L) << (i - base);
+                }
+                words[base >>> 6] = word;
+            }
+        });
+    }
+
+    /**
+     * Finds ordinals whose dictionary code is one of a set of codes
+     *
+     * @param column of codes indexed by ordinal, ProductColumns.NO_VALUE
+     * where there is none
+     * @param count number of ordinals to scan
+     * @param matchingCodes true at each matching code
+     * @return set of matching ordinals
+     */
+    static OrdinalSet scanCodes(int[] column, int count,
+            boolean[] matchingCodes) {
+        return scan(count, (from, to, words) -> {
+            for (int base = from; base < to; base += 64) {
+                int end = Math.min(to, base + 64);
+                long word = 0;
+                for (int i = base; i < end; i++) {
+                    int code = column[i];
+                    word |= (code != ProductColumns.NO_VALUE
+                            && matchingCodes[code] ? 1L : 0L) << (i - base);
+                }
+                words[base >>> 6] = word;
+            }
+        });
+    }
+
+    /**
+     * Runs a scan over every chunk of ordinals, in parallel when there is
+     * more than one chunk
+     */
+    private static OrdinalSet scan(int count, ChunkScan chunkScan) {
+        long[] words = new long[(count + 63) >>> 6];
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        if (chunks <= 1) {
+            chunkScan.scan(0, count, words);
+        } else {
+            IntStream.range(0, chunks).parallel().forEach(chunk
+                    -> chunkScan.scan(chunk * CHUNK_SIZE, Math.min(count,
+                            (chunk + 1) * CHUNK_SIZE), words));
+        }
+        // Chunks line up with the set's containers, 1024 words each
+        return OrdinalSet.fromWords(words);
+    }
+
+    /**
+     * Scans one chunk, building each word without branches so the loop stays
+     * friendly to the JIT's superword optimization
+     */
+    private static void scanRangeChunk(int[] column, int min, int max,
+            int from, int to, long[] words) {
+        for (int base = from; base < to; base += 64) {
+            int end = Math.min(to, base + 64);
+            long word = 0;
+            for (int i = base; i < end; i++) {
+                int value = column[i];
+                // Sign bit is set only when value < min or value > max
+                long hit = (((value - min) | (max - value)) >>> 31) ^ 1;
+                word |= hit << (i - base);
+            }
+            words[base >>> 6] = word;
+        }
+    }
+
+    /**
+     * Main method for benchmarking the scan against the Product loop
+     *
+     * @param args optional catalog size
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int rounds = 20;
+        Random random = new Random(42);
+
+        ArrayList<Product> products = new ArrayList<>(count);
+        ProductColumns columns = new ProductColumns();
+        for (int i = 0; i < count; i++) {
+            Product product = new Electronic(String.format("%06d", i % 1000000),
+                    "item", 1950 + random.nextInt(70), Product.NO_PRICE, "m");
+            products.add(product);
+            columns.append(product);
+        }
+
+        int start = 1960;
+        int end = 2015;
+        long matches = 0;
+
+        System.out.println("ScanEngine benchmark, " + count + " products\n");
+
+        for (int warmup = 0; warmup < 5; warmup++) {
+            matches += loopScan(products, start, end).size();
+            matches += scanRange(columns.getYears(), count, start, end)
+                    .cardinality();
+        }
+
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches += loopScan(products, start, end).size();
+        }
+        long loopNanos = (System.nanoTime() - begin) / rounds;
+
+        begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches += scanRange(columns.getYears(), count, start, end)
+                    .cardinality();
+        }
+        long scanNanos = (System.nanoTime() - begin) / rounds;
+
+        System.out.println("Product loop:\t" + loopNanos / 1000 + " us");
+        System.out.println("Column scan:\t" + scanNanos / 1000 + " us");
+        System.out.println("Speedup:\t" + (double) loopNanos / scanNanos);
+        System.out.println("(checksum " + matches + ")");
+    }
+
+    /**
+     * The serial loop over Product objects the scan replaces
+     */
+    private static HashSet<Product> loopScan(ArrayList<Product> products,
+            int start, int end) {
+        HashSet<Product> matchingProducts = new HashSet<>();
+        for (Product product : products) {
+            if (product.getYear() >= start && product.getYear() <= end) {
+                matchingProducts.add(product);
+            }
+        }
+        return matchingProducts;
+    }
+}
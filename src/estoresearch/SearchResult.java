@@ -0,0 +1,179 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+/**
+ * Ordinals of the products matching a search. Products are only fetched when
+ * they are iterated or a page of them is requested.
+ *
+ * @author Courtney Bodi
+ */
+public class SearchResult implements Iterable<Product> {
+
+    private final int[] ordinals;
+    private final int matchCount;
+    private final FacetCounts facets;
+    private final IntFunction<Product> fetcher;
+
+    /**
+     * SearchResult constructor with all members
+     *
+     * @param ordinals of matching products in result order
+     * @param matchCount number of matching products, more than
+     * ordinals.length if the result was limited
+     * @param facets of the matching products, or null if not counted
+     * @param fetcher that builds or looks up the product at an ordinal
+     */
+    SearchResult(int[] ordinals, int matchCount, FacetCounts facets,
+            IntFunction<Product> fetcher) {
+        this.ordinals = ordinals;
+        this.matchCount = matchCount;
+        this.facets = facets;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * SearchResult constructor without facets
+     *
+     * @param ordinals of matching products in result order
+     * @param fetcher that builds or looks up the product at an ordinal
+     */
+    SearchResult(int[] ordinals, IntFunction<Product> fetcher) {
+        this(ordinals, ordinals.length, null, fetcher);
+    }
+
+    /**
+     * SearchResult constructor over a set of ordinals
+     *
+     * @param matches set of matching ordinals
+     * @param fetcher that builds or looks up the product at an ordinal
+     */
+    SearchResult(OrdinalSet matches, IntFunction<Product> fetcher) {
+        this(matches.toArray(), fetcher);
+    }
+
+    /**
+     * @return number of matches held by the result
+     */
+    public int size() {
+        return ordinals.length;
+    }
+
+    /**
+     * @return number of matching products, including any beyond the limit
+     * of a limited search
+     */
+    public int getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * @return facet counts of the matches, or null if the search did not
+     * count facets
+     */
+    public FacetCounts getFacets() {
+        return facets;
+    }
+
+    /**
+     * @return whether nothing matched
+     */
+    public boolean isEmpty() {
+        return ordinals.length == 0;
+    }
+
+    /**
+     * Gets ordinal of a match
+     *
+     * @param index of the match in result order
+     * @return ordinal of the matching product
+     */
+    int getOrdinal(int index) {
+        return ordinals[index];
+    }
+
+    /**
+     * Fetches a single match
+     *
+     * @param index of the match in result order
+     * @return the matching product
+     */
+    public Product get(int index) {
+        return fetcher.apply(ordinals[index]);
+    }
+
+    /**
+     * Gets number of pages
+     *
+     * @param pageSize number of products per page
+     * @return number of pages needed to show every match
+     */
+    public int getPageCount(int pageSize) {
+        return (ordinals.length + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Fetches one page of matches
+     *
+     * @param page zero based page number
+     * @param pageSize number of products per page
+     * @return products on the page, empty past the last page
+     */
+    public ArrayList<Product> getPage(int page, int pageSize) {
+        int from = Math.min(ordinals.length, page * pageSize);
+        int to = Math.min(ordinals.length, from + pageSize);
+
+        ArrayList<Product> pageProducts = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            pageProducts.add(fetcher.apply(ordinals[i]));
+        }
+        return pageProducts;
+    }
+
+    /**
+     * Formats one page of matches like EStoreSearch.executeSearch, noting
+     * how many matches are on other pages
+     *
+     * @param page zero based page number
+     * @param pageSize number of products per page
+     * @return string of the products on the page
+     */
+    public String formatPage(int page, int pageSize) {
+        ArrayList<Product> pageProducts = getPage(page, pageSize);
+        String pageString = EStoreSearch.matchingProductsToString(pageProducts);
+
+        if (pageProducts.size() < matchCount) {
+            int first = Math.min(ordinals.length, page * pageSize + 1);
+            pageString += "Showing " + first + " to "
+                    + (first + pageProducts.size() - 1) + " of "
+                    + matchCount + " matches.\n";
+        }
+        return pageString;
+    }
+
+    /**
+     * @return iterator that fetches each product as it is reached
+     */
+    @Override
+    public Iterator<Product> iterator() {
+        return new Iterator<Product>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < ordinals.length;
+            }
+
+            @Override
+            public Product next() {
+                if (next >= ordinals.length) {
+                    throw new NoSuchElementException();
+                }
+                return fetcher.apply(ordinals[next++]);
+            }
+        };
+    }
+}
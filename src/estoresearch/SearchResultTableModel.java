@@ -0,0 +1,99 @@
+package estoresearch;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model that reads rows straight from a SearchResult. The result only
+ * holds ordinals, and a product is fetched when the table paints its row, so
+ * memory and paint time do not grow with the number of matches.
+ *
+ * @author Courtney Bodi
+ */
+class SearchResultTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMN_NAMES = {"Type", "Product ID", "Name",
+        "Price", "Year", "Authors", "Publisher", "Maker"};
+
+    private static final int TYPE = 0;
+    private static final int PRODUCT_ID = 1;
+    private static final int NAME = 2;
+    private static final int PRICE = 3;
+    private static final int YEAR = 4;
+    private static final int AUTHORS = 5;
+    private static final int PUBLISHER = 6;
+    private static final int MAKER = 7;
+
+    private SearchResult result;
+
+    // Cells are painted a row at a time, so the last row is kept
+    private int cachedRow = -1;
+    private Product cachedProduct;
+
+    /**
+     * Shows the rows of a new search, or no rows
+     *
+     * @param result of the search, or null to clear the table
+     */
+    void setResult(SearchResult result) {
+        this.result = result;
+        cachedRow = -1;
+        cachedProduct = null;
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return result == null ? 0 : result.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == YEAR ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        if (row != cachedRow) {
+            cachedProduct = result.get(row);
+            cachedRow = row;
+        }
+        Product product = cachedProduct;
+
+        switch (column) {
+            case TYPE:
+                return product instanceof Book ? "Book" : "Electronic";
+            case PRODUCT_ID:
+                return product.getId();
+            case NAME:
+                return product.getName();
+            case PRICE:
+                return product.getPrice() == Product.NO_PRICE ? ""
+                        : String.format("%.2f", product.getPrice());
+            case YEAR:
+                return product.getYear();
+            case AUTHORS:
+                return product instanceof Book
+                        ? ((Book) product).getAuthor() : "";
+            case PUBLISHER:
+                return product instanceof Book
+                        ? ((Book) product).getPublisher() : "";
+            case MAKER:
+                return product instanceof Electronic
+                        ? ((Electronic) product).getMaker() : "";
+            default:
+                throw new IndexOutOfBoundsException("No column " + column);
+        }
+    }
+}
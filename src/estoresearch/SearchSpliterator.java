@@ -0,0 +1,243 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Spliterator over the products matching a search that tests ordinals only
+ * as they are pulled, so limit, findFirst and anyMatch stop the search as
+ * soon as they have their answer. It walks a range of ordinals, or only the
+ * candidates indexes gave within that range, and splits the range in halves
+ * for parallel streams.
+ *
+ * <p>
+ * A stream sees the version that was current when it was created, up to
+ * the products that version held then. Every step holds the owner's read
+ * lock, and products removed before the stream reaches them are skipped.
+ *
+ * @author Courtney Bodi
+ */
+final class SearchSpliterator implements Spliterator<Product> {
+
+    /**
+     * Fewest ordinals in a range that is split further
+     */
+    static final int MIN_SPLIT = 4096;
+
+    private final CatalogVersion version;
+    private final OrdinalSet candidates;
+    private final IntPredicate residual;
+    private final Lock lock;
+    private int from;
+    private final int to;
+
+    /**
+     * SearchSpliterator constructor over every ordinal of a version
+     *
+     * @param version searched
+     * @param candidates ordinals to walk, or null for every ordinal
+     * @param residual test of each candidate
+     * @param lock read lock guarding the version
+     */
+    SearchSpliterator(CatalogVersion version, OrdinalSet candidates,
+            IntPredicate residual, Lock lock) {
+        this(version, candidates, residual, lock, 0, version.size());
+    }
+
+    /**
+     * SearchSpliterator constructor with all members
+     */
+    private SearchSpliterator(CatalogVersion version, OrdinalSet candidates,
+            IntPredicate residual, Lock lock, int from, int to) {
+        this.version = version;
+        this.candidates = candidates;
+        this.residual = residual;
+        this.lock = lock;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Product> action) {
+        Product product = null;
+        lock.lock();
+        try {
+            BitSet tombstones = version.getTombstones();
+            while (product == null && from < to) {
+                int ordinal = candidates == null ? from
+                        : candidates.next(from);
+                if (ordinal < 0 || ordinal >= to) {
+                    from = to;
+                } else {
+                    from = ordinal + 1;
+                    if (!tombstones.get(ordinal) && residual.test(ordinal)) {
+                        product = version.getProducts().get(ordinal);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // The consumer runs without the lock, so it may change the store
+        if (product == null) {
+            return false;
+        }
+        action.accept(product);
+        return true;
+    }
+
+    @Override
+    public Spliterator<Product> trySplit() {
+        if (to - from < MIN_SPLIT * 2) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        SearchSpliterator prefix = new SearchSpliterator(version, candidates,
+                residual, lock, from, middle);
+        from = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return candidates == null ? to - from
+                : Math.min(to - from, candidates.cardinality());
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+    /**
+     * Main method for testing streams against eager searches and
+     * benchmarking queries that only need the first few matches
+     *
+     * @param args optional catalog size, at most 999000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 999000;
+        int rounds = 200;
+        Random random = new Random(42);
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        ArrayList<Product> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "item " + random.nextInt(1000) + " w"
+                    + random.nextInt(50) + (i % 7 == 0 ? " harry potter" : "");
+            double price = random.nextInt(10) == 0 ? Product.NO_PRICE
+                    : random.nextInt(20000) / 100.0;
+            batch.add(i % 3 == 0 ? new Book(String.format("%06d", i), name,
+                    1950 + random.nextInt(70), price, "author", "publisher "
+                    + random.nextInt(20))
+                    : new Electronic(String.format("%06d", i), name, 1950
+                            + random.nextInt(70), price, "maker "
+                            + random.nextInt(20)));
+            if (batch.size() == 10000) {
+                eStoreSearch.addProducts(batch);
+                batch.clear();
+            }
+        }
+        eStoreSearch.addProducts(batch);
+        for (int i = 0; i < count / 100; i++) {
+            try {
+                eStoreSearch.removeProduct(String.format("%06d",
+                        random.nextInt(count)));
+            } catch (InvalidInputException e) {
+                // Already removed
+            }
+        }
+
+        System.out.println("SearchSpliterator Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        String[][] searches = {{"", "harry", "", ""}, {"", "", "1990", "1995"},
+            {"", "w7 item", "2000", ""}, {"000014", "", "", ""},
+            {"", "\"harry potter\" w3", "", "1970"}, {"", "", "", ""}};
+        boolean pass = true;
+        for (String[] search : searches) {
+            pass &= eStoreSearch.stream(search[0], search[1], search[2],
+                    search[3]).collect(Collectors.toList()).equals(
+                    eStoreSearch.search(search[0], search[1], search[2],
+                            search[3], EStoreSearch.NO_LIMIT));
+        }
+        System.out.println(pass + "\tstream(fields) matches search(fields)");
+
+        String[] queries = {"harry", "year:[1990 TO 1995]", "price:<10 AND"
+            + " type:book", "harry NOT w3", "NOT harry AND price:>150",
+            "w7 OR year:1960", "\"harry potter\" AND maker:\"maker 3\"",
+            "contains:\"em 12\" AND year:>2000", "harry AND NOT harry",
+            "NOT (w3 OR w4) AND publisher:\"publisher 1\"", "*"};
+        pass = true;
+        for (String query : queries) {
+            QueryPlan plan = eStoreSearch.prepare(query);
+            List<Product> expected = eStoreSearch.search(plan).getPage(0,
+                    Integer.MAX_VALUE);
+            pass &= eStoreSearch.stream(plan).collect(Collectors.toList())
+                    .equals(expected);
+            pass &= eStoreSearch.stream(plan).parallel().collect(
+                    Collectors.toList()).equals(expected);
+            pass &= eStoreSearch.stream(plan).limit(10).collect(
+                    Collectors.toList()).equals(expected.subList(0,
+                    Math.min(10, expected.size())));
+        }
+        System.out.println(pass + "\tstream(plan) matches search(plan),"
+                + " sequential, parallel and limited");
+
+        QueryPlan harry = eStoreSearch.prepare("harry");
+        Product last = eStoreSearch.search(harry).get(eStoreSearch.search(
+                harry).size() - 1);
+        Stream<Product> stream = eStoreSearch.stream(harry);
+        eStoreSearch.removeProduct(last.getId());
+        eStoreSearch.addBook("999999", "harry late", "2000", "", "", "");
+        System.out.println(!stream.anyMatch(product -> product == last
+                || product.getId().equals("999999"))
+                + "\tstream skips products removed or added after it");
+
+        long checksum = 0;
+        String[] benchmarks = {"harry", "year:[1990 TO 1995]",
+            "price:<10 AND type:book", "harry AND price:>150"};
+        System.out.println("\nFirst matches of " + count + " products, us"
+                + " per search\n");
+        System.out.println("Query\t\t\tsearch\tfindAny\tlimit 10");
+        for (String query : benchmarks) {
+            QueryPlan plan = eStoreSearch.prepare(query);
+            long[] nanos = new long[3];
+            // Only the second repeat is kept, after warming up
+            for (int repeat = 0; repeat < 2; repeat++) {
+                long begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    SearchResult result = eStoreSearch.search(plan);
+                    checksum += result.getPage(0, Math.min(10, result.size()))
+                            .size();
+                }
+                nanos[0] = System.nanoTime() - begin;
+                begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    checksum += eStoreSearch.stream(plan).findAny()
+                            .isPresent() ? 1 : 0;
+                }
+                nanos[1] = System.nanoTime() - begin;
+                begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    checksum += eStoreSearch.stream(plan).limit(10).count();
+                }
+                nanos[2] = System.nanoTime() - begin;
+            }
+            System.out.println(query + (query.length() < 16 ? "\t\t" : "\t")
+                    + (query.length() < 8 ? "\t" : "")
+                    + nanos[0] / rounds / 1000 + "\t" + nanos[1] / rounds
+                    / 1000 + "\t" + nanos[2] / rounds / 1000);
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+}
@@ -0,0 +1,344 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+/**
+ * Log-structured keyword index. New products go to a small mutable segment
+ * that is frozen into an immutable KeywordSegment once it holds
+ * FLUSH_THRESHOLD products, and a tiered merge policy combines frozen
+ * segments in the background.
+ *
+ * <p>
+ * Adds and searches must be guarded by the owner's lock as for any mutable
+ * index. Frozen segments are published as an immutable list, so merges never
+ * need that lock.
+ *
+ * @author Courtney Bodi
+ */
+class SegmentedIndex {
+
+    /**
+     * Products in the mutable segment before it is frozen
+     */
+    static final int FLUSH_THRESHOLD = 4096;
+
+    /**
+     * Segments of one tier that are merged into a segment of the next tier
+     */
+    static final int MERGE_FACTOR = 8;
+
+    private TermDictionary activeTerms = new TermDictionary();
+    private ArrayList<PositionalPostings> activePostings = new ArrayList<>();
+    private int activeDocCount;
+    // Scratch copy of a name being tokenized from a StringArena
+    private byte[] nameBytes = new byte[64];
+
+    private volatile List<KeywordSegment> segments = Collections.emptyList();
+
+    private final Executor merger;
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+
+    /**
+     * SegmentedIndex constructor with all members
+     *
+     * @param merger executor that runs background merges
+     */
+    SegmentedIndex(Executor merger) {
+        this.merger = merger;
+    }
+
+    /**
+     * Splits a name into lower case keywords
+     *
+     * @param name of a product
+     * @return keywords of the name
+     */
+    static String[] tokenize(String name) {
+        return name.toLowerCase().split("\\s+");
+    }
+
+    /**
+     * Indexes the keywords of a product, ordinals must be added in ascending
+     * order
+     *
+     * @param product to index
+     * @param ordinal of the product
+     */
+    void add(Product product, int ordinal) {
+        if (!(product instanceof StringArena.View)
+                || !addNameBytes((StringArena.View) product, ordinal)) {
+            String[] nameTokens = tokenize(product.getName());
+            for (int position = 0; position < nameTokens.length; position++) {
+                post(activeTerms.add(nameTokens[position]), ordinal, position);
+            }
+        }
+
+        activeDocCount++;
+        if (activeDocCount >= FLUSH_THRESHOLD) {
+            freeze();
+        }
+    }
+
+    /**
+     * Indexes the keywords of a name kept in a StringArena without decoding
+     * it. Keywords are split and lower cased in place in a scratch copy of
+     * the bytes, the way tokenize splits and lower cases the name.
+     *
+     * @return false if the name is not ASCII and has to be tokenized as a
+     * string
+     */
+    private boolean addNameBytes(StringArena.View view, int ordinal) {
+        StringArena arena = view.getArena();
+        long reference = view.getNameReference();
+        int length = arena.getLength(reference);
+        if (length > nameBytes.length) {
+            nameBytes = new byte[Math.max(length, nameBytes.length * 2)];
+        }
+        arena.copy(reference, nameBytes);
+        for (int i = 0; i < length; i++) {
+            if (nameBytes[i] < 0) {
+                return false;
+            }
+        }
+
+        // Like split, leading whitespace gives an empty first keyword unless
+        // the name is only whitespace
+        boolean leadingSpace = length > 0 && isSpace(nameBytes[0]);
+        int position = 0;
+        int index = 0;
+        while (index < length) {
+            while (index < length && isSpace(nameBytes[index])) {
+                index++;
+            }
+            if (index == length) {
+                break;
+            }
+            if (leadingSpace) {
+                post(activeTerms.add(nameBytes, 0, 0), ordinal, position++);
+                leadingSpace = false;
+            }
+
+            int start = index;
+            for (; index < length && !isSpace(nameBytes[index]); index++) {
+                if (nameBytes[index] >= 'A' && nameBytes[index] <= 'Z') {
+                    nameBytes[index] += 'a' - 'A';
+                }
+            }
+            post(activeTerms.add(nameBytes, start, index), ordinal,
+                    position++);
+        }
+        return true;
+    }
+
+    /**
+     * Whether an ASCII byte is matched by \s
+     */
+    private static boolean isSpace(byte character) {
+        return character == ' ' || (character >= '\t' && character <= '\r');
+    }
+
+    /**
+     * Records a term of the mutable segment at a position of a name
+     */
+    private void post(int term, int ordinal, int position) {
+        if (term == activePostings.size()) {
+            activePostings.add(new PositionalPostings());
+        }
+        // A keyword repeated in one name is posted once with every position
+        activePostings.get(term).add(ordinal, position);
+    }
+
+    /**
+     * Freezes the mutable segment into an immutable segment and schedules a
+     * merge if a tier is full
+     */
+    void freeze() {
+        if (activeDocCount == 0) {
+            return;
+        }
+
+        KeywordSegment segment = KeywordSegment.build(activeTerms,
+                activePostings, activeDocCount);
+        synchronized (this) {
+            ArrayList<KeywordSegment> newSegments = new ArrayList<>(segments);
+            newSegments.add(segment);
+            segments = Collections.unmodifiableList(newSegments);
+        }
+        activeTerms = new TermDictionary();
+        activePostings = new ArrayList<>();
+        activeDocCount = 0;
+
+        scheduleMerge();
+    }
+
+    /**
+     * Finds the ordinals of a keyword across every segment
+     *
+     * @param keyword to look up
+     * @return set of the ordinals, or null if no segment has the keyword
+     */
+    OrdinalSet getPostings(String keyword) {
+        byte[] term = TermDictionary.encode(keyword);
+        OrdinalSet.Builder ordinals = new OrdinalSet.Builder();
+        boolean found = false;
+
+        for (KeywordSegment segment : segments) {
+            found |= segment.addPostings(term, ordinals);
+        }
+
+        int active = activeTerms.find(term);
+        if (active >= 0) {
+            found = true;
+            activePostings.get(active).addOrdinals(ordinals);
+        }
+        return found ? ordinals.build() : null;
+    }
+
+    /**
+     * Checks whether any name has a keyword without reading its postings
+     *
+     * @param keyword to look up
+     * @return true if a segment has the keyword
+     */
+    boolean hasTerm(String keyword) {
+        byte[] term = TermDictionary.encode(keyword);
+        for (KeywordSegment segment : segments) {
+            if (segment.getTerms().find(term) >= 0) {
+                return true;
+            }
+        }
+        return activeTerms.find(term) >= 0;
+    }
+
+    /**
+     * Removes candidates whose names do not contain a phrase. Candidates
+     * should already be intersected with the postings of every term of the
+     * phrase, so position masks are only decoded for products that can
+     * match. Names too long for a mask are checked by tokenizing them.
+     *
+     * @param phrase to verify
+     * @param candidates ordinals to check
+     * @param names gets the name of a candidate
+     * @return the candidates whose names contain the phrase
+     */
+    OrdinalSet verifyPhrase(PhraseQuery phrase, OrdinalSet candidates,
+            IntFunction<String> names) {
+        int[] ordinals = candidates.toArray();
+        String[] terms = phrase.getTerms();
+        long[][] masks = new long[terms.length][];
+
+        for (int i = 0; i < terms.length; i++) {
+            byte[] term = TermDictionary.encode(terms[i]);
+            masks[i] = new long[ordinals.length];
+            for (KeywordSegment segment : segments) {
+                segment.addMasks(term, ordinals, masks[i]);
+            }
+            int active = activeTerms.find(term);
+            if (active >= 0) {
+                activePostings.get(active).addMasks(ordinals, masks[i]);
+            }
+        }
+
+        OrdinalSet.Builder matchingOrdinals = new OrdinalSet.Builder();
+        long[] candidateMasks = new long[terms.length];
+        for (int candidate = 0; candidate < ordinals.length; candidate++) {
+            boolean longName = false;
+            for (int i = 0; i < terms.length; i++) {
+                candidateMasks[i] = masks[i][candidate];
+                longName |= (candidateMasks[i]
+                        & PositionalPostings.LONG_NAME) != 0;
+            }
+
+            boolean matches = longName ? phrase.matches(tokenize(names.apply(
+                    ordinals[candidate]))) : phrase.matches(candidateMasks);
+            if (matches) {
+                matchingOrdinals.add(ordinals[candidate]);
+            }
+        }
+        return matchingOrdinals.build();
+    }
+
+    /**
+     * @return number of frozen segments
+     */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets tier of a segment, each tier holds segments MERGE_FACTOR times
+     * larger than the tier below
+     */
+    private static int tier(KeywordSegment segment) {
+        int tier = 0;
+        for (long size = FLUSH_THRESHOLD; size * MERGE_FACTOR
+                <= segment.getDocCount(); size *= MERGE_FACTOR) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Finds the newest run of MERGE_FACTOR adjacent segments in one tier
+     *
+     * @return index of the first segment of the run, or -1 if there is none
+     */
+    private static int findMergeRun(List<KeywordSegment> candidates) {
+        int runLength = 0;
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            if (runLength > 0 && tier(candidates.get(i))
+                    != tier(candidates.get(i + 1))) {
+                runLength = 0;
+            }
+            runLength++;
+            if (runLength == MERGE_FACTOR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queues a background merge if one is not already queued
+     */
+    private void scheduleMerge() {
+        if (findMergeRun(segments) >= 0
+                && mergeScheduled.compareAndSet(false, true)) {
+            merger.execute(() -> {
+                try {
+                    merge();
+                } finally {
+                    mergeScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Merges runs of full tiers until no tier is full. Segments are only
+     * appended while a merge runs, so the merged run is still in place when
+     * it is swapped out.
+     */
+    void merge() {
+        List<KeywordSegment> current;
+        int start;
+        while ((start = findMergeRun(current = segments)) >= 0) {
+            KeywordSegment merged = KeywordSegment.merge(current.subList(start,
+                    start + MERGE_FACTOR));
+
+            synchronized (this) {
+                ArrayList<KeywordSegment> newSegments = new ArrayList<>(
+                        segments.subList(0, start));
+                newSegments.add(merged);
+                newSegments.addAll(segments.subList(start + MERGE_FACTOR,
+                        segments.size()));
+                segments = Collections.unmodifiableList(newSegments);
+            }
+        }
+    }
+}
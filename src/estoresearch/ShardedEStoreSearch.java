@@ -0,0 +1,381 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Partitions products by ID hash across independent EStoreSearch shards so
+ * that index builds and searches use every core
+ *
+ * @author Courtney Bodi
+ */
+public class ShardedEStoreSearch implements ProductSink {
+
+    private final EStoreSearch[] shards;
+    private final ForkJoinPool pool;
+
+    /**
+     * ShardedEStoreSearch constructor with one shard per core
+     */
+    public ShardedEStoreSearch() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * ShardedEStoreSearch constructor using the common fork-join pool
+     *
+     * @param shardCount number of shards, at least 1
+     */
+    public ShardedEStoreSearch(int shardCount) {
+        this(shardCount, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * ShardedEStoreSearch constructor with all members
+     *
+     * @param shardCount number of shards, at least 1
+     * @param pool to fan searches and index builds out on
+     */
+    public ShardedEStoreSearch(int shardCount, ForkJoinPool pool) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        shards = new EStoreSearch[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new EStoreSearch();
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the shard that owns a product ID
+     *
+     * @param productID to route
+     * @return shard the product ID hashes to
+     */
+    private EStoreSearch shardFor(String productID) {
+        return shards[Math.floorMod(productID.hashCode(), shards.length)];
+    }
+
+    /**
+     * @return the products of every shard, shard by shard
+     */
+    public ArrayList<Product> getProducts() {
+        ArrayList<Product> allProducts = new ArrayList<>();
+        for (EStoreSearch shard : shards) {
+            allProducts.addAll(shard.getProducts());
+        }
+        return allProducts;
+    }
+
+    /**
+     * Adds book to the shard that owns its ID
+     *
+     * @param id is a unique 6 digit string
+     * @param name of product
+     * @param year product released
+     * @param price of product in dollars CAD
+     * @param author of product with first and last name
+     * @param publisher of product name
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public void addBook(String id, String name, String year, String price,
+            String author, String publisher) throws InvalidInputException {
+        shardFor(id).addBook(id, name, year, price, author, publisher);
+    }
+
+    /**
+     * Adds electronic to the shard that owns its ID
+     *
+     * @param id is a unique 6 digit string
+     * @param name of product
+     * @param year product released
+     * @param price of product in dollars CAD
+     * @param maker of product string
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public void addElectronic(String id, String name, String year,
+            String price, String maker) throws InvalidInputException {
+        shardFor(id).addElectronic(id, name, year, price, maker);
+    }
+
+    /**
+     * Removes product from the shard that owns its ID
+     *
+     * @param id of the product to remove
+     * @throws estoresearch.InvalidInputException if the ID does not exist
+     */
+    public void removeProduct(String id) throws InvalidInputException {
+        shardFor(id).removeProduct(id);
+    }
+
+    /**
+     * Renames product in the shard that owns its ID
+     *
+     * @param id of the product to rename
+     * @param name new name of product
+     * @throws estoresearch.InvalidInputException if the ID does not exist or
+     * the name is invalid
+     */
+    public void updateName(String id, String name)
+            throws InvalidInputException {
+        shardFor(id).updateName(id, name);
+    }
+
+    /**
+     * Changes price of product in the shard that owns its ID
+     *
+     * @param id of the product to update
+     * @param price new price of product in dollars CAD
+     * @throws estoresearch.InvalidInputException if the ID does not exist or
+     * the price is invalid
+     */
+    public void updatePrice(String id, String price)
+            throws InvalidInputException {
+        shardFor(id).updatePrice(id, price);
+    }
+
+    /**
+     * Adds already validated products, each shard indexes its partition in
+     * parallel
+     *
+     * @param batch of products to add in order
+     * @return products that were not added because their ID already exists
+     */
+    @Override
+    public List<Product> addProducts(List<Product> batch) {
+        return addPartitioned(batch, shards);
+    }
+
+    /**
+     * Partitions products by ID hash and adds each partition to its sink in
+     * parallel
+     *
+     * @param batch of products to add in order
+     * @param sinks of each shard, by shard index
+     * @return products that were not added because their ID already exists
+     */
+    private List<Product> addPartitioned(List<Product> batch,
+            ProductSink[] sinks) {
+        ArrayList<ArrayList<Product>> partitions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Product product : batch) {
+            partitions.get(Math.floorMod(product.getId().hashCode(),
+                    shards.length)).add(product);
+        }
+
+        ArrayList<ForkJoinTask<List<Product>>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            ProductSink sink = sinks[i];
+            ArrayList<Product> partition = partitions.get(i);
+            tasks.add(pool.submit(() -> sink.addProducts(partition)));
+        }
+
+        ArrayList<Product> rejected = new ArrayList<>();
+        for (ForkJoinTask<List<Product>> task : tasks) {
+            rejected.addAll(task.join());
+        }
+        return rejected;
+    }
+
+    /**
+     * Loads products from file, the format is chosen by file extension.
+     * Invalid records are reported and skipped. Every shard loads into a new
+     * version, and the versions are published once the whole file is read.
+     *
+     * @param filename for file filled with products
+     * @return report of the import, or null if the file could not be read
+     */
+    public ImportReport loadProducts(String filename) {
+        EStoreSearch.BulkLoad[] loads = new EStoreSearch.BulkLoad[
+                shards.length];
+        ImportReport report = null;
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                loads[i] = shards[i].beginBulkLoad();
+            }
+            report = EStoreSearch.loadProducts(filename,
+                    batch -> addPartitioned(batch, loads));
+        } finally {
+            for (EStoreSearch.BulkLoad load : loads) {
+                if (load == null) {
+                    continue;
+                }
+                if (report != null) {
+                    load.publish();
+                } else {
+                    load.abandon();
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Performs search on every shard in parallel and merges the results. A
+     * keyword that is in no name of any shard is ignored, like EStoreSearch
+     * ignores it, but one that only some shards have matches nothing in the
+     * others.
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @param limit maximum number of products to return, or
+     * EStoreSearch.NO_LIMIT
+     * @return list of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public ArrayList<Product> search(String productID, String keywords,
+            String startYear, String endYear, int limit)
+            throws InvalidInputException {
+
+        HashSet<String> known = findKnownKeywords(keywords);
+
+        // An ID lives in exactly one shard
+        if (!productID.equals("")) {
+            return shardFor(productID).search(productID, keywords, startYear,
+                    endYear, limit, known::contains);
+        }
+
+        ArrayList<ForkJoinTask<ArrayList<Product>>> tasks = new ArrayList<>();
+        for (EStoreSearch shard : shards) {
+            tasks.add(pool.submit(() -> shard.search(productID, keywords,
+                    startYear, endYear, limit, known::contains)));
+        }
+
+        ArrayList<Product> matches = new ArrayList<>();
+        for (ForkJoinTask<ArrayList<Product>> task : tasks) {
+            ArrayList<Product> shardMatches;
+            try {
+                shardMatches = task.get();
+            } catch (ExecutionException e) {
+                // The pool may wrap the shard's exception more than once
+                for (Throwable cause = e.getCause(); cause != null;
+                        cause = cause.getCause()) {
+                    if (cause instanceof InvalidInputException) {
+                        throw new InvalidInputException(cause.getMessage());
+                    }
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+
+            for (Product product : shardMatches) {
+                if (matches.size() >= limit) {
+                    return matches;
+                }
+                matches.add(product);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the loose keywords of a search that are in a name of any shard
+     *
+     * @param keywords user input
+     * @return the keywords some shard has
+     * @throws InvalidInputException if a phrase is not closed
+     */
+    private HashSet<String> findKnownKeywords(String keywords)
+            throws InvalidInputException {
+        ArrayList<String> looseKeywords = new ArrayList<>();
+        PhraseQuery.parse(keywords, looseKeywords);
+
+        HashSet<String> known = new HashSet<>();
+        for (String keyword : looseKeywords) {
+            for (EStoreSearch shard : shards) {
+                if (shard.hasKeyword(keyword)) {
+                    known.add(keyword);
+                    break;
+                }
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Performs search on every shard in parallel
+     *
+     * @param productID user input
+     * @param keywords user input
+     * @param startYear user input
+     * @param endYear user input
+     * @return string of matching products
+     * @throws estoresearch.InvalidInputException custom input validation
+     * checked exception
+     */
+    public String executeSearch(String productID, String keywords,
+            String startYear, String endYear) throws InvalidInputException {
+        return EStoreSearch.matchingProductsToString(search(productID,
+                keywords, startYear, endYear, EStoreSearch.NO_LIMIT));
+    }
+
+    /**
+     * Saves products of every shard to output.txt
+     */
+    public void saveProducts() {
+        EStoreSearch.writeProducts(getProducts());
+    }
+
+    /**
+     * Main method for testing that sharding does not change search results
+     *
+     * @param args unused
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        Random random = new Random(42);
+        EStoreSearch single = new EStoreSearch();
+        ShardedEStoreSearch sharded = new ShardedEStoreSearch(4);
+        String[] words = {"harry", "potter", "zebra", "stone", "wand", "cloak"};
+        for (int i = 0; i < 2000; i++) {
+            String id = String.format("%06d", i);
+            // Rare words end up in only some of the shards
+            String name = words[random.nextInt(2)] + " "
+                    + words[random.nextInt(i % 100 == 0 ? 6 : 2)];
+            String year = String.valueOf(1990 + random.nextInt(30));
+            single.addBook(id, name, year, "", "", "");
+            sharded.addBook(id, name, year, "", "", "");
+        }
+
+        System.out.println("ShardedEStoreSearch Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        String[][] searches = {{"", "harry zebra", "", ""},
+            {"", "harry unicorn", "", ""}, {"", "zebra wand", "", ""},
+            {"", "\"harry zebra\"", "", ""}, {"", "cloak", "2000", ""},
+            {"000000", "potter zebra", "", ""}, {"000100", "zebra", "", ""},
+            {"", "", "1995", "1999"}};
+        boolean pass = true;
+        for (String[] search : searches) {
+            ArrayList<Product> expected = single.search(search[0], search[1],
+                    search[2], search[3], EStoreSearch.NO_LIMIT);
+            ArrayList<Product> matches = sharded.search(search[0], search[1],
+                    search[2], search[3], EStoreSearch.NO_LIMIT);
+            // Shards merge in their own order
+            pass &= matches.size() == expected.size()
+                    && matches.containsAll(expected);
+        }
+        System.out.println(pass + "\tsharded searches match one store");
+    }
+}
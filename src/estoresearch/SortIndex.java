@@ -0,0 +1,156 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Permutations of the ordinals sorted by price, year and name, used to page
+ * through sorted results without sorting them per query
+ *
+ * @author Courtney Bodi
+ */
+class SortIndex {
+
+    private final SortPermutation byPrice;
+    private final SortPermutation byYear;
+    private final SortPermutation byName;
+
+    /**
+     * SortIndex constructor over the fields of a product list
+     *
+     * @param columns holding prices and years by ordinal
+     * @param products holding names by ordinal
+     */
+    SortIndex(ProductColumns columns, List<Product> products) {
+        // Products without a price come last whichever way prices are sorted
+        byPrice = new SortPermutation((a, b) -> Double.compare(
+                columns.getPrices()[a], columns.getPrices()[b]),
+                ordinal -> columns.getPrices()[ordinal] == Product.NO_PRICE);
+        byYear = new SortPermutation((a, b) -> Integer.compare(
+                columns.getYears()[a], columns.getYears()[b]));
+        byName = new SortPermutation((a, b) -> products.get(a).getName()
+                .compareToIgnoreCase(products.get(b).getName()));
+    }
+
+    /**
+     * Adds an appended ordinal to every permutation
+     *
+     * @param ordinal of the appended product
+     */
+    void add(int ordinal) {
+        byPrice.add(ordinal);
+        byYear.add(ordinal);
+        byName.add(ordinal);
+    }
+
+    /**
+     * Moves an ordinal whose price changed
+     *
+     * @param ordinal of the product
+     */
+    void priceChanged(int ordinal) {
+        byPrice.update(ordinal);
+    }
+
+    /**
+     * Gets the first matching ordinals in a sort order
+     *
+     * @param matches bitset of matching ordinals
+     * @param matchCount cardinality of matches
+     * @param order to sort in
+     * @param limit maximum number of ordinals
+     * @return up to limit matching ordinals in sort order
+     */
+    int[] topMatches(BitSet matches, int matchCount, SortOrder order,
+            int limit) {
+        switch (order) {
+            case PRICE_ASCENDING:
+                return byPrice.topMatches(matches, matchCount, false, limit);
+            case PRICE_DESCENDING:
+                return byPrice.topMatches(matches, matchCount, true, limit);
+            case YEAR_ASCENDING:
+                return byYear.topMatches(matches, matchCount, false, limit);
+            case YEAR_DESCENDING:
+                return byYear.topMatches(matches, matchCount, true, limit);
+            case NAME_ASCENDING:
+                return byName.topMatches(matches, matchCount, false, limit);
+            default:
+                return matches.stream().limit(limit).toArray();
+        }
+    }
+
+    /**
+     * Gets the prices of products in the order of a price sort, unpriced
+     * products last in both directions
+     *
+     * @param products to sort
+     * @param order PRICE_ASCENDING or PRICE_DESCENDING
+     * @param limit maximum number of prices
+     * @return the first prices in sort order
+     */
+    private static List<Double> sortedPrices(List<Product> products,
+            SortOrder order, int limit) {
+        Comparator<Double> byPrice = order == SortOrder.PRICE_ASCENDING
+                ? Comparator.naturalOrder() : Comparator.reverseOrder();
+        return products.stream().map(Product::getPrice)
+                .sorted(Comparator.comparing((Double price)
+                        -> price == Product.NO_PRICE).thenComparing(byPrice))
+                .limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Main method for testing SortIndex. Sorts matches by price with a
+     * quarter of the products unpriced, through both the permutation walk
+     * and the sort of all matches, and checks the prices against sorting
+     * the matching products.
+     *
+     * @param args not used
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        Random random = new Random(42);
+        int count = 20000;
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        ArrayList<Product> products = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            products.add(new Electronic(String.format("%06d", i), "item "
+                    + random.nextInt(100) + (i % 10 == 0 ? " tv" : ""), 1950
+                    + random.nextInt(70), random.nextInt(4) == 0
+                    ? Product.NO_PRICE : random.nextInt(1000) / 4.0,
+                    "maker"));
+        }
+        eStoreSearch.addProducts(products);
+        // Moves products into and out of the unpriced ones
+        for (int i = 0; i < count / 20; i++) {
+            eStoreSearch.updatePrice(String.format("%06d", random.nextInt(
+                    count)), random.nextBoolean() ? Product.NO_PRICE
+                    : random.nextInt(1000) / 4.0);
+        }
+
+        System.out.println("SortIndex Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        for (SortOrder order : new SortOrder[]{SortOrder.PRICE_ASCENDING,
+            SortOrder.PRICE_DESCENDING}) {
+            boolean pass = true;
+            // Few matches are sorted, many are found by walking
+            for (String keywords : new String[]{"", "tv", "item 7 tv"}) {
+                List<Product> matches = eStoreSearch.search("", keywords, "",
+                        "").getPage(0, Integer.MAX_VALUE);
+                for (int limit : new int[]{10, count}) {
+                    List<Double> prices = eStoreSearch.sortedSearch("",
+                            keywords, "", "", order, limit).getPage(0, limit)
+                            .stream().map(Product::getPrice)
+                            .collect(Collectors.toList());
+                    pass &= prices.equals(sortedPrices(matches, order,
+                            limit));
+                }
+            }
+            System.out.println(pass + "\t" + order
+                    + " puts unpriced products last");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package estoresearch;
+
+/**
+ * Orders search results can be sorted in
+ *
+ * @author Courtney Bodi
+ */
+public enum SortOrder {
+
+    ADDED("Date added"),
+    PRICE_ASCENDING("Cheapest first"),
+    PRICE_DESCENDING("Most expensive first"),
+    YEAR_DESCENDING("Newest first"),
+    YEAR_ASCENDING("Oldest first"),
+    NAME_ASCENDING("Name");
+
+    private final String label;
+
+    /**
+     * SortOrder constructor
+     *
+     * @param label shown to the user
+     */
+    SortOrder(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return label shown to the user
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
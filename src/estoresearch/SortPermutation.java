@@ -0,0 +1,222 @@
+package estoresearch;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Ordinals kept sorted by one product field, ties broken by ordinal. Appended
+ * ordinals are buffered and merged in when the permutation is next read, so
+ * bulk loads sort each batch once instead of inserting one at a time.
+ * Ordinals whose field is unknown can be kept after all others, in either
+ * direction.
+ *
+ * @author Courtney Bodi
+ */
+class SortPermutation {
+
+    /**
+     * Compares two ordinals by the sorted field
+     */
+    interface OrdinalComparator {
+
+        int compare(int a, int b);
+    }
+
+    private final OrdinalComparator comparator;
+    private final IntPredicate unknown;
+
+    private int[] sorted = new int[0];
+    private IntList pending = new IntList();
+    private boolean pendingUpdates;
+
+    /**
+     * SortPermutation constructor for a field that is always known
+     *
+     * @param comparator of the sorted field, must not change for an ordinal
+     * unless it is removed first
+     */
+    SortPermutation(OrdinalComparator comparator) {
+        this(comparator, ordinal -> false);
+    }
+
+    /**
+     * SortPermutation constructor for a field that can be unknown
+     *
+     * @param comparator of the sorted field where it is known, must not
+     * change for an ordinal unless it is removed first
+     * @param unknown tests if an ordinal's field is unknown, sorting it last
+     * in both directions in ordinal order
+     */
+    SortPermutation(OrdinalComparator comparator, IntPredicate unknown) {
+        this.comparator = comparator;
+        this.unknown = unknown;
+    }
+
+    /**
+     * Total order of the field with unknown fields last and ordinal as tie
+     * breaker
+     */
+    private int compare(int a, int b) {
+        boolean unknownA = unknown.test(a);
+        if (unknownA != unknown.test(b)) {
+            return unknownA ? 1 : -1;
+        }
+        int comparison = unknownA ? 0 : comparator.compare(a, b);
+        return comparison != 0 ? comparison : Integer.compare(a, b);
+    }
+
+    /**
+     * Order of a descending walk, known fields reversed and unknown fields
+     * still last in ordinal order
+     */
+    private int compareDescending(int a, int b) {
+        return unknown.test(a) || unknown.test(b) ? compare(a, b)
+                : compare(b, a);
+    }
+
+    /**
+     * Finds where the unknown fields start in a permutation
+     *
+     * @param permutation sorted by compare
+     * @return index of the first unknown field, or the length if none is
+     */
+    private int unknownStart(int[] permutation) {
+        int low = 0;
+        int high = permutation.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (unknown.test(permutation[middle])) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Adds an ordinal to the permutation
+     *
+     * @param ordinal to add
+     */
+    synchronized void add(int ordinal) {
+        pending.add(ordinal);
+    }
+
+    /**
+     * Moves an ordinal whose field changed to its new place
+     *
+     * @param ordinal already in the permutation
+     */
+    synchronized void update(int ordinal) {
+        pending.add(ordinal);
+        pendingUpdates = true;
+    }
+
+    /**
+     * Gets the ordinals in sorted order, merging in pending changes first
+     *
+     * @return ascending permutation, must not be modified
+     */
+    synchronized int[] getSorted() {
+        if (pending.size() == 0) {
+            return sorted;
+        }
+
+        BitSet pendingOrdinals = new BitSet();
+        for (int i = 0; i < pending.size(); i++) {
+            pendingOrdinals.set(pending.get(i));
+        }
+
+        // Updated ordinals are taken out and merged in again at their new
+        // place
+        int[] current = sorted;
+        if (pendingUpdates) {
+            current = Arrays.stream(current)
+                    .filter(ordinal -> !pendingOrdinals.get(ordinal))
+                    .toArray();
+        }
+
+        Integer[] added = pendingOrdinals.stream().boxed()
+                .toArray(Integer[]::new);
+        Arrays.sort(added, this::compare);
+
+        // Merge the sorted batch into a new array so readers of the old one
+        // are not disturbed
+        int[] merged = new int[current.length + added.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < current.length && j < added.length) {
+            if (compare(current[i], added[j]) <= 0) {
+                merged[k++] = current[i++];
+            } else {
+                merged[k++] = added[j++];
+            }
+        }
+        while (i < current.length) {
+            merged[k++] = current[i++];
+        }
+        while (j < added.length) {
+            merged[k++] = added[j++];
+        }
+
+        pending = new IntList();
+        pendingUpdates = false;
+        sorted = merged;
+        return sorted;
+    }
+
+    /**
+     * Collects the first matching ordinals in permutation order
+     *
+     * @param matches bitset of matching ordinals
+     * @param matchCount cardinality of matches
+     * @param descending whether to walk the permutation backwards
+     * @param limit maximum number of ordinals to collect
+     * @return up to limit matching ordinals in sorted order
+     */
+    int[] topMatches(BitSet matches, int matchCount, boolean descending,
+            int limit) {
+        int[] permutation = getSorted();
+        int wanted = Math.min(limit, matchCount);
+        int[] top = new int[wanted];
+        if (wanted == 0) {
+            return top;
+        }
+
+        // Walking stops after about wanted * n / matchCount ordinals, sorting
+        // the matches costs about matchCount * log(matchCount)
+        double walk = (double) wanted * permutation.length / matchCount;
+        double sort = matchCount * (Math.log(matchCount) / Math.log(2) + 1);
+
+        if (walk <= sort) {
+            // A descending walk runs back through the known fields, then on
+            // through the unknown ones
+            int unknownStart = descending ? unknownStart(permutation) : 0;
+            int found = 0;
+            for (int i = 0; i < permutation.length && found < wanted; i++) {
+                int ordinal = permutation[descending && i < unknownStart
+                        ? unknownStart - 1 - i : i];
+                if (matches.get(ordinal)) {
+                    top[found++] = ordinal;
+                }
+            }
+            return found == wanted ? top : Arrays.copyOf(top, found);
+        }
+
+        Integer[] matching = new Integer[matchCount];
+        int index = 0;
+        for (int i = matches.nextSetBit(0); i >= 0;
+                i = matches.nextSetBit(i + 1)) {
+            matching[index++] = i;
+        }
+        Arrays.sort(matching, descending ? this::compareDescending
+                : this::compare);
+        for (int i = 0; i < wanted; i++) {
+            top[i] = matching[i];
+        }
+        return top;
+    }
+}
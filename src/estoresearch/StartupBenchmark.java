@@ -0,0 +1,117 @@
+package estoresearch;
+
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+/**
+ * Measures how long the GUI takes to show its window with a large catalog,
+ * against the time the catalog used to be loaded for before the window was
+ * created. Without a display the window's contents are built but the window
+ * itself is not, so only the time to the contents is measured.
+ *
+ * @author Courtney Bodi
+ */
+public class StartupBenchmark {
+
+    /**
+     * Milliseconds between checks that the event thread is free
+     */
+    public static final long EVENT_PROBE_MILLIS = 10;
+
+    /**
+     * Main method for benchmarking startup
+     *
+     * @param args optional catalog file, otherwise one is generated
+     * @throws IOException if the catalog could not be written
+     * @throws InterruptedException if interrupted while waiting for the GUI
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws IOException,
+            InterruptedException, InvalidInputException {
+        Path catalog;
+        if (args.length > 0) {
+            catalog = Paths.get(args[0]);
+        } else {
+            catalog = Files.createTempFile("estore-startup", ".txt");
+            catalog.toFile().deleteOnExit();
+            generateCatalog(catalog, 500000);
+        }
+        String filename = catalog.toString();
+
+        System.out.println("Startup benchmark, " + Files.size(catalog) / 1024
+                + " KB catalog\n");
+
+        long begin = System.nanoTime();
+        new EStoreSearch().loadProducts(filename);
+        long loadNanos = System.nanoTime() - begin;
+        System.out.println("Blocking load before the window:\t"
+                + loadNanos / 1000000 + " ms");
+
+        boolean headless = GraphicsEnvironment.isHeadless();
+        begin = System.nanoTime();
+        EStoreSearchGUI gui = EStoreSearchGUI.start(filename, !headless);
+        gui.contentsBuilt.await();
+        long builtNanos = System.nanoTime() - begin;
+        long shownNanos = -1;
+        if (!headless) {
+            gui.windowShown.await();
+            shownNanos = System.nanoTime() - begin;
+        }
+
+        // The event thread must stay free while the catalog loads
+        long busiestNanos = 0;
+        while (gui.catalogLoaded.getCount() > 0) {
+            long sent = System.nanoTime();
+            try {
+                SwingUtilities.invokeAndWait(() -> {
+                });
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+            busiestNanos = Math.max(busiestNanos, System.nanoTime() - sent);
+            TimeUnit.MILLISECONDS.sleep(EVENT_PROBE_MILLIS);
+        }
+        long loadedNanos = System.nanoTime() - begin;
+
+        System.out.println("Time to window contents:\t\t"
+                + builtNanos / 1000000 + " ms");
+        System.out.println("Time to first window:\t\t\t" + (headless
+                ? "no display" : shownNanos / 1000000 + " ms"));
+        System.out.println("Time to catalog ready:\t\t\t"
+                + loadedNanos / 1000000 + " ms");
+        System.out.println("Longest event wait while loading:\t"
+                + busiestNanos / 1000000 + " ms");
+
+        // Exit before auto save can write the benchmark catalog
+        System.exit(0);
+    }
+
+    /**
+     * Writes a catalog of generated products in the text format
+     */
+    private static void generateCatalog(Path catalog, int count)
+            throws IOException, InvalidInputException {
+        Random random = new Random(42);
+        ArrayList<Product> products = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = String.format("%06d", i);
+            String name = "product " + random.nextInt(100000) + " item";
+            int year = 1950 + random.nextInt(70);
+            // A last digit other than 0 keeps two decimal places in the file
+            double price = (random.nextInt(10000) * 10 + 1
+                    + random.nextInt(9)) / 100.0;
+            products.add(i % 2 == 0
+                    ? new Book(id, name, year, price, "author", "publisher")
+                    : new Electronic(id, name, year, price, "maker"));
+        }
+        new ExportEngine(CatalogFormat.TEXT, false).export(products, catalog);
+    }
+}
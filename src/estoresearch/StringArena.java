@@ -0,0 +1,521 @@
+package estoresearch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Append only store of product text as UTF-8 in direct buffers outside the
+ * Java heap. A string is addressed by a reference holding the index of its
+ * chunk and its offset in the chunk, and is stored as its length followed
+ * by its bytes. The collector never scans or copies the text, so collections
+ * do not slow down as the catalog grows.
+ *
+ * <p>
+ * Products are stored as BookView and ElectronicView flyweights that keep
+ * only references into the arena and decode a field when it is read. An
+ * arena belongs to one catalog version and its memory is freed once neither
+ * the version nor any view of it is reachable. Direct memory is limited by
+ * -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ *
+ * <p>
+ * Strings are appended under the owner's write lock and may be read by any
+ * number of threads.
+ *
+ * @author Courtney Bodi
+ */
+final class StringArena {
+
+    /**
+     * Bytes of a chunk, longer strings get a chunk of their own
+     */
+    static final int CHUNK_BYTES = 1 << 20;
+
+    /**
+     * Value of the text fields a view inherits, one string for every view
+     */
+    private static final String PLACEHOLDER = " ";
+
+    private static final int LENGTH_BYTES = 4;
+    private static final int CHUNK_SHIFT = 32;
+    private static final long OFFSET_MASK = 0xffffffffL;
+
+    // Replaced when a chunk is added, so readers never see a partial array
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private ByteBuffer chunk;
+    private int position;
+    private long capacity;
+
+    /**
+     * Appends a string
+     *
+     * @param string to append
+     * @return reference to the string
+     */
+    long put(String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        return put(bytes, bytes.length);
+    }
+
+    /**
+     * Appends a string of an arena without decoding it
+     *
+     * @param from arena holding the string
+     * @param reference to the string in that arena
+     * @return reference to the string in this arena
+     */
+    long copy(StringArena from, long reference) {
+        byte[] bytes = new byte[from.getLength(reference)];
+        from.copy(reference, bytes);
+        return put(bytes, bytes.length);
+    }
+
+    private long put(byte[] bytes, int length) {
+        if (chunk == null || position + LENGTH_BYTES + length > chunk.limit()) {
+            addChunk(LENGTH_BYTES + length);
+        }
+        long reference = ((long) (chunks.length - 1) << CHUNK_SHIFT)
+                | position;
+        chunk.putInt(position, length);
+        for (int i = 0; i < length; i++) {
+            chunk.put(position + LENGTH_BYTES + i, bytes[i]);
+        }
+        position += LENGTH_BYTES + length;
+        return reference;
+    }
+
+    private void addChunk(int minimum) {
+        chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_BYTES, minimum));
+        capacity += chunk.capacity();
+        position = 0;
+        ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[grown.length - 1] = chunk;
+        chunks = grown;
+    }
+
+    /**
+     * @param reference to a string
+     * @return number of UTF-8 bytes of the string
+     */
+    int getLength(long reference) {
+        return chunks[(int) (reference >>> CHUNK_SHIFT)].getInt(
+                (int) (reference & OFFSET_MASK));
+    }
+
+    /**
+     * Copies the UTF-8 bytes of a string
+     *
+     * @param reference to the string
+     * @param into array of at least getLength bytes
+     */
+    void copy(long reference, byte[] into) {
+        ByteBuffer source = chunks[(int) (reference >>> CHUNK_SHIFT)];
+        int offset = (int) (reference & OFFSET_MASK);
+        int length = source.getInt(offset);
+        offset += LENGTH_BYTES;
+        for (int i = 0; i < length; i++) {
+            into[i] = source.get(offset + i);
+        }
+    }
+
+    /**
+     * Decodes a string
+     *
+     * @param reference to the string
+     * @return the string
+     */
+    String get(long reference) {
+        byte[] bytes = new byte[getLength(reference)];
+        copy(reference, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks whether a string contains a lower case fragment, ignoring
+     * case. ASCII strings are compared in place, folding A to Z, and others
+     * are decoded first.
+     *
+     * @param reference to the string
+     * @param needle fragment lower cased by ContainsIndex.toLowerCase
+     * @param bytes UTF-8 bytes of the fragment
+     * @return whether the string contains the fragment
+     */
+    boolean containsLowerCase(long reference, String needle, byte[] bytes) {
+        ByteBuffer source = chunks[(int) (reference >>> CHUNK_SHIFT)];
+        int offset = (int) (reference & OFFSET_MASK);
+        int end = offset + LENGTH_BYTES + source.getInt(offset);
+        offset += LENGTH_BYTES;
+        for (int i = offset; i < end; i++) {
+            if (source.get(i) < 0) {
+                return ContainsIndex.containsLowerCase(get(reference), needle);
+            }
+        }
+
+        // Upper case letters are the only bytes lower casing changes
+        int last = end - bytes.length;
+        for (int start = offset; start <= last; start++) {
+            int i = 0;
+            while (i < bytes.length && toLowerCase(source.get(start + i))
+                    == bytes[i]) {
+                i++;
+            }
+            if (i == bytes.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte toLowerCase(byte character) {
+        return character >= 'A' && character <= 'Z'
+                ? (byte) (character + ('a' - 'A')) : character;
+    }
+
+    /**
+     * @return bytes of direct memory allocated by the arena
+     */
+    long getSizeInBytes() {
+        return capacity;
+    }
+
+    /**
+     * Stores a product's text in the arena
+     *
+     * @param product to store, a view of this or another arena or a product
+     * on the heap
+     * @return view of the stored product with the product's price
+     */
+    Product store(Product product) {
+        try {
+            if (product instanceof Book) {
+                return new BookView(this, (Book) product);
+            }
+            return new ElectronicView(this, (Electronic) product);
+        } catch (InvalidInputException e) {
+            // The product was already validated
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Product whose text is kept in a StringArena
+     */
+    interface View {
+
+        /**
+         * @return arena holding the text
+         */
+        StringArena getArena();
+
+        /**
+         * @return reference to the name in the arena
+         */
+        long getNameReference();
+    }
+
+    /**
+     * Book whose name, author and publisher are decoded from an arena when
+     * read. The fields inherited from Book hold a shared placeholder.
+     */
+    static final class BookView extends Book implements View {
+
+        private final StringArena arena;
+        private long name, author, publisher;
+
+        private BookView(StringArena arena, Book book)
+                throws InvalidInputException {
+            super(book.getId(), PLACEHOLDER, book.getYear(), book.getPrice(),
+                    PLACEHOLDER, PLACEHOLDER);
+            this.arena = arena;
+            if (book instanceof BookView) {
+                BookView view = (BookView) book;
+                name = arena.copy(view.arena, view.name);
+                author = arena.copy(view.arena, view.author);
+                publisher = arena.copy(view.arena, view.publisher);
+            } else {
+                name = arena.put(book.getName());
+                author = arena.put(book.getAuthor());
+                publisher = arena.put(book.getPublisher());
+            }
+        }
+
+        @Override
+        public StringArena getArena() {
+            return arena;
+        }
+
+        @Override
+        public long getNameReference() {
+            return name;
+        }
+
+        @Override
+        public String getName() {
+            return arena.get(name);
+        }
+
+        @Override
+        public void setName(String name) throws InvalidInputException {
+            if (!validateString(name)) {
+                throw new InvalidInputException(INVALID_NAME);
+            }
+            this.name = arena.put(name);
+        }
+
+        @Override
+        public String getAuthor() {
+            return arena.get(author);
+        }
+
+        @Override
+        public void setAuthor(String author) throws InvalidInputException {
+            if (author == null) {
+                throw new InvalidInputException(INVALID_AUTHOR);
+            }
+            this.author = arena.put(author);
+        }
+
+        @Override
+        public String getPublisher() {
+            return arena.get(publisher);
+        }
+
+        @Override
+        public void setPublisher(String publisher)
+                throws InvalidInputException {
+            if (publisher == null) {
+                throw new InvalidInputException(INVALID_PUBLISHER);
+            }
+            this.publisher = arena.put(publisher);
+        }
+    }
+
+    /**
+     * Electronic whose name and maker are decoded from an arena when read.
+     * The fields inherited from Electronic hold a shared placeholder.
+     */
+    static final class ElectronicView extends Electronic implements View {
+
+        private final StringArena arena;
+        private long name, maker;
+
+        private ElectronicView(StringArena arena, Electronic electronic)
+                throws InvalidInputException {
+            super(electronic.getId(), PLACEHOLDER, electronic.getYear(),
+                    electronic.getPrice(), PLACEHOLDER);
+            this.arena = arena;
+            if (electronic instanceof ElectronicView) {
+                ElectronicView view = (ElectronicView) electronic;
+                name = arena.copy(view.arena, view.name);
+                maker = arena.copy(view.arena, view.maker);
+            } else {
+                name = arena.put(electronic.getName());
+                maker = arena.put(electronic.getMaker());
+            }
+        }
+
+        @Override
+        public StringArena getArena() {
+            return arena;
+        }
+
+        @Override
+        public long getNameReference() {
+            return name;
+        }
+
+        @Override
+        public String getName() {
+            return arena.get(name);
+        }
+
+        @Override
+        public void setName(String name) throws InvalidInputException {
+            if (!validateString(name)) {
+                throw new InvalidInputException(INVALID_NAME);
+            }
+            this.name = arena.put(name);
+        }
+
+        @Override
+        public String getMaker() {
+            return arena.get(maker);
+        }
+
+        @Override
+        public void setMaker(String maker) throws InvalidInputException {
+            if (maker == null) {
+                throw new InvalidInputException(INVALID_MAKER);
+            }
+            this.maker = arena.put(maker);
+        }
+    }
+
+    /**
+     * Gets the heap in use after collecting garbage
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory()
+                    - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Fills a store with generated books and electronics
+     */
+    private static EStoreSearch generatedStore(boolean offHeapText, int count)
+            throws InvalidInputException {
+        Random random = new Random(42);
+        EStoreSearch eStoreSearch = new EStoreSearch(offHeapText);
+        ArrayList<Product> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = "Item " + random.nextInt(100000) + " of the "
+                    + (i % 7 == 0 ? "Harry Potter" : "general") + " series "
+                    + random.nextInt(1000);
+            int year = 1950 + random.nextInt(70);
+            double price = random.nextInt(10000) / 100.0;
+            batch.add(i % 2 == 0 ? new Book(String.format("%06d", i), name,
+                    year, price, "Author " + random.nextInt(50000),
+                    "Publisher " + random.nextInt(500))
+                    : new Electronic(String.format("%06d", i), name, year,
+                            price, "Maker " + random.nextInt(500)));
+            if (batch.size() == 10000) {
+                eStoreSearch.addProducts(batch);
+                batch.clear();
+            }
+        }
+        eStoreSearch.addProducts(batch);
+        return eStoreSearch;
+    }
+
+    /**
+     * Prints the heap, collection time and search time of a store
+     */
+    private static void benchmark(String name, boolean offHeapText, int count)
+            throws InvalidInputException {
+        long base = usedHeap();
+        EStoreSearch eStoreSearch = generatedStore(offHeapText, count);
+        long heap = usedHeap() - base;
+
+        int rounds = 5;
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            System.gc();
+        }
+        long gcNanos = (System.nanoTime() - begin) / rounds;
+
+        long matches = 0;
+        for (int round = 0; round < 20; round++) {
+            matches += eStoreSearch.search("", "potter series", "", "").size();
+        }
+        begin = System.nanoTime();
+        for (int round = 0; round < 20; round++) {
+            matches += eStoreSearch.search("", "potter series", "", "").size();
+        }
+        long searchNanos = (System.nanoTime() - begin) / 20;
+
+        long offHeap = 0;
+        for (Product product : eStoreSearch.getProducts()) {
+            if (product instanceof View) {
+                offHeap = ((View) product).getArena().getSizeInBytes();
+                break;
+            }
+        }
+        System.out.println(name + "\t" + heap / (1024 * 1024) + "\t\t"
+                + offHeap / (1024 * 1024) + "\t\t" + gcNanos / 1000000
+                + "\t\t" + searchNanos / 1000 + "\t(" + matches + ")");
+    }
+
+    /**
+     * Main method for testing the arena and views and benchmarking heap use,
+     * full collection time and searching with text on and off the heap
+     *
+     * @param args optional number of products, at most 1000000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        System.out.println("StringArena Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        StringArena arena = new StringArena();
+        char[] longText = new char[CHUNK_BYTES + 10];
+        Arrays.fill(longText, 'x');
+        long empty = arena.put("");
+        long accented = arena.put("Caf\u00e9 \u00c9clair");
+        long longString = arena.put(new String(longText));
+        long last = arena.put("last");
+        System.out.println(arena.get(empty).isEmpty()
+                && arena.get(accented).equals("Caf\u00e9 \u00c9clair"));
+        System.out.println(arena.get(longString).length() == longText.length
+                && arena.get(last).equals("last"));
+        System.out.println(new StringArena().copy(arena, accented) == 0);
+
+        Book book = new Book("000001", "The Hobbit", 1937, 9.99, "Tolkien",
+                "Allen & Unwin");
+        Electronic electronic = new Electronic("000002", "Radio", 1990,
+                Product.NO_PRICE, "Acme");
+        Product bookView = arena.store(book);
+        Product electronicView = new StringArena().store(arena.store(
+                electronic));
+        System.out.println(bookView instanceof Book && bookView.equals(book)
+                && book.equals(bookView)
+                && bookView.toString().equals(book.toString()));
+        System.out.println(electronicView instanceof Electronic
+                && electronicView.equals(electronic)
+                && electronicView.toString().equals(electronic.toString()));
+        try {
+            bookView.setName("The Lord of the Rings");
+            System.out.println(bookView.getName().equals(
+                    "The Lord of the Rings") && !bookView.equals(book));
+            bookView.setName("");
+            System.out.println(false);
+        } catch (InvalidInputException e) {
+            System.out.println(true);
+        }
+
+        String[] names = {"Harry Potter", "  harry  POTTER  ", "\tHarry\u000b"
+            + "Potter\r", "HARRY POTTER AND THE STONE", "Caf\u00e9 Harry Potter",
+            "\u00c9COLE harry", "potter harry", " ", "x"};
+        EStoreSearch onHeap = new EStoreSearch();
+        EStoreSearch offHeap = new EStoreSearch(true);
+        for (int i = 0; i < names.length; i++) {
+            onHeap.addElectronic(String.format("%06d", i), names[i], "2000",
+                    "", "maker");
+            offHeap.addElectronic(String.format("%06d", i), names[i], "2000",
+                    "", "maker");
+        }
+        boolean same = true;
+        for (String keywords : new String[]{"harry", "potter", "harry potter",
+            "\"harry potter\"", "\"potter and\"", "caf\u00e9", "\u00e9cole",
+            "x", "\"harry potter\"~1"}) {
+            same &= onHeap.search("", keywords, "", "").size()
+                    == offHeap.search("", keywords, "", "").size();
+        }
+        System.out.println(same && offHeap.search("", "harry", "", "").size()
+                == 7);
+
+        offHeap.updateName("000000", "Renamed Wizard");
+        offHeap.updatePrice("000001", "12.50");
+        offHeap.removeProduct("000002");
+        offHeap.compact();
+        System.out.println(offHeap.search("", "wizard", "", "").size() == 1
+                && offHeap.search("000001", "", "", "").get(0).getPrice()
+                == 12.5 && offHeap.getProducts().size() == names.length - 1
+                && offHeap.getProducts().get(0) instanceof View);
+
+        System.out.println("\nProduct text benchmark, " + count
+                + " products\n");
+        System.out.println("Text\t\tHeap MB\t\tOff heap MB\tFull GC ms"
+                + "\tSearch us");
+        benchmark("On heap", false, count);
+        benchmark("Off heap", true, count);
+    }
+}
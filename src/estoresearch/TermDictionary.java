@@ -0,0 +1,476 @@
+package estoresearch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Open addressing hash table from terms to dense int term IDs. The UTF-8
+ * bytes of every term are appended to one shared byte arena and the table
+ * holds only term IDs, so a term costs its bytes and a few ints instead of
+ * a String, its char array and a HashMap node. Callers keep the postings of
+ * each term in arrays indexed by term ID.
+ *
+ * <p>
+ * IDs are assigned in the order terms are first added. A dictionary is not
+ * thread safe while terms are added and may be read by any number of threads
+ * once it is no longer changed.
+ *
+ * @author Courtney Bodi
+ */
+final class TermDictionary {
+
+    private static final int INITIAL_TERMS = 16;
+    private static final int INITIAL_ARENA_BYTES = 128;
+    private static final int EMPTY = -1;
+
+    private int[] table;
+    private int[] hashes;
+    private int[] offsets;
+    private byte[] arena;
+    private int size;
+
+    /**
+     * Generic TermDictionary constructor
+     */
+    TermDictionary() {
+        table = new int[INITIAL_TERMS * 2];
+        Arrays.fill(table, EMPTY);
+        hashes = new int[INITIAL_TERMS];
+        offsets = new int[INITIAL_TERMS + 1];
+        arena = new byte[INITIAL_ARENA_BYTES];
+    }
+
+    /**
+     * Encodes a term for find, so a term looked up in several dictionaries
+     * is only encoded once
+     *
+     * @param term to encode
+     * @return UTF-8 bytes of the term
+     */
+    static byte[] encode(String term) {
+        return term.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a term if it is not in the dictionary yet
+     *
+     * @param term to add
+     * @return ID of the term, equal to the previous size() if it is new
+     */
+    int add(String term) {
+        byte[] bytes = encode(term);
+        return add(bytes, 0, bytes.length, hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Adds a term of another dictionary without decoding it
+     *
+     * @param other dictionary holding the term
+     * @param otherId ID of the term in the other dictionary
+     * @return ID of the term in this dictionary
+     */
+    int add(TermDictionary other, int otherId) {
+        return add(other.arena, other.offsets[otherId],
+                other.offsets[otherId + 1], other.hashes[otherId]);
+    }
+
+    /**
+     * Adds a term given as part of an array of UTF-8 bytes
+     *
+     * @param bytes holding the term
+     * @param from index of the first byte of the term
+     * @param to index after the last byte of the term
+     * @return ID of the term
+     */
+    int add(byte[] bytes, int from, int to) {
+        return add(bytes, from, to, hash(bytes, from, to));
+    }
+
+    private int add(byte[] bytes, int from, int to, int hash) {
+        int slot = slot(bytes, from, to, hash);
+        if (table[slot] != EMPTY) {
+            return table[slot];
+        }
+
+        if (size == hashes.length) {
+            int capacity = Math.max(size * 2, INITIAL_TERMS);
+            hashes = Arrays.copyOf(hashes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        int start = offsets[size];
+        int length = to - from;
+        if (start + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2,
+                    start + length));
+        }
+        System.arraycopy(bytes, from, arena, start, length);
+        offsets[size + 1] = start + length;
+        hashes[size] = hash;
+        table[slot] = size;
+
+        // Keeping the table at most half full keeps probe runs short
+        if (++size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return size - 1;
+    }
+
+    /**
+     * Looks up a term
+     *
+     * @param term to look up
+     * @return ID of the term, or -1 if it is not in the dictionary
+     */
+    int find(String term) {
+        return find(encode(term));
+    }
+
+    /**
+     * Looks up an encoded term
+     *
+     * @param term output of encode
+     * @return ID of the term, or -1 if it is not in the dictionary
+     */
+    int find(byte[] term) {
+        return table[slot(term, 0, term.length, hash(term, 0, term.length))];
+    }
+
+    /**
+     * @return number of terms
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param id of a term
+     * @return the term
+     */
+    String getTerm(int id) {
+        return new String(arena, offsets[id], offsets[id + 1] - offsets[id],
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param id of a term
+     * @return copy of the UTF-8 bytes of the term
+     */
+    byte[] getBytes(int id) {
+        return Arrays.copyOfRange(arena, offsets[id], offsets[id + 1]);
+    }
+
+    /**
+     * Gets the term IDs ordered by the unsigned bytes of their terms, the
+     * order of sorted UTF-8 strings
+     *
+     * @return the sorted IDs
+     */
+    int[] sortedIds() {
+        Integer[] ids = new Integer[size];
+        for (int id = 0; id < size; id++) {
+            ids[id] = id;
+        }
+        Arrays.sort(ids, this::compare);
+
+        int[] sorted = new int[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = ids[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Releases the spare capacity of a dictionary that is no longer added to
+     */
+    void trim() {
+        hashes = Arrays.copyOf(hashes, size);
+        offsets = Arrays.copyOf(offsets, size + 1);
+        arena = Arrays.copyOf(arena, offsets[size]);
+    }
+
+    /**
+     * @return bytes used by the arrays of the dictionary, without object
+     * headers
+     */
+    long getSizeInBytes() {
+        return 4L * (table.length + hashes.length + offsets.length)
+                + arena.length;
+    }
+
+    /**
+     * Finds the slot holding a term, or the empty slot it would be added to
+     */
+    private int slot(byte[] bytes, int from, int to, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        int id;
+        while ((id = table[slot]) != EMPTY) {
+            if (hashes[id] == hash && equals(id, bytes, from, to)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean equals(int id, byte[] bytes, int from, int to) {
+        int start = offsets[id];
+        if (offsets[id + 1] - start != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (arena[start++] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compare(int a, int b) {
+        int aStart = offsets[a];
+        int bStart = offsets[b];
+        int aLength = offsets[a + 1] - aStart;
+        int bLength = offsets[b + 1] - bStart;
+        int common = Math.min(aLength, bLength);
+        for (int i = 0; i < common; i++) {
+            int difference = (arena[aStart + i] & 0xff)
+                    - (arena[bStart + i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    /**
+     * Hashes term bytes, mixing the high bits down so the low bits used for
+     * the slot differ between similar terms
+     */
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Gets the heap in use after collecting garbage
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory()
+                    - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Main method for testing the dictionary and reporting the heap used by
+     * the keyword index before and after it was built on term dictionaries
+     *
+     * @param args optional number of names indexed
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        Random random = new Random(42);
+
+        System.out.println("TermDictionary Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        TermDictionary dictionary = new TermDictionary();
+        System.out.println(dictionary.add("harry") == 0);
+        System.out.println(dictionary.add("potter") == 1);
+        System.out.println(dictionary.add("harry") == 0);
+        System.out.println(dictionary.find("potter") == 1);
+        System.out.println(dictionary.find("harr") == -1);
+        System.out.println(dictionary.find("") == -1);
+        System.out.println(dictionary.add("") == 2);
+        System.out.println(dictionary.add("caf\u00e9") == 3
+                && dictionary.getTerm(3).equals("caf\u00e9"));
+        boolean grown = true;
+        for (int i = 0; i < 100000; i++) {
+            grown &= dictionary.add("term" + i) == i + 4;
+        }
+        for (int i = 0; i < 100000; i++) {
+            grown &= dictionary.find("term" + i) == i + 4
+                    && dictionary.getTerm(i + 4).equals("term" + i);
+        }
+        System.out.println(grown && dictionary.size() == 100004);
+        dictionary.trim();
+        System.out.println(dictionary.find("caf\u00e9") == 3
+                && dictionary.find("term99999") == 100003);
+        TermDictionary copy = new TermDictionary();
+        System.out.println(copy.add(dictionary, 1) == 0
+                && copy.add(dictionary, 0) == 1 && copy.find("harry") == 1);
+        int[] sorted = copy.sortedIds();
+        System.out.println(sorted.length == 2 && sorted[0] == 1
+                && sorted[1] == 0);
+
+        // Names of four to eight words with a skewed vocabulary of generated
+        // words, so there are many rare terms as in a real catalog
+        int vocabularySize = count / 2;
+        String[] vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            char[] word = new char[4 + random.nextInt(7)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            vocabulary[i] = new String(word);
+        }
+        String[][] names = new String[count][];
+        for (int i = 0; i < count; i++) {
+            names[i] = new String[4 + random.nextInt(5)];
+            for (int j = 0; j < names[i].length; j++) {
+                double skew = random.nextDouble();
+                names[i][j] = vocabulary[(int) (skew * skew * skew
+                        * vocabularySize)];
+            }
+        }
+        vocabulary = null;
+
+        // Each index is built in its own method, so nothing of it is left
+        // reachable from this frame once it is dropped
+        long base = usedHeap();
+        HashMap<String, HashSet<Integer>> hashIndex = hashSetIndex(names);
+        long hashIndexBytes = usedHeap() - base;
+        int termCount = hashIndex.size();
+        long postingCount = countPostings(hashIndex);
+        hashIndex = null;
+
+        base = usedHeap();
+        HashMap<String, PositionalPostings> stringIndex = stringIndex(names);
+        long stringIndexBytes = usedHeap() - base;
+        stringIndex = null;
+
+        base = usedHeap();
+        long[] mutableBytes = new long[1];
+        KeywordSegment segment = segment(names, base, mutableBytes);
+        long segmentBytes = usedHeap() - base;
+
+        base = usedHeap();
+        String[] sortedTerms = sortedTerms(segment.getTerms());
+        long sortedTermsBytes = usedHeap() - base;
+
+        System.out.println("\nKeyword index heap, " + count + " names, "
+                + termCount + " terms, " + postingCount + " postings\n");
+        System.out.println("HashMap<String, HashSet<Integer>>\t"
+                + hashIndexBytes / 1024 + " KB");
+        System.out.println("HashMap<String, PositionalPostings>\t"
+                + stringIndexBytes / 1024 + " KB");
+        System.out.println("TermDictionary, PositionalPostings\t"
+                + mutableBytes[0] / 1024 + " KB");
+        System.out.println("Frozen KeywordSegment\t\t\t"
+                + segmentBytes / 1024 + " KB");
+        System.out.println("\nSegment terms as sorted String[]\t"
+                + sortedTermsBytes / 1024 + " KB");
+        System.out.println("Segment terms as TermDictionary\t\t"
+                + segment.getTerms().getSizeInBytes() / 1024 + " KB");
+        System.out.println("(" + sortedTerms.length + " terms)");
+    }
+
+    /**
+     * Builds an index of names as a map from keywords to sets of ordinals
+     */
+    private static HashMap<String, HashSet<Integer>> hashSetIndex(
+            String[][] names) {
+        HashMap<String, HashSet<Integer>> index = new HashMap<>();
+        for (int ordinal = 0; ordinal < names.length; ordinal++) {
+            for (String word : names[ordinal]) {
+                String term = new String(word.toCharArray());
+                HashSet<Integer> ordinals = index.get(term);
+                if (ordinals == null) {
+                    ordinals = new HashSet<>();
+                    index.put(term, ordinals);
+                }
+                ordinals.add(ordinal);
+            }
+        }
+        return index;
+    }
+
+    private static long countPostings(HashMap<String, HashSet<Integer>> index) {
+        long count = 0;
+        for (HashSet<Integer> ordinals : index.values()) {
+            count += ordinals.size();
+        }
+        return count;
+    }
+
+    /**
+     * Builds an index of names as a map from keywords to positional postings
+     */
+    private static HashMap<String, PositionalPostings> stringIndex(
+            String[][] names) {
+        HashMap<String, PositionalPostings> index = new HashMap<>();
+        for (int ordinal = 0; ordinal < names.length; ordinal++) {
+            for (int position = 0; position < names[ordinal].length;
+                    position++) {
+                String term = new String(names[ordinal][position]
+                        .toCharArray());
+                PositionalPostings termPostings = index.get(term);
+                if (termPostings == null) {
+                    termPostings = new PositionalPostings();
+                    index.put(term, termPostings);
+                }
+                termPostings.add(ordinal, position);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Builds an index of names as a dictionary and positional postings by
+     * term ID, measures it and freezes it into a segment
+     */
+    private static KeywordSegment segment(String[][] names, long base,
+            long[] mutableBytes) {
+        TermDictionary terms = new TermDictionary();
+        List<PositionalPostings> postingsByTerm = new ArrayList<>();
+        for (int ordinal = 0; ordinal < names.length; ordinal++) {
+            for (int position = 0; position < names[ordinal].length;
+                    position++) {
+                int term = terms.add(names[ordinal][position]);
+                if (term == postingsByTerm.size()) {
+                    postingsByTerm.add(new PositionalPostings());
+                }
+                postingsByTerm.get(term).add(ordinal, position);
+            }
+        }
+        mutableBytes[0] = usedHeap() - base;
+        return KeywordSegment.build(terms, postingsByTerm, names.length);
+    }
+
+    /**
+     * Gets the terms of a dictionary as a sorted array of strings
+     */
+    private static String[] sortedTerms(TermDictionary terms) {
+        int[] ids = terms.sortedIds();
+        String[] sorted = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            sorted[i] = terms.getTerm(ids[i]);
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,475 @@
+package estoresearch;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of distinct strings with an index of their three character
+ * substrings, for finding the strings that contain a fragment anywhere.
+ * Strings are padded with BOUNDARY at both ends, so every one and two
+ * character fragment is also inside some trigram of each string containing
+ * it, and a fragment starting or ending with BOUNDARY only matches at the
+ * start or end of a string.
+ *
+ * <p>
+ * A fragment of up to three characters matches the trigrams containing it
+ * exactly. Longer fragments match the intersection of the postings of their
+ * trigrams, verified against a UTF-8 copy of the padded strings kept in ID
+ * order, so verifying ascending candidates reads it front to back.
+ *
+ * <p>
+ * Postings of the chunk of 65536 IDs being appended to are kept in IntLists
+ * and sealed into OrdinalSets once IDs move on to the next chunk. Adds and
+ * searches must be guarded by the owner's lock.
+ *
+ * @author Courtney Bodi
+ */
+final class TrigramIndex {
+
+    /**
+     * Character padding strings, never part of a string itself
+     */
+    static final char BOUNDARY = '\u0000';
+
+    private static final int CHUNK_BITS = 16;
+    private static final int INITIAL_TRIGRAMS = 1024;
+    private static final long EMPTY = -1;
+
+    // Open addressing table of trigram keys, at most half full
+    private long[] table = new long[INITIAL_TRIGRAMS * 2];
+    private int[] ids = new int[INITIAL_TRIGRAMS * 2];
+    private long[] keys = new long[INITIAL_TRIGRAMS];
+    private OrdinalSet[] sealed = new OrdinalSet[INITIAL_TRIGRAMS];
+    private IntList[] recent = new IntList[INITIAL_TRIGRAMS];
+    private int size;
+
+    // Open addressing table of string IDs plus one, at most half full
+    private int[] strings = new int[INITIAL_TRIGRAMS * 2];
+    private int[] hashes = new int[INITIAL_TRIGRAMS];
+    // Padded strings by ID, string i is text[starts[i]] up to
+    // text[starts[i + 1]]
+    private byte[] text = new byte[1024];
+    private int[] starts = new int[INITIAL_TRIGRAMS + 1];
+    private int count;
+
+    private IntList unsealed = new IntList();
+    private int currentChunk;
+    // Scratch copy of a padded string
+    private char[] characters = new char[64];
+
+    /**
+     * TrigramIndex constructor for an empty index
+     */
+    TrigramIndex() {
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Adds a string if it is not in the dictionary yet and indexes its
+     * trigrams
+     *
+     * @param string to add, without BOUNDARY
+     * @return ID of the string, equal to the previous getCount() if it is
+     * new
+     */
+    int add(String string) {
+        byte[] bytes = TermDictionary.encode(string);
+        int hash = string.hashCode();
+        int mask = strings.length - 1;
+        int slot = slot(hash, mask);
+        while (strings[slot] != 0) {
+            if (hashes[strings[slot] - 1] == hash
+                    && equals(strings[slot] - 1, bytes)) {
+                return strings[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = count;
+        if (id >>> CHUNK_BITS != currentChunk) {
+            seal();
+            currentChunk = id >>> CHUNK_BITS;
+        }
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+        hashes[id] = hash;
+        strings[slot] = id + 1;
+        append(bytes);
+        if (count * 2 > strings.length) {
+            rehashStrings();
+        }
+
+        int length = string.length() + 2;
+        if (length > characters.length) {
+            characters = new char[Math.max(length, characters.length * 2)];
+        }
+        characters[0] = BOUNDARY;
+        string.getChars(0, string.length(), characters, 1);
+        characters[length - 1] = BOUNDARY;
+        for (int i = 0; i + 3 <= length; i++) {
+            int trigram = add(key(characters, i));
+            IntList postings = recent[trigram];
+            if (postings == null) {
+                postings = recent[trigram] = new IntList();
+                unsealed.add(trigram);
+            }
+            // A trigram repeated in one string is posted once
+            if (postings.size() == 0 || postings.last() != id) {
+                postings.add(id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Gets the ID of a string
+     *
+     * @param string to look up
+     * @return ID of the string, or -1 if it is not in the dictionary
+     */
+    int find(String string) {
+        byte[] bytes = TermDictionary.encode(string);
+        int hash = string.hashCode();
+        int mask = strings.length - 1;
+        int slot = slot(hash, mask);
+        while (strings[slot] != 0) {
+            if (hashes[strings[slot] - 1] == hash
+                    && equals(strings[slot] - 1, bytes)) {
+                return strings[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the IDs of the strings that contain a fragment
+     *
+     * @param fragment to look for, BOUNDARY matching the start or end of a
+     * string
+     * @return set of the IDs
+     */
+    OrdinalSet contains(String fragment) {
+        if (fragment.isEmpty()) {
+            return OrdinalSet.range(count);
+        }
+        OrdinalSet candidates = fragment.length() < 3 ? union(fragment)
+                : intersection(fragment);
+        if (fragment.length() <= 3) {
+            return candidates;
+        }
+
+        byte[] bytes = TermDictionary.encode(fragment);
+        OrdinalSet.Builder matches = new OrdinalSet.Builder();
+        for (int id : candidates.toArray()) {
+            if (contains(id, bytes)) {
+                matches.add(id);
+            }
+        }
+        return matches.build();
+    }
+
+    /**
+     * Checks whether a padded string contains a fragment. A match of UTF-8
+     * bytes always starts and ends on whole characters.
+     */
+    private boolean contains(int id, byte[] needle) {
+        byte first = needle[0];
+        int last = starts[id + 1] - needle.length;
+        for (int start = starts[id]; start <= last; start++) {
+            if (text[start] != first) {
+                continue;
+            }
+            int i = 1;
+            while (i < needle.length && text[start + i] == needle[i]) {
+                i++;
+            }
+            if (i == needle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a string is the one with an ID
+     */
+    private boolean equals(int id, byte[] bytes) {
+        int start = starts[id] + 1;
+        if (starts[id + 1] - 1 - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (text[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of strings
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return number of distinct trigrams
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return approximate bytes used by the postings and the trigram table
+     */
+    long getSizeInBytes() {
+        long bytes = 12L * table.length + 24L * keys.length + text.length
+                + 4L * starts.length + 4L * strings.length + 4L * hashes.length;
+        for (int id = 0; id < size; id++) {
+            if (sealed[id] != null) {
+                bytes += sealed[id].getSizeInBytes();
+            }
+            if (recent[id] != null) {
+                bytes += 4L * recent[id].size();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Intersects the postings of every trigram of a fragment, rarest first
+     */
+    private OrdinalSet intersection(String needle) {
+        int[] trigrams = new int[needle.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            int id = find(key(needle, i));
+            if (id < 0) {
+                return OrdinalSet.empty();
+            }
+            trigrams[i] = id;
+        }
+        Integer[] order = new Integer[trigrams.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = trigrams[i];
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(cardinality(a),
+                cardinality(b)));
+
+        // Sealed and recent postings cover different chunks
+        OrdinalSet sealedMatches = null;
+        int[] recentMatches = null;
+        for (int id : order) {
+            OrdinalSet sealedPostings = sealed[id] == null
+                    ? OrdinalSet.empty() : sealed[id];
+            sealedMatches = sealedMatches == null ? sealedPostings
+                    : sealedMatches.and(sealedPostings);
+            IntList recentPostings = recent[id];
+            recentMatches = recentMatches == null ? toArray(recentPostings)
+                    : intersect(recentMatches, recentPostings);
+            if (sealedMatches.isEmpty() && recentMatches.length == 0) {
+                break;
+            }
+        }
+        return sealedMatches.or(toSet(recentMatches));
+    }
+
+    /**
+     * Unites the postings of every trigram containing a one or two
+     * character fragment
+     */
+    private OrdinalSet union(String needle) {
+        OrdinalSet matches = OrdinalSet.empty();
+        IntList recentMatches = new IntList();
+        for (int id = 0; id < size; id++) {
+            if (!trigram(keys[id]).contains(needle)) {
+                continue;
+            }
+            if (sealed[id] != null) {
+                matches = matches.or(sealed[id]);
+            }
+            if (recent[id] != null) {
+                for (int i = 0; i < recent[id].size(); i++) {
+                    recentMatches.add(recent[id].get(i));
+                }
+            }
+        }
+        int[] recentOrdinals = recentMatches.toArray();
+        Arrays.sort(recentOrdinals);
+        int distinct = 0;
+        for (int i = 0; i < recentOrdinals.length; i++) {
+            if (distinct == 0 || recentOrdinals[i]
+                    != recentOrdinals[distinct - 1]) {
+                recentOrdinals[distinct++] = recentOrdinals[i];
+            }
+        }
+        return matches.or(toSet(Arrays.copyOf(recentOrdinals, distinct)));
+    }
+
+    private int cardinality(int id) {
+        return (sealed[id] == null ? 0 : sealed[id].cardinality())
+                + (recent[id] == null ? 0 : recent[id].size());
+    }
+
+    /**
+     * Keeps the ascending IDs that are also in postings
+     */
+    private static int[] intersect(int[] ordinals, IntList postings) {
+        if (postings == null) {
+            return new int[0];
+        }
+        int[] kept = new int[ordinals.length];
+        int count = 0;
+        int j = 0;
+        for (int ordinal : ordinals) {
+            while (j < postings.size() && postings.get(j) < ordinal) {
+                j++;
+            }
+            if (j == postings.size()) {
+                break;
+            } else if (postings.get(j) == ordinal) {
+                kept[count++] = ordinal;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    private static int[] toArray(IntList postings) {
+        return postings == null ? new int[0] : postings.toArray();
+    }
+
+    private static OrdinalSet toSet(int[] ordinals) {
+        OrdinalSet.Builder set = new OrdinalSet.Builder();
+        for (int ordinal : ordinals) {
+            set.add(ordinal);
+        }
+        return set.build();
+    }
+
+    /**
+     * Appends the next string padded with BOUNDARY, which UTF-8 encodes as
+     * a zero byte
+     */
+    private void append(byte[] string) {
+        int start = starts[count];
+        int length = string.length + 2;
+        if (start + length > text.length) {
+            text = Arrays.copyOf(text, Math.max(start + length,
+                    text.length * 2));
+        }
+        text[start] = 0;
+        System.arraycopy(string, 0, text, start + 1, string.length);
+        text[start + length - 1] = 0;
+        if (count + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[++count] = start + length;
+    }
+
+    /**
+     * Seals the postings of the chunk being appended to
+     */
+    private void seal() {
+        for (int i = 0; i < unsealed.size(); i++) {
+            int id = unsealed.get(i);
+            OrdinalSet postings = toSet(recent[id].toArray());
+            sealed[id] = sealed[id] == null ? postings
+                    : sealed[id].or(postings);
+            recent[id] = null;
+        }
+        unsealed = new IntList();
+    }
+
+    /**
+     * Packs three characters of text into a key
+     */
+    private static long key(char[] text, int from) {
+        return (long) text[from] << 32 | (long) text[from + 1] << 16
+                | text[from + 2];
+    }
+
+    private static long key(String text, int from) {
+        return (long) text.charAt(from) << 32
+                | (long) text.charAt(from + 1) << 16 | text.charAt(from + 2);
+    }
+
+    private static String trigram(long key) {
+        return new String(new char[]{(char) (key >>> 32),
+            (char) (key >>> 16), (char) key});
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private void rehashStrings() {
+        strings = new int[strings.length * 2];
+        int mask = strings.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = slot(hashes[id], mask);
+            while (strings[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            strings[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Gets the ID of a trigram, adding it if it is new
+     */
+    private int add(long key) {
+        int mask = table.length - 1;
+        int slot = slot(key, mask);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == key) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            sealed = Arrays.copyOf(sealed, size * 2);
+            recent = Arrays.copyOf(recent, size * 2);
+        }
+        keys[size] = key;
+        table[slot] = key;
+        ids[slot] = size;
+        if (++size * 2 > table.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Gets the ID of a trigram, or -1 if no name has it
+     */
+    private int find(long key) {
+        int mask = table.length - 1;
+        int slot = slot(key, mask);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == key) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash() {
+        table = new long[table.length * 2];
+        ids = new int[table.length];
+        Arrays.fill(table, EMPTY);
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = slot(keys[id], mask);
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = keys[id];
+            ids[slot] = id;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package estoresearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Products of one type in a CatalogVersion: their ordinals and a keyword
+ * index of their names alone, so a search restricted to the type never
+ * reads the postings of the other type. Ordinals stay shared with the rest
+ * of the version, a partition only records which of them it holds.
+ *
+ * <p>
+ * Adds and searches must be guarded by the owner's lock like the version
+ * itself.
+ *
+ * @author Courtney Bodi
+ */
+final class TypePartition {
+
+    private final SegmentedIndex keywords;
+    private final IntList ordinals = new IntList();
+    // Members as of the last search that asked for them
+    private volatile OrdinalSet members = OrdinalSet.empty();
+
+    /**
+     * TypePartition constructor with all members
+     *
+     * @param merger executor that runs background keyword segment merges
+     */
+    TypePartition(Executor merger) {
+        keywords = new SegmentedIndex(merger);
+    }
+
+    /**
+     * Adds a product of the partition's type, ordinals must be added in
+     * ascending order
+     *
+     * @param product to add
+     * @param ordinal of the product
+     */
+    void add(Product product, int ordinal) {
+        ordinals.add(ordinal);
+        keywords.add(product, ordinal);
+    }
+
+    /**
+     * @return keyword postings of the partition's products
+     */
+    SegmentedIndex getKeywords() {
+        return keywords;
+    }
+
+    /**
+     * Gets the ordinals of the partition's products, tombstoned ones
+     * included. Products added since the last call are merged into the set
+     * that call made, and concurrent searches that both do so build equal
+     * sets.
+     *
+     * @return set of the ordinals
+     */
+    OrdinalSet getMembers() {
+        OrdinalSet cached = members;
+        if (cached.cardinality() == ordinals.size()) {
+            return cached;
+        }
+
+        OrdinalSet.Builder added = new OrdinalSet.Builder();
+        for (int i = cached.cardinality(); i < ordinals.size(); i++) {
+            added.add(ordinals.get(i));
+        }
+        cached = cached.or(added.build());
+        members = cached;
+        return cached;
+    }
+
+    /**
+     * @return number of products in the partition, tombstoned ones included
+     */
+    int size() {
+        return ordinals.size();
+    }
+
+    /**
+     * Main method for testing searches restricted to one type against
+     * filtering searches of every type, and benchmarking the two
+     *
+     * @param args optional catalog size, at most 999000
+     * @throws estoresearch.InvalidInputException never for generated data
+     */
+    public static void main(String[] args) throws InvalidInputException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 999000;
+        int rounds = 100;
+        Random random = new Random(42);
+
+        EStoreSearch eStoreSearch = new EStoreSearch();
+        ArrayList<Product> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // Some words are only in the names of one type
+            String name = "item " + random.nextInt(1000) + " w"
+                    + random.nextInt(50) + (i % 5 == 0 ? " tv" : "")
+                    + (i % 14 == 0 ? " books" : i % 14 == 1 ? " gadget" : "");
+            batch.add(i % 2 == 0 ? new Book(String.format("%06d", i), name,
+                    1950 + random.nextInt(70), Product.NO_PRICE, "author",
+                    "publisher " + random.nextInt(20))
+                    : new Electronic(String.format("%06d", i), name, 1950
+                            + random.nextInt(70), Product.NO_PRICE, "maker "
+                            + random.nextInt(20)));
+            if (batch.size() == 10000) {
+                eStoreSearch.addProducts(batch);
+                batch.clear();
+            }
+        }
+        eStoreSearch.addProducts(batch);
+        for (int i = 0; i < count / 100; i++) {
+            try {
+                eStoreSearch.removeProduct(String.format("%06d",
+                        random.nextInt(count)));
+            } catch (InvalidInputException e) {
+                // Already removed
+            }
+        }
+
+        System.out.println("TypePartition Class Testing\n"
+                + "Prints true when test is passed, false otherwise\n");
+        String[][] searches = {{"", "tv", "", ""}, {"", "\"w3 tv\"", "", ""},
+            {"", "", "2000", "2005"}, {"000042", "", "", ""},
+            {"000043", "", "", ""}, {"", "w7 tv", "1990", ""},
+            {"", "tv books", "", ""}, {"", "tv gadget", "", ""},
+            {"", "", "", ""}};
+        System.out.println(matchesFilteredSearches(eStoreSearch, searches)
+                + "\ttyped searches match searches of every type filtered");
+
+        eStoreSearch.addElectronic("999999", "late tv", "2001", "", "Sony");
+        eStoreSearch.compact();
+        System.out.println(matchesFilteredSearches(eStoreSearch, searches)
+                + "\tand still do after adds and a compaction");
+
+        System.out.println(eStoreSearch.executeSearch("", "late", "", "",
+                "Electronics").contains("999999") && eStoreSearch
+                .executeSearch("", "late", "", "", "book").equals(
+                        "No matches.\n"));
+        try {
+            eStoreSearch.executeSearch("", "tv", "", "", "food");
+            System.out.println(false);
+        } catch (InvalidInputException e) {
+            System.out.println(e.getMessage().equals(
+                    EStoreSearch.INVALID_TYPE));
+        }
+
+        System.out.println(QueryPlan.compile("publisher:penguin AND maker:sony"
+                ).toString().equals("NOT *") && QueryPlan.compile(
+                "type:book AND (maker:sony OR maker:acme)").toString().equals(
+                "NOT *"));
+        boolean pass = true;
+        for (String query : new String[]{"tv AND maker:\"maker 3\"",
+            "\"w3 tv\" AND type:book", "tv AND NOT w3 AND type:electronics",
+            "(w1 OR w2) AND publisher:\"publisher 4\"",
+            "type:book AND year:[1990 TO 1995]"}) {
+            List<Product> expected = new ArrayList<>();
+            QueryPlan untyped = QueryPlan.compile(query.replaceAll(
+                    "( AND )?type:\\w+( AND )?", ""));
+            for (Product product : eStoreSearch.search(untyped)) {
+                if ((!query.contains("type:book") || product instanceof Book)
+                        && (!query.contains("type:electronics")
+                        || product instanceof Electronic)
+                        && (!query.contains("maker:")
+                        || product instanceof Electronic)) {
+                    expected.add(product);
+                }
+            }
+            pass &= eStoreSearch.search(QueryPlan.compile(query)).getPage(0,
+                    Integer.MAX_VALUE).equals(expected);
+        }
+        System.out.println(pass + "\tqueries read the partition of the type"
+                + " they imply");
+
+        String[][] benchmarks = {{"", "tv", "", ""}, {"", "", "2000", "2005"},
+            {"", "w7 tv", "1990", ""}};
+        long checksum = 0;
+        System.out.println("\nElectronics among " + count + " products, us"
+                + " per search\n");
+        System.out.println("Search\t\t\tFiltered\tTyped");
+        for (String[] search : benchmarks) {
+            long[] nanos = new long[2];
+            // Only the second repeat is kept, after warming up
+            for (int repeat = 0; repeat < 2; repeat++) {
+                long begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    checksum += filterElectronics(eStoreSearch.search(
+                            search[0], search[1], search[2], search[3]));
+                }
+                nanos[0] = System.nanoTime() - begin;
+                begin = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    checksum += eStoreSearch.search(search[0], search[1],
+                            search[2], search[3], "electronics").size();
+                }
+                nanos[1] = System.nanoTime() - begin;
+            }
+            String name = (search[1] + " " + search[2] + "-" + search[3])
+                    .trim();
+            System.out.println(name + (name.length() < 8 ? "\t\t\t"
+                    : "\t\t") + nanos[0] / rounds / 1000 + "\t\t"
+                    + nanos[1] / rounds / 1000);
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Checks typed searches against searches of every type filtered by type
+     */
+    private static boolean matchesFilteredSearches(EStoreSearch eStoreSearch,
+            String[][] searches) throws InvalidInputException {
+        boolean pass = true;
+        for (String[] search : searches) {
+            ArrayList<Product> books = new ArrayList<>();
+            ArrayList<Product> electronics = new ArrayList<>();
+            for (Product product : eStoreSearch.search(search[0], search[1],
+                    search[2], search[3])) {
+                (product instanceof Book ? books : electronics).add(product);
+            }
+            pass &= eStoreSearch.search(search[0], search[1], search[2],
+                    search[3], "book").getPage(0, Integer.MAX_VALUE)
+                    .equals(books);
+            pass &= eStoreSearch.search(search[0], search[1], search[2],
+                    search[3], "electronics").getPage(0, Integer.MAX_VALUE)
+                    .equals(electronics);
+        }
+        return pass;
+    }
+
+    /**
+     * Counts the electronics of a result by fetching every match, the way a
+     * search without a type filter is narrowed afterwards
+     */
+    private static int filterElectronics(SearchResult result) {
+        int electronics = 0;
+        for (Product product : result) {
+            electronics += product instanceof Electronic ? 1 : 0;
+        }
+        return electronics;
+    }
+}